@@ -1,10 +1,11 @@
 import javax.swing.*;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  * This class provides the functionality of modelling a Big Two card game that supports
@@ -102,25 +103,75 @@ public class BigTwoClient implements CardGame, NetworkGame {
     private Socket sock;
 
     /**
-     * An ObjectOutputStream for sending messages to the server.
+     * A MessageStream for sending messages to and receiving messages from the server.
      */
-    private ObjectOutputStream oos;
+    private MessageStream stream;
+
+    /**
+     * The thread which receives messages from the server. Messages sent by this thread are queued and flushed
+     * together once all the messages received so far have been handled.
+     */
+    private Thread serverHandlerThread;
 
     /**
      * A boolean variable stating whether the client is connected to the server or not.
      */
     private boolean connectedStatus;
 
+    /**
+     * A long variable storing the session token given by the server, which is used to resume the game after
+     * losing the connection. It is 0 if there is no session to resume.
+     */
+    private long sessionToken;
+
+    /**
+     * The number of times the client tries to reconnect to the server after losing the connection.
+     */
+    private static final int RECONNECT_ATTEMPTS = 15;
+
+    /**
+     * The time (in milliseconds) the client waits before each attempt to reconnect to the server.
+     */
+    private static final long RECONNECT_INTERVAL = 2000;
+
+    /**
+     * The time (in milliseconds) between HEARTBEAT messages, which tell the server that the client is still alive
+     * while the local player is idle. The server drops a client it has not heard from for three intervals.
+     */
+    private static final long HEARTBEAT_INTERVAL = 15000;
+
+    /**
+     * A Timer object for sending HEARTBEAT messages, which is started with the first connection to the server.
+     */
+    private Timer heartbeatTimer;
+
     /**
      * An integer value denoting the index of the player whose turn it is.
      */
     private int currentIdx;
 
+    /**
+     * A long variable storing the version of the game the client is showing, as given by the server. Every move
+     * accepted by the server increases the version by one, which lets the client notice any moves it has missed.
+     */
+    private long stateVersion;
+
+    /**
+     * A boolean variable stating whether the client has asked the server for a snapshot and is waiting for it.
+     */
+    private boolean syncPending;
+
     /**
      * A BigTwoTable object to create the GUI for the game and handle all user actions.
      */
     private BigTwoTable table;
 
+    /**
+     * A placeholder for the cards held by the other players, which are not sent to this client. Only the
+     * number of these cards matters, since they are always drawn face down.
+     */
+    private static final Card HIDDEN_CARD = new BigTwoCard(0, 0);
+
     /**
      * This method retrieves the num of players playing the game.
      *
@@ -226,6 +277,83 @@ public class BigTwoClient implements CardGame, NetworkGame {
 
     }
 
+    /**
+     * This method starts/restarts the game with the snapshot of the new game sent by the server. Only the cards
+     * dealt to the local player are included, and the other players are given the same number of hidden cards.
+     *
+     * @param        snapshot A GameSnapshot object specifying the new game as seen by the local player
+     */
+    public void start(GameSnapshot snapshot) {
+
+        // there is no deck on the client side any more
+        this.deck = null;
+        restore(snapshot);
+
+    }
+
+    /**
+     * This method restores the game from a snapshot sent by the server, e.g. after the local player has resumed
+     * the session in the middle of a game or has missed some moves.
+     *
+     * @param        snapshot A GameSnapshot object specifying the state of the game
+     */
+    private void restore(GameSnapshot snapshot) {
+
+        // the snapshot replaces whatever the client had, so there is nothing left to catch up on
+        stateVersion = snapshot.getVersion();
+        syncPending = false;
+
+        // restore the cards held by the players
+        CardList localCards = CardMask.toCardList(snapshot.getHand());
+        for (int index = 0; index < numOfPlayers; index++) {
+            setCardsInHand(index, localCards, snapshot.getNumOfCards(index));
+        }
+        // restore the last hand on the table
+        handsOnTable.clear();
+        if (snapshot.getLastHandIdx() >= 0) {
+            CardGamePlayer lastPlayer = playerList.get(snapshot.getLastHandIdx());
+            handsOnTable.add(BigTwoGameState.createHand(snapshot.getLastHandType(), lastPlayer,
+                    CardMask.toCardList(snapshot.getLastHand())));
+        }
+
+        currentIdx = snapshot.getCurrentIdx();
+        table.setActivePlayer(playerID);
+        if (currentIdx >= 0)    {
+            table.printMsg(playerList.get(getCurrentIdx()).getName() + "'s turn:\n");
+            updateGameStatus();
+        }
+        else    {
+            // no game is being played, get ready for the next one
+            table.resetSelected();
+            table.disable();
+            sendMessage(new CardGameMessage(CardGameMessage.READY, -1, null));
+        }
+
+    }
+
+    /**
+     * This method replaces the cards held by the specified player. The local player gets the given cards, while
+     * the other players get the given number of hidden cards.
+     *
+     * @param        index An integer value denoting the index of the player
+     * @param        localCards A CardList object containing the cards held by the local player
+     * @param        numOfCards An integer value denoting the number of cards held by the player
+     */
+    private void setCardsInHand(int index, CardList localCards, int numOfCards) {
+        CardGamePlayer player = playerList.get(index);
+        player.removeAllCards();
+        if (index == playerID)  {
+            for (int i = 0; i < localCards.size(); i++) {
+                player.addCard(localCards.getCard(i));
+            }
+        }
+        else    {
+            for (int i = 0; i < numOfCards; i++) {
+                player.addCard(HIDDEN_CARD);
+            }
+        }
+    }
+
     /**
      * A method that makes a move with the player of the specified playerID using the specified card indices.
      *
@@ -239,68 +367,60 @@ public class BigTwoClient implements CardGame, NetworkGame {
     }
 
     /**
-     * A method that checks the move made by the specified player.
+     * A method that checks the move made by the specified player. Moves are checked by the server against its
+     * own copy of the game, so this method simply passes the move on to the server.
      *
      * @param           playerID an integer value denoting the playerID of the player who makes the move
      * @param           cardIdx an integer array containing the selected indices
      */
     public void checkMove(int playerID, int[] cardIdx) {
+        makeMove(playerID, cardIdx);
+    }
 
-        // first, disable table while checking
-        table.disable();
-        Hand lastHandOnTable = getLastHandOnTable();
-
-        CardGamePlayer currentPlayer = playerList.get(playerID);
-        CardList cardsPlayed = currentPlayer.play(cardIdx);
+    /**
+     * A method that applies a move which has been accepted by the server to the game.
+     *
+     * @param           result A MoveResult object specifying the cards played and the next player
+     */
+    private void applyMove(MoveResult result) {
 
-        if (cardsPlayed == null)  {
-            // pass attempted or input indices are out of range
-            if (lastHandOnTable == null || lastHandOnTable.getPlayer().equals(currentPlayer))   {
-                // a player cannot pass on the first turn or if the last hand on table is theirs (error check)
-                table.printMsg("Not a legal move!!!\n");
-            }
-            else {
-                // turn passed
-                table.printMsg("{Pass}\n");
-                currentIdx = (currentIdx + 1) % numOfPlayers;
-                table.printMsg(playerList.get(getCurrentIdx()).getName() + "'s turn:\n");
-                }
-            updateGameStatus();
+        if (result.getVersion() <= stateVersion || syncPending)  {
+            // the move is already part of the state shown, or a snapshot including it is on its way
             return;
         }
-
-        cardsPlayed.sort();
-
-        // check for three of diamonds in case of first player move
-        BigTwoCard threeOfDiamonds = new BigTwoCard(0, 2);
-        if (lastHandOnTable == null && !cardsPlayed.getCard(0).equals(threeOfDiamonds))    {
-            // the first move does not include three of diamonds: illegal!
-            table.printMsg(cardsPlayed.toString() + " <== Not a legal move!!!\n");
-            updateGameStatus();
+        if (result.getVersion() != stateVersion + 1)    {
+            // some moves have been missed, so ask the server for the whole state instead
+            syncPending = true;
+            sendMessage(new CardGameMessage(CardGameMessage.SYNC, -1, null));
             return;
         }
+        stateVersion = result.getVersion();
 
-        // the cards played are legal as per preliminary check, we now compose a hand from them
-        Hand newHand = composeHand(currentPlayer, cardsPlayed);
+        // first, disable table while updating
+        table.disable();
+        CardGamePlayer currentPlayer = playerList.get(result.getPlayerID());
 
-        if (newHand == null) {
-            // no hand was possible from the given cards
-            table.printMsg(cardsPlayed.toString() + " <== Not a legal move!!!\n");
-            updateGameStatus();
-            return;
+        if (result.isPass())    {
+            // turn passed
+            table.printMsg("{Pass}\n");
         }
-        else if (lastHandOnTable != null && !newHand.beats(lastHandOnTable)) {
-            // the new hand loses to the last hand on table
-            table.printMsg("{" + newHand.getType() + "}" + cardsPlayed.toString() + " <== Not a legal move!!!\n");
-            updateGameStatus();
-            return;
+        else    {
+            // the new hand beats the last hand, and takes the last hand's place
+            CardList cardsPlayed = CardMask.toCardList(result.getCards());
+            Hand newHand = BigTwoGameState.createHand(result.getHandType(), currentPlayer, cardsPlayed);
+            handsOnTable.add(newHand);
+            if (result.getPlayerID() == playerID)   {
+                currentPlayer.removeCards(cardsPlayed);
+            }
+            else    {
+                // only the number of hidden cards needs to be kept up to date
+                for (int i = 0; i < cardsPlayed.size(); i++)    {
+                    currentPlayer.getCardsInHand().removeCard(0);
+                }
+            }
+            table.printMsg("{" + newHand.getType() + "}" + newHand.toString() + "\n");
         }
-
-        // the new hand beats the last hand, and takes the last hand's place
-        handsOnTable.add(newHand);
-        currentPlayer.removeCards(cardsPlayed);
-        currentIdx = (getCurrentIdx() + 1) % numOfPlayers;
-        table.printMsg("{" + newHand.getType() + "}" + newHand.toString() + "\n");
+        currentIdx = result.getNextIdx();
 
         // check if the move ends the game
         if (endOfGame()) {
@@ -314,6 +434,30 @@ public class BigTwoClient implements CardGame, NetworkGame {
 
     }
 
+    /**
+     * A method that reports a move of the local player which has been rejected by the server.
+     *
+     * @param           result A MoveResult object specifying the cards selected by the local player
+     */
+    private void printIllegalMove(MoveResult result)    {
+
+        if (result.isPass())    {
+            // a player cannot pass on the first turn or if the last hand on table is theirs
+            table.printMsg("Not a legal move!!!\n");
+        }
+        else if (result.getHandType() < 0)  {
+            // no hand was possible from the given cards
+            table.printMsg(CardMask.toCardList(result.getCards()).toString() + " <== Not a legal move!!!\n");
+        }
+        else    {
+            // the new hand loses to the last hand on table, or the first move does not include three of diamonds
+            table.printMsg("{" + BigTwoGameState.HAND_TYPES[result.getHandType()] + "}"
+                    + CardMask.toCardList(result.getCards()).toString() + " <== Not a legal move!!!\n");
+        }
+        updateGameStatus();
+
+    }
+
     /**
      * A method that determines whether or not the game has ended at any given time.
      *
@@ -377,30 +521,7 @@ public class BigTwoClient implements CardGame, NetworkGame {
      * @return     An object of type Hand, containing the hand returned from the given set of cards
      */
     public static Hand composeHand(CardGamePlayer player, CardList cards)   {
-
-        switch(cards.size())    {
-            case 1: return (new Single(player, cards)); // single created
-            case 2: return ((new Pair(player, cards)).isValid() ? (new Pair(player, cards)) : null); // pair created if valid
-            case 3: return ((new Triple(player, cards)).isValid() ? (new Triple(player, cards)) : null); // triple created if valid
-            case 5: // check the highest level 5 card hand that can be made
-                if (new StraightFlush(player, cards).isValid())  {
-                    return new StraightFlush(player, cards); // straight flush possible
-                }
-                else if (new Quad(player, cards).isValid()) {
-                    return new Quad(player, cards); // quad possible
-                }
-                else if (new FullHouse(player, cards).isValid())    {
-                    return new FullHouse(player, cards); // full house possible
-                }
-                else if (new Flush(player, cards).isValid())    {
-                    return new Flush(player, cards); // flush possible
-                }
-                else if (new Straight(player, cards).isValid()) {
-                    return new Straight(player, cards); // straight possible
-                }
-            default: return null; // no hand possible
-        }
-
+        return BigTwoGameState.composeHand(player, cards);
     }
 
     /**
@@ -482,6 +603,8 @@ public class BigTwoClient implements CardGame, NetworkGame {
         // set the server IP and TCP port
         setServerIP("127.0.0.1");
         setServerPort(2396);
+        // a new connection starts a new session
+        sessionToken = 0;
         // create a new Socket to connect to the game server
         try {
             sock = new Socket(getServerIP(), getServerPort());
@@ -498,25 +621,64 @@ public class BigTwoClient implements CardGame, NetworkGame {
             e.printStackTrace();
             return;
         }
-        // create the ObjectOutputStream object for the socket
+        // create the MessageStream object for the socket
         try {
-            oos = new ObjectOutputStream(sock.getOutputStream());
+            stream = new MessageStream(sock);
         }
         catch (IOException e) {
-            System.out.println("Cannot get ObjectOutputStream object for the socket!");
+            System.out.println("Cannot create MessageStream object for the socket!");
             e.printStackTrace();
             return;
         }
         // create a new thread for handling the server interactions and assign it to the runnable ServerHandler class
         Runnable serverHandlerRunnable = new ServerHandler();
-        Thread serverHandlerThread = new Thread(serverHandlerRunnable);
+        serverHandlerThread = new Thread(serverHandlerRunnable);
         serverHandlerThread.start();
+        // keep the connection alive while the local player is idle
+        if (heartbeatTimer == null)    {
+            heartbeatTimer = new Timer(true);
+            heartbeatTimer.schedule(new HeartbeatTask(), HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL);
+        }
 
         // send a message to join the server
         sendMessage(new CardGameMessage(CardGameMessage.JOIN, -1, playerName));
 
     }
 
+    /**
+     * A method for reconnecting to the game server after losing the connection and reclaiming the seat of the
+     * local player. The server keeps the seat for a while, so the client keeps trying for about as long.
+     *
+     * @return      A boolean value of 'true' if a new connection has been made and a RESUME message has been sent,
+     *                             or 'false' if there is no session to resume or the server cannot be reached
+     */
+    private boolean resumeSession() {
+
+        if (sessionToken == 0)  {
+            return false;
+        }
+        table.disable();
+        table.printMsg("Connection lost! Trying to resume the game...\n");
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++)   {
+            try {
+                Thread.sleep(RECONNECT_INTERVAL);
+                sock = new Socket(getServerIP(), getServerPort());
+                stream = new MessageStream(sock);
+            }
+            catch (InterruptedException e)  {
+                return false;
+            }
+            catch (IOException e)   {
+                // the server cannot be reached yet, try again
+                continue;
+            }
+            sendMessage(new CardGameMessage(CardGameMessage.RESUME, -1, sessionToken));
+            return true;
+        }
+        return false;
+
+    }
+
     /**
      * A method for parsing messages received from the game server.
      *
@@ -557,6 +719,7 @@ public class BigTwoClient implements CardGame, NetworkGame {
             // server is full, display an error
             case CardGameMessage.FULL:
                 table.printMsg("The server is full! Unable to join the game!\n");
+                sessionToken = 0;
                 try {
                     sock.close();
                 }
@@ -589,12 +752,33 @@ public class BigTwoClient implements CardGame, NetworkGame {
             // the server prompts to start a game
             case CardGameMessage.START:
                 table.printMsg("All players are ready. Starting game. \n");
-                start((Deck) message.getData());
+                start((GameSnapshot) message.getData());
+                break;
+
+            // the server has started (or ended) a session for the local player
+            case CardGameMessage.SESSION:
+                sessionToken = (Long) message.getData();
+                if (sessionToken == 0)  {
+                    // the seat of the local player has been given away, join as a new player
+                    table.printMsg("Unable to resume the game! Joining as a new player.\n");
+                    sendMessage(new CardGameMessage(CardGameMessage.JOIN, -1, playerName));
+                }
+                break;
+
+            // the server sends the state of the game after the local player has resumed the session or missed moves
+            case CardGameMessage.SNAPSHOT:
+                table.printMsg(syncPending ? "Caught up with the game.\n" : "Resumed the game.\n");
+                restore((GameSnapshot) message.getData());
                 break;
 
-            // the server says that a move has been made by a player
-            case CardGameMessage.MOVE:
-                checkMove(message.getPlayerID(), (int[]) message.getData());
+            // the server says that a move made by a player has been accepted
+            case CardGameMessage.PLAY:
+                applyMove((MoveResult) message.getData());
+                break;
+
+            // the server says that a move made by the local player is not legal
+            case CardGameMessage.ILLEGAL:
+                printIllegalMove((MoveResult) message.getData());
                 break;
 
             // the server says that a message has been sent in game chat
@@ -620,14 +804,40 @@ public class BigTwoClient implements CardGame, NetworkGame {
      */
     public void sendMessage(GameMessage message)    {
         try {
-            oos.writeObject(message);
+            if (Thread.currentThread() == serverHandlerThread)  {
+                // a reply to the server, which is sent with the other replies by the ServerHandler
+                stream.queueMessage(message);
+            }
+            else    {
+                stream.writeMessage(message);
+            }
         }
         catch (IOException e) {
-            System.out.println("Could not perform message write on the ObjectOutputStream object!");
+            System.out.println("Could not perform message write on the MessageStream object!");
             e.printStackTrace();
         }
     }
 
+    /**
+     * This class is an inner class which sends HEARTBEAT messages to the game server at regular intervals. It
+     * extends the TimerTask class, so that it can be scheduled by a Timer.
+     *
+     * @author Anchit Mishra
+     */
+    private class HeartbeatTask extends TimerTask {
+
+        /**
+         * An implementation of the run() method from the Runnable interface. This method sends a HEARTBEAT message
+         * to the game server if the client is connected.
+         */
+        public void run()   {
+            if (connectedStatus)    {
+                sendMessage(new CardGameMessage(CardGameMessage.HEARTBEAT, -1, null));
+            }
+        }
+
+    }
+
     /**
      * This class is an inner class which serves the purpose of handling interactions with the game server. An object of
      * the class is created by a thread when the game connection is made for the first time. This class implements
@@ -637,47 +847,62 @@ public class BigTwoClient implements CardGame, NetworkGame {
      */
     private class ServerHandler implements Runnable {
 
-        /**
-         * An ObjectInputStream object for receiving inputs from the server via the socket.
-         */
-        private ObjectInputStream ois;
-
         /**
          * An implementation of the run() method from the Runnable interface. This method is responsible for the
          * thread execution of all tasks that the ServerHandler class is responsible for.
          */
         public synchronized void run()   {
 
-            // create the ObjectInputStream object for receiving messages
-            try {
-                ois = new ObjectInputStream(sock.getInputStream());
-            }
-            catch (IOException e) {
-                System.out.println("Could not attach the ObjectInputStream object to the Socket!");
-                e.printStackTrace();
-            }
-            // a variable for storing messages received from the game server
-            GameMessage receivedMessage;
-            try {
-                // wait till a message is received
-                while ((receivedMessage = (GameMessage) ois.readObject()) != null)  {
-                    parseMessage(receivedMessage);
+            while (true)    {
+                try {
+                    // wait till a message is received, sending all queued replies first if none is on its way
+                    while (true)    {
+                        if (!stream.hasBufferedInput()) {
+                            stream.flush();
+                        }
+                        parseMessage(stream.readMessage());
+                    }
                 }
-                ois.close();
-            }
-            catch (IOException | ClassNotFoundException e) {
-                System.out.println("Could not read the message from ObjectInputStream!");
-                // we print that the connection was lost
-                JOptionPane.showMessageDialog(null, "Cannot connect to the server!");
-                table.printMsg("Cannot connect to the server!\n");
-                connectedStatus = false;
-                for (int i = 0; i < getPlayerList().size(); i++)   {
-                    getPlayerList().get(i).removeAllCards();
+                catch (EOFException e) {
+                    // the server has closed the connection, e.g. on going down
+                    System.out.println("The server has closed the connection.");
+                    if (!reconnect())   {
+                        return;
+                    }
+                }
+                catch (IOException e) {
+                    System.out.println("Could not read the message from MessageStream!");
+                    if (!reconnect())   {
+                        e.printStackTrace();
+                        return;
+                    }
                 }
-                e.printStackTrace();
             }
         }
 
+        /**
+         * A method for getting back into the game on a new connection after the connection to the server has
+         * been lost. If that fails, the local player is told that the connection was lost.
+         *
+         * @return      A boolean value of 'true' if the session is being resumed on a new connection,
+         *                             or 'false' if the connection is lost for good
+         */
+        private boolean reconnect()    {
+            // try to get back into the game on a new connection first
+            if (connectedStatus && resumeSession()) {
+                return true;
+            }
+            stream.close();
+            // we print that the connection was lost
+            JOptionPane.showMessageDialog(null, "Cannot connect to the server!");
+            table.printMsg("Cannot connect to the server!\n");
+            connectedStatus = false;
+            for (int i = 0; i < getPlayerList().size(); i++)   {
+                getPlayerList().get(i).removeAllCards();
+            }
+            return false;
+        }
+
     }
 
     /**
@@ -0,0 +1,413 @@
+/**
+ * This class is used to model the state of a Big Two game without any user
+ * interface, so that the server can hold the authoritative copy of a game and
+ * check every move once before it is broadcast. The cards held by each player
+ * are kept as masks (see CardMask), so a hand in sorted order is simply the
+ * set bits of its mask in ascending order.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class BigTwoGameState {
+	/**
+	 * The names of the types of hands, indexed by their type code.
+	 */
+	public static final String[] HAND_TYPES = { "Single", "Pair", "Triple",
+			"Straight", "Flush", "FullHouse", "Quad", "StraightFlush" };
+
+	// the card which must be played in the first move of a game
+	private static final BigTwoCard THREE_OF_DIAMONDS = new BigTwoCard(0, 2);
+
+	private final int numOfPlayers;
+	// players used as the owners of hands (Hand.beats compares owners)
+	private final CardGamePlayer[] players;
+	// the cards held by each player
+	private final long[] hands;
+	// the last hand played on the table, or null if none has been played
+	private Hand lastHand;
+	// the index of the player who played the last hand on the table
+	private int lastHandIdx = -1;
+	// the index of the player whose turn it is, or -1 if no game is running
+	private int currentIdx = -1;
+	// the number of changes made to the state so far
+	private long version = 0;
+
+	/**
+	 * Creates and returns an instance of the BigTwoGameState class.
+	 *
+	 * @param numOfPlayers
+	 *            the number of players in the game
+	 */
+	public BigTwoGameState(int numOfPlayers) {
+		this.numOfPlayers = numOfPlayers;
+		this.players = new CardGamePlayer[numOfPlayers];
+		this.hands = new long[numOfPlayers];
+		for (int i = 0; i < numOfPlayers; i++) {
+			players[i] = new CardGamePlayer("Player " + i);
+		}
+	}
+
+	/**
+	 * Starts a new game by dealing the specified deck the same way the clients
+	 * do: the k-th card of the deck goes to player k % numOfPlayers. The deck
+	 * is left unchanged.
+	 *
+	 * @param deck
+	 *            the (shuffled) deck to be dealt
+	 */
+	public void start(Deck deck) {
+		long[] dealt = new long[numOfPlayers];
+		for (int k = 0; k < deck.size(); k++) {
+			dealt[k % numOfPlayers] |= CardMask.of(deck.getCard(k));
+		}
+		start(dealt);
+	}
+
+	/**
+	 * Starts a new game with the specified cards in the hands of the players.
+	 * The player holding the three of diamonds makes the first move.
+	 *
+	 * @param dealt
+	 *            the mask of the cards held by each player
+	 */
+	public void start(long[] dealt) {
+		long threeOfDiamonds = CardMask.of(THREE_OF_DIAMONDS);
+		currentIdx = 0;
+		for (int i = 0; i < numOfPlayers; i++) {
+			hands[i] = dealt[i];
+			if ((dealt[i] & threeOfDiamonds) != 0) {
+				currentIdx = i;
+			}
+		}
+		lastHand = null;
+		lastHandIdx = -1;
+		version++;
+	}
+
+	/**
+	 * Puts the game in the specified state, e.g. one taken over from another
+	 * server. This is the inverse of reading the hands with getHand and the
+	 * rest with getSnapshot.
+	 *
+	 * @param hands
+	 *            the mask of the cards held by each player
+	 * @param lastHand
+	 *            the mask of the cards of the last hand on the table, or 0 if
+	 *            none
+	 * @param lastHandType
+	 *            the type code of the last hand on the table, or -1 if none
+	 * @param lastHandIdx
+	 *            the index of the player who played the last hand, or -1 if
+	 *            none
+	 * @param currentIdx
+	 *            the index of the player whose turn it is, or -1 if no game is
+	 *            running
+	 * @param version
+	 *            the version of the game
+	 */
+	public void restore(long[] hands, long lastHand, int lastHandType,
+			int lastHandIdx, int currentIdx, long version) {
+		for (int i = 0; i < numOfPlayers; i++) {
+			this.hands[i] = hands[i];
+		}
+		this.lastHand = lastHand == 0 || lastHandIdx < 0 ? null : createHand(
+				lastHandType, players[lastHandIdx],
+				CardMask.toCardList(lastHand));
+		this.lastHandIdx = this.lastHand == null ? -1 : lastHandIdx;
+		this.currentIdx = currentIdx;
+		this.version = version;
+	}
+
+	/**
+	 * Stops the current game (e.g. because a player has left).
+	 */
+	public void reset() {
+		for (int i = 0; i < numOfPlayers; i++) {
+			hands[i] = 0;
+		}
+		lastHand = null;
+		lastHandIdx = -1;
+		currentIdx = -1;
+		version++;
+	}
+
+	/**
+	 * Returns whether a game is being played, i.e. it has started and has not
+	 * ended yet.
+	 *
+	 * @return true if a game is being played; false otherwise
+	 */
+	public boolean isInProgress() {
+		return currentIdx >= 0 && !endOfGame();
+	}
+
+	/**
+	 * Checks the move made by the specified player and, if it is legal,
+	 * applies it to the game. The card indices refer to the player's cards in
+	 * sorted order, and an empty list of indices is a pass.
+	 *
+	 * @param playerID
+	 *            the playerID of the player who makes the move
+	 * @param cardIdx
+	 *            the list of the indices of the cards selected by the player
+	 * @return the result of the move
+	 */
+	public MoveResult makeMove(int playerID, int[] cardIdx) {
+		if (!isInProgress() || playerID != currentIdx) {
+			// moves out of turn are never legal
+			return new MoveResult(playerID, false, 0, -1, currentIdx, version);
+		}
+
+		long cards = selectCards(hands[playerID], cardIdx);
+		if (cards == 0) {
+			// a player cannot pass on the first turn or if the last hand on
+			// table is theirs
+			if (lastHand == null || lastHandIdx == playerID) {
+				return new MoveResult(playerID, false, 0, -1, currentIdx,
+						version);
+			}
+			currentIdx = (currentIdx + 1) % numOfPlayers;
+			version++;
+			return new MoveResult(playerID, true, 0, -1, currentIdx, version);
+		}
+
+		CardList cardsPlayed = CardMask.toCardList(cards);
+		Hand newHand = composeHand(players[playerID], cardsPlayed);
+		int handType = newHand == null ? -1 : getTypeCode(newHand);
+		if (newHand == null
+				|| (lastHand == null && !cardsPlayed.getCard(0).equals(
+						THREE_OF_DIAMONDS))
+				|| (lastHand != null && !newHand.beats(lastHand))) {
+			return new MoveResult(playerID, false, cards, handType,
+					currentIdx, version);
+		}
+
+		hands[playerID] &= ~cards;
+		lastHand = newHand;
+		lastHandIdx = playerID;
+		currentIdx = (currentIdx + 1) % numOfPlayers;
+		version++;
+		return new MoveResult(playerID, true, cards, handType, currentIdx,
+				version);
+	}
+
+	/**
+	 * Checks for end of game.
+	 *
+	 * @return true if a player has no cards left; false otherwise
+	 */
+	public boolean endOfGame() {
+		if (currentIdx < 0) {
+			return false;
+		}
+		for (int i = 0; i < numOfPlayers; i++) {
+			if (hands[i] == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of players in this game.
+	 *
+	 * @return the number of players in this game
+	 */
+	public int getNumOfPlayers() {
+		return numOfPlayers;
+	}
+
+	/**
+	 * Returns the cards held by the specified player.
+	 *
+	 * @param playerID
+	 *            the playerID of the player
+	 * @return the mask of the cards held by the player
+	 */
+	public long getHand(int playerID) {
+		return hands[playerID];
+	}
+
+	/**
+	 * Returns the number of cards held by the specified player.
+	 *
+	 * @param playerID
+	 *            the playerID of the player
+	 * @return the number of cards held by the player
+	 */
+	public int getNumOfCards(int playerID) {
+		return CardMask.size(hands[playerID]);
+	}
+
+	/**
+	 * Returns the index of the player whose turn it is.
+	 *
+	 * @return the index of the current player, or -1 if no game has started
+	 */
+	public int getCurrentIdx() {
+		return currentIdx;
+	}
+
+	/**
+	 * Returns the version of this game, i.e. the number of changes (deals,
+	 * accepted moves and resets) made to it so far.
+	 *
+	 * @return the version of this game
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the last hand played on the table.
+	 *
+	 * @return the last hand played on the table, or null if none
+	 */
+	public Hand getLastHand() {
+		return lastHand;
+	}
+
+	/**
+	 * Returns the index of the player who played the last hand on the table.
+	 *
+	 * @return the index of the player who played the last hand on the table,
+	 *         or -1 if none
+	 */
+	public int getLastHandIdx() {
+		return lastHandIdx;
+	}
+
+	/**
+	 * Returns a snapshot of this game as seen by the specified player.
+	 *
+	 * @param playerID
+	 *            the playerID of the player, or -1 for a spectator, who sees
+	 *            no cards in hand
+	 * @return a snapshot of this game as seen by the player
+	 */
+	public GameSnapshot getSnapshot(int playerID) {
+		int[] numOfCards = new int[numOfPlayers];
+		for (int i = 0; i < numOfPlayers; i++) {
+			numOfCards[i] = getNumOfCards(i);
+		}
+		long lastCards = lastHand == null ? 0 : CardMask.of(lastHand);
+		int lastType = lastHand == null ? -1 : getTypeCode(lastHand);
+		long hand = playerID < 0 ? 0 : hands[playerID];
+		return new GameSnapshot(hand, lastCards, lastType, lastHandIdx,
+				isInProgress() ? currentIdx : -1, numOfCards, version);
+	}
+
+	/**
+	 * Returns the mask of the cards selected from a hand by their indices in
+	 * sorted order. Indices that are out of range are ignored.
+	 */
+	private static long selectCards(long hand, int[] cardIdx) {
+		if (cardIdx == null) {
+			return 0;
+		}
+		long cards = 0;
+		for (int idx : cardIdx) {
+			if (idx < 0 || idx >= CardMask.size(hand)) {
+				continue;
+			}
+			long rest = hand;
+			for (int i = 0; i < idx; i++) {
+				rest &= rest - 1;
+			}
+			cards |= Long.lowestOneBit(rest);
+		}
+		return cards;
+	}
+
+	/**
+	 * Returns the type code of the specified hand.
+	 *
+	 * @param hand
+	 *            the hand
+	 * @return the index of the type of the hand in HAND_TYPES
+	 */
+	public static int getTypeCode(Hand hand) {
+		String type = hand.getType();
+		for (int i = 0; i < HAND_TYPES.length; i++) {
+			if (HAND_TYPES[i].equals(type)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Creates a hand of the specified type, without checking its validity.
+	 * This is used by the clients to show a hand which has already been
+	 * checked by the server.
+	 *
+	 * @param handType
+	 *            the type code of the hand
+	 * @param player
+	 *            the player who plays the hand
+	 * @param cards
+	 *            the cards in the hand
+	 * @return a hand of the specified type, or null if the type is unknown
+	 */
+	public static Hand createHand(int handType, CardGamePlayer player,
+			CardList cards) {
+		switch (handType) {
+		case 0:
+			return new Single(player, cards);
+		case 1:
+			return new Pair(player, cards);
+		case 2:
+			return new Triple(player, cards);
+		case 3:
+			return new Straight(player, cards);
+		case 4:
+			return new Flush(player, cards);
+		case 5:
+			return new FullHouse(player, cards);
+		case 6:
+			return new Quad(player, cards);
+		case 7:
+			return new StraightFlush(player, cards);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the highest valid hand which can be formed by the specified
+	 * cards, or null if the cards do not form a hand.
+	 *
+	 * @param player
+	 *            the player who plays the cards
+	 * @param cards
+	 *            the cards played
+	 * @return the hand formed by the cards, or null if there is none
+	 */
+	public static Hand composeHand(CardGamePlayer player, CardList cards) {
+		switch (cards.size()) {
+		case 1:
+			return new Single(player, cards);
+		case 2:
+			return validOrNull(new Pair(player, cards));
+		case 3:
+			return validOrNull(new Triple(player, cards));
+		case 5:
+			// checks the highest 5-card hand first
+			Hand[] candidates = { new StraightFlush(player, cards),
+					new Quad(player, cards), new FullHouse(player, cards),
+					new Flush(player, cards), new Straight(player, cards) };
+			for (Hand candidate : candidates) {
+				if (candidate.isValid()) {
+					return candidate;
+				}
+			}
+			return null;
+		default:
+			return null;
+		}
+	}
+
+	private static Hand validOrNull(Hand hand) {
+		return hand.isValid() ? hand : null;
+	}
+}
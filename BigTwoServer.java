@@ -1,37 +1,129 @@
-/**
- * This class is used to model a Big Two card game server.
- * @author Kenneth Wong
- *
- */
-public class BigTwoServer extends CardGameServer {
-	/**
-	 * Creates and returns an instance of the BigTwoServer class.
-	 */
-	public BigTwoServer() {
-		super("Big Two Server", 4);
-	}
-	
-	/**
-	 * Creates and returns an instance of the BigTwoDeck class.
-	 * @return an instance of the BigTwoDeck class
-	 */
-	public Deck createDeck() {
-		return new BigTwoDeck(); 
-	}
-	
-	/**
-	 * main() method for starting the server.
-	 * 
-	 * @param args
-	 *            the port to be used by the server. The default port 5000 will
-	 *            be used if no arguments has been supplied
-	 */
-	public static void main(String[] args) {
-		BigTwoServer server = new BigTwoServer();
-		if (args.length > 0) {
-			server.start(Integer.parseInt(args[0]));
-		} else {
-			server.start(2396);
-		}
-	} // main
-}
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * This class is used to model a Big Two card game server.
+ * @author Kenneth Wong
+ *
+ */
+public class BigTwoServer extends CardGameServer {
+	// the number of trace records buffered before they are written out
+	private static final int TRACE_BUFFER_SIZE = 65536;
+
+	/**
+	 * Creates and returns an instance of the BigTwoServer class.
+	 */
+	public BigTwoServer() {
+		super("Big Two Server", 4);
+	}
+
+	/**
+	 * Creates and returns an instance of the BigTwoServer class.
+	 * 
+	 * @param headless
+	 *            true if server events should be written to the standard
+	 *            output instead of a GUI
+	 */
+	public BigTwoServer(boolean headless) {
+		super("Big Two Server", 4, headless);
+	}
+	
+	/**
+	 * Creates and returns an instance of the BigTwoDeck class.
+	 * @return an instance of the BigTwoDeck class
+	 */
+	public Deck createDeck() {
+		return new BigTwoDeck(); 
+	}
+	
+	/**
+	 * main() method for starting the server.
+	 * 
+	 * @param args
+	 *            the port to be used by the server, optionally followed by
+	 *            "--headless" to run without a GUI, "--log-file" with the
+	 *            name of a file to which server events are written (rolled
+	 *            over every 10 MB) and "--workers" with the number of threads
+	 *            running the tables (one per processor by default),
+	 *            "--websocket-port" with a port for WebSocket clients,
+	 *            "--metrics-port" with a local port at which metrics are
+	 *            served for Prometheus, "--trace-file" with the name of a
+	 *            file to which a sample of the messages are traced (see
+	 *            MessageTracer), "--trace-rate" with the share of the
+	 *            messages traced (0.01 by default), "--journal-dir" with a
+	 *            directory in which the events of the tables are journaled
+	 *            and from which the open tables are recovered on startup,
+	 *            and "--cluster-key" with the key shared with a
+	 *            ClusterGateway to run as a node of a cluster. The default
+	 *            port 2396 will be used if no port has been supplied
+	 */
+	public static void main(String[] args) {
+		int port = 2396;
+		boolean headless = false;
+		String logFile = null;
+		int numOfWorkers = 0;
+		String clusterKey = null;
+		int webSocketPort = -1;
+		int metricsPort = -1;
+		String traceFile = null;
+		double traceRate = 0.01;
+		String journalDir = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--headless")) {
+				headless = true;
+			} else if (args[i].equals("--log-file") && i + 1 < args.length) {
+				logFile = args[++i];
+			} else if (args[i].equals("--workers") && i + 1 < args.length) {
+				numOfWorkers = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--cluster-key") && i + 1 < args.length) {
+				clusterKey = args[++i];
+			} else if (args[i].equals("--websocket-port")
+					&& i + 1 < args.length) {
+				webSocketPort = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--metrics-port") && i + 1 < args.length) {
+				metricsPort = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--trace-file") && i + 1 < args.length) {
+				traceFile = args[++i];
+			} else if (args[i].equals("--trace-rate") && i + 1 < args.length) {
+				traceRate = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--journal-dir") && i + 1 < args.length) {
+				journalDir = args[++i];
+			} else {
+				port = Integer.parseInt(args[i]);
+			}
+		}
+
+		BigTwoServer server = headless ? new BigTwoServer(true)
+				: new BigTwoServer();
+		if (numOfWorkers > 0) {
+			server.setNumOfWorkers(numOfWorkers);
+		}
+		server.setClusterKey(clusterKey);
+		server.setWebSocketPort(webSocketPort);
+		server.setMetricsPort(metricsPort);
+		if (journalDir != null) {
+			server.setJournalDirectory(Paths.get(journalDir));
+		}
+		if (logFile != null) {
+			try {
+				server.getEventLog().addSink(
+						new RollingFileEventSink(new File(logFile),
+								10 * 1024 * 1024, 5));
+			} catch (IOException ex) {
+				System.err.println("Cannot open the log file " + logFile);
+				ex.printStackTrace();
+			}
+		}
+		if (traceFile != null) {
+			try {
+				server.setTracer(new MessageTracer(Paths.get(traceFile),
+						traceRate, TRACE_BUFFER_SIZE));
+			} catch (IOException ex) {
+				System.err.println("Cannot open the trace file " + traceFile);
+				ex.printStackTrace();
+			}
+		}
+		server.start(port);
+	} // main
+}
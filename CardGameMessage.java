@@ -40,14 +40,16 @@ public class CardGameMessage extends GameMessage {
 	 */
 	public static final int READY = 4;
 	/**
-	 * Broadcast by the server when all clients are ready for a new game. In this message, playerID is 
-	 * -1 (no being used), and data is a reference to a Deck object (a shuffled deck for the new game).
+	 * Sent by the server to each client when all clients are ready for a new game. In this message,
+	 * playerID specifies the player who makes the first move, and data is a reference to a
+	 * GameSnapshot object specifying the new game as seen by the local player, i.e. only the cards
+	 * dealt to the local player are included.
 	 */
 	public static final int START = 5;
 	/**
-	 * Sent by a client when the local player makes a move. The server will broadcast this message upon
-	 * receiving it. In this message, playerID specifies the player who makes the move, and data is a
-	 * reference to an array of int specifying the indices of the cards being played.
+	 * Sent by a client when the local player makes a move. The server checks the move and replies with
+	 * a PLAY or an ILLEGAL message. In this message, playerID specifies the player who makes the move,
+	 * and data is a reference to an array of int specifying the indices of the cards being played.
 	 */
 	public static final int MOVE = 6;
 	/**
@@ -57,6 +59,91 @@ public class CardGameMessage extends GameMessage {
 	 * sent this chat message, and data is a reference to a string containing a formated chat message.
 	 */
 	public static final int MSG = 7;
+	/**
+	 * Broadcast by the server when it accepts a move. In this message, playerID specifies the player
+	 * who made the move, and data is a reference to a MoveResult object specifying the cards played,
+	 * the type of the hand, the player whose turn it is next and the version of the game after the
+	 * move. A client which finds that the version does not follow its own has missed some changes,
+	 * and should send a SYNC message.
+	 */
+	public static final int PLAY = 8;
+	/**
+	 * Sent by the server to a client when it rejects a move made by the local player. In this message,
+	 * playerID specifies the player who made the move, and data is a reference to a MoveResult object
+	 * specifying the cards selected and, if they form one, the type of the hand.
+	 */
+	public static final int ILLEGAL = 9;
+	/**
+	 * Sent by the server to a client when the local player joins the game or resumes a session. In
+	 * this message, playerID specifies the local player, and data is a reference to a Long object
+	 * holding the session token to be presented in a RESUME message after a connection loss. A token
+	 * of 0 means that there is no session to resume, and the client should join as a new player.
+	 */
+	public static final int SESSION = 10;
+	/**
+	 * Sent by a client to the server right after reconnecting, to reclaim the seat it held before the
+	 * connection was lost. In this message, playerID is -1 (not being used), and data is a reference
+	 * to a Long object holding the session token received in a SESSION message.
+	 */
+	public static final int RESUME = 11;
+	/**
+	 * Sent by the server to a client which has resumed its session or sent a SYNC message. In this
+	 * message, playerID specifies the local player, and data is a reference to a GameSnapshot object
+	 * specifying the state of the game as seen by the local player.
+	 */
+	public static final int SNAPSHOT = 12;
+	/**
+	 * Sent by a client to the server when it has missed some changes to the game, to ask for a
+	 * SNAPSHOT message. In this message, playerID is -1 (not being used), and data is simply null
+	 * (not being used).
+	 */
+	public static final int SYNC = 13;
+	/**
+	 * Sent by a client to the server at regular intervals, so that the server can tell a live
+	 * connection from a dead one even when the player does nothing. In this message, playerID is -1
+	 * (not being used), and data is simply null (not being used).
+	 */
+	public static final int HEARTBEAT = 14;
+	/**
+	 * Sent by a client to the server to watch the game at a table without
+	 * taking a seat, and sent back by the server in reply. In this message,
+	 * playerID is -1 (not being used), and data is a reference to an Integer
+	 * object holding the id of the table, or -1 for any table. In the reply,
+	 * data holds the id of the table being watched, or -1 if there is no such
+	 * table; the server also sends -1 when the table being watched closes. A
+	 * spectator is sent a PLAYER_LIST and a SNAPSHOT message (with playerID
+	 * -1 and no cards in hand), followed by the JOIN, QUIT, READY, START,
+	 * PLAY and MSG messages of the table.
+	 */
+	public static final int SPECTATE = 15;
+	/**
+	 * Sent by the gateway of a cluster to each server whenever a server joins
+	 * or leaves the cluster. In this message, playerID is -1 (not being used),
+	 * and data is a reference to a ClusterView object. A server only accepts
+	 * it with the key it has been configured with, and moves away the tables
+	 * which belong to other servers from then on.
+	 */
+	public static final int CLUSTER = 16;
+	/**
+	 * Sent by a server of a cluster to the gateway with a table which belongs
+	 * to another server, and by the gateway to that server. In this message,
+	 * playerID is -1 (not being used), and data is a reference to a TableState
+	 * object.
+	 */
+	public static final int TABLE = 17;
+	/**
+	 * Sent by a server of a cluster to the gateway once it has taken over a
+	 * table, so that the players and spectators of the table can be moved to
+	 * the server. In this message, playerID is -1 (not being used), and data
+	 * is a reference to an Integer object holding the id of the table.
+	 */
+	public static final int MIGRATED = 18;
+
+	// the names of the message types, indexed by type
+	private static final String[] TYPE_NAMES = { "PLAYER_LIST", "JOIN",
+			"FULL", "QUIT", "READY", "START", "MOVE", "MSG", "PLAY", "ILLEGAL",
+			"SESSION", "RESUME", "SNAPSHOT", "SYNC", "HEARTBEAT", "SPECTATE",
+			"CLUSTER", "TABLE", "MIGRATED" };
 
 	/**
 	 * Creates and returns an instance of CardGameMessage.
@@ -71,4 +158,27 @@ public class CardGameMessage extends GameMessage {
 	public CardGameMessage(int type, int playerID, Object data) {
 		super(type, playerID, data);
 	}
+
+	/**
+	 * Returns the name of the specified message type, e.g. for the metrics of
+	 * the server.
+	 * 
+	 * @param type
+	 *            the message type
+	 * @return the name of the type, e.g. "MOVE", or "UNKNOWN" if the type is
+	 *         not known
+	 */
+	public static String getTypeName(int type) {
+		return type >= 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type]
+				: "UNKNOWN";
+	}
+
+	/**
+	 * Returns the number of message types.
+	 * 
+	 * @return the number of message types, which are numbered from 0
+	 */
+	public static int getNumOfTypes() {
+		return TYPE_NAMES.length;
+	}
 }
@@ -0,0 +1,438 @@
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class is used to convert card game messages to and from the binary
+ * frames sent over a socket connection. A frame is laid out as follows:
+ * <p>
+ * <pre>
+ * int32   length of the rest of the frame
+ * byte    protocol version
+ * byte    message type
+ * varint  playerID (zigzag encoded, so that -1 takes a single byte)
+ * ...     payload, depending on the message type
+ * </pre>
+ * <p>
+ * Strings are written as a varint of (byte length + 1), where 0 stands for
+ * null, followed by the UTF-8 bytes. Sets of cards are written as a varint
+ * of their mask (see CardMask). A frame is self-contained, so it can be
+ * encoded once and the same bytes written to any number of connections.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public final class CardGameMessageCodec {
+	/**
+	 * The number of bytes used for the length prefix of a frame.
+	 */
+	public static final int HEADER_LENGTH = 4;
+	/**
+	 * The version of the protocol written by this codec.
+	 */
+	public static final int VERSION = 1;
+	/**
+	 * The maximum length of a frame, excluding its length prefix. Longer frames
+	 * are neither sent nor accepted.
+	 */
+	public static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+	// initial capacity of the buffer used for encoding a single frame
+	private static final int INITIAL_CAPACITY = 256;
+
+	private CardGameMessageCodec() {
+	}
+
+	/**
+	 * Encodes the specified message into a frame.
+	 *
+	 * @param message
+	 *            the message to be encoded
+	 * @return the bytes of the frame, including the length prefix
+	 * @throws IllegalArgumentException
+	 *             if the frame would be longer than MAX_FRAME_LENGTH
+	 */
+	public static byte[] encode(GameMessage message) {
+		int capacity = INITIAL_CAPACITY;
+		while (true) {
+			ByteBuffer buffer = ByteBuffer.allocate(capacity);
+			try {
+				encode(message, buffer);
+			} catch (BufferOverflowException ex) {
+				// only long chat messages and player lists get here
+				if (capacity >= HEADER_LENGTH + MAX_FRAME_LENGTH) {
+					throw new IllegalArgumentException("Frame too long");
+				}
+				capacity = Math.min(capacity * 4, HEADER_LENGTH
+						+ MAX_FRAME_LENGTH);
+				continue;
+			}
+			if (buffer.position() == buffer.capacity()) {
+				return buffer.array();
+			}
+			byte[] frame = new byte[buffer.position()];
+			System.arraycopy(buffer.array(), 0, frame, 0, frame.length);
+			return frame;
+		}
+	}
+
+	/**
+	 * Encodes the specified message into a frame at the current position of the
+	 * specified buffer.
+	 *
+	 * @param message
+	 *            the message to be encoded
+	 * @param dst
+	 *            the buffer into which the frame is written
+	 * @return the number of bytes written, including the length prefix
+	 * @throws BufferOverflowException
+	 *             if the buffer is too small for the frame
+	 * @throws IllegalArgumentException
+	 *             if the frame would be longer than MAX_FRAME_LENGTH
+	 */
+	public static int encode(GameMessage message, ByteBuffer dst) {
+		int start = dst.position();
+		dst.position(start + HEADER_LENGTH);
+		dst.put((byte) VERSION);
+		dst.put((byte) message.getType());
+		putVarint(dst, zigzag(message.getPlayerID()));
+
+		Object data = message.getData();
+		switch (message.getType()) {
+		case CardGameMessage.PLAYER_LIST:
+			String[] names = (String[]) data;
+			putVarint(dst, names.length);
+			for (String name : names) {
+				putString(dst, name);
+			}
+			break;
+		case CardGameMessage.JOIN:
+		case CardGameMessage.QUIT:
+		case CardGameMessage.MSG:
+			putString(dst, (String) data);
+			break;
+		case CardGameMessage.FULL:
+		case CardGameMessage.READY:
+		case CardGameMessage.SYNC:
+		case CardGameMessage.HEARTBEAT:
+			break;
+		case CardGameMessage.MOVE:
+			putVarintLong(dst, indexMask((int[]) data));
+			break;
+		case CardGameMessage.PLAY:
+		case CardGameMessage.ILLEGAL:
+			MoveResult result = (MoveResult) data;
+			putVarintLong(dst, result.getCards());
+			putVarint(dst, zigzag(result.getHandType()));
+			putVarint(dst, zigzag(result.getNextIdx()));
+			putVarintLong(dst, result.getVersion());
+			break;
+		case CardGameMessage.SESSION:
+		case CardGameMessage.RESUME:
+			dst.putLong((Long) data);
+			break;
+		case CardGameMessage.SPECTATE:
+		case CardGameMessage.MIGRATED:
+			putVarint(dst, zigzag((Integer) data));
+			break;
+		case CardGameMessage.CLUSTER:
+			ClusterView view = (ClusterView) data;
+			putString(dst, view.getKey());
+			putString(dst, view.getNode());
+			putVarint(dst, view.getNodeIndex());
+			putVarint(dst, view.getNodes().size());
+			for (String node : view.getNodes()) {
+				putString(dst, node);
+			}
+			break;
+		case CardGameMessage.TABLE:
+			TableState table = (TableState) data;
+			putVarint(dst, table.getTableId());
+			putString(dst, table.getNode());
+			putVarint(dst, table.getNumOfSeats());
+			for (int i = 0; i < table.getNumOfSeats(); i++) {
+				putString(dst, table.getName(i));
+				dst.putLong(table.getSessionToken(i));
+				dst.put((byte) (table.isReady(i) ? 1 : 0));
+				putVarintLong(dst, table.getHand(i));
+			}
+			putVarintLong(dst, table.getLastHand());
+			putVarint(dst, zigzag(table.getLastHandType()));
+			putVarint(dst, zigzag(table.getLastHandIdx()));
+			putVarint(dst, zigzag(table.getCurrentIdx()));
+			putVarintLong(dst, table.getVersion());
+			break;
+		case CardGameMessage.START:
+		case CardGameMessage.SNAPSHOT:
+			GameSnapshot snapshot = (GameSnapshot) data;
+			putVarintLong(dst, snapshot.getHand());
+			putVarintLong(dst, snapshot.getLastHand());
+			putVarint(dst, zigzag(snapshot.getLastHandType()));
+			putVarint(dst, zigzag(snapshot.getLastHandIdx()));
+			putVarint(dst, zigzag(snapshot.getCurrentIdx()));
+			putVarint(dst, snapshot.getNumOfPlayers());
+			for (int i = 0; i < snapshot.getNumOfPlayers(); i++) {
+				putVarint(dst, snapshot.getNumOfCards(i));
+			}
+			putVarintLong(dst, snapshot.getVersion());
+			break;
+		default:
+			throw new IllegalArgumentException("Wrong message type: "
+					+ message.getType());
+		}
+
+		int length = dst.position() - start - HEADER_LENGTH;
+		if (length > MAX_FRAME_LENGTH) {
+			dst.position(start);
+			throw new IllegalArgumentException("Frame too long");
+		}
+		dst.putInt(start, length);
+		return length + HEADER_LENGTH;
+	}
+
+	/**
+	 * Decodes the message carried by the body of a frame (i.e. the frame
+	 * without its length prefix), starting at the current position of the
+	 * specified buffer.
+	 *
+	 * @param src
+	 *            the buffer holding the body of the frame
+	 * @return the message carried by the frame
+	 * @throws ProtocolException
+	 *             if the frame is malformed
+	 */
+	public static CardGameMessage decode(ByteBuffer src)
+			throws ProtocolException {
+		try {
+			int version = src.get();
+			if (version != VERSION) {
+				throw new ProtocolException("Unsupported protocol version: "
+						+ version);
+			}
+			int type = src.get();
+			int playerID = unzigzag(getVarint(src));
+
+			Object data;
+			switch (type) {
+			case CardGameMessage.PLAYER_LIST:
+				String[] names = new String[getCount(src)];
+				for (int i = 0; i < names.length; i++) {
+					names[i] = getString(src);
+				}
+				data = names;
+				break;
+			case CardGameMessage.JOIN:
+			case CardGameMessage.QUIT:
+			case CardGameMessage.MSG:
+				data = getString(src);
+				break;
+			case CardGameMessage.FULL:
+			case CardGameMessage.READY:
+			case CardGameMessage.SYNC:
+			case CardGameMessage.HEARTBEAT:
+				data = null;
+				break;
+			case CardGameMessage.MOVE:
+				data = indices(getVarintLong(src));
+				break;
+			case CardGameMessage.PLAY:
+			case CardGameMessage.ILLEGAL:
+				long cards = getCards(src);
+				int handType = unzigzag(getVarint(src));
+				int nextIdx = unzigzag(getVarint(src));
+				data = new MoveResult(playerID, type == CardGameMessage.PLAY,
+						cards, handType, nextIdx, getVarintLong(src));
+				break;
+			case CardGameMessage.SESSION:
+			case CardGameMessage.RESUME:
+				data = src.getLong();
+				break;
+			case CardGameMessage.SPECTATE:
+			case CardGameMessage.MIGRATED:
+				data = unzigzag(getVarint(src));
+				break;
+			case CardGameMessage.CLUSTER:
+				String key = getString(src);
+				String node = getString(src);
+				int nodeIndex = getVarint(src);
+				String[] nodes = new String[getCount(src)];
+				for (int i = 0; i < nodes.length; i++) {
+					nodes[i] = getString(src);
+				}
+				data = new ClusterView(key, node, nodeIndex, nodes);
+				break;
+			case CardGameMessage.TABLE:
+				int tableId = getVarint(src);
+				String dest = getString(src);
+				int numOfSeats = getCount(src);
+				String[] seatNames = new String[numOfSeats];
+				long[] tokens = new long[numOfSeats];
+				boolean[] readyStates = new boolean[numOfSeats];
+				long[] hands = new long[numOfSeats];
+				for (int i = 0; i < numOfSeats; i++) {
+					seatNames[i] = getString(src);
+					tokens[i] = src.getLong();
+					readyStates[i] = src.get() != 0;
+					hands[i] = getCards(src);
+				}
+				long lastCards = getCards(src);
+				int lastType = unzigzag(getVarint(src));
+				int lastIdx = unzigzag(getVarint(src));
+				int current = unzigzag(getVarint(src));
+				data = new TableState(tableId, dest, seatNames, tokens,
+						readyStates, hands, lastCards, lastType, lastIdx,
+						current, getVarintLong(src));
+				break;
+			case CardGameMessage.START:
+			case CardGameMessage.SNAPSHOT:
+				long hand = getCards(src);
+				long lastHand = getCards(src);
+				int lastHandType = unzigzag(getVarint(src));
+				int lastHandIdx = unzigzag(getVarint(src));
+				int currentIdx = unzigzag(getVarint(src));
+				int[] numOfCards = new int[getCount(src)];
+				for (int i = 0; i < numOfCards.length; i++) {
+					numOfCards[i] = getVarint(src);
+				}
+				data = new GameSnapshot(hand, lastHand, lastHandType,
+						lastHandIdx, currentIdx, numOfCards, getVarintLong(src));
+				break;
+			default:
+				throw new ProtocolException("Wrong message type: " + type);
+			}
+			return new CardGameMessage(type, playerID, data);
+		} catch (BufferUnderflowException ex) {
+			throw new ProtocolException("Truncated frame");
+		}
+	}
+
+	/**
+	 * Returns a mask with one bit set for each (distinct) card index in the
+	 * specified array. Indices that cannot be part of a hand are dropped.
+	 */
+	private static long indexMask(int[] cardIdx) {
+		long mask = 0;
+		if (cardIdx != null) {
+			for (int idx : cardIdx) {
+				if (idx >= 0 && idx < 64) {
+					mask |= 1L << idx;
+				}
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Returns the card indices in the specified mask in ascending order.
+	 */
+	private static int[] indices(long mask) {
+		int[] cardIdx = new int[Long.bitCount(mask)];
+		for (int i = 0; i < cardIdx.length; i++) {
+			cardIdx[i] = Long.numberOfTrailingZeros(mask);
+			mask &= mask - 1;
+		}
+		return cardIdx;
+	}
+
+	/**
+	 * Reads the number of elements of a list, each of which takes at least one
+	 * byte, so a corrupt count cannot trigger a huge allocation.
+	 */
+	private static int getCount(ByteBuffer src) throws ProtocolException {
+		int count = getVarint(src);
+		if (count < 0 || count > src.remaining()) {
+			throw new ProtocolException("Invalid count: " + count);
+		}
+		return count;
+	}
+
+	private static long getCards(ByteBuffer src) throws ProtocolException {
+		long cards = getVarintLong(src);
+		if ((cards & ~CardMask.FULL_DECK) != 0) {
+			throw new ProtocolException("Invalid cards: " + cards);
+		}
+		return cards;
+	}
+
+	private static void putString(ByteBuffer dst, String string) {
+		if (string == null) {
+			putVarint(dst, 0);
+			return;
+		}
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		putVarint(dst, bytes.length + 1);
+		dst.put(bytes);
+	}
+
+	private static String getString(ByteBuffer src) throws ProtocolException {
+		int length = getVarint(src) - 1;
+		if (length < 0) {
+			return null;
+		}
+		if (length > src.remaining()) {
+			throw new ProtocolException("Truncated string");
+		}
+		String string;
+		if (src.hasArray()) {
+			// decodes straight from the backing array of the frame
+			string = new String(src.array(), src.arrayOffset()
+					+ src.position(), length, StandardCharsets.UTF_8);
+			src.position(src.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			src.get(bytes);
+			string = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return string;
+	}
+
+	private static void putVarint(ByteBuffer dst, int value) {
+		while ((value & ~0x7F) != 0) {
+			dst.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		dst.put((byte) value);
+	}
+
+	private static int getVarint(ByteBuffer src) throws ProtocolException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = src.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new ProtocolException("Malformed varint");
+	}
+
+	private static void putVarintLong(ByteBuffer dst, long value) {
+		while ((value & ~0x7FL) != 0) {
+			dst.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		dst.put((byte) value);
+	}
+
+	private static long getVarintLong(ByteBuffer src) throws ProtocolException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = src.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new ProtocolException("Malformed varint");
+	}
+
+	private static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -1,9 +1,23 @@
+import java.awt.GraphicsEnvironment;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JFrame;
 import javax.swing.JMenu;
@@ -12,37 +26,214 @@ import javax.swing.JMenuItem;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.ScrollPaneConstants;
+import javax.swing.Timer;
 
 /**
- * This class is used to model a card game server.
+ * This class is used to model a card game server. The tables are partitioned
+ * across a fixed set of table workers, each an event loop on a thread of its
+ * own: all the messages and timers of a table are handled by the worker which
+ * owns it, so the state of a table is never shared between threads. Another
+ * event loop, the lobby, accepts new clients and serves those which are not
+ * at a table yet. A client is handed from one loop to another as it takes a
+ * seat, watches a table or leaves it. Each pass of a loop handles every
+ * message received so far, and the messages queued for each client while
+ * doing so are written out together at the end of the pass.
+ * <p>
+ * The server hosts any number of tables. Clients which join are put in a
+ * queue, and are seated in the order in which they joined, at free seats of
+ * existing tables first and at new tables otherwise. A new table is given to
+ * a worker by the hash of its id. The lobby compares the utilization of the
+ * workers at regular intervals, and moves a busy table from the busiest
+ * worker to the least busy one when they are too far apart. Any number of
+ * clients may watch a table as spectators; the public messages of a table
+ * are encoded once and the same frames are queued for all of its spectators.
+ * Clients may also connect over WebSocket on a port of their own, and are
+ * served by the same loops.
+ * <p>
+ * Several servers can be run as the nodes of a cluster behind a
+ * ClusterGateway. Each node then opens only tables which the hash ring of the
+ * cluster gives to it, and hands the tables it no longer owns over to their
+ * new owners through the gateway when a node joins or leaves.
+ * <p>
+ * Server events go to an asynchronous event log, so that logging never
+ * blocks an event loop. The Swing console is optional: a headless server
+ * writes its events to the console or to files instead. The server keeps
+ * counters, gauges and latency histograms of its activity, which can be
+ * scraped from a local HTTP endpoint in the Prometheus text format. It also
+ * emits Flight Recorder events (see GameEvents) around its hot paths, which
+ * are recorded only while a recording is running. The events of the tables
+ * can be recorded in a journal per table worker (see GameJournal), with a
+ * snapshot of the state of its tables at regular intervals; the tables which
+ * were open when the server died are then recovered from the journals when it
+ * starts again (see TableRecovery), and the players resume their games with
+ * their session tokens.
  * 
  * @author Kenneth Wong
  *
  */
 public class CardGameServer {
+	// The time (in milliseconds) for which the seat of a player who loses the
+	// connection is held, so that he/she can resume the game
+	private static final long RESUME_GRACE_PERIOD = 30000;
+	// The time (in milliseconds) a player has for each move. A player who runs
+	// out of time passes, or plays his/her lowest card if he/she cannot pass
+	private static final long TURN_TIMEOUT = 30000;
+	// The time (in milliseconds) after which a client which has sent nothing
+	// (not even a HEARTBEAT message) is considered dead and disconnected
+	private static final long IDLE_TIMEOUT = 45000;
+	// The duration (in milliseconds) of a tick of the timing wheels and the
+	// number of their slots, which covers about a minute in one revolution
+	private static final long TICK_DURATION = 100;
+	private static final int WHEEL_SLOTS = 512;
+	// Limits on the messages accepted from each client: the size of the
+	// largest burst, and the number of messages per second in the long run
+	private static final int MESSAGE_BURST = 40;
+	private static final int MESSAGE_RATE = 20;
+	private static final int CHAT_BURST = 5;
+	private static final int CHAT_RATE = 1;
+	private static final int SYNC_BURST = 2;
+	private static final int SYNC_RATE = 1;
+	// The maximum number of connections, including players waiting for a
+	// table and players at a table
+	private static final int MAX_CONNECTIONS = 10000;
+	// The number of public frames kept for the spectators of each table, and
+	// the number of bytes which may be waiting to be written to a spectator
+	// before the table stops queueing frames for it
+	private static final int SPECTATOR_FEED_SIZE = 256;
+	private static final int SPECTATOR_QUEUE_LIMIT = 64 * 1024;
+	// The interval (in milliseconds) at which the load of the table workers
+	// is compared, and the difference in utilization above which a table is
+	// moved from the busiest worker to the least busy one
+	private static final long REBALANCE_INTERVAL = 5000;
+	private static final double REBALANCE_THRESHOLD = 0.2;
+	// The number of events the event log holds before dropping new ones
+	private static final int EVENT_LOG_SIZE = 65536;
+	// The interval (in milliseconds) at which new events are shown in the
+	// Swing console, and the number of characters the console keeps
+	private static final int CONSOLE_REFRESH_INTERVAL = 250;
+	private static final int MAX_CONSOLE_LENGTH = 200000;
+	// The time (in milliseconds) a scrape of the metrics waits for the event
+	// loops to set their gauges, and the upper bounds (in seconds) of the
+	// buckets of the move latency, of the validation time and of the time
+	// spent waiting for a table
+	private static final long METRICS_TIMEOUT = 1000;
+	private static final double[] LATENCY_BUCKETS = { 0.0001, 0.00025,
+			0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1 };
+	private static final double[] VALIDATION_BUCKETS = { 0.000001,
+			0.0000025, 0.000005, 0.00001, 0.000025, 0.00005, 0.0001, 0.00025,
+			0.0005, 0.001 };
+	private static final double[] QUEUE_WAIT_BUCKETS = { 0.001, 0.01, 0.1,
+			0.5, 1, 2.5, 5, 10, 30, 60, 120, 300 };
+	// The largest number of traced frames per event loop waiting to be
+	// written to their clients; the writes of any more are not traced
+	private static final int MAX_TRACED_WRITES = 256;
+	// The size (in bytes) of each segment of the journals of the table
+	// workers, and the shortest time (in milliseconds) between two syncs of a
+	// journal, during which its commits are grouped together
+	private static final int JOURNAL_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final long JOURNAL_SYNC_INTERVAL = 5;
+	// The interval (in milliseconds) at which each table worker saves a
+	// snapshot of its tables with its journal, which bounds the records read
+	// after the snapshots when the tables are recovered
+	private static final long SNAPSHOT_INTERVAL = 10000;
 	// The name of this card game server
 	private String serverName;
 	// The maximum number of players in a card game
 	private final int maxNumOfPlayers;
-	// Array for holding sockets of the clients
-	private Socket[] clientSockets;
-	// Array for holding ObjectOutputStreams of the clients
-	private ObjectOutputStream[] clientOutputStreams;
-	// Array for holding player names of the clients
-	private String[] clientNames;
-	// Array for holding ready states of the clients
-	private boolean[] clientReadyStates;
-	// number of current players
-	private int numOfPlayers = 0;
-	// the main frame of the server
+	// the number of table workers
+	private int numOfWorkers = Runtime.getRuntime().availableProcessors();
+	// the port at which WebSocket clients connect, or -1 if none
+	private int webSocketPort = -1;
+	// the channel on which WebSocket clients connect, or null if none
+	private ServerSocketChannel webSocketChannel = null;
+	// the port at which the metrics are served, or -1 if none
+	private int metricsPort = -1;
+	// the tracer of the messages handled, or null if none
+	private MessageTracer tracer = null;
+	// the directory of the journals of the tables, or null if none
+	private Path journalDir = null;
+	// the event loop serving the clients which are not at a table
+	private LobbyLoop lobby = null;
+	// the event loops owning the tables
+	private TableWorker[] workers = new TableWorker[0];
+	// the tables being played at, by id (lobby only)
+	private HashMap<Integer, GameTable> tables = new HashMap<Integer, GameTable>();
+	// the id of the next table to be opened (lobby only)
+	private int nextTableId = 0;
+	// the key which the gateway of a cluster must present, or null if this
+	// server does not take part in a cluster
+	private volatile String clusterKey = null;
+	// the connection to the gateway of the cluster (lobby only)
+	private ClientConnection clusterLink = null;
+	// the servers of the cluster, or null before the gateway has sent them
+	// (lobby only)
+	private HashRing ring = null;
+	// the name and the number of this server in the cluster (lobby only)
+	private String nodeName = null;
+	private int nodeIndex = 0;
+	// tables which may have free seats, in the order in which they are filled
+	// (lobby only)
+	private ArrayDeque<GameTable> openTables = new ArrayDeque<GameTable>();
+	// clients which have joined and are waiting for a table (lobby only)
+	private HashSet<ClientConnection> waitingConnections = new HashSet<ClientConnection>();
+	// the table of each session, for players resuming a game
+	private ConcurrentHashMap<Long, GameTable> sessions = new ConcurrentHashMap<Long, GameTable>();
+	// queue of players waiting for a table
+	private Matchmaker matchmaker = new Matchmaker();
+	// generator of session tokens
+	private SecureRandom random = new SecureRandom();
+	// the metrics of this server
+	private final MetricsRegistry metrics = new MetricsRegistry();
+	// the number of connections accepted, and of clients turned away because
+	// the server is full
+	private final MetricsRegistry.Counter acceptedConnections = metrics
+			.counter("bigtwo_connections_accepted_total",
+					"Connections accepted from clients.");
+	private final MetricsRegistry.Counter fullRejections = metrics.counter(
+			"bigtwo_full_rejections_total",
+			"Clients sent a FULL message because the server is full.");
+	// number of messages of each type handled, and dropped for exceeding the
+	// rate limits
+	private final MetricsRegistry.Counter[] receivedMessages = new MetricsRegistry.Counter[256];
+	private final MetricsRegistry.Counter[] droppedMessages = new MetricsRegistry.Counter[256];
+	// number of moves rejected as illegal
+	private final MetricsRegistry.Counter illegalMoves = metrics.counter(
+			"bigtwo_moves_rejected_total", "Moves rejected as illegal.");
+	// the time from receiving a move until its result has been written to
+	// the players of the table, and the time taken to check a move
+	private final MetricsRegistry.Histogram moveLatency = metrics.histogram(
+			"bigtwo_move_latency_seconds",
+			"Time from receiving a move until its result is written out.",
+			LATENCY_BUCKETS);
+	private final MetricsRegistry.Histogram validationTime = metrics
+			.histogram("bigtwo_move_validation_seconds",
+					"Time taken to check a move against the game.",
+					VALIDATION_BUCKETS);
+	// the time from joining the queue until being given a seat
+	private final MetricsRegistry.Histogram queueWait = metrics.histogram(
+			"bigtwo_queue_wait_seconds",
+			"Time from joining the queue until being given a seat.",
+			QUEUE_WAIT_BUCKETS);
+	// the number of tables recovered from the journals on startup, and the
+	// time taken
+	private final MetricsRegistry.Gauge recoveredTables = metrics.gauge(
+			"bigtwo_recovered_tables",
+			"Tables recovered from the journals on startup.", null, null);
+	private final MetricsRegistry.Gauge recoveryTime = metrics.gauge(
+			"bigtwo_recovery_seconds",
+			"Time taken to recover the tables from the journals.", null, null);
+	// the log to which server events are written
+	private EventLog eventLog = new EventLog(EVENT_LOG_SIZE);
+	// the main frame of the server, or null if the server is headless
 	private JFrame frame = null;
 	// text area for displaying server states
 	private JTextArea textArea = null;
 	// a boolean indicating if the server is up
-	private boolean serverUp = false;
+	private volatile boolean serverUp = false;
 
 	/**
-	 * Creates and returns an instance of the BigTwoServer class.
+	 * Creates and returns an instance of the BigTwoServer class. The server
+	 * has a GUI unless no display is available.
 	 * 
 	 * @param serverName
 	 *            the name of this card game server
@@ -50,17 +241,45 @@ public class CardGameServer {
 	 *            the maximum number of players in a card game
 	 */
 	public CardGameServer(String serverName, int maxNumOfPlayers) {
+		this(serverName, maxNumOfPlayers, GraphicsEnvironment.isHeadless());
+	}
+
+	/**
+	 * Creates and returns an instance of the BigTwoServer class.
+	 * 
+	 * @param serverName
+	 *            the name of this card game server
+	 * @param maxNumOfPlayers
+	 *            the maximum number of players in a card game
+	 * @param headless
+	 *            true if server events should be written to the standard
+	 *            output instead of a GUI
+	 */
+	public CardGameServer(String serverName, int maxNumOfPlayers,
+			boolean headless) {
 		this.serverName = serverName;
 		this.maxNumOfPlayers = maxNumOfPlayers;
+		for (int type = 0; type < receivedMessages.length; type++) {
+			// unknown types share one counter
+			String name = CardGameMessage.getTypeName(type);
+			receivedMessages[type] = metrics.counter(
+					"bigtwo_messages_received_total",
+					"Messages handled, by type.", "type", name);
+			droppedMessages[type] = metrics.counter(
+					"bigtwo_messages_dropped_total",
+					"Messages dropped for exceeding the rate limits, by type.",
+					"type", name);
+		}
+		metrics.addCollector(new MetricsCollector());
 
-		// creates arrays for holding client sockets, output streams, player
-		// names, and ready states
-		clientSockets = new Socket[maxNumOfPlayers];
-		clientOutputStreams = new ObjectOutputStream[maxNumOfPlayers];
-		clientNames = new String[maxNumOfPlayers];
-		clientReadyStates = new boolean[maxNumOfPlayers];
-
-		buildGUI();
+		// writes out the events still in the log when the server exits
+		Runtime.getRuntime().addShutdownHook(
+				new Thread(new ShutdownTask(), "shutdown"));
+		if (headless) {
+			eventLog.addSink(new ConsoleEventSink());
+		} else {
+			buildGUI();
+		}
 	}
 
 	/**
@@ -93,10 +312,136 @@ public class CardGameServer {
 
 		frame.pack();
 		frame.setVisible(true);
+
+		// shows the events in the text area at a bounded rate
+		TextAreaSink sink = new TextAreaSink();
+		eventLog.addSink(sink);
+		new Timer(CONSOLE_REFRESH_INTERVAL, sink).start();
 	} // buildGUI
 
 	/**
-	 * Starts the server at the specified port
+	 * Returns the log to which server events are written, e.g. for adding a
+	 * sink which writes them to a file.
+	 * 
+	 * @return the event log of this server
+	 */
+	public EventLog getEventLog() {
+		return eventLog;
+	}
+
+	/**
+	 * Sets the number of table workers. This has no effect once the server
+	 * has started.
+	 * 
+	 * @param numOfWorkers
+	 *            the number of table workers, at least 1
+	 */
+	public void setNumOfWorkers(int numOfWorkers) {
+		if (numOfWorkers < 1) {
+			throw new IllegalArgumentException("At least one worker is needed");
+		}
+		this.numOfWorkers = numOfWorkers;
+	}
+
+	/**
+	 * Returns the number of table workers.
+	 * 
+	 * @return the number of table workers
+	 */
+	public int getNumOfWorkers() {
+		return numOfWorkers;
+	}
+
+	/**
+	 * Sets the port at which clients speaking the game protocol over
+	 * WebSocket (e.g. web browsers) connect, in addition to the port of the
+	 * TCP clients. WebSocket clients are served by the same lobby and table
+	 * workers. This has no effect once the server has started.
+	 * 
+	 * @param webSocketPort
+	 *            the port for WebSocket clients, or -1 for none
+	 */
+	public void setWebSocketPort(int webSocketPort) {
+		this.webSocketPort = webSocketPort;
+	}
+
+	/**
+	 * Sets the port of the loopback interface at which the metrics of the
+	 * server are served over HTTP, at the path /metrics. This has no effect
+	 * once the server has started.
+	 * 
+	 * @param metricsPort
+	 *            the port for the metrics, or -1 for none
+	 */
+	public void setMetricsPort(int metricsPort) {
+		this.metricsPort = metricsPort;
+	}
+
+	/**
+	 * Traces a sample of the messages handled by the server, from their
+	 * receipt to the writing of the messages sent in reply. This has no
+	 * effect once the server has started.
+	 * 
+	 * @param tracer
+	 *            the tracer of the messages, or null for none
+	 */
+	public void setTracer(MessageTracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Records the events of the tables in journals in the specified
+	 * directory, one per table worker (see GameJournal). This has no effect
+	 * once the server has started.
+	 * 
+	 * @param journalDir
+	 *            the directory of the journals, or null for none
+	 */
+	public void setJournalDirectory(Path journalDir) {
+		this.journalDir = journalDir;
+	}
+
+	/**
+	 * Returns the metrics of this server, e.g. for registering more of them.
+	 * 
+	 * @return the metrics of this server
+	 */
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the utilization of the specified table worker, i.e. the share
+	 * of the last second it has spent handling events rather than waiting for
+	 * them.
+	 * 
+	 * @param worker
+	 *            the index of the worker
+	 * @return the utilization between 0 and 1, or 0 if the server has not
+	 *         started
+	 */
+	public double getWorkerUtilization(int worker) {
+		TableWorker[] workers = this.workers;
+		return worker < workers.length ? workers[worker].getUtilization() : 0;
+	} // getWorkerUtilization
+
+	/**
+	 * Makes this server a node of a cluster behind a ClusterGateway. The
+	 * gateway tells the server which tables it owns, and the server hands the
+	 * tables it no longer owns over to their new owners through the gateway.
+	 * This has to be set before the server starts.
+	 *
+	 * @param clusterKey
+	 *            the key shared with the gateway, or null if this server does
+	 *            not take part in a cluster
+	 */
+	public void setClusterKey(String clusterKey) {
+		this.clusterKey = clusterKey;
+	}
+
+	/**
+	 * Starts the server at the specified port. This returns once the server
+	 * has stopped.
 	 * 
 	 * @param port
 	 *            the specified port at which the server starts
@@ -104,17 +449,69 @@ public class CardGameServer {
 	public void start(int port) {
 		// start the server
 		try {
-			// creates a ServerScoket
-			ServerSocket serverSocket = new ServerSocket(port);
+			lobby = new LobbyLoop();
+			TableWorker[] workers = new TableWorker[numOfWorkers];
+			for (int i = 0; i < workers.length; i++) {
+				workers[i] = new TableWorker(i);
+			}
+			this.workers = workers;
+			if (journalDir != null) {
+				recoverTables();
+			}
+
+			// creates a ServerSocketChannel
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
+			serverChannel.configureBlocking(false);
+			lobby.listen(serverChannel);
 			println("Starts up the server at localhost:"
-					+ serverSocket.getLocalPort());
+					+ serverChannel.socket().getLocalPort() + " with "
+					+ workers.length + " table workers");
+			if (webSocketPort >= 0) {
+				webSocketChannel = ServerSocketChannel.open();
+				webSocketChannel.bind(new InetSocketAddress(webSocketPort));
+				webSocketChannel.configureBlocking(false);
+				lobby.listen(webSocketChannel);
+				println("Accepts WebSocket clients at localhost:"
+						+ webSocketChannel.socket().getLocalPort());
+			}
+			MetricsEndpoint metricsEndpoint = null;
+			if (metricsPort >= 0) {
+				metricsEndpoint = new MetricsEndpoint(metrics, metricsPort);
+				metricsEndpoint.start();
+				println("Serves metrics at http://localhost:"
+						+ metricsEndpoint.getPort() + "/metrics");
+			}
 			serverUp = true;
-			while (serverUp) {
-				// waits for clients to connect
-				Socket clientSocket = serverSocket.accept();
-				addConnection(clientSocket);
-			} // while
-			serverSocket.close();
+
+			CountDownLatch snapshots = new CountDownLatch(
+					journalDir == null ? 0 : workers.length);
+			for (TableWorker worker : workers) {
+				if (worker.journal != null) {
+					worker.execute(new SnapshotTask(worker, snapshots));
+				}
+				new Thread(worker, worker.getName()).start();
+			}
+			if (journalDir != null) {
+				snapshots.await();
+				retireJournals();
+			}
+			lobby.execute(new RebalanceTask());
+			Thread lobbyThread = new Thread(lobby, lobby.getName());
+			lobbyThread.start();
+			lobbyThread.join();
+
+			serverUp = false;
+			for (TableWorker worker : workers) {
+				worker.shutdown();
+			}
+			serverChannel.close();
+			if (webSocketChannel != null) {
+				webSocketChannel.close();
+			}
+			if (metricsEndpoint != null) {
+				metricsEndpoint.stop();
+			}
 		} catch (Exception ex) {
 			println("Error in starting up the server at localhost:" + port);
 			ex.printStackTrace();
@@ -122,372 +519,3171 @@ public class CardGameServer {
 	} // start
 
 	/**
-	 * Parses the incoming message from the specified client.
+	 * Accepts all pending connections and registers them with the lobby.
+	 * Clients connecting on the WebSocket port are served through a
+	 * WebSocketConnection, which the rest of the server cannot tell from any
+	 * other connection.
+	 * 
+	 * @param serverChannel
+	 *            the channel on which clients connect
+	 */
+	private void acceptConnections(ServerSocketChannel serverChannel) {
+		SocketChannel channel;
+		while (true) {
+			try {
+				if ((channel = serverChannel.accept()) == null) {
+					return;
+				}
+			} catch (IOException ex) {
+				println("Error in accepting a connection");
+				ex.printStackTrace();
+				return;
+			}
+			try {
+				ClientConnection connection = serverChannel == webSocketChannel
+						? new WebSocketConnection(channel)
+						: new ClientConnection(channel);
+				acceptedConnections.increment();
+				setRateLimits(connection);
+				connection.setLastActive(EventLoop.currentTime());
+				lobby.register(connection);
+				addConnection(connection);
+			} catch (IOException ex) {
+				println("Error in establishing a connection with a client");
+				ex.printStackTrace();
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// the connection is going away anyway
+				}
+			}
+		}
+	} // acceptConnections
+
+	/**
+	 * Reads the data available from the specified client and handles every
+	 * complete message received. A message which is to be handled by another
+	 * event loop is left unread, and the client is handed to that loop.
+	 * 
+	 * @param loop
+	 *            the event loop serving the client
+	 * @param connection
+	 *            the connection to the client
+	 */
+	private void receiveMessages(ServerLoop loop, ClientConnection connection) {
+		try {
+			int count = connection.read();
+			long now = System.nanoTime();
+			if (count > 0) {
+				connection.setLastActive(now / 1000000);
+			}
+			int type;
+			while (connection.isOpen() && (type = connection.peekType()) >= 0) {
+				EventLoop target = loop.route(connection, type);
+				if (target != null) {
+					stopSpectating(connection);
+					loop.handOff(connection, target, null);
+					return;
+				}
+				if (!connection.admit(type, now)) {
+					// drops the message without even decoding it
+					connection.skipMessage();
+					droppedMessages[type].increment();
+					if (connection.countDroppedMessage() == 1) {
+						println("Drops messages from the client at "
+								+ connection.getRemoteAddress()
+								+ " for exceeding the rate limits");
+					}
+					continue;
+				}
+				receivedMessages[type].increment();
+				loop.receiveTime = now;
+				if (tracer != null) {
+					loop.startTrace(connection, type, now);
+				}
+				GameEvents.MessageDispatch event = new GameEvents.MessageDispatch();
+				event.begin();
+				if (event.isEnabled()) {
+					// the table and seat before the message, e.g. a JOIN,
+					// changes them
+					GameTable table = getTable(connection);
+					event.tableId = table == null ? -1 : table.id;
+					event.seat = connection.getSeat();
+					event.messageType = CardGameMessage.getTypeName(type);
+					event.payloadSize = connection.peekLength();
+				}
+				CardGameMessage message = connection.nextMessage();
+				loop.trace(MessageTracer.DECODE, type, connection.getSeat());
+				loop.parseMessage(connection, message);
+				loop.endTrace();
+				event.commit();
+				if (connection.getOwner() != loop) {
+					// the client has been handed to another loop, which
+					// handles the rest of the data
+					return;
+				}
+			}
+			if (count < 0) {
+				throw new EOFException();
+			}
+		} catch (Exception ex) {
+			loop.endTrace();
+			println("Error in receiving messages from the client at "
+					+ connection.getRemoteAddress());
+			ex.printStackTrace();
+			// possible connection loss, removes the connection
+			if (connection.getOwner() == loop) {
+				connection.close();
+				loop.removeConnection(connection);
+			}
+		}
+	} // receiveMessages
+
+	/**
+	 * Sets the limits on the rate of the messages accepted from a new client.
+	 * Chat messages and requests for snapshots (including those implied by
+	 * starting to watch a table), which are broadcast or costly to answer,
+	 * have tighter limits of their own.
+	 * 
+	 * @param connection
+	 *            the connection to the new client
+	 */
+	private void setRateLimits(ClientConnection connection) {
+		long now = System.nanoTime();
+		connection.setRateLimit(new TokenBucket(MESSAGE_BURST, MESSAGE_RATE,
+				now));
+		connection.setRateLimit(CardGameMessage.MSG, new TokenBucket(
+				CHAT_BURST, CHAT_RATE, now));
+		connection.setRateLimit(CardGameMessage.SYNC, new TokenBucket(
+				SYNC_BURST, SYNC_RATE, now));
+		connection.setRateLimit(CardGameMessage.SPECTATE, new TokenBucket(
+				SYNC_BURST, SYNC_RATE, now));
+	} // setRateLimits
+
+	/**
+	 * Returns the number of messages of the specified type which have been
+	 * dropped for exceeding the rate limits since the server started.
+	 * 
+	 * @param type
+	 *            the message type
+	 * @return the number of messages of this type dropped
+	 */
+	public long getDroppedMessages(int type) {
+		return droppedMessages[type & 0xFF].get();
+	} // getDroppedMessages
+
+	/**
+	 * Disconnects the specified client if it has sent nothing for too long, or
+	 * checks it again when it would have been idle for that long. A client
+	 * has a single pending check, which is cancelled when the client is
+	 * handed to another loop and armed again by that loop, so nothing is done
+	 * here if the client has been handed over meanwhile.
+	 * 
+	 * @param loop
+	 *            the event loop which scheduled the check
+	 * @param connection
+	 *            the connection to the client
+	 */
+	private void checkIdle(ServerLoop loop, ClientConnection connection) {
+		if (!connection.isOpen() || connection.getOwner() != loop) {
+			return;
+		}
+		long now = EventLoop.currentTime();
+		long deadline = connection.getLastActive() + IDLE_TIMEOUT;
+		if (now < deadline) {
+			connection.setIdleCheck(loop.schedule(new IdleCheckTask(loop,
+					connection), deadline - now));
+			return;
+		}
+		connection.setIdleCheck(null);
+		println("No messages from the client at "
+				+ connection.getRemoteAddress() + " for "
+				+ IDLE_TIMEOUT / 1000 + " seconds. Closes the connection.");
+		connection.close();
+		loop.removeConnection(connection);
+	} // checkIdle
+
+	/**
+	 * Parses an incoming message from a client which is not at a table, on
+	 * the lobby. The client is handed to the worker of the table it resumes
+	 * or watches.
+	 * 
+	 * @param connection
+	 *            the connection to the specified client
+	 * @param message
+	 *            the message received from the specified client
+	 */
+	private void parseLobbyMessage(ClientConnection connection,
+			CardGameMessage message) {
+		message.setPlayerID(-1);
+		switch (message.getType()) {
+		case CardGameMessage.HEARTBEAT:
+			// nothing to do, the connection is alive
+			break;
+		case CardGameMessage.JOIN:
+			// adds the player to the queue for the next free seat
+			String name = (String) message.getData();
+			if (name == null || name.isBlank()) {
+				println("Ignores a JOIN without a name from "
+						+ connection.getRemoteAddress());
+			} else if (waitingConnections.add(connection)) {
+				matchmaker.enqueue(connection, name, EventLoop.currentTime());
+				println(name + " (" + connection.getRemoteAddress()
+						+ ") waits for a table.");
+			}
+			break;
+		case CardGameMessage.RESUME:
+			// reclaims the seat held for a player who lost the connection
+			resumeSession(connection, (Long) message.getData());
+			break;
+		case CardGameMessage.SPECTATE:
+			// starts watching a table
+			spectate(connection, (Integer) message.getData());
+			break;
+		case CardGameMessage.CLUSTER:
+			// the gateway tells this server who is in the cluster
+			joinCluster(connection, (ClusterView) message.getData());
+			break;
+		case CardGameMessage.TABLE:
+			// a table handed over by another server of the cluster
+			if (connection == clusterLink) {
+				importTable((TableState) message.getData());
+			} else {
+				println("Ignores a table from a client which is not the "
+						+ "gateway: " + connection.getRemoteAddress());
+			}
+			break;
+		default:
+			println("Ignores a message of type " + message.getType()
+					+ " from a client which is not at a table: "
+					+ connection.getRemoteAddress());
+			break;
+		}
+	} // parseLobbyMessage
+
+	/**
+	 * Parses an incoming message from a client at a table, on the worker
+	 * owning the table.
 	 * 
-	 * @param clientSocket
-	 *            the socket connection to the specified client
+	 * @param connection
+	 *            the connection to the specified client
 	 * @param message
 	 *            the message received from the specified client
 	 */
-	private synchronized void parseMessage(Socket clientSocket,
+	private void parseTableMessage(ClientConnection connection,
 			CardGameMessage message) {
 		// updates the playerID
-		for (int i = 0; i < maxNumOfPlayers; i++) {
-			if (clientSockets[i] == clientSocket) {
-				message.setPlayerID(i);
-				break;
+		GameTable table = getTable(connection);
+		message.setPlayerID(table == null ? -1 : connection.getSeat());
+
+		if (message.getType() == CardGameMessage.HEARTBEAT) {
+			// nothing to do, the connection is alive
+			return;
+		} else if (table == null) {
+			Spectator spectator = getSpectator(connection);
+			if (spectator != null) {
+				spectator.table.load++;
 			}
+			println("Ignores a message of type " + message.getType()
+					+ " from a client which is not at a table: "
+					+ connection.getRemoteAddress());
+			return;
 		}
 
 		// parses the message based on it type
+		table.load++;
+		int playerID = message.getPlayerID();
 		switch (message.getType()) {
-		case CardGameMessage.JOIN:
-			// adds a player to the game
-			addPlayer(clientSocket, (String) message.getData());
-			break;
 		case CardGameMessage.READY:
 			// marks the specified player as ready for a new game
-			setReadyState(clientSocket);
+			table.setReadyState(playerID);
 			break;
 		case CardGameMessage.MOVE:
-			println("Broadcasts a \"MOVE\" message from "
-					+ clientSocket.getRemoteSocketAddress());
-			// broadcast the MOVE message to all clients
-			broadcastMessage(message);
+			// checks the move against the state of the game
+			table.checkMove(playerID, (int[]) message.getData());
+			break;
+		case CardGameMessage.SYNC:
+			// sends the whole state to a client which has missed some moves
+			table.sendSnapshot(playerID);
 			break;
 		case CardGameMessage.MSG:
-			println("Broadcasts a user message from "
-					+ clientSocket.getRemoteSocketAddress());
-			// broadcast the user message to all clients
-			broadcastUserMessage(clientSocket, (String) message.getData());
+			// broadcast the user message to all clients at the table
+			table.broadcastUserMessage(playerID, (String) message.getData());
 			break;
 		default:
 			println("Wrong message type: " + message.getType());
 			// invalid message
 			break;
 		}
-	} // parseMessage
+	} // parseTableMessage
 
 	/**
-	 * Broadcasts the specified message to all clients.
-	 * 
-	 * @param message
-	 *            the specified message to be broadcast to all clients
+	 * Seats the players waiting in the queue: free seats at the existing
+	 * tables are filled first, then new tables are formed from the players
+	 * left. Each player is handed to the worker of his/her table, which
+	 * gives him/her the seat.
 	 */
-	private synchronized void broadcastMessage(CardGameMessage message) {
-		if (numOfPlayers > 0) {
-			for (int i = 0; i < maxNumOfPlayers; i++) {
-				if (clientSockets[i] != null && clientOutputStreams[i] != null) {
-					try {
-						clientOutputStreams[i].writeObject(message);
-					} catch (Exception ex) {
-						println("Error in broadcasting a message to the client at "
-								+ clientSockets[i].getRemoteSocketAddress());
-						ex.printStackTrace();
-					}
+	private void matchPlayers() {
+		if (ring != null && !ring.contains(nodeName)) {
+			// this server is leaving the cluster, and the gateway sends the
+			// players whose connection it closes to another server
+			for (ClientConnection connection : waitingConnections) {
+				connection.close();
+			}
+			waitingConnections.clear();
+			return;
+		}
+		long now = EventLoop.currentTime();
+		while (matchmaker.size() > 0) {
+			GameTable table = openTables.peek();
+			if (table == null) {
+				if (matchmaker.size() < maxNumOfPlayers) {
+					// waits until there are enough players for a new table
+					return;
 				}
+			} else if (table.retired || table.freeSeats == 0) {
+				// the table has been closed or filled since it was queued
+				openTables.poll();
+				table.listed = false;
+				continue;
+			}
+
+			Matchmaker.WaitingPlayer player = matchmaker.poll(now);
+			if (player == null) {
+				// everyone left in the queue has lost the connection
+				return;
+			}
+			if (!waitingConnections.remove(player.getConnection())) {
+				// the player has resumed a session in the meantime
+				continue;
+			}
+			if (table == null) {
+				// a new table is only opened for a player who is still there
+				table = openTable();
+			}
+			queueWait.record((now - player.getEnqueueTime()) * 1000000L);
+			table.freeSeats--;
+			lobby.handOff(player.getConnection(), table.worker, new SeatTask(
+					table, player.getConnection(), player.getName()));
+			if (table.freeSeats == 0) {
+				openTables.poll();
+				table.listed = false;
 			}
 		}
-	} // broadcastMessage
+	} // matchPlayers
 
 	/**
-	 * Adds a new socket connection to the server
-	 * 
-	 * @param clientSocket
-	 *            the socket connection to be added to the server
+	 * Opens a new table, and gives it to a worker by the hash of its id. In a
+	 * cluster, the id is one which the ring gives to this server, and which
+	 * no other server uses.
+	 *
+	 * @return the new table
 	 */
-	private synchronized void addConnection(Socket clientSocket) {
-		// adds this connection to the server if the server is not full
-		if (numOfPlayers < maxNumOfPlayers) {
-			// locates the first empty slot for the new connection
-			for (int i = 0; i < maxNumOfPlayers; i++) {
-				if (clientSockets[i] == null) {
-					try {
-						// creates an ObjectOutputStream for this client socket
-						ObjectOutputStream oostream = new ObjectOutputStream(
-								clientSocket.getOutputStream());
-
-						clientSockets[i] = clientSocket;
-						clientOutputStreams[i] = oostream;
-						clientNames[i] = null;
-						clientReadyStates[i] = false;
-						numOfPlayers++;
-						println("Establishes a connection with a client at "
-								+ clientSocket.getRemoteSocketAddress());
-
-						// creates a thread for receiving messages from this
-						// client
-						Thread t = new Thread(new ClientHandler(clientSocket));
-						t.start();
-
-						// sends the player list to the new player
-						oostream.writeObject(new CardGameMessage(
-								CardGameMessage.PLAYER_LIST, i, clientNames));
-					} catch (Exception ex) {
-						println("Error in establishing a connection with a client at "
-								+ clientSocket.getRemoteSocketAddress());
-						ex.printStackTrace();
-					}
-					break;
-				}
-			} // for
+	private GameTable openTable() {
+		int id;
+		if (ring == null) {
+			id = nextTableId++;
 		} else {
-			// Max. no. of players reached
-			println("Server is full: cannot establish a connection with a client at "
-					+ clientSocket.getRemoteSocketAddress());
-
-			// creates a thread for sending a FULL message to this client, waits
-			// for 1000 milliseconds and closes the socket
-			Thread t = new Thread(new ClientHandler2(clientSocket));
-			t.start();
+			// the low bits hold the number of this server, so that no two
+			// servers ever open tables with the same id
+			do {
+				id = (nextTableId++ << 8) | (nodeIndex & 0xFF);
+			} while (!nodeName.equals(ring.getOwner(id))
+					|| tables.containsKey(id));
 		}
-
-	} // addConnection
+		TableWorker worker = getWorker(id);
+		GameTable table = new GameTable(id, worker);
+		tables.put(id, table);
+		openTables.add(table);
+		table.listed = true;
+		worker.execute(new TableArrivalTask(table,
+				new ArrayList<ClientConnection>(), -1));
+		println("Opens table " + id + " on " + worker.getName() + ".");
+		GameEvents.TableLifecycle.emit(id, "open", worker.getName());
+		return table;
+	} // openTable
 
 	/**
-	 * Removes a connection from the server (possibly due to connection loss).
-	 * 
-	 * @param clientSocket
-	 *            the socket connection being removed from the server
+	 * Returns the worker to which the table with the specified id is given.
+	 *
+	 * @param id
+	 *            the id of the table
+	 * @return the worker for the table
 	 */
-	private synchronized void removeConnection(Socket clientSocket) {
-		if (numOfPlayers > 0) {
-			// locates the client socket in the array
-			for (int i = 0; i < maxNumOfPlayers; i++) {
-				if (clientSockets[i] == clientSocket) {
-					String name = clientNames[i];
-
-					clientSockets[i] = null;
-					clientOutputStreams[i] = null;
-					clientNames[i] = null;
-					clientReadyStates[i] = false;
-					numOfPlayers--;
-
-					println(name + " (" + clientSocket.getRemoteSocketAddress()
-							+ ") leaves the game.");
+	private TableWorker getWorker(int id) {
+		// spreads consecutive ids over the workers
+		int hash = id * 0x9E3779B9;
+		return workers[Math.floorMod(hash ^ (hash >>> 16), workers.length)];
+	} // getWorker
 
-					String remoteAddress = clientSocket
-							.getRemoteSocketAddress().toString();
+	/**
+	 * Takes the view of the cluster sent by the gateway, and hands the tables
+	 * which now belong to other servers over to them. A view without the
+	 * right key is rejected and the connection is closed. This is run on the
+	 * lobby.
+	 *
+	 * @param connection
+	 *            the connection to the gateway
+	 * @param view
+	 *            the view of the cluster
+	 */
+	private void joinCluster(ClientConnection connection, ClusterView view) {
+		String key = clusterKey;
+		if (key == null
+				|| view.getKey() == null
+				|| !MessageDigest.isEqual(
+						key.getBytes(StandardCharsets.UTF_8), view.getKey()
+								.getBytes(StandardCharsets.UTF_8))) {
+			println("Rejects a cluster view from " + connection.getRemoteAddress()
+					+ ": wrong key.");
+			connection.close();
+			lobby.removeConnection(connection);
+			return;
+		}
+		if (clusterLink != connection) {
+			if (clusterLink != null) {
+				clusterLink.close();
+			}
+			clusterLink = connection;
+			// the gateway speaks for the whole cluster
+			connection.setRateLimit(null);
+		}
+		ring = new HashRing(view.getNodes());
+		nodeName = view.getNode();
+		nodeIndex = view.getNodeIndex();
+		println("Joins the cluster as " + nodeName + " with " + view.getNodes()
+				+ ".");
 
-					// broadcasts a message about the leaving of this player
-					broadcastMessage(new CardGameMessage(CardGameMessage.QUIT,
-							i, remoteAddress));
-					break;
-				}
+		ArrayList<GameTable> moved = new ArrayList<GameTable>();
+		for (GameTable table : tables.values()) {
+			if (!nodeName.equals(ring.getOwner(table.getId()))) {
+				moved.add(table);
 			}
 		}
-	} // removeConnection
+		for (GameTable table : moved) {
+			String owner = ring.getOwner(table.getId());
+			retireTable(table);
+			if (owner != null) {
+				table.worker.execute(new ExportTask(table, owner));
+			}
+		}
+	} // joinCluster
 
 	/**
-	 * adds a player to the game.
-	 * 
-	 * @param clientSocket
-	 *            the socket connection to the player who is joining the game
-	 * @param name
-	 *            the name of the player who is joining the game
+	 * Sends the state of a table handed over to another server of the
+	 * cluster to the gateway, which passes it on. This is run on the lobby.
+	 *
+	 * @param state
+	 *            the state of the table
 	 */
-	private synchronized void addPlayer(Socket clientSocket, String name) {
-		if (numOfPlayers > 0) {
-			// locates the client socket in the array
-			for (int i = 0; i < maxNumOfPlayers; i++) {
-				if (clientSockets[i] == clientSocket) {
-					// updates the name of the new player
-					clientNames[i] = name;
+	private void sendTable(TableState state) {
+		if (clusterLink == null || !clusterLink.isOpen()) {
+			println("Loses table " + state.getTableId()
+					+ ": no connection to the gateway.");
+			return;
+		}
+		sendMessage(clusterLink, new CardGameMessage(CardGameMessage.TABLE,
+				-1, state));
+	} // sendTable
 
-					println(name + " (" + clientSocket.getRemoteSocketAddress()
-							+ ") joins the game.");
+	/**
+	 * Takes over a table handed over by another server of the cluster. The
+	 * sessions of its players are started at once, so that they can resume
+	 * the game here as soon as the gateway has been told that the table has
+	 * arrived. This is run on the lobby.
+	 *
+	 * @param state
+	 *            the state of the table
+	 */
+	private void importTable(TableState state) {
+		int id = state.getTableId();
+		if (tables.containsKey(id)
+				|| state.getNumOfSeats() != maxNumOfPlayers) {
+			println("Ignores table " + id + " handed over by the cluster.");
+			return;
+		}
+		GameTable table = takeTable(state, System.currentTimeMillis(), 0,
+				"another server");
+		sendMessage(clusterLink, new CardGameMessage(CardGameMessage.MIGRATED,
+				-1, id));
+		println("Takes table " + id + " over on " + table.worker.getName()
+				+ ".");
+		GameEvents.TableLifecycle.emit(id, "import", table.worker.getName());
+	} // importTable
 
-					// broadcasts a message about this player joining the game
-					broadcastMessage(new CardGameMessage(CardGameMessage.JOIN,
-							i, name));
-					break;
-				}
+	/**
+	 * Opens a table in the specified state, e.g. one handed over by another
+	 * server or recovered from the journals, and starts the sessions of its
+	 * players. This is run on the lobby, or before the lobby starts.
+	 *
+	 * @param state
+	 *            the state of the table
+	 * @param openedAt
+	 *            the time at which the table was opened
+	 * @param journalSeq
+	 *            the number of events of the table recorded in the journals
+	 * @param source
+	 *            where the table comes from, for the log
+	 * @return the table
+	 */
+	private GameTable takeTable(TableState state, long openedAt,
+			int journalSeq, String source) {
+		int id = state.getTableId();
+		TableWorker worker = getWorker(id);
+		GameTable table = new GameTable(id, worker, openedAt, journalSeq);
+		tables.put(id, table);
+		for (int i = 0; i < maxNumOfPlayers; i++) {
+			if (state.getName(i) != null) {
+				table.freeSeats--;
+				sessions.put(state.getSessionToken(i), table);
 			}
 		}
-	} // addPlayer
+		worker.execute(new TableArrivalTask(table,
+				new ArrayList<ClientConnection>(), -1));
+		worker.execute(new ImportTask(table, state, source));
+		if (table.freeSeats > 0) {
+			openTables.add(table);
+			table.listed = true;
+		}
+		return table;
+	} // takeTable
 
 	/**
-	 * Marks the specified player as ready for a new game.
-	 * 
-	 * @param clientSocket
-	 *            the socket connection to the player who becomes ready for a
-	 *            new game
+	 * Opens the tables which were open when the server last stopped, as
+	 * recovered from the journals, so that their players can resume their
+	 * games. This is run before the lobby starts.
 	 */
-	private synchronized void setReadyState(Socket clientSocket) {
-		if (numOfPlayers > 0) {
-			// locates the client socket in the array
-			for (int i = 0; i < maxNumOfPlayers; i++) {
-				if (clientSockets[i] == clientSocket) {
-					clientReadyStates[i] = true;
-					println(clientNames[i] + " ("
-							+ clientSocket.getRemoteSocketAddress()
-							+ " ) is ready for the next game.");
-					broadcastMessage(new CardGameMessage(CardGameMessage.READY,
-							i, null));
-					break;
-				}
+	private void recoverTables() {
+		try {
+			TableRecovery recovery = TableRecovery.recover(journalDir,
+					maxNumOfPlayers);
+			for (int i = 0; i < recovery.getNumOfTables(); i++) {
+				TableState state = recovery.getState(i);
+				int id = state.getTableId();
+				takeTable(state, recovery.getOpenedAt(i), recovery
+						.getNumOfEvents(i), "a restart");
+				// new tables are given ids which have not been used
+				nextTableId = Math.max(nextTableId, (clusterKey == null ? id
+						: id >>> 8) + 1);
+				GameEvents.TableLifecycle.emit(id, "recover", getWorker(id)
+						.getName());
 			}
+			recoveredTables.set(recovery.getNumOfTables());
+			recoveryTime.set(recovery.getDuration() / 1e9);
+			println(recovery.toString() + ".");
+		} catch (IOException ex) {
+			println("Error in recovering the tables from " + journalDir);
+			ex.printStackTrace();
 		}
+	} // recoverTables
 
-		// checks if all players are ready
-		if (numOfPlayers == maxNumOfPlayers) {
-			for (int i = 0; i < maxNumOfPlayers; i++) {
-				if (clientReadyStates[i] == false) {
-					// returns if any of the players is not ready
-					return;
+	/**
+	 * Gives the journals of workers which this server no longer has, e.g.
+	 * after a restart with fewer workers, an empty snapshot, as their tables
+	 * now belong to the others. This is run once the workers have saved
+	 * their first snapshots, so that no table recovered from these journals
+	 * is lost.
+	 */
+	private void retireJournals() {
+		HashSet<String> names = new HashSet<String>();
+		for (TableWorker worker : workers) {
+			names.add(worker.getName());
+		}
+		try {
+			for (String name : GameJournal.listJournals(journalDir)) {
+				if (!names.contains(name)) {
+					GameJournal journal = new GameJournal(journalDir, name,
+							JOURNAL_SEGMENT_SIZE, JOURNAL_SYNC_INTERVAL);
+					journal.saveSnapshot(new TableRecovery.SnapshotWriter(
+							maxNumOfPlayers).toByteArray());
+					journal.close();
+					println("Retires the journal " + name + ".");
 				}
 			}
+		} catch (IOException ex) {
+			println("Error in retiring the journals in " + journalDir);
+			ex.printStackTrace();
+		}
+	} // retireJournals
 
-			// resets the ready states of all the players for the next game
-			for (int i = 0; i < maxNumOfPlayers; i++) {
-				clientReadyStates[i] = false;
-			}
-
-			// creates a new deck, shuffles the deck, and starts a new game
-			Deck deck = createDeck();
-			deck.shuffle();
-			println("All players are ready. Game starts.");
-			broadcastMessage(new CardGameMessage(CardGameMessage.START, -1,
-					deck));
+	/**
+	 * Offers a seat freed at the specified table to the players waiting for a
+	 * table. This is run on the lobby.
+	 * 
+	 * @param table
+	 *            the table with a free seat
+	 */
+	private void freeSeat(GameTable table) {
+		if (table.retired) {
+			return;
 		}
-	}
+		table.freeSeats++;
+		if (!table.listed) {
+			table.listed = true;
+			openTables.add(table);
+		}
+	} // freeSeat
 
 	/**
-	 * Creates and returns an instance of the Deck class. Overrides this method
-	 * if a different type of deck is needed.
+	 * Forgets the specified table once all its players have left. This is run
+	 * on the lobby.
 	 * 
-	 * @return an instance of the Deck class
+	 * @param table
+	 *            the closed table
 	 */
-	public Deck createDeck() {
-		return new Deck();
-	}
+	private void retireTable(GameTable table) {
+		table.retired = true;
+		tables.remove(table.getId());
+	} // retireTable
 
-	private synchronized void broadcastUserMessage(Socket clientSocket,
-			String msg) {
-		if (numOfPlayers > 0) {
-			// locates the client in the array
-			for (int i = 0; i < maxNumOfPlayers; i++) {
-				if (clientSockets[i] == clientSocket) {
-					String longMsg = clientNames[i] + " ("
-							+ clientSocket.getRemoteSocketAddress() + "): "
-							+ msg;
-					broadcastMessage(new CardGameMessage(CardGameMessage.MSG,
-							i, longMsg));
-					break;
-				}
+	/**
+	 * Compares the utilization of the table workers, and has the busiest
+	 * worker move a table to the least busy one if they are too far apart.
+	 * The load of each table is counted afresh after each comparison.
+	 */
+	private void rebalance() {
+		TableWorker busiest = null;
+		TableWorker idlest = null;
+		for (TableWorker worker : workers) {
+			if (busiest == null
+					|| worker.getUtilization() > busiest.getUtilization()) {
+				busiest = worker;
+			}
+			if (idlest == null
+					|| worker.getUtilization() < idlest.getUtilization()) {
+				idlest = worker;
 			}
 		}
-	}
+		double gap = busiest.getUtilization() - idlest.getUtilization();
+		for (TableWorker worker : workers) {
+			if (worker == busiest && gap > REBALANCE_THRESHOLD) {
+				// moves about half of the difference
+				worker.execute(new MigrationTask(worker, idlest, gap / 2
+						/ busiest.getUtilization()));
+			} else {
+				worker.execute(new MigrationTask(worker, null, 0));
+			}
+		}
+	} // rebalance
 
 	/**
-	 * Prints the specified message to the text area.
+	 * Moves the table which accounts for the largest share of the load of the
+	 * specified worker not exceeding the specified share to another worker,
+	 * and starts counting the load of the tables afresh. This is run on the
+	 * worker.
 	 * 
-	 * @param msg
+	 * @param worker
+	 *            the busy worker
+	 * @param dest
+	 *            the worker to which a table is moved, or null if none
+	 * @param share
+	 *            the largest share of the load to be moved
 	 */
-	private void println(String msg) {
-		textArea.append(msg + "\n");
-		textArea.setCaretPosition(textArea.getDocument().getLength());
-	}
+	private void migrateTable(TableWorker worker, TableWorker dest,
+			double share) {
+		long total = 0;
+		for (GameTable table : worker.tables) {
+			total += table.load;
+		}
+		GameTable hottest = null;
+		for (GameTable table : worker.tables) {
+			if (table.load > 0 && table.load <= share * total
+					&& (hottest == null || table.load > hottest.load)) {
+				hottest = table;
+			}
+		}
+		for (GameTable table : worker.tables) {
+			table.load = 0;
+		}
+		if (dest != null && hottest != null) {
+			println(String.format("Moves table %d from %s (%.0f%%) to %s "
+					+ "(%.0f%%).", hottest.getId(), worker.getName(),
+					worker.getUtilization() * 100, dest.getName(),
+					dest.getUtilization() * 100));
+			hottest.moveTo(dest);
+		}
+	} // migrateTable
 
 	/**
-	 * This inner class is used for receiving incoming messages from a client
+	 * Encodes the specified message into a frame.
 	 * 
-	 * @author Kenneth Wong
+	 * @param message
+	 *            the message to be encoded
+	 * @return the frame, or null if the message cannot be encoded
+	 */
+	private byte[] encode(CardGameMessage message) {
+		try {
+			return CardGameMessageCodec.encode(message);
+		} catch (Exception ex) {
+			println("Error in encoding a message of type " + message.getType());
+			ex.printStackTrace();
+			return null;
+		}
+	} // encode
+
+	/**
+	 * Sends the specified message to the specified connection only.
+	 * 
+	 * @param connection
+	 *            the connection to the client
+	 * @param message
+	 *            the specified message to be sent to the client
+	 */
+	private void sendMessage(ClientConnection connection,
+			CardGameMessage message) {
+		byte[] frame = encode(message);
+		if (tracer != null && connection.getOwner() instanceof ServerLoop) {
+			((ServerLoop) connection.getOwner()).trace(MessageTracer.ENCODE,
+					message.getType(), connection.getSeat());
+		}
+		if (frame != null) {
+			queueFrame(connection, frame);
+		}
+	} // sendMessage
+
+	/**
+	 * Queues the specified frame to be written to the specified client at the
+	 * end of the current pass of the event loop serving it.
+	 * 
+	 * @param connection
+	 *            the connection to the client
+	 * @param frame
+	 *            the frame to be written
+	 */
+	private void queueFrame(ClientConnection connection, byte[] frame) {
+		if (!connection.queue(frame)) {
+			println("Error in sending a message to the client at "
+					+ connection.getRemoteAddress());
+		}
+		// a connection closed for falling behind is removed on flushing
+		connection.getOwner().scheduleFlush(connection);
+		if (tracer != null && connection.getOwner() instanceof ServerLoop) {
+			((ServerLoop) connection.getOwner()).traceQueue(connection, frame);
+		}
+	} // queueFrame
+
+	/**
+	 * Adds a new connection to the server. The client is not given a seat
+	 * until it joins the game (or resumes a session).
+	 * 
+	 * @param connection
+	 *            the connection to be added to the server
+	 */
+	private void addConnection(ClientConnection connection) {
+		// the server sockets themselves are registered with the lobby as well
+		int numOfConnections = lobby.getNumOfConnections()
+				- (webSocketChannel == null ? 1 : 2);
+		for (TableWorker worker : workers) {
+			numOfConnections += worker.getNumOfConnections();
+		}
+		if (numOfConnections > MAX_CONNECTIONS) {
+			// Max. no. of connections reached
+			rejectConnection(connection);
+			return;
+		}
+		println("Establishes a connection with a client at "
+				+ connection.getRemoteAddress());
+	} // addConnection
+
+	/**
+	 * Sends a FULL message to the specified client, and closes the connection
+	 * after 1000 milliseconds.
+	 * 
+	 * @param connection
+	 *            the connection to the client
+	 */
+	private void rejectConnection(ClientConnection connection) {
+		println("Server is full: cannot establish a connection with a client at "
+				+ connection.getRemoteAddress());
+		fullRejections.increment();
+		connection.stopReading();
+		sendMessage(connection, new CardGameMessage(CardGameMessage.FULL, -1,
+				null));
+		lobby.schedule(new CloseTask(connection), 1000);
+	} // rejectConnection
+
+	/**
+	 * Removes a connection served by a table worker from the server (possibly
+	 * due to connection loss). This may be called more than once for the same
+	 * connection.
+	 * 
+	 * @param connection
+	 *            the connection being removed from the server
+	 */
+	private void removeTableConnection(ClientConnection connection) {
+		stopSpectating(connection);
+		GameTable table = getTable(connection);
+		if (table != null) {
+			table.removeConnection(connection);
+		}
+	} // removeTableConnection
+
+	/**
+	 * Hands a player who wants to resume a session to the worker of his/her
+	 * table, or tells him/her that the session has expired. This is run on
+	 * the lobby.
+	 * 
+	 * @param connection
+	 *            the new connection to the player
+	 * @param token
+	 *            the session token presented by the player
+	 */
+	private void resumeSession(ClientConnection connection, long token) {
+		GameTable table = sessions.get(token);
+		if (table == null) {
+			// the session has expired, the client joins as a new player
+			sendMessage(connection, new CardGameMessage(
+					CardGameMessage.SESSION, -1, 0L));
+			return;
+		}
+		waitingConnections.remove(connection);
+		lobby.handOff(connection, table.worker, new ResumeTask(table,
+				connection, token));
+	} // resumeSession
+
+	/**
+	 * Hands the specified client to the worker of the specified table, to be
+	 * made a spectator there, or tells it that there is no such table. A
+	 * client waiting for a seat leaves the queue. This is run on the lobby.
+	 * 
+	 * @param connection
+	 *            the connection to the client
+	 * @param tableId
+	 *            the id of the table, or -1 for any table
+	 */
+	private void spectate(ClientConnection connection, int tableId) {
+		GameTable table = tableId < 0 ? null : tables.get(tableId);
+		if (tableId < 0 && !tables.isEmpty()) {
+			// the table which has been played at the longest
+			for (GameTable t : tables.values()) {
+				if (table == null || t.getId() < table.getId()) {
+					table = t;
+				}
+			}
+		}
+		if (table == null) {
+			sendMessage(connection, new CardGameMessage(
+					CardGameMessage.SPECTATE, -1, -1));
+			return;
+		}
+		waitingConnections.remove(connection);
+		lobby.handOff(connection, table.worker, new SpectateTask(table,
+				connection));
+	} // spectate
+
+	/**
+	 * Stops the specified client from watching the table it watches, if any.
+	 * 
+	 * @param connection
+	 *            the connection to the client
+	 */
+	private void stopSpectating(ClientConnection connection) {
+		Spectator spectator = getSpectator(connection);
+		if (spectator != null) {
+			connection.attach(null);
+			spectator.table.removeSpectator(spectator);
+		}
+	} // stopSpectating
+
+	/**
+	 * Returns the table at which the specified client is seated.
+	 * 
+	 * @param connection
+	 *            the connection to the client
+	 * @return the table of the client, or null if it is not seated
+	 */
+	private GameTable getTable(ClientConnection connection) {
+		Object attachment = connection.attachment();
+		return attachment instanceof GameTable ? (GameTable) attachment
+				: null;
+	} // getTable
+
+	/**
+	 * Returns the spectator modeling the specified client.
+	 * 
+	 * @param connection
+	 *            the connection to the client
+	 * @return the spectator, or null if the client is not watching a table
+	 */
+	private Spectator getSpectator(ClientConnection connection) {
+		Object attachment = connection.attachment();
+		return attachment instanceof Spectator ? (Spectator) attachment
+				: null;
+	} // getSpectator
+
+	/**
+	 * Creates and returns a new session token, which is never 0, and starts a
+	 * session for the specified table with it.
+	 * 
+	 * @param table
+	 *            the table of the session
+	 * @return a new session token
+	 */
+	private long createSession(GameTable table) {
+		long token = 0;
+		while (token == 0 || sessions.putIfAbsent(token, table) != null) {
+			token = random.nextLong();
+		}
+		return token;
+	} // createSession
+
+	/**
+	 * Creates and returns an instance of the Deck class. Overrides this method
+	 * if a different type of deck is needed.
+	 * 
+	 * @return an instance of the Deck class
+	 */
+	public Deck createDeck() {
+		return new Deck();
+	}
+
+	/**
+	 * Returns the queue of players waiting for a table.
+	 * 
+	 * @return the queue of players waiting for a table
+	 */
+	public Matchmaker getMatchmaker() {
+		return matchmaker;
+	}
+
+	/**
+	 * Logs the specified message as a server event. This never blocks.
+	 * 
+	 * @param msg
+	 */
+	private void println(String msg) {
+		eventLog.log(msg);
+	}
+
+	/**
+	 * This inner class is used to model an event loop of this server
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private abstract class ServerLoop extends EventLoop {
+		// the time at which the message being handled was received, in
+		// nanoseconds
+		protected long receiveTime = 0;
+		// the trace of the message being handled, and its table, if the
+		// message is traced
+		private long traceId = 0;
+		private int traceTable = -1;
+		// the traced frames queued for clients but not written yet: their
+		// traces, tables, connections, types and seats
+		private long[] writeTraces = new long[MAX_TRACED_WRITES];
+		private int[] writeTables = new int[MAX_TRACED_WRITES];
+		private ClientConnection[] writeConnections =
+				new ClientConnection[MAX_TRACED_WRITES];
+		private int[] writeDetails = new int[MAX_TRACED_WRITES];
+		private int numOfWrites = 0;
+		// the gauges of this loop
+		protected final MetricsRegistry.Gauge connectionsGauge;
+		private final MetricsRegistry.Gauge queuedBytesGauge;
+		private final MetricsRegistry.Gauge utilizationGauge;
+
+		/**
+		 * Creates and returns an instance of the ServerLoop class.
+		 * 
+		 * @param name
+		 *            the name of the loop
+		 * @throws IOException
+		 *             if the selector cannot be opened
+		 */
+		public ServerLoop(String name) throws IOException {
+			super(name, TICK_DURATION, WHEEL_SLOTS);
+			connectionsGauge = metrics.gauge("bigtwo_connections",
+					"Connections served, by event loop.", "loop", name);
+			queuedBytesGauge = metrics.gauge("bigtwo_outbound_queue_bytes",
+					"Bytes waiting to be written to clients, by event loop.",
+					"loop", name);
+			utilizationGauge = metrics.gauge("bigtwo_loop_utilization",
+					"Share of the last second spent handling events.",
+					"loop", name);
+		} // constructor
+
+		/**
+		 * Registers the specified connection with this loop, and checks on
+		 * this loop whether the client is idle, by the time it would have been
+		 * idle for IDLE_TIMEOUT.
+		 */
+		public void register(ClientConnection connection) throws IOException {
+			super.register(connection);
+			long delay = connection.getLastActive() + IDLE_TIMEOUT
+					- EventLoop.currentTime();
+			connection.setIdleCheck(schedule(new IdleCheckTask(this,
+					connection), Math.max(delay, 0)));
+		} // register
+
+		/**
+		 * Stops serving the specified connection, and cancels the check of
+		 * whether the client is idle, which the other loop arms again.
+		 */
+		public void release(ClientConnection connection, EventLoop loop) {
+			TimingWheel.Timeout idleCheck = connection.getIdleCheck();
+			if (idleCheck != null) {
+				idleCheck.cancel();
+				connection.setIdleCheck(null);
+			}
+			super.release(connection, loop);
+		} // release
+
+		protected void read(ClientConnection connection) {
+			receiveMessages(this, connection);
+		}
+
+		protected void closed(ClientConnection connection) {
+			removeConnection(connection);
+		}
+
+		protected void flushed(ClientConnection connection) {
+			// a traced frame has been written once nothing is left queued
+			// ahead of it
+			if (numOfWrites > 0 && connection.getQueuedBytes() == 0) {
+				long now = System.nanoTime();
+				int kept = 0;
+				for (int i = 0; i < numOfWrites; i++) {
+					if (writeConnections[i] == connection) {
+						tracer.record(writeTraces[i], now, writeTables[i],
+								MessageTracer.WRITE, writeDetails[i] >> 8,
+								(byte) writeDetails[i]);
+					} else {
+						keepWrite(i, kept++);
+					}
+				}
+				clearWrites(kept);
+			}
+		} // flushed
+
+		protected void afterFlush() {
+			// forgets the frames of clients which are gone or have been
+			// handed to another loop
+			if (numOfWrites > 0) {
+				int kept = 0;
+				for (int i = 0; i < numOfWrites; i++) {
+					ClientConnection connection = writeConnections[i];
+					if (connection.isOpen() && connection.getOwner() == this) {
+						keepWrite(i, kept++);
+					}
+				}
+				clearWrites(kept);
+			}
+		} // afterFlush
+
+		/**
+		 * Starts tracing the message from the specified client which is
+		 * about to be handled, if it is sampled.
+		 * 
+		 * @param connection
+		 *            the connection to the client
+		 * @param type
+		 *            the type of the message
+		 * @param time
+		 *            the time at which the message was received
+		 */
+		public void startTrace(ClientConnection connection, int type, long time) {
+			traceId = tracer.sample();
+			if (traceId != 0) {
+				GameTable table = getTable(connection);
+				traceTable = table == null ? -1 : table.id;
+				tracer.record(traceId, time, traceTable, MessageTracer.RECEIVE,
+						type, connection.getSeat());
+			}
+		} // startTrace
+
+		/**
+		 * Records a stage of the handling of the message being traced, if
+		 * any.
+		 * 
+		 * @param stage
+		 *            the stage (see MessageTracer)
+		 * @param type
+		 *            the type of the message received or sent
+		 * @param seat
+		 *            the seat of the player who sent or is sent the message,
+		 *            or -1 if none
+		 */
+		public void trace(int stage, int type, int seat) {
+			if (traceId != 0) {
+				tracer.record(traceId, System.nanoTime(), traceTable, stage,
+						type, seat);
+			}
+		} // trace
+
+		/**
+		 * Records that the specified frame has been queued for the specified
+		 * client while handling the message being traced, if any, so that
+		 * its write is recorded too.
+		 * 
+		 * @param connection
+		 *            the connection to the client
+		 * @param frame
+		 *            the frame queued
+		 */
+		public void traceQueue(ClientConnection connection, byte[] frame) {
+			if (traceId == 0) {
+				return;
+			}
+			int type = frame[CardGameMessageCodec.HEADER_LENGTH + 1] & 0xFF;
+			int seat = connection.getSeat();
+			trace(MessageTracer.QUEUE, type, seat);
+			if (numOfWrites < MAX_TRACED_WRITES) {
+				writeTraces[numOfWrites] = traceId;
+				writeTables[numOfWrites] = traceTable;
+				writeConnections[numOfWrites] = connection;
+				writeDetails[numOfWrites] = type << 8 | (seat & 0xFF);
+				numOfWrites++;
+			}
+		} // traceQueue
+
+		/**
+		 * Ends the trace of the message which has been handled.
+		 */
+		public void endTrace() {
+			traceId = 0;
+		}
+
+		/**
+		 * Moves a traced write to a lower index while compacting the list.
+		 */
+		private void keepWrite(int from, int to) {
+			writeTraces[to] = writeTraces[from];
+			writeTables[to] = writeTables[from];
+			writeConnections[to] = writeConnections[from];
+			writeDetails[to] = writeDetails[from];
+		}
+
+		/**
+		 * Drops the traced writes from the specified index on.
+		 */
+		private void clearWrites(int from) {
+			for (int i = from; i < numOfWrites; i++) {
+				writeConnections[i] = null;
+			}
+			numOfWrites = from;
+		}
+
+		/**
+		 * Returns the loop which is to handle a message of the specified type
+		 * from the specified client, if not this one.
+		 * 
+		 * @param connection
+		 *            the connection to the client
+		 * @param type
+		 *            the type of the message
+		 * @return the loop to which the client is to be handed, or null if
+		 *         the message is handled by this loop
+		 */
+		public abstract EventLoop route(ClientConnection connection, int type);
+
+		/**
+		 * Parses an incoming message from the specified client.
+		 * 
+		 * @param connection
+		 *            the connection to the client
+		 * @param message
+		 *            the message received from the client
+		 */
+		public abstract void parseMessage(ClientConnection connection,
+				CardGameMessage message);
+
+		/**
+		 * Removes a connection from the server (possibly due to connection
+		 * loss). This may be called more than once for the same connection.
+		 * 
+		 * @param connection
+		 *            the connection being removed from the server
+		 */
+		public abstract void removeConnection(ClientConnection connection);
+
+		/**
+		 * Sets the gauges of this loop. This runs on this loop before each
+		 * scrape of the metrics.
+		 */
+		public void collectMetrics() {
+			connectionsGauge.set(getNumOfConnections());
+			queuedBytesGauge.set(getQueuedBytes());
+			utilizationGauge.set(getUtilization());
+		} // collectMetrics
+	} // ServerLoop
+
+	/**
+	 * This inner class is used to model the event loop serving the clients
+	 * which are not at a table. It accepts new clients, seats the players
+	 * waiting for a table and balances the load of the table workers.
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class LobbyLoop extends ServerLoop {
+		// the number of players waiting for a table, and of tables
+		private final MetricsRegistry.Gauge waitingGauge = metrics.gauge(
+				"bigtwo_waiting_players", "Players waiting for a table.",
+				null, null);
+		private final MetricsRegistry.Gauge tablesGauge = metrics.gauge(
+				"bigtwo_tables", "Tables being played at.", null, null);
+
+		/**
+		 * Creates and returns an instance of the LobbyLoop class.
+		 * 
+		 * @throws IOException
+		 *             if the selector cannot be opened
+		 */
+		public LobbyLoop() throws IOException {
+			super("lobby");
+		} // constructor
+
+		protected void accept(ServerSocketChannel channel) {
+			acceptConnections(channel);
+		}
+
+		protected void afterPass() {
+			// seats the players who have joined during this pass
+			if (matchmaker.size() > 0) {
+				matchPlayers();
+			}
+		}
+
+		public EventLoop route(ClientConnection connection, int type) {
+			return null;
+		}
+
+		public void parseMessage(ClientConnection connection,
+				CardGameMessage message) {
+			parseLobbyMessage(connection, message);
+		}
+
+		public void removeConnection(ClientConnection connection) {
+			// a player waiting for a table is dropped from the queue when
+			// polled
+			waitingConnections.remove(connection);
+			if (connection == clusterLink) {
+				println("Loses the connection to the gateway of the cluster.");
+				clusterLink = null;
+			}
+		}
+
+		public void collectMetrics() {
+			super.collectMetrics();
+			// the server sockets themselves are registered with the lobby
+			connectionsGauge.set(getNumOfConnections()
+					- (webSocketChannel == null ? 1 : 2));
+			waitingGauge.set(waitingConnections.size());
+			tablesGauge.set(tables.size());
+		}
+	} // LobbyLoop
+
+	/**
+	 * This inner class is used to model an event loop owning some of the
+	 * tables. It serves the players and spectators of its tables, and runs
+	 * their timers.
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class TableWorker extends ServerLoop {
+		// the tables owned by this worker
+		private ArrayList<GameTable> tables = new ArrayList<GameTable>();
+		// tables with public frames to be sent to their spectators
+		private ArrayList<GameTable> pendingFeeds = new ArrayList<GameTable>();
+		// the times at which the moves broadcast during the current pass were
+		// received, in nanoseconds
+		private long[] moveTimes = new long[16];
+		private int numOfMoves = 0;
+		// the number of players and of spectators at the tables of this
+		// worker
+		private final MetricsRegistry.Gauge playersGauge;
+		private final MetricsRegistry.Gauge spectatorsGauge;
+		// the journal of the events of the tables of this worker, or null
+		// if none
+		private final GameJournal journal;
+
+		/**
+		 * Creates and returns an instance of the TableWorker class.
+		 * 
+		 * @param index
+		 *            the index of this worker
+		 * @throws IOException
+		 *             if the selector cannot be opened
+		 */
+		public TableWorker(int index) throws IOException {
+			super("table-worker-" + index);
+			playersGauge = metrics.gauge("bigtwo_players",
+					"Players seated at a table, by table worker.", "loop",
+					getName());
+			spectatorsGauge = metrics.gauge("bigtwo_spectators",
+					"Spectators watching a table, by table worker.", "loop",
+					getName());
+			journal = journalDir == null ? null : new GameJournal(
+					journalDir, getName(), JOURNAL_SEGMENT_SIZE,
+					JOURNAL_SYNC_INTERVAL);
+		} // constructor
+
+		/**
+		 * Saves a snapshot of the state of the tables of this worker with
+		 * its journal.
+		 */
+		public void saveSnapshot() {
+			TableRecovery.SnapshotWriter snapshot = new TableRecovery.SnapshotWriter(
+					maxNumOfPlayers);
+			for (GameTable table : tables) {
+				snapshot.add(table.getState(null), table.openedAt,
+						table.journalSeq);
+			}
+			journal.saveSnapshot(snapshot.toByteArray());
+		} // saveSnapshot
+
+		protected void afterPass() {
+			// queues the public frames of this pass for the spectators
+			if (!pendingFeeds.isEmpty()) {
+				feedSpectators();
+			}
+			// the events of this pass are synced together
+			if (journal != null) {
+				journal.commit();
+			}
+		}
+
+		protected void flushed(ClientConnection connection) {
+			super.flushed(connection);
+			// a spectator which has caught up is sent more frames, which
+			// queues the connection to be flushed again
+			Spectator spectator = getSpectator(connection);
+			if (spectator != null) {
+				spectator.table.feedSpectator(spectator);
+			}
+		}
+
+		protected void afterFlush() {
+			super.afterFlush();
+			// the results of the moves of this pass have been written out
+			if (numOfMoves > 0) {
+				long now = System.nanoTime();
+				for (int i = 0; i < numOfMoves; i++) {
+					moveLatency.record(now - moveTimes[i]);
+				}
+				numOfMoves = 0;
+			}
+		}
+
+		public EventLoop route(ClientConnection connection, int type) {
+			if (type == CardGameMessage.HEARTBEAT
+					|| connection.attachment() instanceof GameTable) {
+				return null;
+			}
+			if (connection.attachment() instanceof Spectator
+					&& type != CardGameMessage.JOIN
+					&& type != CardGameMessage.RESUME
+					&& type != CardGameMessage.SPECTATE) {
+				return null;
+			}
+			// joining, resuming or watching another table is up to the lobby
+			return lobby;
+		}
+
+		public void parseMessage(ClientConnection connection,
+				CardGameMessage message) {
+			parseTableMessage(connection, message);
+		}
+
+		public void removeConnection(ClientConnection connection) {
+			removeTableConnection(connection);
+		}
+
+		public void collectMetrics() {
+			super.collectMetrics();
+			int numOfPlayers = 0;
+			int numOfSpectators = 0;
+			for (GameTable table : tables) {
+				numOfPlayers += table.numOfPlayers;
+				numOfSpectators += table.spectators.size();
+			}
+			playersGauge.set(numOfPlayers);
+			spectatorsGauge.set(numOfSpectators);
+		} // collectMetrics
+
+		/**
+		 * Notes that the move being handled has been applied and broadcast,
+		 * so that its latency is recorded once the broadcast has been written
+		 * out.
+		 */
+		public void moveBroadcast() {
+			if (numOfMoves == moveTimes.length) {
+				moveTimes = Arrays.copyOf(moveTimes, numOfMoves * 2);
+			}
+			moveTimes[numOfMoves++] = receiveTime;
+		} // moveBroadcast
+
+		/**
+		 * Queues the public frames published during the current pass for the
+		 * spectators of each table.
+		 */
+		private void feedSpectators() {
+			for (int i = 0; i < pendingFeeds.size(); i++) {
+				GameTable table = pendingFeeds.get(i);
+				if (table.resident != this) {
+					// the table has been moved, and its spectators are fed
+					// on arrival
+					continue;
+				}
+				table.feedPending = false;
+				for (Spectator spectator : table.spectators) {
+					table.feedSpectator(spectator);
+				}
+			}
+			pendingFeeds.clear();
+		} // feedSpectators
+	} // TableWorker
+
+	/**
+	 * This inner class is used to model a table at which a card game is played.
+	 * It holds the seats of the players and the authoritative state of their
+	 * game. Except where noted, the state of a table is only used by the
+	 * worker owning it.
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class GameTable {
+		private final int id; // the id of this table
+		// the time at which this table was opened, which tells it from the
+		// tables with the same id in the journals of earlier runs
+		private final long openedAt;
+		// a boolean indicating if this table is being moved to another
+		// worker, in whose journal it records its state as it arrives
+		private boolean moving = false;
+		// the worker owning this table, or to which it is being moved
+		private volatile TableWorker worker;
+		// the worker on which this table is, or null while it is being moved
+		private volatile TableWorker resident = null;
+		// tasks which have reached the new worker of this table before the
+		// table itself
+		private ArrayList<Runnable> pendingTasks = new ArrayList<Runnable>();
+		// the number of messages and spectator frames handled since the load
+		// was last counted
+		private long load = 0;
+		// the number of seats the lobby may still give away (lobby only)
+		private int freeSeats;
+		// a boolean indicating if this table is in the queue of open tables
+		// (lobby only)
+		private boolean listed = false;
+		// a boolean indicating if the lobby knows this table to be closed
+		// (lobby only)
+		private boolean retired = false;
+		// Array for holding connections to the clients
+		private ClientConnection[] clientConnections;
+		// Array for holding player names of the clients
+		private String[] clientNames;
+		// Array for holding ready states of the clients
+		private boolean[] clientReadyStates;
+		// Array for holding session tokens of the clients
+		private long[] sessionTokens;
+		// number of current players
+		private int numOfPlayers = 0;
+		// the authoritative state of the current game
+		private BigTwoGameState game;
+		// the timeout of the current turn, or null if no game is being played
+		private TimingWheel.Timeout turnTimeout = null;
+		// the time at which the current turn times out
+		private long turnDeadline = 0;
+		// a boolean indicating if all players have left this table
+		private boolean closed = false;
+		// the public frames of this table, for its spectators
+		private SpectatorFeed feed = new SpectatorFeed(SPECTATOR_FEED_SIZE);
+		// the spectators of this table
+		private ArrayList<Spectator> spectators = new ArrayList<Spectator>();
+		// a boolean indicating if frames have been published during the
+		// current pass of the event loop
+		private boolean feedPending = false;
+		// the number of events of this table recorded in the journals
+		private int journalSeq = 0;
+
+		/**
+		 * Creates and returns an instance of the GameTable class. The table
+		 * is to be handed to its worker by a TableArrivalTask.
+		 * 
+		 * @param id
+		 *            the id of this table
+		 * @param worker
+		 *            the worker owning this table
+		 */
+		public GameTable(int id, TableWorker worker) {
+			this(id, worker, System.currentTimeMillis(), 0);
+		}
+
+		/**
+		 * Creates and returns an instance of the GameTable class which was
+		 * opened before, e.g. on an earlier run of the server. The table is
+		 * to be handed to its worker by a TableArrivalTask.
+		 * 
+		 * @param id
+		 *            the id of this table
+		 * @param worker
+		 *            the worker owning this table
+		 * @param openedAt
+		 *            the time at which this table was opened
+		 * @param journalSeq
+		 *            the number of events of this table recorded in the
+		 *            journals
+		 */
+		public GameTable(int id, TableWorker worker, long openedAt,
+				int journalSeq) {
+			this.id = id;
+			this.worker = worker;
+			this.openedAt = openedAt;
+			this.journalSeq = journalSeq;
+			freeSeats = maxNumOfPlayers;
+			clientConnections = new ClientConnection[maxNumOfPlayers];
+			clientNames = new String[maxNumOfPlayers];
+			clientReadyStates = new boolean[maxNumOfPlayers];
+			sessionTokens = new long[maxNumOfPlayers];
+			game = new BigTwoGameState(maxNumOfPlayers);
+		} // constructor
+
+		/**
+		 * Returns the id of this table.
+		 * 
+		 * @return the id of this table
+		 */
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * Returns whether this table has a seat which is neither taken nor
+		 * held for a player who lost the connection.
+		 * 
+		 * @return true if there is a free seat; false otherwise
+		 */
+		public boolean hasFreeSeat() {
+			return !closed && numOfPlayers < maxNumOfPlayers;
+		}
+
+		/**
+		 * Broadcasts the specified message to all clients at this table. The
+		 * message is encoded once and the same frame is queued for every
+		 * client.
+		 * 
+		 * @param message
+		 *            the specified message to be broadcast to all clients
+		 */
+		private void broadcastMessage(CardGameMessage message) {
+			GameEvents.Broadcast event = new GameEvents.Broadcast();
+			event.begin();
+			byte[] frame = encode(message);
+			if (frame == null) {
+				return;
+			}
+			resident.trace(MessageTracer.ENCODE, message.getType(), -1);
+
+			for (int i = 0; i < maxNumOfPlayers; i++) {
+				if (clientConnections[i] != null) {
+					queueFrame(clientConnections[i], frame);
+				}
+			}
+			// every message broadcast to the players is public
+			publish(frame);
+			if (event.shouldCommit()) {
+				event.tableId = id;
+				event.messageType = CardGameMessage.getTypeName(message
+						.getType());
+				event.payloadSize = frame.length;
+				event.players = numOfPlayers;
+				event.spectators = spectators.size();
+				event.commit();
+			}
+		} // broadcastMessage
+
+		/**
+		 * Publishes the specified frame to the spectators of this table. The
+		 * frame is queued for them at the end of the current pass of the
+		 * event loop.
+		 * 
+		 * @param frame
+		 *            the frame to be published
+		 */
+		private void publish(byte[] frame) {
+			if (frame == null || spectators.isEmpty()) {
+				// a new spectator is sent the state of the game anyway
+				return;
+			}
+			feed.publish(frame);
+			if (!feedPending) {
+				feedPending = true;
+				resident.pendingFeeds.add(this);
+			}
+		} // publish
+
+		/**
+		 * Adds a spectator to this table, and sends it the state of the game.
+		 * 
+		 * @param spectator
+		 *            the spectator to be added
+		 */
+		public void addSpectator(Spectator spectator) {
+			spectator.index = spectators.size();
+			spectators.add(spectator);
+			spectator.cursor = feed.getHead();
+			CardGameServer.this.sendMessage(spectator.connection,
+					new CardGameMessage(CardGameMessage.SPECTATE, -1, id));
+			sendPublicState(spectator.connection);
+		} // addSpectator
+
+		/**
+		 * Removes a spectator from this table.
+		 * 
+		 * @param spectator
+		 *            the spectator to be removed
+		 */
+		public void removeSpectator(Spectator spectator) {
+			// moves the last spectator into the gap
+			Spectator last = spectators.remove(spectators.size() - 1);
+			if (last != spectator) {
+				last.index = spectator.index;
+				spectators.set(last.index, last);
+			}
+		} // removeSpectator
+
+		/**
+		 * Queues the frames published since the last ones queued for the
+		 * specified spectator, until the spectator has too many bytes waiting
+		 * to be written. A spectator which has missed frames no longer kept
+		 * is sent the state of the game instead.
+		 * 
+		 * @param spectator
+		 *            the spectator to be fed
+		 */
+		private void feedSpectator(Spectator spectator) {
+			ClientConnection connection = spectator.connection;
+			while (spectator.cursor < feed.getHead()
+					&& connection.getQueuedBytes() < SPECTATOR_QUEUE_LIMIT) {
+				byte[] frame = feed.get(spectator.cursor);
+				if (frame == null) {
+					spectator.cursor = feed.getHead();
+					sendPublicState(connection);
+					break;
+				}
+				queueFrame(connection, frame);
+				spectator.cursor++;
+				load++;
+			}
+		} // feedSpectator
+		/**
+		 * Sends the player list and the state of the game as seen by a
+		 * spectator to the specified client.
+		 * 
+		 * @param connection
+		 *            the connection to the client
+		 */
+		private void sendPublicState(ClientConnection connection) {
+			CardGameServer.this.sendMessage(connection, new CardGameMessage(
+					CardGameMessage.PLAYER_LIST, -1, clientNames));
+			CardGameServer.this.sendMessage(connection, new CardGameMessage(
+					CardGameMessage.SNAPSHOT, -1, game.getSnapshot(-1)));
+		} // sendPublicState
+
+		/**
+		 * Sends the specified message to the specified client only.
+		 * 
+		 * @param playerID
+		 *            the playerID of the client
+		 * @param message
+		 *            the specified message to be sent to the client
+		 */
+		private void sendMessage(int playerID, CardGameMessage message) {
+			if (clientConnections[playerID] != null) {
+				CardGameServer.this.sendMessage(clientConnections[playerID],
+						message);
+			}
+		} // sendMessage
+
+		/**
+		 * Seats a player taken from the queue at the first free seat of this
+		 * table, and adds him/her to the game.
+		 * 
+		 * @param connection
+		 *            the connection to the player
+		 * @param name
+		 *            the name of the player
+		 * @return true if the player has been seated; false if there is no
+		 *         free seat
+		 */
+		public boolean addPlayer(ClientConnection connection, String name) {
+			if (!hasFreeSeat()) {
+				return false;
+			}
+			// locates the first empty slot (neither connected nor held for a
+			// player who lost the connection) for the new player
+			for (int i = 0; i < maxNumOfPlayers; i++) {
+				if (clientConnections[i] == null && !isTaken(i)) {
+					clientConnections[i] = connection;
+					clientReadyStates[i] = false;
+					numOfPlayers++;
+					connection.attach(this);
+					connection.setSeat(i);
+
+					// sends the player list to the new player
+					sendMessage(i, new CardGameMessage(
+							CardGameMessage.PLAYER_LIST, i, clientNames));
+
+					// updates the name of the new player
+					clientNames[i] = name;
+
+					// starts a session which the player can resume after
+					// losing the connection
+					sessionTokens[i] = createSession(this);
+					sendMessage(i, new CardGameMessage(CardGameMessage.SESSION,
+							i, sessionTokens[i]));
+					journalText(GameJournal.JOIN, i, sessionTokens[i], name);
+
+					println(name + " (" + connection.getRemoteAddress()
+							+ ") joins the game at table " + id + ".");
+
+					// broadcasts a message about this player joining the game
+					broadcastMessage(new CardGameMessage(CardGameMessage.JOIN,
+							i, name));
+					return true;
+				}
+			} // for
+			return false;
+		} // addPlayer
+
+		/**
+		 * Closes this table after an error in handling one of its events,
+		 * which may have left the game in an inconsistent state. The players
+		 * are disconnected and their seats are not held for them, while the
+		 * other tables of the worker go on.
+		 * 
+		 * @param ex
+		 *            the error
+		 */
+		private void abort(RuntimeException ex) {
+			println("Error at table " + id + ". Closes the table.");
+			ex.printStackTrace();
+			for (int i = 0; i < maxNumOfPlayers && !closed; i++) {
+				if (!isTaken(i)) {
+					continue;
+				}
+				ClientConnection connection = clientConnections[i];
+				String remoteAddress = "a lost connection";
+				if (connection != null) {
+					remoteAddress = connection.getRemoteAddress();
+					connection.attach(null);
+					connection.setSeat(-1);
+					connection.close();
+				}
+				removePlayer(i, remoteAddress);
+			}
+		} // abort
+
+		/**
+		 * Returns whether the specified seat is taken, by a connected player
+		 * or held for one who lost the connection. A seat is taken as long as
+		 * a session is held for it, since session tokens are never 0.
+		 * 
+		 * @param seat
+		 *            the seat
+		 * @return true if the seat is taken; false otherwise
+		 */
+		private boolean isTaken(int seat) {
+			return sessionTokens[seat] != 0;
+		}
+
+		/**
+		 * Removes a connection from this table (possibly due to connection
+		 * loss).
+		 * 
+		 * @param connection
+		 *            the connection being removed from the table
+		 */
+		public void removeConnection(ClientConnection connection) {
+			int i = connection.getSeat();
+			connection.attach(null);
+			connection.setSeat(-1);
+			String remoteAddress = connection.getRemoteAddress();
+			clientConnections[i] = null;
+
+			// holds the seat so that the player can resume the game after
+			// reconnecting
+			println(clientNames[i] + " (" + remoteAddress
+					+ ") loses the connection. The seat is held for "
+					+ RESUME_GRACE_PERIOD / 1000 + " seconds.");
+			resident.schedule(new SeatReleaseTask(this, i, sessionTokens[i],
+					remoteAddress), RESUME_GRACE_PERIOD);
+		} // removeConnection
+
+		/**
+		 * Removes a player from the game and frees his/her seat. The table is
+		 * closed once all players have left.
+		 * 
+		 * @param playerID
+		 *            the playerID of the player who leaves the game
+		 * @param remoteAddress
+		 *            the IP address and TCP port of the player
+		 */
+		private void removePlayer(int playerID, String remoteAddress) {
+			String name = clientNames[playerID];
+
+			sessions.remove(sessionTokens[playerID]);
+			clientConnections[playerID] = null;
+			clientNames[playerID] = null;
+			clientReadyStates[playerID] = false;
+			sessionTokens[playerID] = 0;
+			numOfPlayers--;
+
+			// the game cannot go on without this player
+			game.reset();
+			restartTurnTimer();
+			journal(GameJournal.QUIT, playerID, 0, 0);
+
+			println(name + " (" + remoteAddress + ") leaves the game at table "
+					+ id + ".");
+
+			if (numOfPlayers == 0) {
+				journal(GameJournal.CLOSE, -1, 0, 0);
+				closed = true;
+				resident.tables.remove(this);
+				lobby.execute(new TableClosedTask(this));
+				GameEvents.TableLifecycle.emit(id, "close", resident.getName());
+				// tells the spectators that there is nothing left to watch
+				for (Spectator spectator : spectators) {
+					spectator.connection.attach(null);
+					CardGameServer.this.sendMessage(spectator.connection,
+							new CardGameMessage(CardGameMessage.SPECTATE, -1,
+									-1));
+				}
+				spectators.clear();
+				feed.clear();
+				println("Closes table " + id + ".");
+				return;
+			}
+
+			// broadcasts a message about the leaving of this player
+			broadcastMessage(new CardGameMessage(CardGameMessage.QUIT,
+					playerID, remoteAddress));
+			// the free seat is offered to the players waiting for a table
+			lobby.execute(new SeatFreedTask(this));
+		} // removePlayer
+
+		/**
+		 * Frees the seat held for a player who lost the connection, unless the
+		 * player has resumed the game in the meantime.
+		 * 
+		 * @param playerID
+		 *            the playerID of the player who lost the connection
+		 * @param token
+		 *            the session token of the player
+		 * @param remoteAddress
+		 *            the IP address and TCP port of the player
+		 */
+		public void releaseSeat(int playerID, long token, String remoteAddress) {
+			if (!closed && clientConnections[playerID] == null
+					&& isTaken(playerID) && sessionTokens[playerID] == token) {
+				removePlayer(playerID, remoteAddress);
+			}
+		} // releaseSeat
+
+		/**
+		 * Gives the seat held for a player back to him/her after
+		 * reconnecting, and sends him/her the state of the game.
+		 * 
+		 * @param connection
+		 *            the new connection to the player
+		 * @param token
+		 *            the session token presented by the player
+		 * @return true if the seat has been given back; false if no seat is
+		 *         being held for the token
+		 */
+		public boolean resumeSession(ClientConnection connection, long token) {
+			// locates the seat held for the player
+			int seat = -1;
+			for (int i = 0; i < maxNumOfPlayers; i++) {
+				if (clientConnections[i] == null && isTaken(i)
+						&& sessionTokens[i] == token) {
+					seat = i;
+					break;
+				}
+			}
+			if (seat < 0) {
+				return false;
+			}
+			clientConnections[seat] = connection;
+			connection.attach(this);
+			connection.setSeat(seat);
+
+			println(clientNames[seat] + " (" + connection.getRemoteAddress()
+					+ ") resumes the game at table " + id + ".");
+
+			sendMessage(seat, new CardGameMessage(
+					CardGameMessage.PLAYER_LIST, seat, clientNames));
+			sendMessage(seat, new CardGameMessage(CardGameMessage.SESSION,
+					seat, token));
+			sendSnapshot(seat);
+			return true;
+		} // resumeSession
+
+		/**
+		 * Sends the state of the game as seen by the specified player to
+		 * him/her.
+		 * 
+		 * @param playerID
+		 *            the playerID of the player
+		 */
+		public void sendSnapshot(int playerID) {
+			sendMessage(playerID, new CardGameMessage(
+					CardGameMessage.SNAPSHOT, playerID,
+					game.getSnapshot(playerID)));
+		} // sendSnapshot
+
+		/**
+		 * Marks the specified player as ready for a new game, and starts the
+		 * game once all the players are ready. Nothing is done while a game
+		 * is being played, which a new deal would otherwise cut short.
+		 * 
+		 * @param playerID
+		 *            the playerID of the player who becomes ready for a new
+		 *            game
+		 */
+		public void setReadyState(int playerID) {
+			if (game.isInProgress()) {
+				return;
+			}
+			clientReadyStates[playerID] = true;
+			journal(GameJournal.READY, playerID, 0, 0);
+			println(clientNames[playerID] + " ("
+					+ clientConnections[playerID].getRemoteAddress()
+					+ " ) is ready for the next game.");
+			broadcastMessage(new CardGameMessage(CardGameMessage.READY,
+					playerID, null));
+
+			// checks if all players are ready
+			if (numOfPlayers == maxNumOfPlayers) {
+				for (int i = 0; i < maxNumOfPlayers; i++) {
+					if (clientReadyStates[i] == false) {
+						// returns if any of the players is not ready
+						return;
+					}
+				}
+
+				// resets the ready states of all the players for the next game
+				for (int i = 0; i < maxNumOfPlayers; i++) {
+					clientReadyStates[i] = false;
+				}
+
+				// creates a new deck, shuffles the deck, and starts a new game
+				GameEvents.Deal event = new GameEvents.Deal();
+				event.begin();
+				Deck deck = createDeck();
+				deck.shuffle();
+				game.start(deck);
+				if (event.shouldCommit()) {
+					event.tableId = id;
+					event.commit();
+				}
+				for (int i = 0; i < maxNumOfPlayers; i++) {
+					journal(GameJournal.DEAL, i, 0, game.getHand(i));
+				}
+				journal(GameJournal.START, game.getCurrentIdx(), 0, 0);
+				println("All players are ready. Game starts at table " + id
+						+ ".");
+
+				// sends each player only the cards dealt to him/her, and the
+				// spectators none of them
+				for (int i = 0; i < maxNumOfPlayers; i++) {
+					sendMessage(i, new CardGameMessage(CardGameMessage.START,
+							game.getCurrentIdx(), game.getSnapshot(i)));
+				}
+				if (!spectators.isEmpty()) {
+					publish(encode(new CardGameMessage(CardGameMessage.START,
+							game.getCurrentIdx(), game.getSnapshot(-1))));
+				}
+				restartTurnTimer();
+			}
+		} // setReadyState
+
+		/**
+		 * Checks the move made by the specified player. A legal move is
+		 * applied to the game and broadcast to all clients at this table,
+		 * while an illegal move is only reported back to the player who made
+		 * it.
+		 * 
+		 * @param playerID
+		 *            the playerID of the player who makes the move
+		 * @param cardIdx
+		 *            the list of the indices of the cards selected by the
+		 *            player
+		 */
+		public void checkMove(int playerID, int[] cardIdx) {
+			GameEvents.MoveValidation event = new GameEvents.MoveValidation();
+			event.begin();
+			long start = System.nanoTime();
+			MoveResult result = game.makeMove(playerID, cardIdx);
+			validationTime.record(System.nanoTime() - start);
+			resident.trace(MessageTracer.VALIDATE, CardGameMessage.MOVE,
+					playerID);
+			commitValidation(event, playerID, cardIdx == null ? 0
+					: cardIdx.length, result, false);
+			if (result.isLegal()) {
+				journalMove(result, false);
+				broadcastMove(result);
+				resident.moveBroadcast();
+			} else {
+				illegalMoves.increment();
+				sendMessage(playerID, new CardGameMessage(
+						CardGameMessage.ILLEGAL, playerID, result));
+			}
+		} // checkMove
+
+		/**
+		 * Makes a move for the player whose turn it is once his/her time is
+		 * up: a pass if possible, or otherwise the lowest card. A pass is
+		 * only refused to a player who leads, and a single card is then legal
+		 * unless it is the first turn, on which the three of diamonds must be
+		 * played. That is the lowest card in Big Two order, and the first
+		 * turn goes to the player holding it, so the lowest card is legal as
+		 * well. Only a restored state in which the player whose turn it is
+		 * has no three of diamonds on the first turn leaves no legal move;
+		 * the turn timer then starts again and nothing is broadcast.
+		 */
+		private void makeTimeoutMove() {
+			turnTimeout = null;
+			if (!game.isInProgress()) {
+				return;
+			}
+			int playerID = game.getCurrentIdx();
+			println(clientNames[playerID] + " runs out of time at table " + id
+					+ ".");
+			GameEvents.MoveValidation event = new GameEvents.MoveValidation();
+			event.begin();
+			MoveResult result = game.makeMove(playerID, new int[0]);
+			if (!result.isLegal()) {
+				result = game.makeMove(playerID, new int[] { 0 });
+			}
+			commitValidation(event, playerID,
+					Long.bitCount(result.getCards()), result, true);
+			if (!result.isLegal()) {
+				println("No legal move for " + clientNames[playerID]
+						+ " at table " + id + ". Restarts the turn timer.");
+				restartTurnTimer();
+				return;
+			}
+			journalMove(result, true);
+			broadcastMove(result);
+		} // makeTimeoutMove
+
+		/**
+		 * Fills in and commits the specified event for the validation of a
+		 * move, if it is being recorded.
+		 */
+		private void commitValidation(GameEvents.MoveValidation event,
+				int playerID, int numOfCards, MoveResult result, boolean timeout) {
+			if (!event.shouldCommit()) {
+				return;
+			}
+			event.tableId = id;
+			event.seat = playerID;
+			event.numOfCards = numOfCards;
+			event.legal = result.isLegal();
+			event.handType = result.getHandType() < 0 ? null
+					: BigTwoGameState.HAND_TYPES[result.getHandType()];
+			event.timeout = timeout;
+			event.commit();
+		} // commitValidation
+
+		/**
+		 * Broadcasts a move which has been applied to the game, and starts the
+		 * timer for the next turn.
+		 * 
+		 * @param result
+		 *            the result of the move
+		 */
+		private void broadcastMove(MoveResult result) {
+			broadcastMessage(new CardGameMessage(CardGameMessage.PLAY,
+					result.getPlayerID(), result));
+			if (game.endOfGame()) {
+				println("Game ends at table " + id + ".");
+			}
+			restartTurnTimer();
+		} // broadcastMove
+
+		/**
+		 * Cancels the timer for the previous turn, and starts the timer for
+		 * the current turn if a game is being played.
+		 */
+		private void restartTurnTimer() {
+			if (turnTimeout != null) {
+				turnTimeout.cancel();
+				turnTimeout = null;
+			}
+			if (game.isInProgress()) {
+				startTurnTimer(TURN_TIMEOUT);
+			}
+		} // restartTurnTimer
+
+		/**
+		 * Starts the timer for the current turn.
+		 * 
+		 * @param timeout
+		 *            the time left for the turn in milliseconds
+		 */
+		private void startTurnTimer(long timeout) {
+			turnDeadline = EventLoop.currentTime() + timeout;
+			turnTimeout = resident.schedule(new TurnTimeoutTask(this), timeout);
+		} // startTurnTimer
+
+		/**
+		 * Moves this table to another worker, together with the connections
+		 * to its players and spectators. The turn timer is stopped here and
+		 * started again there with the time left. Tasks for this table which
+		 * still reach this worker are passed on to the new one.
+		 * 
+		 * @param dest
+		 *            the worker to which this table is moved
+		 */
+		public void moveTo(TableWorker dest) {
+			long timeLeft = -1;
+			if (turnTimeout != null) {
+				turnTimeout.cancel();
+				turnTimeout = null;
+				timeLeft = Math.max(0, turnDeadline - EventLoop.currentTime());
+			}
+			ArrayList<ClientConnection> connections = new ArrayList<ClientConnection>();
+			for (int i = 0; i < maxNumOfPlayers; i++) {
+				if (clientConnections[i] != null) {
+					connections.add(clientConnections[i]);
+				}
+			}
+			for (Spectator spectator : spectators) {
+				connections.add(spectator.connection);
+			}
+			TableWorker source = resident;
+			journal(GameJournal.MOVE, -1, 0, 0);
+			moving = true;
+			source.tables.remove(this);
+			resident = null;
+			for (ClientConnection connection : connections) {
+				source.release(connection, dest);
+			}
+			worker = dest;
+			dest.execute(new TableArrivalTask(this, connections, timeLeft));
+			GameEvents.TableLifecycle.emit(id, "move", dest.getName());
+		} // moveTo
+
+		/**
+		 * Takes this table over on the worker to which it has been moved (or
+		 * on which it has been opened), together with the connections to its
+		 * players and spectators.
+		 * 
+		 * @param connections
+		 *            the connections moved with this table
+		 * @param timeLeft
+		 *            the time left for the current turn in milliseconds, or -1
+		 *            if the turn timer was not running
+		 */
+		private void arrive(ArrayList<ClientConnection> connections,
+				long timeLeft) {
+			TableWorker dest = worker;
+			resident = dest;
+			dest.tables.add(this);
+			feedPending = false;
+			journal(GameJournal.OPEN, -1, 0, openedAt);
+			if (moving) {
+				moving = false;
+				journalState();
+			}
+			for (ClientConnection connection : connections) {
+				try {
+					dest.register(connection);
+				} catch (IOException ex) {
+					connection.close();
+					removeTableConnection(connection);
+				}
+			}
+			if (timeLeft >= 0 && game.isInProgress()) {
+				startTurnTimer(timeLeft);
+			}
+			// the frames published during the move
+			for (int i = 0; i < spectators.size(); i++) {
+				feedSpectator(spectators.get(i));
+			}
+			// the tasks which have overtaken the table
+			ArrayList<Runnable> tasks = pendingTasks;
+			pendingTasks = new ArrayList<Runnable>();
+			for (Runnable task : tasks) {
+				task.run();
+			}
+			// the data received before the connections were moved
+			for (ClientConnection connection : connections) {
+				if (connection.isOpen() && connection.getOwner() == dest) {
+					receiveMessages(dest, connection);
+				}
+			}
+		} // arrive
+
+		/**
+		 * Hands this table over to another server of the cluster. The state
+		 * of the table is sent to the gateway, which moves the players and
+		 * spectators to the new server once it has taken the table over; the
+		 * players resume the game there with their session tokens. This
+		 * table is closed here.
+		 *
+		 * @param node
+		 *            the name of the server to which this table is handed
+		 */
+		public void export(String node) {
+			if (closed) {
+				return;
+			}
+			TableState state = getState(node);
+
+			// the clients stay connected until the gateway moves them
+			for (int i = 0; i < maxNumOfPlayers; i++) {
+				if (clientConnections[i] != null) {
+					clientConnections[i].attach(null);
+					clientConnections[i].setSeat(-1);
+					clientConnections[i] = null;
+				}
+				if (isTaken(i)) {
+					sessions.remove(sessionTokens[i]);
+				}
+			}
+			for (Spectator spectator : spectators) {
+				spectator.connection.attach(null);
+			}
+			spectators.clear();
+			feed.clear();
+			if (turnTimeout != null) {
+				turnTimeout.cancel();
+				turnTimeout = null;
+			}
+			journal(GameJournal.EXPORT, -1, 0, 0);
+			closed = true;
+			resident.tables.remove(this);
+			println("Hands table " + id + " over to " + node + ".");
+			GameEvents.TableLifecycle.emit(id, "export", node);
+			lobby.execute(new TableExportedTask(state));
+		} // export
+
+		/**
+		 * Returns the whole state of this table.
+		 *
+		 * @param node
+		 *            the name of the server to which this table is moved, or
+		 *            null if none
+		 * @return the state of this table
+		 */
+		public TableState getState(String node) {
+			long[] hands = new long[maxNumOfPlayers];
+			for (int i = 0; i < maxNumOfPlayers; i++) {
+				hands[i] = game.getHand(i);
+			}
+			Hand lastHand = game.getLastHand();
+			return new TableState(id, node, clientNames, sessionTokens,
+					clientReadyStates, hands,
+					lastHand == null ? 0 : CardMask.of(lastHand),
+					lastHand == null ? -1 : BigTwoGameState.getTypeCode(lastHand),
+					game.getLastHandIdx(), game.getCurrentIdx(),
+					game.getVersion());
+		} // getState
+
+		/**
+		 * Puts this table in the state in which another server of the cluster
+		 * has handed it over, or in which it has been recovered after a
+		 * restart. The seats are held for the players until they resume the
+		 * game here, and the turn timer starts afresh.
+		 *
+		 * @param state
+		 *            the state of the table
+		 * @param source
+		 *            where the table comes from, for the log
+		 */
+		public void restore(TableState state, String source) {
+			for (int i = 0; i < maxNumOfPlayers; i++) {
+				if (state.getName(i) == null) {
+					continue;
+				}
+				clientNames[i] = state.getName(i);
+				sessionTokens[i] = state.getSessionToken(i);
+				clientReadyStates[i] = state.isReady(i);
+				numOfPlayers++;
+				resident.schedule(new SeatReleaseTask(this, i, sessionTokens[i],
+						source), RESUME_GRACE_PERIOD);
+			}
+			game.restore(state.getHands(), state.getLastHand(),
+					state.getLastHandType(), state.getLastHandIdx(),
+					state.getCurrentIdx(), state.getVersion());
+			restartTurnTimer();
+			journalState();
+		} // restore
+
+		/**
+		 * Records the whole state of this table in the journal of its worker,
+		 * as it is taken over or arrives from another worker.
+		 */
+		private void journalState() {
+			for (int i = 0; i < maxNumOfPlayers; i++) {
+				if (isTaken(i)) {
+					journalText(GameJournal.JOIN, i, sessionTokens[i],
+							clientNames[i]);
+					if (clientReadyStates[i]) {
+						journal(GameJournal.READY, i, 0, 0);
+					}
+				}
+				journal(GameJournal.DEAL, i, 0, game.getHand(i));
+			}
+			Hand lastHand = game.getLastHand();
+			journal(GameJournal.RESTORE, game.getCurrentIdx(),
+					(game.getLastHandIdx() & 0xFF) << 8
+							| ((lastHand == null ? -1 : BigTwoGameState
+									.getTypeCode(lastHand)) & 0xFF),
+					lastHand == null ? 0 : CardMask.of(lastHand));
+		} // journalState
+
+		/**
+		 * Broadcasts a chat message from the specified player to all clients
+		 * at this table.
+		 * 
+		 * @param playerID
+		 *            the playerID of the player who sent the message
+		 * @param msg
+		 *            the chat message
+		 */
+		public void broadcastUserMessage(int playerID, String msg) {
+			String longMsg = clientNames[playerID] + " ("
+					+ clientConnections[playerID].getRemoteAddress() + "): "
+					+ msg;
+			broadcastMessage(new CardGameMessage(CardGameMessage.MSG,
+					playerID, longMsg));
+			journalText(GameJournal.CHAT, playerID, 0, msg);
+		} // broadcastUserMessage
+
+		/**
+		 * Records an event of this table in the journal of its worker, if
+		 * any.
+		 * 
+		 * @param type
+		 *            the type of the event (see GameJournal)
+		 * @param seat
+		 *            the seat concerned, or -1 if none
+		 * @param aux
+		 *            the 16-bit value of the event
+		 * @param value
+		 *            the 64-bit value of the event
+		 */
+		private void journal(int type, int seat, int aux, long value) {
+			GameJournal journal = resident.journal;
+			if (journal != null) {
+				journal.append(id, journalSeq++, type, seat, aux, value,
+						game.getVersion());
+			}
+		} // journal
+
+		/**
+		 * Records an event of this table with some text in the journal of
+		 * its worker, if any.
+		 * 
+		 * @param type
+		 *            the type of the event (see GameJournal)
+		 * @param seat
+		 *            the seat concerned, or -1 if none
+		 * @param value
+		 *            the 64-bit value of the event
+		 * @param text
+		 *            the text of the event
+		 */
+		private void journalText(int type, int seat, long value, String text) {
+			GameJournal journal = resident.journal;
+			if (journal != null) {
+				journal.appendText(id, journalSeq++, type, seat, value,
+						game.getVersion(), text);
+			}
+		} // journalText
+
+		/**
+		 * Records the specified move in the journal of the worker, if any.
+		 * 
+		 * @param result
+		 *            the result of the move, which is legal
+		 * @param timedOut
+		 *            true if the move has been made for a player out of time
+		 */
+		private void journalMove(MoveResult result, boolean timedOut) {
+			int flags = timedOut ? GameJournal.TIMED_OUT : 0;
+			if (result.isPass()) {
+				journal(GameJournal.PASS, result.getPlayerID(), flags, 0);
+			} else {
+				journal(GameJournal.PLAY, result.getPlayerID(), flags
+						| result.getHandType(), result.getCards());
+			}
+		} // journalMove
+	} // GameTable
+
+	/**
+	 * This inner class is used to model a client watching a table
+	 * 
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class Spectator {
+		private ClientConnection connection; // connection to the client
+		private GameTable table; // the table being watched
+		private long cursor; // the next frame of the table to be queued
+		private int index; // the position in the list of spectators
+
+		/**
+		 * Creates and returns an instance of the Spectator class.
+		 * 
+		 * @param connection
+		 *            the connection to the client
+		 * @param table
+		 *            the table being watched
+		 */
+		public Spectator(ClientConnection connection, GameTable table) {
+			this.connection = connection;
+			this.table = table;
+		} // constructor
+	} // Spectator
+
+	/**
+	 * This inner class is used for having every event loop set its gauges
+	 * before the metrics are scraped. The scrape waits for the loops, but
+	 * not for long: a loop which is stuck keeps the values it last set.
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class MetricsCollector implements Runnable {
+		// implementation of method from the Runnable interface
+		public void run() {
+			LobbyLoop lobby = CardGameServer.this.lobby;
+			TableWorker[] workers = CardGameServer.this.workers;
+			if (!serverUp || lobby == null) {
+				return;
+			}
+			CountDownLatch latch = new CountDownLatch(workers.length + 1);
+			lobby.execute(new CollectTask(lobby, latch));
+			for (TableWorker worker : workers) {
+				worker.execute(new CollectTask(worker, latch));
+			}
+			try {
+				latch.await(METRICS_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		} // run
+	} // MetricsCollector
+
+	/**
+	 * This inner class is used for setting the gauges of an event loop on
+	 * that loop
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class CollectTask implements Runnable {
+		private ServerLoop loop; // the loop running the task
+		private CountDownLatch latch; // counted down once the gauges are set
+
+		/**
+		 * Creates and returns an instance of the CollectTask class.
+		 * 
+		 * @param loop
+		 *            the loop running the task
+		 * @param latch
+		 *            the latch counted down once the gauges are set
+		 */
+		public CollectTask(ServerLoop loop, CountDownLatch latch) {
+			this.loop = loop;
+			this.latch = latch;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			loop.collectMetrics();
+			latch.countDown();
+		} // run
+	} // CollectTask
+
+	/**
+	 * This inner class is used for closing a connection to a client which has
+	 * been sent a FULL message
+	 * 
+	 * @author Anchit Mishra
 	 *
 	 */
-	private class ClientHandler implements Runnable {
-		private Socket clientSocket; // socket connection to the client
-		private ObjectInputStream oistream; // ObjectInputStream of the client
+	private class CloseTask implements Runnable {
+		private ClientConnection connection; // connection to the client
+
+		/**
+		 * Creates and returns an instance of the CloseTask class.
+		 * 
+		 * @param connection
+		 *            the connection to the client
+		 */
+		public CloseTask(ClientConnection connection) {
+			this.connection = connection;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			connection.close();
+		} // run
+	} // CloseTask
+
+
+	/**
+	 * This inner class is used to model a task for a table, which is run on
+	 * the worker owning the table. A task which reaches a worker from which
+	 * the table has been moved is passed on to the new worker, and a task
+	 * which reaches the new worker before the table is run once the table
+	 * has arrived.
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private abstract class TableTask implements Runnable {
+		protected GameTable table; // the table of the task
 
 		/**
-		 * Creates and returns an instance of the ClientHandler class.
+		 * Creates and returns an instance of the TableTask class.
 		 * 
-		 * @param clientSocket
-		 *            the socket connection to the client
+		 * @param table
+		 *            the table of the task
 		 */
-		public ClientHandler(Socket clientSocket) {
-			this.clientSocket = clientSocket;
-			try {
-				// creates an ObjectInputStream and chains it to the InputStream
-				// of the client socket
-				oistream = new ObjectInputStream(clientSocket.getInputStream());
-			} catch (Exception ex) {
-				println("Error in creating an ObjectInputStream for the client at "
-						+ clientSocket.getRemoteSocketAddress());
-				ex.printStackTrace();
+		public TableTask(GameTable table) {
+			this.table = table;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			TableWorker resident = table.resident;
+			if (resident != null && resident.inLoop()) {
+				try {
+					runAtTable();
+				} catch (RuntimeException ex) {
+					table.abort(ex);
+				}
+				return;
+			}
+			TableWorker worker = table.worker;
+			if (worker.inLoop()) {
+				// the table is on its way to this worker
+				table.pendingTasks.add(this);
+			} else {
+				forward(worker);
+			}
+		} // run
+
+		/**
+		 * Passes this task on to the worker which now owns the table.
+		 * 
+		 * @param worker
+		 *            the worker owning the table
+		 */
+		protected void forward(TableWorker worker) {
+			worker.execute(this);
+		}
+
+		/**
+		 * Runs this task on the worker on which the table is.
+		 */
+		protected abstract void runAtTable();
+	} // TableTask
+
+	/**
+	 * This inner class is used to model a task for a table which concerns a
+	 * client handed to the worker owning the table. The client is handed on
+	 * together with the task if the table has been moved.
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private abstract class ClientTableTask extends TableTask {
+		protected ClientConnection connection; // connection to the client
+
+		/**
+		 * Creates and returns an instance of the ClientTableTask class.
+		 * 
+		 * @param table
+		 *            the table of the task
+		 * @param connection
+		 *            the connection to the client
+		 */
+		public ClientTableTask(GameTable table, ClientConnection connection) {
+			super(table);
+			this.connection = connection;
+		} // constructor
+
+		protected void forward(TableWorker worker) {
+			connection.getOwner().handOff(connection, worker, this);
+		}
+	} // ClientTableTask
+
+	/**
+	 * This inner class is used for seating a player taken from the queue at
+	 * the table chosen for him/her
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class SeatTask extends ClientTableTask {
+		private String name; // name of the player
+
+		/**
+		 * Creates and returns an instance of the SeatTask class.
+		 * 
+		 * @param table
+		 *            the table at which the player is seated
+		 * @param connection
+		 *            the connection to the player
+		 * @param name
+		 *            the name of the player
+		 */
+		public SeatTask(GameTable table, ClientConnection connection,
+				String name) {
+			super(table, connection);
+			this.name = name;
+		} // constructor
+
+		protected void runAtTable() {
+			if (!table.addPlayer(connection, name)) {
+				// the table has been closed since the seat was given away
+				table.resident.handOff(connection, lobby, new RequeueTask(
+						connection, name));
+			}
+		}
+	} // SeatTask
+
+	/**
+	 * This inner class is used for giving the seat held for a player back to
+	 * him/her after reconnecting
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class ResumeTask extends ClientTableTask {
+		private long token; // session token presented by the player
+
+		/**
+		 * Creates and returns an instance of the ResumeTask class.
+		 * 
+		 * @param table
+		 *            the table of the session
+		 * @param connection
+		 *            the new connection to the player
+		 * @param token
+		 *            the session token presented by the player
+		 */
+		public ResumeTask(GameTable table, ClientConnection connection,
+				long token) {
+			super(table, connection);
+			this.token = token;
+		} // constructor
+
+		protected void runAtTable() {
+			if (!table.resumeSession(connection, token)) {
+				// the session has expired, the client joins as a new player
+				sendMessage(connection, new CardGameMessage(
+						CardGameMessage.SESSION, -1, 0L));
+			}
+		}
+	} // ResumeTask
+
+	/**
+	 * This inner class is used for making a client a spectator of a table
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class SpectateTask extends ClientTableTask {
+		/**
+		 * Creates and returns an instance of the SpectateTask class.
+		 * 
+		 * @param table
+		 *            the table to be watched
+		 * @param connection
+		 *            the connection to the client
+		 */
+		public SpectateTask(GameTable table, ClientConnection connection) {
+			super(table, connection);
+		} // constructor
+
+		protected void runAtTable() {
+			if (table.closed) {
+				sendMessage(connection, new CardGameMessage(
+						CardGameMessage.SPECTATE, -1, -1));
+				return;
 			}
+			Spectator spectator = new Spectator(connection, table);
+			connection.attach(spectator);
+			table.addSpectator(spectator);
+			println("The client at " + connection.getRemoteAddress()
+					+ " watches table " + table.getId() + ".");
+		}
+	} // SpectateTask
+
+	/**
+	 * This inner class is used for putting a player whose table has been
+	 * closed before he/she could be seated back in the queue
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class RequeueTask implements Runnable {
+		private ClientConnection connection; // connection to the player
+		private String name; // name of the player
+
+		/**
+		 * Creates and returns an instance of the RequeueTask class.
+		 * 
+		 * @param connection
+		 *            the connection to the player
+		 * @param name
+		 *            the name of the player
+		 */
+		public RequeueTask(ClientConnection connection, String name) {
+			this.connection = connection;
+			this.name = name;
 		} // constructor
 
 		// implementation of method from the Runnable interface
 		public void run() {
-			CardGameMessage message;
-			try {
-				// waits for messages from the client
-				while ((message = (CardGameMessage) oistream.readObject()) != null) {
-					println("Message received from "
-							+ clientSocket.getRemoteSocketAddress());
-					parseMessage(clientSocket, message);
-				} // close while
-			} catch (Exception ex) {
-				println("Error in receiving messages from the client at "
-						+ clientSocket.getRemoteSocketAddress());
-				ex.printStackTrace();
-				// possible connection loss, removes the connection
-				removeConnection(clientSocket);
+			if (waitingConnections.add(connection)) {
+				matchmaker.enqueue(connection, name, EventLoop.currentTime());
 			}
 		} // run
-	} // ClientHandler
+	} // RequeueTask
 
-	private class ClientHandler2 implements Runnable {
-		private Socket clientSocket; // socket connection to the client
+	/**
+	 * This inner class is used for taking a table over on the worker to which
+	 * it has been moved or on which it has been opened
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class TableArrivalTask implements Runnable {
+		private GameTable table; // the table
+		// connections to the players and spectators of the table
+		private ArrayList<ClientConnection> connections;
+		private long timeLeft; // time left for the current turn, or -1
 
 		/**
-		 * Creates and returns an instance of the ClientHandler2 class.
+		 * Creates and returns an instance of the TableArrivalTask class.
 		 * 
-		 * @param clientSocket
-		 *            the socket connection to the client
+		 * @param table
+		 *            the table
+		 * @param connections
+		 *            the connections to the players and spectators of the
+		 *            table
+		 * @param timeLeft
+		 *            the time left for the current turn in milliseconds, or -1
+		 *            if the turn timer was not running
 		 */
-		public ClientHandler2(Socket clientSocket) {
-			this.clientSocket = clientSocket;
+		public TableArrivalTask(GameTable table,
+				ArrayList<ClientConnection> connections, long timeLeft) {
+			this.table = table;
+			this.connections = connections;
+			this.timeLeft = timeLeft;
 		} // constructor
 
 		// implementation of method from the Runnable interface
 		public void run() {
-			try {
-				// creates an ObjectOutputStream and chains it to the
-				// OutputStream
-				// of the client socket
-				ObjectOutputStream oostream = new ObjectOutputStream(
-						clientSocket.getOutputStream());
-				// sends a FULL message to the client
-				oostream.writeObject(new CardGameMessage(CardGameMessage.FULL,
-						-1, null));
-				oostream.flush();
-			} catch (Exception ex) {
-				println("Error in sending a FULL message to the client at "
-						+ clientSocket.getRemoteSocketAddress());
-				ex.printStackTrace();
+			table.arrive(connections, timeLeft);
+		} // run
+	} // TableArrivalTask
+
+	/**
+	 * This inner class is used for telling the lobby that a seat has been
+	 * freed at a table
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class SeatFreedTask implements Runnable {
+		private GameTable table; // the table with a free seat
+
+		/**
+		 * Creates and returns an instance of the SeatFreedTask class.
+		 * 
+		 * @param table
+		 *            the table with a free seat
+		 */
+		public SeatFreedTask(GameTable table) {
+			this.table = table;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			freeSeat(table);
+		} // run
+	} // SeatFreedTask
+
+	/**
+	 * This inner class is used for telling the lobby that a table has been
+	 * closed
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class TableClosedTask implements Runnable {
+		private GameTable table; // the closed table
+
+		/**
+		 * Creates and returns an instance of the TableClosedTask class.
+		 * 
+		 * @param table
+		 *            the closed table
+		 */
+		public TableClosedTask(GameTable table) {
+			this.table = table;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			retireTable(table);
+		} // run
+	} // TableClosedTask
+
+	/**
+	 * This inner class is used for handing a table over to another server of
+	 * the cluster
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class ExportTask extends TableTask {
+		private String node; // the server to which the table is handed
+
+		/**
+		 * Creates and returns an instance of the ExportTask class.
+		 * 
+		 * @param table
+		 *            the table to be handed over
+		 * @param node
+		 *            the name of the server to which the table is handed
+		 */
+		public ExportTask(GameTable table, String node) {
+			super(table);
+			this.node = node;
+		} // constructor
+
+		protected void runAtTable() {
+			table.export(node);
+		}
+	} // ExportTask
+
+	/**
+	 * This inner class is used for sending the state of a table handed over
+	 * to another server to the gateway of the cluster
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class TableExportedTask implements Runnable {
+		private TableState state; // the state of the table
+
+		/**
+		 * Creates and returns an instance of the TableExportedTask class.
+		 * 
+		 * @param state
+		 *            the state of the table
+		 */
+		public TableExportedTask(TableState state) {
+			this.state = state;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			sendTable(state);
+		} // run
+	} // TableExportedTask
+
+	/**
+	 * This inner class is used for taking over a table handed over by another
+	 * server of the cluster or recovered after a restart
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class ImportTask extends TableTask {
+		private TableState state; // the state of the table
+		private String source; // where the table comes from
+
+		/**
+		 * Creates and returns an instance of the ImportTask class.
+		 * 
+		 * @param table
+		 *            the table taken over
+		 * @param state
+		 *            the state in which the table has been handed over
+		 * @param source
+		 *            where the table comes from, for the log
+		 */
+		public ImportTask(GameTable table, TableState state, String source) {
+			super(table);
+			this.state = state;
+			this.source = source;
+		} // constructor
+
+		protected void runAtTable() {
+			table.restore(state, source);
+		}
+	} // ImportTask
+
+	/**
+	 * This inner class is used for comparing the load of the table workers at
+	 * regular intervals
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class RebalanceTask implements Runnable {
+		// implementation of method from the Runnable interface
+		public void run() {
+			rebalance();
+			lobby.schedule(this, REBALANCE_INTERVAL);
+		} // run
+	} // RebalanceTask
+
+	/**
+	 * This inner class is used for saving a snapshot of the tables of a
+	 * worker with its journal at regular intervals
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class SnapshotTask implements Runnable {
+		private TableWorker worker; // the worker running the task
+		private CountDownLatch latch; // counted down after the first snapshot
+
+		/**
+		 * Creates and returns an instance of the SnapshotTask class.
+		 * 
+		 * @param worker
+		 *            the worker running the task
+		 * @param latch
+		 *            the latch counted down once the first snapshot is saved
+		 */
+		public SnapshotTask(TableWorker worker, CountDownLatch latch) {
+			this.worker = worker;
+			this.latch = latch;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			worker.saveSnapshot();
+			if (latch != null) {
+				latch.countDown();
+				latch = null;
 			}
+			worker.schedule(this, SNAPSHOT_INTERVAL);
+		} // run
+	} // SnapshotTask
 
-			// sleeps for 1000 milliseconds before closing the socket
-			try {
-				Thread.sleep(1000);
-			} catch (Exception ex) {
-				println("Error in sleeping before closing the client socket at "
-						+ clientSocket.getRemoteSocketAddress());
-				ex.printStackTrace();
+	/**
+	 * This inner class is used for moving a table away from a busy worker
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class MigrationTask implements Runnable {
+		private TableWorker worker; // the worker running the task
+		private TableWorker dest; // the worker to which a table is moved
+		private double share; // the largest share of the load to be moved
+
+		/**
+		 * Creates and returns an instance of the MigrationTask class.
+		 * 
+		 * @param worker
+		 *            the worker running the task
+		 * @param dest
+		 *            the worker to which a table is moved, or null if the
+		 *            load of the tables is only counted afresh
+		 * @param share
+		 *            the largest share of the load to be moved
+		 */
+		public MigrationTask(TableWorker worker, TableWorker dest, double share) {
+			this.worker = worker;
+			this.dest = dest;
+			this.share = share;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			migrateTable(worker, dest, share);
+		} // run
+	} // MigrationTask
+
+	/**
+	 * This inner class is used for making a move for a player who runs out of
+	 * time
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class TurnTimeoutTask extends TableTask {
+		/**
+		 * Creates and returns an instance of the TurnTimeoutTask class.
+		 * 
+		 * @param table
+		 *            the table at which the game is played
+		 */
+		public TurnTimeoutTask(GameTable table) {
+			super(table);
+		} // constructor
+
+		protected void runAtTable() {
+			table.makeTimeoutMove();
+		}
+	} // TurnTimeoutTask
+
+	/**
+	 * This inner class is used for disconnecting a client which has sent
+	 * nothing for too long
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class IdleCheckTask implements Runnable {
+		private ServerLoop loop; // the loop which scheduled the check
+		private ClientConnection connection; // connection to the client
+
+		/**
+		 * Creates and returns an instance of the IdleCheckTask class.
+		 * 
+		 * @param loop
+		 *            the event loop which schedules the check
+		 * @param connection
+		 *            the connection to the client
+		 */
+		public IdleCheckTask(ServerLoop loop, ClientConnection connection) {
+			this.loop = loop;
+			this.connection = connection;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			checkIdle(loop, connection);
+		} // run
+	} // IdleCheckTask
+
+	/**
+	 * This inner class is used for releasing the seat held for a player who
+	 * lost the connection once the grace period is over
+	 * 
+	 * @author Anchit Mishra
+	 * 
+	 */
+	private class SeatReleaseTask extends TableTask {
+		private int playerID; // the seat being held
+		private long token; // session token of the player
+		private String remoteAddress; // last address of the player
+
+		/**
+		 * Creates and returns an instance of the SeatReleaseTask class.
+		 * 
+		 * @param table
+		 *            the table of the seat
+		 * @param playerID
+		 *            the seat being held
+		 * @param token
+		 *            the session token of the player
+		 * @param remoteAddress
+		 *            the last IP address and TCP port of the player
+		 */
+		public SeatReleaseTask(GameTable table, int playerID, long token,
+				String remoteAddress) {
+			super(table);
+			this.playerID = playerID;
+			this.token = token;
+			this.remoteAddress = remoteAddress;
+		} // constructor
+
+		protected void runAtTable() {
+			table.releaseSeat(playerID, token, remoteAddress);
+		}
+	} // SeatReleaseTask
+
+	/**
+	 * This inner class is used for showing server events in the text area.
+	 * Events are collected on the writer thread of the event log, and
+	 * appended to the text area on the event dispatch thread whenever the
+	 * timer fires.
+	 * 
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class TextAreaSink implements EventSink, ActionListener {
+		// events not shown yet, guarded by this sink
+		private StringBuilder pending = new StringBuilder();
+
+		// implementation of method from the EventSink interface
+		public synchronized void write(long time, String thread, String message) {
+			pending.append(message).append('\n');
+			if (pending.length() > MAX_CONSOLE_LENGTH) {
+				// the console would only throw the oldest events away
+				pending.delete(0, pending.length() - MAX_CONSOLE_LENGTH);
 			}
+		}
 
-			// closes the socket
-			try {
-				clientSocket.close();
-			} catch (Exception ex) {
-				println("Error in closing the client socket at "
-						+ clientSocket.getRemoteSocketAddress());
-				ex.printStackTrace();
+		// implementation of method from the EventSink interface
+		public void flush() {
+		}
+
+		// implementation of method from the EventSink interface
+		public void close() {
+		}
+
+		/**
+		 * Takes the events collected since the last call.
+		 */
+		private synchronized String takePending() {
+			if (pending.length() == 0) {
+				return null;
+			}
+			String text = pending.toString();
+			pending.setLength(0);
+			return text;
+		}
+
+		// implementation of method from the ActionListener interface
+		public void actionPerformed(ActionEvent e) {
+			String text = takePending();
+			if (text == null) {
+				return;
+			}
+			textArea.append(text);
+			int excess = textArea.getDocument().getLength()
+					- MAX_CONSOLE_LENGTH;
+			if (excess > 0) {
+				textArea.replaceRange("", 0, excess);
+			}
+			textArea.setCaretPosition(textArea.getDocument().getLength());
+		} // actionPerformed
+	} // TextAreaSink
+
+	/**
+	 * This inner class is used for writing out the events still in the event
+	 * log, the records still in the message tracer and the journals of the
+	 * tables when the server exits
+	 * 
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class ShutdownTask implements Runnable {
+		// implementation of method from the Runnable interface
+		public void run() {
+			if (tracer != null) {
+				tracer.close();
+			}
+			for (TableWorker worker : workers) {
+				if (worker.journal != null) {
+					worker.journal.close();
+				}
 			}
+			eventLog.close();
 		} // run
-	} // ClientHandler2
+	} // ShutdownTask
 
 	/**
 	 * This inner class is used for handling the Clear menu
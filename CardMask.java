@@ -0,0 +1,142 @@
+/**
+ * This class provides helper methods for representing a set of Big Two cards
+ * as a 52-bit mask. Bit i of a mask stands for the i-th card in Big Two order,
+ * i.e. bit 0 is the three of diamonds, bit 1 the three of clubs, and bit 51
+ * the two of spades, so iterating over the set bits of a mask visits the cards
+ * in sorted order.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public final class CardMask {
+	/**
+	 * The number of cards in a deck.
+	 */
+	public static final int NUM_CARDS = 52;
+	/**
+	 * A mask containing every card of the deck.
+	 */
+	public static final long FULL_DECK = (1L << NUM_CARDS) - 1;
+
+	// the (immutable) cards indexed by their position in Big Two order
+	private static final BigTwoCard[] CARDS = new BigTwoCard[NUM_CARDS];
+
+	static {
+		for (int suit = 0; suit < 4; suit++) {
+			for (int rank = 0; rank < 13; rank++) {
+				CARDS[indexOf(suit, rank)] = new BigTwoCard(suit, rank);
+			}
+		}
+	}
+
+	private CardMask() {
+	}
+
+	/**
+	 * Returns the index of the card with the specified suit and rank.
+	 *
+	 * @param suit
+	 *            the suit of the card (0 - 3)
+	 * @param rank
+	 *            the rank of the card (0 - 12)
+	 * @return the index of the card in Big Two order (0 - 51)
+	 */
+	public static int indexOf(int suit, int rank) {
+		return ((rank + 11) % 13) * 4 + suit;
+	}
+
+	/**
+	 * Returns the index of the specified card.
+	 *
+	 * @param card
+	 *            the card
+	 * @return the index of the card in Big Two order (0 - 51)
+	 */
+	public static int indexOf(Card card) {
+		return indexOf(card.getSuit(), card.getRank());
+	}
+
+	/**
+	 * Returns the card at the specified index.
+	 *
+	 * @param index
+	 *            the index of the card in Big Two order (0 - 51)
+	 * @return the card at the specified index
+	 */
+	public static BigTwoCard card(int index) {
+		return CARDS[index];
+	}
+
+	/**
+	 * Returns a mask containing only the specified card.
+	 *
+	 * @param card
+	 *            the card
+	 * @return a mask containing only the specified card
+	 */
+	public static long of(Card card) {
+		return 1L << indexOf(card);
+	}
+
+	/**
+	 * Returns a mask containing the cards in the specified list.
+	 *
+	 * @param cards
+	 *            the list of cards
+	 * @return a mask containing the cards in the list
+	 */
+	public static long of(CardList cards) {
+		long mask = 0;
+		for (int i = 0; i < cards.size(); i++) {
+			mask |= of(cards.getCard(i));
+		}
+		return mask;
+	}
+
+	/**
+	 * Returns a sorted list of the cards in the specified mask.
+	 *
+	 * @param mask
+	 *            the mask
+	 * @return a list of the cards in the mask, in Big Two order
+	 */
+	public static CardList toCardList(long mask) {
+		CardList cards = new CardList();
+		while (mask != 0) {
+			cards.addCard(CARDS[Long.numberOfTrailingZeros(mask)]);
+			mask &= mask - 1;
+		}
+		return cards;
+	}
+
+	/**
+	 * Returns the indices of the specified cards among the cards in hand in
+	 * sorted order, as expected by the server in a MOVE message.
+	 *
+	 * @param hand
+	 *            the mask of the cards in hand
+	 * @param cards
+	 *            the mask of the cards selected, all of which are in hand
+	 * @return the indices of the cards selected, in increasing order
+	 */
+	public static int[] toIndices(long hand, long cards) {
+		int[] cardIdx = new int[size(cards)];
+		for (int i = 0; cards != 0; i++) {
+			long card = Long.lowestOneBit(cards);
+			cardIdx[i] = size(hand & (card - 1));
+			cards &= cards - 1;
+		}
+		return cardIdx;
+	}
+
+	/**
+	 * Returns the number of cards in the specified mask.
+	 *
+	 * @param mask
+	 *            the mask
+	 * @return the number of cards in the mask
+	 */
+	public static int size(long mask) {
+		return Long.bitCount(mask);
+	}
+}
@@ -0,0 +1,598 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * This class is used to model a non-blocking connection between the server
+ * and a client. Frames received from the client are decoded from a bounded
+ * read buffer, and frames to be sent are queued and only written when the
+ * server flushes the connection, so that all the frames queued during one
+ * pass of the server's event loop go out in a single gathering write.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class ClientConnection {
+	/**
+	 * The largest read buffer kept between frames. Longer frames are read into
+	 * a temporary buffer which is discarded afterwards.
+	 */
+	public static final int RETAINED_BUFFER_SIZE = MessageStream.RETAINED_BUFFER_SIZE;
+	/**
+	 * The maximum number of bytes waiting to be written to a client. A client
+	 * which falls further behind is disconnected.
+	 */
+	public static final int MAX_QUEUED_BYTES = 1024 * 1024;
+
+	// the maximum number of frames passed to a single gathering write
+	private static final int MAX_GATHER = 64;
+	// the highest message type which can have a limit of its own
+	private static final int MAX_LIMITED_TYPE = 31;
+
+	private final SocketChannel channel; // the underlying socket channel
+	private final String remoteAddress; // for log messages
+	private SelectionKey key; // registration with the owner's selector
+	private EventLoop owner = null; // the event loop serving the client
+	private ByteBuffer readBuffer = ByteBuffer.allocate(RETAINED_BUFFER_SIZE);
+	private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	private int queuedBytes = 0;
+	private boolean flushScheduled = false;
+	private boolean reading = true;
+	private TokenBucket messageLimit = null; // limit on all messages
+	private final TokenBucket[] typeLimits = new TokenBucket[MAX_LIMITED_TYPE + 1];
+	private long droppedMessages = 0;
+	private long lastActive = 0; // when data was last received, in ms
+	private TimingWheel.Timeout idleCheck = null; // the pending idle check
+	private Object attachment = null; // the server's state for the client
+	private int seat = -1; // the seat of the client at its table
+
+	/**
+	 * Creates and returns an instance of the ClientConnection class. The
+	 * channel is switched to non-blocking mode, and Nagle's algorithm is
+	 * turned off since frames are already coalesced before being written.
+	 *
+	 * @param channel
+	 *            the socket channel connected to the client
+	 * @throws IOException
+	 *             if the channel cannot be configured
+	 */
+	public ClientConnection(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+	}
+
+	/**
+	 * Returns the underlying socket channel.
+	 *
+	 * @return the underlying socket channel
+	 */
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the IP address and TCP port of the client.
+	 *
+	 * @return the IP address and TCP port of the client
+	 */
+	public String getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * Registers this connection with the specified selector, keeping the
+	 * events it is interested in.
+	 *
+	 * @param selector
+	 *            the selector of the event loop serving the client
+	 * @throws IOException
+	 *             if the channel is closed
+	 */
+	public void register(Selector selector) throws IOException {
+		key = channel.register(selector, interestOps(), this);
+	}
+
+	/**
+	 * Cancels the registration of this connection with its selector, e.g.
+	 * because the client is handed to another event loop. A flush scheduled
+	 * on the old loop is forgotten.
+	 */
+	public void deregister() {
+		if (key != null) {
+			key.cancel();
+			key = null;
+		}
+		flushScheduled = false;
+	}
+
+	/**
+	 * Returns the event loop serving the client. Only the thread of that loop
+	 * may use the connection.
+	 *
+	 * @return the event loop serving the client, or null if none yet
+	 */
+	public EventLoop getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Sets the event loop serving the client.
+	 *
+	 * @param owner
+	 *            the event loop serving the client
+	 */
+	public void setOwner(EventLoop owner) {
+		this.owner = owner;
+	}
+
+	/**
+	 * Attaches the specified object to this connection, e.g. the table at
+	 * which the client plays, so that the server can find it without a
+	 * lookup.
+	 *
+	 * @param attachment
+	 *            the object to be attached, or null to discard the current
+	 *            attachment
+	 */
+	public void attach(Object attachment) {
+		this.attachment = attachment;
+	}
+
+	/**
+	 * Returns the object attached to this connection.
+	 *
+	 * @return the object attached to this connection, or null if none
+	 */
+	public Object attachment() {
+		return attachment;
+	}
+
+	/**
+	 * Returns the seat of the client at the table at which it plays.
+	 *
+	 * @return the seat (i.e. the playerID) of the client, or -1 if none
+	 */
+	public int getSeat() {
+		return seat;
+	}
+
+	/**
+	 * Sets the seat of the client at the table at which it plays.
+	 *
+	 * @param seat
+	 *            the seat (i.e. the playerID) of the client, or -1 if none
+	 */
+	public void setSeat(int seat) {
+		this.seat = seat;
+	}
+
+	/**
+	 * Returns whether this connection is still open.
+	 *
+	 * @return true if this connection is open; false otherwise
+	 */
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Returns the time at which data was last received from the client.
+	 *
+	 * @return the time in milliseconds (see setLastActive)
+	 */
+	public long getLastActive() {
+		return lastActive;
+	}
+
+	/**
+	 * Records the time at which data was last received from the client.
+	 *
+	 * @param time
+	 *            the time in milliseconds, on the clock used by the server
+	 */
+	public void setLastActive(long time) {
+		this.lastActive = time;
+	}
+
+	/**
+	 * Returns the pending check of whether the client is idle, which is
+	 * scheduled on the loop serving the client.
+	 *
+	 * @return the pending idle check, or null if none
+	 */
+	public TimingWheel.Timeout getIdleCheck() {
+		return idleCheck;
+	}
+
+	/**
+	 * Sets the pending check of whether the client is idle.
+	 *
+	 * @param idleCheck
+	 *            the pending idle check, or null if none
+	 */
+	public void setIdleCheck(TimingWheel.Timeout idleCheck) {
+		this.idleCheck = idleCheck;
+	}
+
+	/**
+	 * Reads whatever bytes are available from the client without blocking.
+	 *
+	 * @return the number of bytes read, or -1 if the client has closed the
+	 *         connection
+	 * @throws IOException
+	 *             if the bytes cannot be read
+	 */
+	public int read() throws IOException {
+		return channel.read(readBuffer);
+	}
+
+	/**
+	 * Appends a frame whose body has been received through another framing,
+	 * e.g. a WebSocket message, to the read buffer, where it is decoded like
+	 * any other frame.
+	 *
+	 * @param body
+	 *            the buffer holding the body of the frame (i.e. the frame
+	 *            without its length prefix) between its position and limit
+	 */
+	protected void receiveFrame(ByteBuffer body) {
+		int end = readBuffer.position() + CardGameMessageCodec.HEADER_LENGTH
+				+ body.remaining();
+		if (readBuffer.capacity() < end) {
+			resize(end);
+		}
+		readBuffer.putInt(body.remaining());
+		readBuffer.put(body);
+	} // receiveFrame
+
+	/**
+	 * Returns the type of the next complete frame received from the client,
+	 * without decoding the frame. This lets the server reject a frame (see
+	 * skipMessage) at the cost of reading a single byte.
+	 *
+	 * @return the message type of the frame, or -1 if no complete frame has
+	 *         been received yet
+	 * @throws ProtocolException
+	 *             if the frame is malformed
+	 */
+	public int peekType() throws ProtocolException {
+		int length = frameLength();
+		if (length < 0) {
+			return -1;
+		}
+		if (length < 2) {
+			throw new ProtocolException("Truncated frame");
+		}
+		// the type follows the length prefix and the protocol version
+		return readBuffer.get(CardGameMessageCodec.HEADER_LENGTH + 1) & 0xFF;
+	} // peekType
+
+	/**
+	 * Returns the length of the next complete frame received from the
+	 * client, without decoding the frame.
+	 *
+	 * @return the length of the frame without its length prefix, or -1 if no
+	 *         complete frame has been received yet
+	 * @throws ProtocolException
+	 *             if the frame is malformed
+	 */
+	public int peekLength() throws ProtocolException {
+		return frameLength();
+	}
+
+	/**
+	 * Decodes the next complete frame received from the client.
+	 *
+	 * @return the message carried by the frame, or null if no complete frame
+	 *         has been received yet
+	 * @throws ProtocolException
+	 *             if the frame is malformed
+	 */
+	public CardGameMessage nextMessage() throws ProtocolException {
+		int length = frameLength();
+		if (length < 0) {
+			return null;
+		}
+		try {
+			// decodes the body of the frame in place
+			return CardGameMessageCodec.decode(ByteBuffer.wrap(
+					readBuffer.array(), CardGameMessageCodec.HEADER_LENGTH,
+					length));
+		} finally {
+			consume(CardGameMessageCodec.HEADER_LENGTH + length);
+		}
+	} // nextMessage
+
+	/**
+	 * Takes the next complete frame received from the client without decoding
+	 * it, e.g. for passing it on to another connection.
+	 *
+	 * @return the bytes of the frame, including the length prefix, or null if
+	 *         no complete frame has been received yet
+	 * @throws ProtocolException
+	 *             if the frame is malformed
+	 */
+	public byte[] nextFrame() throws ProtocolException {
+		int length = frameLength();
+		if (length < 0) {
+			return null;
+		}
+		byte[] frame = new byte[CardGameMessageCodec.HEADER_LENGTH + length];
+		System.arraycopy(readBuffer.array(), 0, frame, 0, frame.length);
+		consume(frame.length);
+		return frame;
+	} // nextFrame
+
+	/**
+	 * Discards the next complete frame received from the client without
+	 * decoding it.
+	 *
+	 * @throws ProtocolException
+	 *             if the frame is malformed
+	 */
+	public void skipMessage() throws ProtocolException {
+		int length = frameLength();
+		if (length >= 0) {
+			consume(CardGameMessageCodec.HEADER_LENGTH + length);
+		}
+	} // skipMessage
+
+	/**
+	 * Returns the length of the frame at the start of the read buffer, making
+	 * room for it if it does not fit in the buffer.
+	 *
+	 * @return the length of the frame (excluding its length prefix), or -1 if
+	 *         the frame has not been received completely
+	 * @throws ProtocolException
+	 *             if the length is invalid
+	 */
+	private int frameLength() throws ProtocolException {
+		if (readBuffer.position() < CardGameMessageCodec.HEADER_LENGTH) {
+			return -1;
+		}
+		int length = readBuffer.getInt(0);
+		if (length <= 0 || length > CardGameMessageCodec.MAX_FRAME_LENGTH) {
+			throw new ProtocolException("Invalid frame length: " + length);
+		}
+		int end = CardGameMessageCodec.HEADER_LENGTH + length;
+		if (readBuffer.position() < end) {
+			if (readBuffer.capacity() < end) {
+				resize(end);
+			}
+			return -1;
+		}
+		return length;
+	} // frameLength
+
+	/**
+	 * Removes the specified number of bytes from the start of the read buffer,
+	 * going back to the retained size once a long frame is gone.
+	 */
+	private void consume(int count) {
+		readBuffer.flip();
+		readBuffer.position(count);
+		if (readBuffer.capacity() > RETAINED_BUFFER_SIZE
+				&& readBuffer.remaining() <= RETAINED_BUFFER_SIZE) {
+			ByteBuffer buffer = ByteBuffer.allocate(RETAINED_BUFFER_SIZE);
+			buffer.put(readBuffer);
+			readBuffer = buffer;
+		} else {
+			readBuffer.compact();
+		}
+	} // consume
+
+	/**
+	 * Moves the bytes received so far into a read buffer of the specified
+	 * capacity.
+	 */
+	private void resize(int capacity) {
+		ByteBuffer buffer = ByteBuffer.allocate(capacity);
+		readBuffer.flip();
+		buffer.put(readBuffer);
+		readBuffer = buffer;
+	} // resize
+
+	/**
+	 * Sets the limit on the rate of all messages received from the client.
+	 *
+	 * @param limit
+	 *            the token bucket for all messages
+	 */
+	public void setRateLimit(TokenBucket limit) {
+		this.messageLimit = limit;
+	}
+
+	/**
+	 * Sets the limit on the rate of the messages of the specified type received
+	 * from the client. These messages also count towards the limit on all
+	 * messages.
+	 *
+	 * @param type
+	 *            the message type
+	 * @param limit
+	 *            the token bucket for the messages of this type
+	 */
+	public void setRateLimit(int type, TokenBucket limit) {
+		typeLimits[type] = limit;
+	}
+
+	/**
+	 * Checks a message of the specified type against the rate limits of this
+	 * connection.
+	 *
+	 * @param type
+	 *            the message type (see peekType)
+	 * @param now
+	 *            the current time in nanoseconds (see System.nanoTime)
+	 * @return true if the message is within the limits; false if it should be
+	 *         dropped
+	 */
+	public boolean admit(int type, long now) {
+		if (messageLimit != null && !messageLimit.tryAcquire(now)) {
+			return false;
+		}
+		TokenBucket limit = type < typeLimits.length ? typeLimits[type] : null;
+		return limit == null || limit.tryAcquire(now);
+	} // admit
+
+	/**
+	 * Counts a message dropped for exceeding the rate limits.
+	 *
+	 * @return the number of messages dropped from this connection so far
+	 */
+	public long countDroppedMessage() {
+		return ++droppedMessages;
+	}
+
+	/**
+	 * Queues the specified (already encoded) frame to be written at the next
+	 * flush. The same frame may be queued on any number of connections. If the
+	 * client has fallen too far behind, the connection is closed instead.
+	 *
+	 * @param frame
+	 *            the frame to be sent, including its length prefix
+	 * @return true if the frame has been queued; false if the connection has
+	 *         been closed
+	 */
+	public boolean queue(byte[] frame) {
+		return queueBuffers(ByteBuffer.wrap(frame));
+	} // queue
+
+	/**
+	 * Queues the specified bytes to be written as they are at the next flush,
+	 * e.g. a frame together with the header of another framing wrapped around
+	 * it. If the client has fallen too far behind, the connection is closed
+	 * instead.
+	 *
+	 * @param buffers
+	 *            the buffers holding the bytes to be sent
+	 * @return true if the bytes have been queued; false if the connection has
+	 *         been closed
+	 */
+	protected boolean queueBuffers(ByteBuffer... buffers) {
+		if (!channel.isOpen()) {
+			return false;
+		}
+		int length = 0;
+		for (ByteBuffer buffer : buffers) {
+			length += buffer.remaining();
+		}
+		if (queuedBytes + length > MAX_QUEUED_BYTES) {
+			close();
+			return false;
+		}
+		for (ByteBuffer buffer : buffers) {
+			outbound.add(buffer);
+		}
+		queuedBytes += length;
+		return true;
+	} // queueBuffers
+
+	/**
+	 * Returns the number of bytes queued but not written yet.
+	 *
+	 * @return the number of bytes waiting to be written to the client
+	 */
+	public int getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	/**
+	 * Marks this connection as having frames to be flushed at the end of the
+	 * current pass of the event loop.
+	 *
+	 * @return true if the connection was not marked already; false otherwise
+	 */
+	public boolean scheduleFlush() {
+		if (flushScheduled) {
+			return false;
+		}
+		flushScheduled = true;
+		return true;
+	}
+
+	/**
+	 * Writes as many of the queued frames as the socket accepts, in as few
+	 * gathering writes as possible. If some frames are left over, the
+	 * connection asks the selector to report when it becomes writable again.
+	 *
+	 * @return true if all queued frames have been written; false otherwise
+	 * @throws IOException
+	 *             if the frames cannot be written
+	 */
+	public boolean flush() throws IOException {
+		flushScheduled = false;
+		while (!outbound.isEmpty()) {
+			int count = 0;
+			for (ByteBuffer buffer : outbound) {
+				gather[count++] = buffer;
+				if (count == MAX_GATHER) {
+					break;
+				}
+			}
+			queuedBytes -= (int) channel.write(gather, 0, count);
+			int written = 0;
+			while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+				outbound.poll();
+				written++;
+			}
+			for (int i = 0; i < count; i++) {
+				gather[i] = null;
+			}
+			if (written < count) {
+				// the socket buffer is full
+				break;
+			}
+		}
+		updateInterestOps();
+		return outbound.isEmpty();
+	} // flush
+
+	/**
+	 * Stops reading from the client, e.g. because it is about to be
+	 * disconnected. Queued frames are still written.
+	 */
+	public void stopReading() {
+		reading = false;
+		updateInterestOps();
+	}
+
+	/**
+	 * Tells the selector which events to report for this connection.
+	 */
+	private void updateInterestOps() {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		int ops = interestOps();
+		if (key.interestOps() != ops) {
+			key.interestOps(ops);
+		}
+	}
+
+	private int interestOps() {
+		return (reading ? SelectionKey.OP_READ : 0)
+				| (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Closes the connection.
+	 */
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			// the connection is going away anyway
+		}
+		outbound.clear();
+		queuedBytes = 0;
+	}
+}
@@ -0,0 +1,1096 @@
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class is used to model the gateway of a cluster of card game servers.
+ * Clients connect to the gateway as if it were a server, and the gateway
+ * relays the frames of each client to one of the servers (the nodes of the
+ * cluster) without decoding them, apart from the few which decide where the
+ * client goes: new players are spread over the nodes, players resuming a
+ * game go to the node of their session, and spectators go to the node owning
+ * the table they watch.
+ * <p>
+ * The tables are given to the nodes by consistent hashing of their ids (see
+ * HashRing). When a node joins or leaves, the gateway sends every node the
+ * new view of the cluster, and each node hands the tables it no longer owns
+ * over to their new owners through the gateway. Once the new owner has taken
+ * a table over, the gateway moves the players of the table there, where they
+ * resume the game with their session tokens, and its spectators, which watch
+ * the table again.
+ * <p>
+ * The gateway is a single event loop. Connections to the nodes are opened
+ * with a blocking connect, which is quick since the nodes are meant to be on
+ * the same host or a trusted local network; the cluster key is sent in
+ * cleartext.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class ClusterGateway {
+	// The interval (in milliseconds) at which the connections to the nodes
+	// are kept alive
+	private static final long HEARTBEAT_INTERVAL = 15000;
+	// The time (in milliseconds) after which a client which has sent nothing
+	// is considered dead and disconnected
+	private static final long IDLE_TIMEOUT = 45000;
+	// The duration (in milliseconds) of a tick of the timing wheel and the
+	// number of its slots
+	private static final long TICK_DURATION = 100;
+	private static final int WHEEL_SLOTS = 512;
+	// The number of session tokens whose node is remembered
+	private static final int MAX_SESSIONS = 100000;
+	// The maximum number of nodes, which is the number of node indices the
+	// servers can tell apart in their table ids
+	private static final int MAX_NODES = 256;
+	// The number of events the event log holds before dropping new ones
+	private static final int EVENT_LOG_SIZE = 65536;
+	// the key shared with the nodes
+	private final String clusterKey;
+	// the maximum number of players in a card game
+	private final int maxNumOfPlayers;
+	// the event loop of the gateway
+	private final GatewayLoop loop;
+	// the nodes of the cluster by name, including those leaving it (loop
+	// only)
+	private HashMap<String, Node> nodes = new HashMap<String, Node>();
+	// the nodes owning the tables (loop only)
+	private HashRing ring = new HashRing(new ArrayList<String>());
+	// the clients connected to the gateway (loop only)
+	private HashSet<Client> clients = new HashSet<Client>();
+	// the node of each session, for players resuming a game (loop only)
+	private SessionMap sessionNodes = new SessionMap();
+	// the tables being handed from one node to another, by id (loop only)
+	private HashMap<Integer, Migration> migrations = new HashMap<Integer, Migration>();
+	// the number of JOIN messages routed so far (loop only)
+	private long numOfJoins = 0;
+	// the log to which gateway events are written
+	private EventLog eventLog = new EventLog(EVENT_LOG_SIZE);
+
+	/**
+	 * Creates and returns an instance of the ClusterGateway class. Events are
+	 * written to the standard output.
+	 *
+	 * @param clusterKey
+	 *            the key shared with the nodes
+	 * @param maxNumOfPlayers
+	 *            the maximum number of players in a card game
+	 * @throws IOException
+	 *             if the event loop cannot be created
+	 */
+	public ClusterGateway(String clusterKey, int maxNumOfPlayers)
+			throws IOException {
+		this.clusterKey = clusterKey;
+		this.maxNumOfPlayers = maxNumOfPlayers;
+		this.loop = new GatewayLoop();
+		eventLog.addSink(new ConsoleEventSink());
+		Runtime.getRuntime().addShutdownHook(
+				new Thread(new ShutdownTask(), "shutdown"));
+	}
+
+	/**
+	 * Returns the log to which gateway events are written.
+	 *
+	 * @return the event log of this gateway
+	 */
+	public EventLog getEventLog() {
+		return eventLog;
+	}
+
+	/**
+	 * Adds a node to the cluster. The tables it now owns are handed over to
+	 * it by the other nodes. This may be called from any thread.
+	 *
+	 * @param node
+	 *            the address of the node, e.g. "127.0.0.1:2397"
+	 */
+	public void addNode(String node) {
+		loop.execute(new MembershipTask(node, true));
+	}
+
+	/**
+	 * Removes a node from the cluster. The node hands all its tables over to
+	 * the other nodes, and may be shut down once it has done so. This may be
+	 * called from any thread.
+	 *
+	 * @param node
+	 *            the address of the node, e.g. "127.0.0.1:2397"
+	 */
+	public void removeNode(String node) {
+		loop.execute(new MembershipTask(node, false));
+	}
+
+	/**
+	 * Starts the gateway at the specified port. This returns once the gateway
+	 * has stopped.
+	 *
+	 * @param port
+	 *            the port at which clients connect
+	 */
+	public void start(int port) {
+		try {
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
+			serverChannel.configureBlocking(false);
+			loop.listen(serverChannel);
+			println("Starts up the gateway at localhost:"
+					+ serverChannel.socket().getLocalPort());
+			loop.schedule(new HeartbeatTask(), HEARTBEAT_INTERVAL);
+			Thread thread = new Thread(loop, loop.getName());
+			thread.start();
+			thread.join();
+			serverChannel.close();
+		} catch (Exception ex) {
+			println("Error in starting up the gateway at localhost:" + port);
+			ex.printStackTrace();
+		}
+	} // start
+
+	/**
+	 * Stops the gateway.
+	 */
+	public void shutdown() {
+		loop.shutdown();
+	}
+
+	/**
+	 * Adds the specified node to the cluster, or takes back a node which was
+	 * leaving it.
+	 *
+	 * @param name
+	 *            the address of the node
+	 */
+	private void joinNode(String name) {
+		Node node = nodes.get(name);
+		if (node != null && !node.leaving) {
+			println(name + " is in the cluster already.");
+			return;
+		}
+		if (node == null) {
+			int index = freeNodeIndex();
+			if (index < 0) {
+				println("Cannot add " + name + ": the cluster is full.");
+				return;
+			}
+			ClientConnection link = connect(name);
+			if (link == null) {
+				return;
+			}
+			node = new Node(name, index, link);
+			link.attach(node);
+			nodes.put(name, node);
+		}
+		node.leaving = false;
+		println(name + " joins the cluster.");
+		updateRing();
+	} // joinNode
+
+	/**
+	 * Takes the specified node out of the ring. The node is still told about
+	 * the cluster, so that it hands its tables over; it also disconnects the
+	 * players waiting there for a table, who are then sent to other nodes.
+	 *
+	 * @param name
+	 *            the address of the node
+	 */
+	private void leaveNode(String name) {
+		Node node = nodes.get(name);
+		if (node == null || node.leaving) {
+			println(name + " is not in the cluster.");
+			return;
+		}
+		node.leaving = true;
+		println(name + " leaves the cluster.");
+		updateRing();
+	} // leaveNode
+
+	/**
+	 * Forgets a node whose connection has been lost. Its clients are
+	 * disconnected, and the tables it had are lost.
+	 *
+	 * @param node
+	 *            the node
+	 */
+	private void nodeLost(Node node) {
+		if (nodes.get(node.name) != node) {
+			return;
+		}
+		nodes.remove(node.name);
+		if (node.leaving) {
+			println(node.name + " has left the cluster.");
+		} else {
+			println("Loses the connection to " + node.name + ".");
+			updateRing();
+		}
+		for (Migration migration : new ArrayList<Migration>(
+				migrations.values())) {
+			if (migration.dest.equals(node.name)) {
+				migrations.remove(migration.state.getTableId());
+				println("Loses table " + migration.state.getTableId() + ".");
+			}
+		}
+		for (Client client : new ArrayList<Client>(clients)) {
+			if (node.name.equals(client.node)) {
+				closeClient(client);
+			}
+		}
+	} // nodeLost
+
+	/**
+	 * Returns the smallest node index not used by a node of the cluster.
+	 *
+	 * @return the index, or -1 if all are used
+	 */
+	private int freeNodeIndex() {
+		boolean[] used = new boolean[MAX_NODES];
+		for (Node node : nodes.values()) {
+			used[node.index] = true;
+		}
+		for (int i = 0; i < MAX_NODES; i++) {
+			if (!used[i]) {
+				return i;
+			}
+		}
+		return -1;
+	} // freeNodeIndex
+
+	/**
+	 * Makes a new ring from the nodes which are not leaving, and sends the
+	 * new view of the cluster to every node.
+	 */
+	private void updateRing() {
+		ArrayList<String> names = new ArrayList<String>();
+		for (Node node : nodes.values()) {
+			if (!node.leaving) {
+				names.add(node.name);
+			}
+		}
+		ring = new HashRing(names);
+		String[] members = ring.getNodes().toArray(new String[0]);
+		for (Node node : nodes.values()) {
+			sendMessage(node.link, new CardGameMessage(CardGameMessage.CLUSTER,
+					-1, new ClusterView(clusterKey, node.name, node.index,
+							members)));
+		}
+		println("The cluster consists of " + ring.getNodes() + ".");
+	} // updateRing
+
+	/**
+	 * Returns the node to which the next player joining is sent. Consecutive
+	 * players go to the same node, so that they can be seated together.
+	 *
+	 * @return the name of the node, or null if the cluster is empty
+	 */
+	private String nextJoinNode() {
+		return ring.getOwner((int) (numOfJoins++ / maxNumOfPlayers));
+	}
+
+	/**
+	 * Returns any node of the cluster.
+	 *
+	 * @return the name of the node, or null if the cluster is empty
+	 */
+	private String anyNode() {
+		return ring.getNodes().isEmpty() ? null : ring.getNodes().get(0);
+	}
+
+	/**
+	 * Opens a connection to the specified node, and registers it with the
+	 * event loop.
+	 *
+	 * @param name
+	 *            the address of the node, e.g. "127.0.0.1:2397"
+	 * @return the connection, or null if the node cannot be reached
+	 */
+	private ClientConnection connect(String name) {
+		try {
+			int colon = name.lastIndexOf(':');
+			InetSocketAddress address = new InetSocketAddress(name.substring(
+					0, colon), Integer.parseInt(name.substring(colon + 1)));
+			ClientConnection connection = new ClientConnection(
+					SocketChannel.open(address));
+			loop.register(connection);
+			return connection;
+		} catch (Exception ex) {
+			println("Error in connecting to " + name + ": " + ex);
+			return null;
+		}
+	} // connect
+
+	/**
+	 * Connects the specified client to another node, closing its connection
+	 * to the previous one.
+	 *
+	 * @param client
+	 *            the client
+	 * @param name
+	 *            the name of the node
+	 * @return true if the client has been connected; false otherwise
+	 */
+	private boolean connectBackend(Client client, String name) {
+		detachBackend(client);
+		if (!nodes.containsKey(name)) {
+			return false;
+		}
+		ClientConnection backend = connect(name);
+		if (backend == null) {
+			return false;
+		}
+		backend.attach(client);
+		client.backend = backend;
+		client.node = name;
+		return true;
+	} // connectBackend
+
+	/**
+	 * Closes the connection of the specified client to its node, if any.
+	 *
+	 * @param client
+	 *            the client
+	 */
+	private void detachBackend(Client client) {
+		if (client.backend != null) {
+			// the node sees the client leave, and holds its seat if any
+			client.backend.attach(null);
+			client.backend.close();
+			client.backend = null;
+			client.node = null;
+		}
+	} // detachBackend
+
+	/**
+	 * Disconnects the specified client from the gateway and from its node.
+	 *
+	 * @param client
+	 *            the client
+	 */
+	private void closeClient(Client client) {
+		if (clients.remove(client)) {
+			detachBackend(client);
+			client.connection.attach(null);
+			client.connection.close();
+			println("Closes the connection with the client at "
+					+ client.connection.getRemoteAddress());
+		}
+	} // closeClient
+
+	/**
+	 * Accepts all pending clients.
+	 *
+	 * @param serverChannel
+	 *            the channel on which clients connect
+	 */
+	private void acceptClients(ServerSocketChannel serverChannel) {
+		SocketChannel channel;
+		while (true) {
+			try {
+				if ((channel = serverChannel.accept()) == null) {
+					return;
+				}
+			} catch (IOException ex) {
+				println("Error in accepting a connection");
+				return;
+			}
+			try {
+				ClientConnection connection = new ClientConnection(channel);
+				Client client = new Client(connection);
+				connection.attach(client);
+				connection.setLastActive(EventLoop.currentTime());
+				loop.register(connection);
+				clients.add(client);
+				loop.schedule(new IdleCheckTask(client), IDLE_TIMEOUT);
+			} catch (IOException ex) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// the connection is going away anyway
+				}
+			}
+		}
+	} // acceptClients
+
+	/**
+	 * Relays the frames received from a client to its node, connecting it to
+	 * the node chosen by the first frame which decides where it goes.
+	 *
+	 * @param client
+	 *            the client
+	 */
+	private void readClient(Client client) {
+		ClientConnection connection = client.connection;
+		try {
+			int count = connection.read();
+			if (count > 0) {
+				connection.setLastActive(EventLoop.currentTime());
+			}
+			int type;
+			while (connection.isOpen() && (type = connection.peekType()) >= 0) {
+				relayClientFrame(client, type, connection.nextFrame());
+			}
+			if (count < 0) {
+				throw new EOFException();
+			}
+		} catch (Exception ex) {
+			closeClient(client);
+		}
+	} // readClient
+
+	/**
+	 * Relays a frame received from a client to its node. A client sending a
+	 * message which only the gateway and the nodes exchange is closed, and
+	 * the frame never reaches a node.
+	 *
+	 * @param client
+	 *            the client
+	 * @param type
+	 *            the type of the message carried by the frame
+	 * @param frame
+	 *            the frame
+	 * @throws ProtocolException
+	 *             if the frame is malformed
+	 */
+	private void relayClientFrame(Client client, int type, byte[] frame)
+			throws ProtocolException {
+		String node = null;
+		switch (type) {
+		case CardGameMessage.CLUSTER:
+		case CardGameMessage.TABLE:
+		case CardGameMessage.MIGRATED:
+			println("Closes the connection to the client at "
+					+ client.connection.getRemoteAddress()
+					+ " for sending a message of the cluster");
+			closeClient(client);
+			return;
+		case CardGameMessage.JOIN:
+			client.joinFrame = frame;
+			if (client.backend == null) {
+				node = nextJoinNode();
+			}
+			break;
+		case CardGameMessage.RESUME:
+			node = sessionNodes.get((Long) decode(frame).getData());
+			if (node == null || !nodes.containsKey(node)) {
+				node = client.backend == null ? anyNode() : null;
+			}
+			break;
+		case CardGameMessage.SPECTATE:
+			if (client.token == 0) {
+				int tableId = (Integer) decode(frame).getData();
+				node = tableId >= 0 ? ring.getOwner(tableId)
+						: client.backend == null ? anyNode() : null;
+			}
+			break;
+		default:
+			break;
+		}
+		if (node != null && !node.equals(client.node)
+				&& !connectBackend(client, node)) {
+			closeClient(client);
+			return;
+		}
+		if (client.backend == null) {
+			if (type != CardGameMessage.HEARTBEAT) {
+				println("No server for the client at "
+						+ client.connection.getRemoteAddress());
+				closeClient(client);
+			}
+			return;
+		}
+		if (client.moving) {
+			// sent on once the table of the client has been moved
+			client.heldFrames.add(frame);
+		} else {
+			send(client.backend, frame);
+		}
+	} // relayClientFrame
+
+	/**
+	 * Relays the frames received from the node of a client to the client,
+	 * taking note of its session token and of the table it watches.
+	 *
+	 * @param client
+	 *            the client
+	 * @param backend
+	 *            the connection to the node
+	 */
+	private void readBackend(Client client, ClientConnection backend) {
+		try {
+			int count = backend.read();
+			int type;
+			while (backend.isOpen() && (type = backend.peekType()) >= 0) {
+				byte[] frame = backend.nextFrame();
+				if (type == CardGameMessage.SESSION) {
+					long token = (Long) decode(frame).getData();
+					if (token != 0) {
+						client.token = token;
+						sessionNodes.put(token, client.node);
+					} else if (client.token != 0) {
+						sessionNodes.remove(client.token);
+						client.token = 0;
+					}
+				} else if (type == CardGameMessage.SPECTATE) {
+					client.table = (Integer) decode(frame).getData();
+				}
+				send(client.connection, frame);
+			}
+			if (count < 0) {
+				throw new EOFException();
+			}
+		} catch (Exception ex) {
+			if (client.backend == backend && !rejoin(client)) {
+				closeClient(client);
+			}
+		}
+	} // readBackend
+
+	/**
+	 * Sends a player waiting for a table at a node which is leaving the
+	 * cluster, and which has therefore disconnected him/her, to another node.
+	 *
+	 * @param client
+	 *            the client whose connection to its node has been closed
+	 * @return true if the player has been sent to another node; false if the
+	 *         client is not such a player or cannot be sent anywhere
+	 */
+	private boolean rejoin(Client client) {
+		Node node = nodes.get(client.node);
+		if (node == null || !node.leaving || client.token != 0
+				|| client.table >= 0 || client.joinFrame == null) {
+			return false;
+		}
+		String owner = nextJoinNode();
+		if (owner == null || !connectBackend(client, owner)) {
+			return false;
+		}
+		send(client.backend, client.joinFrame);
+		return true;
+	} // rejoin
+
+	/**
+	 * Handles the messages received from a node on its admin connection.
+	 *
+	 * @param node
+	 *            the node
+	 */
+	private void readLink(Node node) {
+		ClientConnection link = node.link;
+		try {
+			int count = link.read();
+			int type;
+			while (link.isOpen() && (type = link.peekType()) >= 0) {
+				byte[] frame = link.nextFrame();
+				if (type == CardGameMessage.TABLE) {
+					handOver(node, (TableState) decode(frame).getData(), frame);
+				} else if (type == CardGameMessage.MIGRATED) {
+					tableMoved(node, (Integer) decode(frame).getData());
+				}
+			}
+			if (count < 0) {
+				throw new EOFException();
+			}
+		} catch (Exception ex) {
+			link.close();
+			nodeLost(node);
+		}
+	} // readLink
+
+	/**
+	 * Passes a table handed over by a node on to its new owner. The frames
+	 * of its players and spectators are held until the new owner has taken
+	 * it over.
+	 *
+	 * @param from
+	 *            the node handing the table over
+	 * @param state
+	 *            the state of the table
+	 * @param frame
+	 *            the frame carrying the state
+	 */
+	private void handOver(Node from, TableState state, byte[] frame) {
+		int id = state.getTableId();
+		Node dest = nodes.get(ring.getOwner(id) == null ? state.getNode()
+				: ring.getOwner(id));
+		if (dest == null) {
+			println("Loses table " + id + ": no server to take it over.");
+			return;
+		}
+		Migration migration = new Migration(state, from.name, dest.name);
+		migrations.put(id, migration);
+		for (Client client : clients) {
+			if (from.name.equals(client.node) && migration.concerns(client)) {
+				client.moving = true;
+			}
+		}
+		send(dest.link, frame);
+		println("Moves table " + id + " from " + from.name + " to "
+				+ dest.name + ".");
+	} // handOver
+
+	/**
+	 * Moves the players and spectators of a table which has been taken over
+	 * by its new owner there. The players resume the game with their session
+	 * tokens and the spectators watch the table again, after which the frames
+	 * they sent in the meantime are passed on.
+	 *
+	 * @param to
+	 *            the node which has taken the table over
+	 * @param tableId
+	 *            the id of the table
+	 */
+	private void tableMoved(Node to, int tableId) {
+		Migration migration = migrations.get(tableId);
+		if (migration == null || !migration.dest.equals(to.name)) {
+			return;
+		}
+		migrations.remove(tableId);
+		TableState state = migration.state;
+		for (int i = 0; i < state.getNumOfSeats(); i++) {
+			if (state.getSessionToken(i) != 0) {
+				sessionNodes.put(state.getSessionToken(i), to.name);
+			}
+		}
+		for (Client client : new ArrayList<Client>(clients)) {
+			if (!client.moving || !migration.from.equals(client.node)
+					|| !migration.concerns(client)) {
+				continue;
+			}
+			client.moving = false;
+			if (!connectBackend(client, to.name)) {
+				closeClient(client);
+				continue;
+			}
+			if (client.token != 0) {
+				sendMessage(client.backend, new CardGameMessage(
+						CardGameMessage.RESUME, -1, client.token));
+			} else {
+				sendMessage(client.backend, new CardGameMessage(
+						CardGameMessage.SPECTATE, -1, tableId));
+			}
+			for (byte[] frame : client.heldFrames) {
+				send(client.backend, frame);
+			}
+			client.heldFrames.clear();
+		}
+	} // tableMoved
+
+	/**
+	 * Disconnects the specified client if it has sent nothing for too long, or
+	 * checks it again when it would have been idle for that long.
+	 *
+	 * @param client
+	 *            the client
+	 */
+	private void checkIdle(Client client) {
+		if (!clients.contains(client)) {
+			return;
+		}
+		long now = EventLoop.currentTime();
+		long deadline = client.connection.getLastActive() + IDLE_TIMEOUT;
+		if (now < deadline) {
+			loop.schedule(new IdleCheckTask(client), deadline - now);
+			return;
+		}
+		closeClient(client);
+	} // checkIdle
+
+	/**
+	 * Decodes the message carried by the specified frame.
+	 *
+	 * @param frame
+	 *            the frame, including its length prefix
+	 * @return the message
+	 * @throws ProtocolException
+	 *             if the frame is malformed
+	 */
+	private static CardGameMessage decode(byte[] frame)
+			throws ProtocolException {
+		return CardGameMessageCodec.decode(ByteBuffer.wrap(frame,
+				CardGameMessageCodec.HEADER_LENGTH, frame.length
+						- CardGameMessageCodec.HEADER_LENGTH));
+	} // decode
+
+	/**
+	 * Sends the specified message to the specified connection.
+	 *
+	 * @param connection
+	 *            the connection
+	 * @param message
+	 *            the message
+	 */
+	private void sendMessage(ClientConnection connection,
+			CardGameMessage message) {
+		send(connection, CardGameMessageCodec.encode(message));
+	}
+
+	/**
+	 * Queues the specified frame to be written to the specified connection at
+	 * the end of the current pass of the event loop.
+	 *
+	 * @param connection
+	 *            the connection
+	 * @param frame
+	 *            the frame
+	 */
+	private void send(ClientConnection connection, byte[] frame) {
+		connection.queue(frame);
+		// a connection closed for falling behind is removed on flushing
+		loop.scheduleFlush(connection);
+	} // send
+
+	/**
+	 * Logs the specified message as a gateway event. This never blocks.
+	 *
+	 * @param msg
+	 */
+	private void println(String msg) {
+		eventLog.log(msg);
+	}
+
+	/**
+	 * main() method for starting the gateway. Nodes can be added and removed
+	 * later by typing "join ADDRESS" or "leave ADDRESS" on the standard
+	 * input.
+	 *
+	 * @param args
+	 *            the port at which clients connect (2396 by default),
+	 *            "--cluster-key" with the key shared with the nodes,
+	 *            optionally "--players" with the number of players in a game
+	 *            (4 by default), and the addresses of the nodes, e.g.
+	 *            "127.0.0.1:2397"
+	 */
+	public static void main(String[] args) {
+		int port = 2396;
+		String clusterKey = null;
+		int players = 4;
+		ArrayList<String> nodes = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--cluster-key") && i + 1 < args.length) {
+				clusterKey = args[++i];
+			} else if (args[i].equals("--players") && i + 1 < args.length) {
+				players = Integer.parseInt(args[++i]);
+			} else if (args[i].indexOf(':') >= 0) {
+				nodes.add(args[i]);
+			} else {
+				port = Integer.parseInt(args[i]);
+			}
+		}
+		if (clusterKey == null) {
+			System.err.println("Usage: ClusterGateway [port] --cluster-key KEY"
+					+ " [--players N] [host:port ...]");
+			return;
+		}
+
+		try {
+			ClusterGateway gateway = new ClusterGateway(clusterKey, players);
+			for (String node : nodes) {
+				gateway.addNode(node);
+			}
+			Thread console = new Thread(gateway.new CommandReader(), "console");
+			console.setDaemon(true);
+			console.start();
+			gateway.start(port);
+		} catch (IOException ex) {
+			System.err.println("Cannot create the gateway");
+			ex.printStackTrace();
+		}
+	} // main
+
+	/**
+	 * This inner class is used to model the event loop of the gateway
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class GatewayLoop extends EventLoop {
+		/**
+		 * Creates and returns an instance of the GatewayLoop class.
+		 *
+		 * @throws IOException
+		 *             if the selector cannot be opened
+		 */
+		public GatewayLoop() throws IOException {
+			super("gateway", TICK_DURATION, WHEEL_SLOTS);
+		} // constructor
+
+		protected void accept(ServerSocketChannel channel) {
+			acceptClients(channel);
+		}
+
+		protected void read(ClientConnection connection) {
+			Object attachment = connection.attachment();
+			if (attachment instanceof Node) {
+				readLink((Node) attachment);
+			} else if (attachment instanceof Client) {
+				Client client = (Client) attachment;
+				if (connection == client.connection) {
+					readClient(client);
+				} else {
+					readBackend(client, connection);
+				}
+			}
+		}
+
+		protected void closed(ClientConnection connection) {
+			Object attachment = connection.attachment();
+			if (attachment instanceof Node) {
+				nodeLost((Node) attachment);
+			} else if (attachment instanceof Client) {
+				closeClient((Client) attachment);
+			}
+		}
+	} // GatewayLoop
+
+	/**
+	 * This inner class is used to model a node of the cluster
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class Node {
+		private String name; // the address of the node
+		private int index; // the number of the node
+		private ClientConnection link; // the admin connection to the node
+		// a boolean indicating if the node is handing its tables over
+		private boolean leaving = false;
+
+		/**
+		 * Creates and returns an instance of the Node class.
+		 *
+		 * @param name
+		 *            the address of the node
+		 * @param index
+		 *            the number of the node
+		 * @param link
+		 *            the admin connection to the node
+		 */
+		public Node(String name, int index, ClientConnection link) {
+			this.name = name;
+			this.index = index;
+			this.link = link;
+		} // constructor
+	} // Node
+
+	/**
+	 * This inner class is used to model a client of the gateway
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class Client {
+		private ClientConnection connection; // connection to the client
+		// connection to the node of the client, or null if none yet
+		private ClientConnection backend = null;
+		private String node = null; // the name of the node of the client
+		private long token = 0; // the session token of the player, or 0
+		private int table = -1; // the table watched, or -1
+		private byte[] joinFrame = null; // the last JOIN frame of the client
+		// a boolean indicating if the table of the client is being moved
+		private boolean moving = false;
+		// frames sent by the client while its table is being moved
+		private ArrayList<byte[]> heldFrames = new ArrayList<byte[]>();
+
+		/**
+		 * Creates and returns an instance of the Client class.
+		 *
+		 * @param connection
+		 *            the connection to the client
+		 */
+		public Client(ClientConnection connection) {
+			this.connection = connection;
+		} // constructor
+	} // Client
+
+	/**
+	 * This inner class is used to model a table being handed from one node to
+	 * another
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class Migration {
+		private TableState state; // the state of the table
+		private String from; // the node handing the table over
+		private String dest; // the node taking the table over
+
+		/**
+		 * Creates and returns an instance of the Migration class.
+		 *
+		 * @param state
+		 *            the state of the table
+		 * @param from
+		 *            the node handing the table over
+		 * @param dest
+		 *            the node taking the table over
+		 */
+		public Migration(TableState state, String from, String dest) {
+			this.state = state;
+			this.from = from;
+			this.dest = dest;
+		} // constructor
+
+		/**
+		 * Returns whether the specified client is a player or a spectator of
+		 * the table.
+		 *
+		 * @param client
+		 *            the client
+		 * @return true if the client is at the table; false otherwise
+		 */
+		public boolean concerns(Client client) {
+			if (client.token == 0) {
+				return client.table == state.getTableId();
+			}
+			for (int i = 0; i < state.getNumOfSeats(); i++) {
+				if (state.getSessionToken(i) == client.token) {
+					return true;
+				}
+			}
+			return false;
+		} // concerns
+	} // Migration
+
+	/**
+	 * This inner class is used to model the node of each session, forgetting
+	 * the oldest sessions once too many are remembered
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private static class SessionMap extends LinkedHashMap<Long, String> {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+			return size() > MAX_SESSIONS;
+		}
+	} // SessionMap
+
+	/**
+	 * This inner class is used for adding a node to the cluster or removing
+	 * one
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class MembershipTask implements Runnable {
+		private String node; // the address of the node
+		private boolean join; // true if the node joins; false if it leaves
+
+		/**
+		 * Creates and returns an instance of the MembershipTask class.
+		 *
+		 * @param node
+		 *            the address of the node
+		 * @param join
+		 *            true if the node joins; false if it leaves
+		 */
+		public MembershipTask(String node, boolean join) {
+			this.node = node;
+			this.join = join;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			if (join) {
+				joinNode(node);
+			} else {
+				leaveNode(node);
+			}
+		} // run
+	} // MembershipTask
+
+	/**
+	 * This inner class is used for keeping the connections to the nodes alive
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class HeartbeatTask implements Runnable {
+		// implementation of method from the Runnable interface
+		public void run() {
+			for (Node node : nodes.values()) {
+				sendMessage(node.link, new CardGameMessage(
+						CardGameMessage.HEARTBEAT, -1, null));
+			}
+			loop.schedule(this, HEARTBEAT_INTERVAL);
+		} // run
+	} // HeartbeatTask
+
+	/**
+	 * This inner class is used for disconnecting a client which has sent
+	 * nothing for too long
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class IdleCheckTask implements Runnable {
+		private Client client; // the client
+
+		/**
+		 * Creates and returns an instance of the IdleCheckTask class.
+		 *
+		 * @param client
+		 *            the client
+		 */
+		public IdleCheckTask(Client client) {
+			this.client = client;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			checkIdle(client);
+		} // run
+	} // IdleCheckTask
+
+	/**
+	 * This inner class is used for reading the commands typed on the standard
+	 * input: "join ADDRESS" and "leave ADDRESS"
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class CommandReader implements Runnable {
+		// implementation of method from the Runnable interface
+		public void run() {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					System.in));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] words = line.trim().split("\\s+");
+					if (words.length == 2 && words[0].equals("join")) {
+						addNode(words[1]);
+					} else if (words.length == 2 && words[0].equals("leave")) {
+						removeNode(words[1]);
+					}
+				}
+			} catch (IOException ex) {
+				// no more commands
+			}
+		} // run
+	} // CommandReader
+
+	/**
+	 * This inner class is used for writing out the events still in the log
+	 * when the gateway exits
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class ShutdownTask implements Runnable {
+		// implementation of method from the Runnable interface
+		public void run() {
+			eventLog.close();
+		} // run
+	} // ShutdownTask
+}
@@ -0,0 +1,76 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is used to model what a server of a cluster is told by the
+ * gateway whenever a node joins or leaves: the key which proves the message
+ * comes from the gateway, the name under which the server is known, a number
+ * telling its table ids from those of the other servers, and the names of all
+ * the servers in the cluster.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public final class ClusterView {
+	private final String key;
+	private final String node;
+	private final int nodeIndex;
+	private final String[] nodes;
+
+	/**
+	 * Creates and returns an instance of the ClusterView class.
+	 *
+	 * @param key
+	 *            the key shared by the gateway and the servers
+	 * @param node
+	 *            the name of the server receiving this view
+	 * @param nodeIndex
+	 *            the number of the server, which is never given to another
+	 *            server of the cluster
+	 * @param nodes
+	 *            the names of all the servers in the cluster
+	 */
+	public ClusterView(String key, String node, int nodeIndex, String[] nodes) {
+		this.key = key;
+		this.node = node;
+		this.nodeIndex = nodeIndex;
+		this.nodes = nodes.clone();
+	}
+
+	/**
+	 * Returns the key shared by the gateway and the servers.
+	 *
+	 * @return the key
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns the name of the server receiving this view.
+	 *
+	 * @return the name of the server, e.g. "127.0.0.1:2397"
+	 */
+	public String getNode() {
+		return node;
+	}
+
+	/**
+	 * Returns the number of the server receiving this view.
+	 *
+	 * @return the number of the server
+	 */
+	public int getNodeIndex() {
+		return nodeIndex;
+	}
+
+	/**
+	 * Returns the names of all the servers in the cluster.
+	 *
+	 * @return the names of the servers
+	 */
+	public List<String> getNodes() {
+		return Collections.unmodifiableList(Arrays.asList(nodes));
+	}
+}
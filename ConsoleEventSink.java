@@ -0,0 +1,32 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class is used to model an event sink which writes each event as a line
+ * of text (see EventLog.format) to the standard output.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class ConsoleEventSink implements EventSink {
+	private final Writer out = new BufferedWriter(new OutputStreamWriter(
+			System.out, StandardCharsets.UTF_8));
+
+	public void write(long time, String thread, String message)
+			throws IOException {
+		out.write(EventLog.format(time, thread, message));
+		out.write(System.lineSeparator());
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		// the standard output is left open for others
+		out.flush();
+	}
+}
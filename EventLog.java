@@ -0,0 +1,248 @@
+import java.time.Instant;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is used to model an asynchronous event log. Any thread may log
+ * an event without taking a lock or waiting for I/O: the event is put in a
+ * bounded ring buffer, from which a background writer thread takes events in
+ * batches and writes them to the sinks of the log. When the buffer is full,
+ * new events are dropped and counted rather than slowing down the thread
+ * which logs them.
+ * <p>
+ * Each slot of the buffer carries a sequence number telling whether it is
+ * free for the producer which has claimed it or holds an event for the
+ * writer, so producers only contend on a single counter.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class EventLog {
+	// the longest time the writer sleeps without checking for events
+	private static final long IDLE_PARK_NANOS = 100000000L;
+	// the largest number of events written between two flushes of the sinks
+	private static final int MAX_BATCH = 1024;
+
+	private final int mask;
+	private final long[] times;
+	private final String[] threads;
+	private final String[] messages;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong(); // next slot to claim
+	private long head = 0; // next slot to write, used by the writer only
+	private final AtomicLong droppedEvents = new AtomicLong();
+	private long reportedDrops = 0; // used by the writer only
+	private final CopyOnWriteArrayList<EventSink> sinks = new CopyOnWriteArrayList<EventSink>();
+	private final Thread writer;
+	private volatile boolean sleeping = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates and returns an instance of the EventLog class, and starts its
+	 * writer thread.
+	 *
+	 * @param capacity
+	 *            the number of events the buffer holds, which is rounded up
+	 *            to a power of two
+	 */
+	public EventLog(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1);
+		this.mask = size - 1;
+		this.times = new long[size];
+		this.threads = new String[size];
+		this.messages = new String[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		writer = new Thread(new Writer(), "event-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Adds a sink to which all events logged from now on are written.
+	 *
+	 * @param sink
+	 *            the sink to be added
+	 */
+	public void addSink(EventSink sink) {
+		sinks.add(sink);
+	}
+
+	/**
+	 * Logs an event with the specified message. This never blocks.
+	 *
+	 * @param message
+	 *            the message of the event
+	 * @return true if the event has been logged; false if it has been dropped
+	 *         because the buffer is full or the log is closed
+	 */
+	public boolean log(String message) {
+		if (closed) {
+			return false;
+		}
+		long pos = tail.get();
+		int slot;
+		while (true) {
+			slot = (int) (pos & mask);
+			long seq = sequences.get(slot);
+			if (seq == pos) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = tail.get();
+			} else if (seq < pos) {
+				// the writer has not taken the event a lap ago yet
+				droppedEvents.incrementAndGet();
+				return false;
+			} else {
+				// another producer has claimed the slot
+				pos = tail.get();
+			}
+		}
+		times[slot] = System.currentTimeMillis();
+		threads[slot] = Thread.currentThread().getName();
+		messages[slot] = message;
+		sequences.set(slot, pos + 1);
+		if (sleeping) {
+			LockSupport.unpark(writer);
+		}
+		return true;
+	} // log
+
+	/**
+	 * Returns the number of events dropped so far because the buffer was full.
+	 *
+	 * @return the number of events dropped
+	 */
+	public long getDroppedEvents() {
+		return droppedEvents.get();
+	}
+
+	/**
+	 * Stops taking events, writes the events still in the buffer and closes
+	 * the sinks.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	} // close
+
+	/**
+	 * Formats an event as a single line of text: the time in ISO-8601 format,
+	 * the name of the thread in brackets, and the message.
+	 *
+	 * @param time
+	 *            the time of the event in milliseconds since the epoch
+	 * @param thread
+	 *            the name of the thread which logged the event
+	 * @param message
+	 *            the message of the event
+	 * @return the line, without a line separator
+	 */
+	public static String format(long time, String thread, String message) {
+		return Instant.ofEpochMilli(time) + " [" + thread + "] " + message;
+	}
+
+	/**
+	 * Writes the events in the buffer to the sinks, at most MAX_BATCH of them,
+	 * and flushes the sinks.
+	 *
+	 * @return the number of events written
+	 */
+	private int drain() {
+		int count = 0;
+		while (count < MAX_BATCH) {
+			int slot = (int) (head & mask);
+			if (sequences.get(slot) != head + 1) {
+				break;
+			}
+			long time = times[slot];
+			String thread = threads[slot];
+			String message = messages[slot];
+			threads[slot] = null;
+			messages[slot] = null;
+			// hands the slot back to the producers for the next lap
+			sequences.set(slot, head + mask + 1);
+			head++;
+			count++;
+			write(time, thread, message);
+		}
+
+		long drops = droppedEvents.get();
+		if (drops != reportedDrops) {
+			write(System.currentTimeMillis(), writer.getName(), (drops
+					- reportedDrops)
+					+ " events dropped because the event log was full");
+			reportedDrops = drops;
+		}
+		if (count > 0) {
+			for (EventSink sink : sinks) {
+				try {
+					sink.flush();
+				} catch (Exception ex) {
+					System.err.println("Error in flushing the event log");
+				}
+			}
+		}
+		return count;
+	} // drain
+
+	private void write(long time, String thread, String message) {
+		for (EventSink sink : sinks) {
+			try {
+				sink.write(time, thread, message);
+			} catch (Exception ex) {
+				// a failing sink must not stop the writer
+				System.err.println(format(time, thread, message));
+			}
+		}
+	} // write
+
+	/**
+	 * This inner class is used for taking events out of the buffer on the
+	 * writer thread
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class Writer implements Runnable {
+		// implementation of method from the Runnable interface
+		public void run() {
+			while (true) {
+				if (drain() > 0) {
+					continue;
+				}
+				if (closed) {
+					// a producer may have filled a slot it claimed before
+					// the log was closed
+					if (tail.get() == head) {
+						break;
+					}
+					Thread.yield();
+					continue;
+				}
+				sleeping = true;
+				if (sequences.get((int) (head & mask)) != head + 1) {
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				}
+				sleeping = false;
+			}
+			for (EventSink sink : sinks) {
+				try {
+					sink.close();
+				} catch (Exception ex) {
+					System.err.println("Error in closing the event log");
+				}
+			}
+		} // run
+	} // Writer
+}
@@ -0,0 +1,494 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class is used to model an event loop running on a single thread. The
+ * loop owns a selector with the connections it serves, a timing wheel for
+ * delayed tasks, and a queue through which other threads hand it tasks. Each
+ * pass of the loop runs the tasks handed over, the expired timeouts and the
+ * handlers of the connections which are ready, and then writes out all the
+ * frames queued during the pass, one gathering write per connection.
+ * <p>
+ * An exception thrown by a task or a handler is logged, and the loop goes on
+ * with the rest of its work; a connection whose handler throws is closed.
+ * <p>
+ * A connection is served by exactly one loop at a time (see
+ * ClientConnection.getOwner), and only that loop's thread touches it. A
+ * connection is moved to another loop with handOff.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public abstract class EventLoop implements Runnable {
+	// the length of the window over which the utilization is measured
+	private static final long UTILIZATION_WINDOW_NANOS = 1000000000L;
+
+	private final String name;
+	private final Selector selector;
+	private final TimingWheel wheel;
+	// connections with frames to be written at the end of the current pass
+	private final ArrayList<ClientConnection> pendingFlush = new ArrayList<ClientConnection>();
+	// tasks handed over by other threads
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	// true while the loop may be blocked in the selector
+	private final AtomicBoolean selecting = new AtomicBoolean(false);
+	private volatile Thread thread = null;
+	private volatile boolean running = true;
+	private long windowStart = 0; // start of the utilization window
+	private long busyNanos = 0; // time spent outside the selector
+	private volatile double utilization = 0;
+	private volatile int numOfConnections = 0;
+
+	/**
+	 * Creates and returns an instance of the EventLoop class.
+	 *
+	 * @param name
+	 *            the name of the loop, which is also given to its thread
+	 * @param tickDuration
+	 *            the duration of a tick of the timing wheel in milliseconds
+	 * @param numOfSlots
+	 *            the number of slots of the timing wheel
+	 * @throws IOException
+	 *             if the selector cannot be opened
+	 */
+	public EventLoop(String name, long tickDuration, int numOfSlots)
+			throws IOException {
+		this.name = name;
+		this.selector = Selector.open();
+		this.wheel = new TimingWheel(tickDuration, numOfSlots, currentTime());
+	}
+
+	/**
+	 * Returns the name of this loop.
+	 *
+	 * @return the name of this loop
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns whether the calling thread is the thread of this loop.
+	 *
+	 * @return true if called from this loop; false otherwise
+	 */
+	public boolean inLoop() {
+		return thread == Thread.currentThread();
+	}
+
+	/**
+	 * Returns the share of the time the loop has spent handling events rather
+	 * than waiting for them, over the last full measuring window (a second).
+	 *
+	 * @return the utilization between 0 and 1
+	 */
+	public double getUtilization() {
+		return utilization;
+	}
+
+	/**
+	 * Returns the number of connections registered with this loop as of its
+	 * last pass.
+	 *
+	 * @return the number of connections served by this loop
+	 */
+	public int getNumOfConnections() {
+		return numOfConnections;
+	}
+
+	/**
+	 * Returns the number of bytes waiting to be written to the connections
+	 * served by this loop. This may only be called from this loop.
+	 *
+	 * @return the number of bytes queued for the clients of this loop
+	 */
+	public long getQueuedBytes() {
+		long queuedBytes = 0;
+		for (SelectionKey key : selector.keys()) {
+			if (key.isValid() && key.attachment() instanceof ClientConnection) {
+				queuedBytes += ((ClientConnection) key.attachment())
+						.getQueuedBytes();
+			}
+		}
+		return queuedBytes;
+	} // getQueuedBytes
+
+	/**
+	 * Hands the specified task to this loop, which runs it at the start of its
+	 * next pass. This may be called from any thread.
+	 *
+	 * @param task
+	 *            the task to be run
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (selecting.compareAndSet(true, false)) {
+			selector.wakeup();
+		}
+	} // execute
+
+	/**
+	 * Runs the specified task on this loop after the specified delay. This
+	 * may only be called from this loop.
+	 *
+	 * @param task
+	 *            the task to be run
+	 * @param delay
+	 *            the delay in milliseconds
+	 * @return the timeout with which the task can be cancelled
+	 */
+	public TimingWheel.Timeout schedule(Runnable task, long delay) {
+		return wheel.schedule(task, currentTime() + delay);
+	}
+
+	/**
+	 * Registers a server channel with this loop, so that accept is called
+	 * whenever clients are waiting to connect.
+	 *
+	 * @param channel
+	 *            the server channel, in non-blocking mode
+	 * @throws IOException
+	 *             if the channel cannot be registered
+	 */
+	public void listen(ServerSocketChannel channel) throws IOException {
+		channel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Starts serving the specified connection on this loop. This may only be
+	 * called from this loop.
+	 *
+	 * @param connection
+	 *            the connection to be served
+	 * @throws IOException
+	 *             if the connection cannot be registered
+	 */
+	public void register(ClientConnection connection) throws IOException {
+		connection.setOwner(this);
+		connection.register(selector);
+		if (connection.getQueuedBytes() > 0) {
+			scheduleFlush(connection);
+		}
+	} // register
+
+	/**
+	 * Moves the specified connection to another loop, and has the specified
+	 * task run there once the connection is registered. The frames queued for
+	 * the client so far are written out first. Data received but not handled
+	 * yet stays with the connection. This may only be called from the loop
+	 * which serves the connection.
+	 *
+	 * @param connection
+	 *            the connection to be moved
+	 * @param loop
+	 *            the loop which serves the connection from now on
+	 * @param task
+	 *            the task to be run on that loop, or null if none
+	 */
+	public void handOff(ClientConnection connection, EventLoop loop,
+			Runnable task) {
+		release(connection, loop);
+		loop.adopt(connection, task);
+	} // handOff
+
+	/**
+	 * Registers a connection released by another loop on this loop, and then
+	 * runs the specified task. This may be called from any thread.
+	 */
+	private void adopt(ClientConnection connection, Runnable task) {
+		execute(new AdoptTask(connection, task));
+	}
+
+	/**
+	 * Stops serving the specified connection, which is to be registered with
+	 * the specified loop by a task handed to that loop. The frames queued for
+	 * the client so far are written out first. This may only be called from
+	 * the loop which serves the connection.
+	 *
+	 * @param connection
+	 *            the connection to be moved
+	 * @param loop
+	 *            the loop which serves the connection from now on
+	 */
+	public void release(ClientConnection connection, EventLoop loop) {
+		if (connection.isOpen() && connection.getQueuedBytes() > 0) {
+			try {
+				connection.flush();
+			} catch (IOException ex) {
+				connection.close();
+			}
+		}
+		connection.deregister();
+		connection.setOwner(loop);
+	} // release
+
+	/**
+	 * Marks the specified connection to be flushed at the end of the current
+	 * pass. This may only be called from the loop which serves the connection.
+	 *
+	 * @param connection
+	 *            the connection with frames to be written
+	 */
+	public void scheduleFlush(ClientConnection connection) {
+		if (connection.scheduleFlush()) {
+			pendingFlush.add(connection);
+		}
+	}
+
+	/**
+	 * Stops the loop at the end of its current pass. This may be called from
+	 * any thread.
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Returns the current time of the timing wheels in milliseconds. It is not
+	 * related to the wall-clock time.
+	 *
+	 * @return the current time in milliseconds
+	 */
+	public static long currentTime() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * Runs the loop on the calling thread until it is shut down.
+	 */
+	public void run() {
+		thread = Thread.currentThread();
+		windowStart = System.nanoTime();
+		try {
+			while (running) {
+				try {
+					runPass();
+				} catch (RuntimeException ex) {
+					// the tasks and connections not reached in this pass are
+					// handled in the next one
+					System.err.println("Error in the event loop " + name);
+					ex.printStackTrace();
+				}
+			}
+		} catch (Exception ex) {
+			System.err.println("Error in the event loop " + name);
+			ex.printStackTrace();
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException ex) {
+				// the loop is going away anyway
+			}
+		}
+	} // run
+
+	/**
+	 * Waits for events and handles them.
+	 */
+	private void runPass() throws IOException {
+		// waits for connections to be ready, for the next tick of the timing
+		// wheel, or for tasks from other threads
+		selecting.set(true);
+		if (!tasks.isEmpty()) {
+			selecting.set(false);
+			selector.selectNow();
+		} else {
+			selector.select(wheel.timeToNextTick(currentTime()));
+			selecting.set(false);
+		}
+		long busyStart = System.nanoTime();
+		updateUtilization(busyStart);
+
+		// runs the tasks handed over so far; tasks handed over while doing
+		// so are left for the next pass
+		for (int count = tasks.size(); count > 0; count--) {
+			Runnable task = tasks.poll();
+			if (task == null) {
+				break;
+			}
+			task.run();
+		}
+		wheel.advance(currentTime());
+
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			if (!key.isValid()) {
+				continue;
+			}
+			if (key.isAcceptable()) {
+				accept((ServerSocketChannel) key.channel());
+				continue;
+			}
+			ClientConnection connection = (ClientConnection) key.attachment();
+			if (key.isWritable()) {
+				scheduleFlush(connection);
+			}
+			if (key.isValid() && key.isReadable()) {
+				try {
+					read(connection);
+				} catch (RuntimeException ex) {
+					System.err.println("Error in handling the client at "
+							+ connection.getRemoteAddress() + " on " + name);
+					ex.printStackTrace();
+					if (connection.getOwner() == this) {
+						connection.close();
+						closed(connection);
+					}
+				}
+			}
+		} // while
+
+		afterPass();
+		flushConnections();
+		afterFlush();
+		numOfConnections = selector.keys().size();
+		busyNanos += System.nanoTime() - busyStart;
+	} // runPass
+
+	/**
+	 * Publishes the utilization and starts a new window once the current
+	 * window is over.
+	 */
+	private void updateUtilization(long now) {
+		long elapsed = now - windowStart;
+		if (elapsed >= UTILIZATION_WINDOW_NANOS) {
+			utilization = Math.min(1.0, (double) busyNanos / elapsed);
+			windowStart = now;
+			busyNanos = 0;
+		}
+	} // updateUtilization
+
+	/**
+	 * Writes out the frames queued for each client since the last flush, using
+	 * one gathering write per client. Connections found closed are removed.
+	 */
+	private void flushConnections() {
+		// removing a connection may queue more frames, so the list may grow
+		for (int i = 0; i < pendingFlush.size(); i++) {
+			ClientConnection connection = pendingFlush.get(i);
+			if (connection.getOwner() != this) {
+				// the connection has been handed to another loop, which
+				// flushed it when it was released
+				continue;
+			}
+			if (connection.isOpen()) {
+				try {
+					connection.flush();
+					flushed(connection);
+				} catch (IOException ex) {
+					connection.close();
+				}
+			}
+			if (!connection.isOpen()) {
+				closed(connection);
+			}
+		}
+		pendingFlush.clear();
+	} // flushConnections
+
+	/**
+	 * Accepts the clients waiting to connect on the specified channel. Does
+	 * nothing unless overridden.
+	 *
+	 * @param channel
+	 *            the server channel registered with listen
+	 */
+	protected void accept(ServerSocketChannel channel) {
+	}
+
+	/**
+	 * Reads the data available from the specified client and handles it.
+	 *
+	 * @param connection
+	 *            the connection to the client
+	 */
+	protected abstract void read(ClientConnection connection);
+
+	/**
+	 * Handles a connection found closed.
+	 *
+	 * @param connection
+	 *            the connection to the client
+	 */
+	protected abstract void closed(ClientConnection connection);
+
+	/**
+	 * Called after the specified connection has been flushed. Does nothing
+	 * unless overridden.
+	 *
+	 * @param connection
+	 *            the connection to the client
+	 */
+	protected void flushed(ClientConnection connection) {
+	}
+
+	/**
+	 * Called once per pass after all the events have been handled and before
+	 * the connections are flushed. Does nothing unless overridden.
+	 */
+	protected void afterPass() {
+	}
+
+	/**
+	 * Called once per pass after the connections have been flushed. Does
+	 * nothing unless overridden.
+	 */
+	protected void afterFlush() {
+	}
+
+	/**
+	 * This inner class is used for registering a connection handed over by
+	 * another loop
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class AdoptTask implements Runnable {
+		private ClientConnection connection; // connection being handed over
+		private Runnable task; // task to be run afterwards, or null
+
+		/**
+		 * Creates and returns an instance of the AdoptTask class.
+		 *
+		 * @param connection
+		 *            the connection being handed over
+		 * @param task
+		 *            the task to be run once the connection is registered, or
+		 *            null if none
+		 */
+		public AdoptTask(ClientConnection connection, Runnable task) {
+			this.connection = connection;
+			this.task = task;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			try {
+				register(connection);
+			} catch (IOException ex) {
+				// the client has gone in the meantime; the task still runs so
+				// that whatever it stands for is undone when the connection
+				// is removed
+				connection.close();
+			}
+			if (task != null) {
+				task.run();
+			}
+			if (!connection.isOpen()) {
+				closed(connection);
+			} else if (connection.getOwner() == EventLoop.this) {
+				// handles the data received before the connection was moved
+				read(connection);
+			}
+		} // run
+	} // AdoptTask
+}
@@ -0,0 +1,41 @@
+import java.io.IOException;
+
+/**
+ * This interface is used to model a destination of the events of an event
+ * log, e.g. the console or a file. A sink is only ever called by the writer
+ * thread of the log, which flushes it after each batch of events.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public interface EventSink {
+	/**
+	 * Writes the specified event.
+	 *
+	 * @param time
+	 *            the time of the event in milliseconds since the epoch
+	 * @param thread
+	 *            the name of the thread which logged the event
+	 * @param message
+	 *            the message of the event
+	 * @throws IOException
+	 *             if the event cannot be written
+	 */
+	void write(long time, String thread, String message) throws IOException;
+
+	/**
+	 * Makes sure the events written so far reach their destination.
+	 *
+	 * @throws IOException
+	 *             if the events cannot be written
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * Flushes and releases the destination of the events.
+	 *
+	 * @throws IOException
+	 *             if the events cannot be written
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,185 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * This class holds the JDK Flight Recorder events emitted by the server
+ * around its hot paths: the dispatch of each message received, the fan-out of
+ * each broadcast, the validation of each move, the deal of each game, and the
+ * opening, moving and closing of the tables. The events cost next to nothing
+ * unless a recording is running, e.g. one started with
+ * -XX:StartFlightRecording, and can be read with "jfr print --events
+ * bigtwo.*" or in JDK Mission Control.
+ * <p>
+ * The fields of an event are only filled in once it is known that the event
+ * is to be committed, i.e. after shouldCommit() has returned true. A table id
+ * or seat of -1 stands for none.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public final class GameEvents {
+	private GameEvents() {
+	}
+
+	/**
+	 * This inner class is used to model the handling of a message received
+	 * from a client, from its decoding to the end of its dispatch
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	@Name("bigtwo.MessageDispatch")
+	@Label("Message Dispatch")
+	@Category({ "Big Two", "Network" })
+	@Description("A message received from a client is decoded and dispatched")
+	@StackTrace(false)
+	public static final class MessageDispatch extends Event {
+		@Label("Table Id")
+		public int tableId;
+
+		@Label("Seat")
+		public int seat;
+
+		@Label("Message Type")
+		public String messageType;
+
+		@Label("Payload Size")
+		@DataAmount
+		public int payloadSize;
+	} // MessageDispatch
+
+	/**
+	 * This inner class is used to model the broadcast of a message to all the
+	 * clients at a table, including its encoding
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	@Name("bigtwo.Broadcast")
+	@Label("Broadcast")
+	@Category({ "Big Two", "Network" })
+	@Description("A message is encoded once and queued for every client at a table")
+	@StackTrace(false)
+	public static final class Broadcast extends Event {
+		@Label("Table Id")
+		public int tableId;
+
+		@Label("Message Type")
+		public String messageType;
+
+		@Label("Payload Size")
+		@DataAmount
+		public int payloadSize;
+
+		@Label("Players")
+		@Description("The number of players the message is queued for")
+		public int players;
+
+		@Label("Spectators")
+		@Description("The number of spectators the message is published to")
+		public int spectators;
+	} // Broadcast
+
+	/**
+	 * This inner class is used to model the validation of a move, i.e. the
+	 * composing of a hand from the cards selected and its comparison with the
+	 * last hand played
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	@Name("bigtwo.MoveValidation")
+	@Label("Move Validation")
+	@Category({ "Big Two", "Game" })
+	@Description("A move is checked against the rules and applied if legal")
+	@StackTrace(false)
+	public static final class MoveValidation extends Event {
+		@Label("Table Id")
+		public int tableId;
+
+		@Label("Seat")
+		public int seat;
+
+		@Label("Number of Cards")
+		public int numOfCards;
+
+		@Label("Legal")
+		public boolean legal;
+
+		@Label("Hand Type")
+		@Description("The type of the hand played, or none for a pass or an illegal move")
+		public String handType;
+
+		@Label("Timeout")
+		@Description("Whether the move is made by the server for a player out of time")
+		public boolean timeout;
+	} // MoveValidation
+
+	/**
+	 * This inner class is used to model the deal of a new game, i.e. the
+	 * creating and shuffling of a deck and the dealing of its cards
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	@Name("bigtwo.Deal")
+	@Label("Deal")
+	@Category({ "Big Two", "Game" })
+	@Description("A deck is shuffled and dealt for a new game")
+	@StackTrace(false)
+	public static final class Deal extends Event {
+		@Label("Table Id")
+		public int tableId;
+	} // Deal
+
+	/**
+	 * This inner class is used to model a change in the life of a table:
+	 * being opened, moved to another worker, handed to or taken over from
+	 * another server, or closed
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	@Name("bigtwo.TableLifecycle")
+	@Label("Table Lifecycle")
+	@Category({ "Big Two", "Table" })
+	@Description("A table is opened, moved, handed over, taken over or closed")
+	public static final class TableLifecycle extends Event {
+		@Label("Table Id")
+		public int tableId;
+
+		@Label("Action")
+		@Description("\"open\", \"move\", \"export\", \"import\" or \"close\"")
+		public String action;
+
+		@Label("Location")
+		@Description("The worker or the server where the table is now")
+		public String location;
+
+		/**
+		 * Emits an event for the specified change in the life of a table, if
+		 * it is being recorded.
+		 *
+		 * @param tableId
+		 *            the id of the table
+		 * @param action
+		 *            the change, e.g. "open"
+		 * @param location
+		 *            the worker or the server where the table is now
+		 */
+		public static void emit(int tableId, String action, String location) {
+			TableLifecycle event = new TableLifecycle();
+			if (event.shouldCommit()) {
+				event.tableId = tableId;
+				event.action = action;
+				event.location = location;
+				event.commit();
+			}
+		}
+	} // TableLifecycle
+}
@@ -0,0 +1,936 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * This class is used to model an append-only journal of the events of the
+ * tables: joins and quits, deals, plays and passes, and chat. The journal is
+ * a series of segment files of a fixed size, each mapped into memory, holding
+ * fixed-size binary records, so that appending a record is a handful of
+ * stores into the mapping and allocates nothing.
+ * <p>
+ * A journal has a single writer, e.g. the table worker whose tables it
+ * records. The writer commits the records appended so far from time to time,
+ * e.g. once per pass of its event loop, without waiting; a sync thread then
+ * forces all the records committed since its last sync to the disk at once,
+ * and waits a little before the next sync so that the commits in between
+ * are grouped together. Records reach the page cache as soon as they are
+ * appended, so they survive the death of the process even before they are
+ * synced.
+ * <p>
+ * Each segment starts with a header of the size of a record: the magic
+ * number, the version of the format, the size of a record and the number of
+ * the segment. A record holds, in this order, the wall-clock time in
+ * milliseconds, the id of the table, the number of the event at the table,
+ * a 64-bit value (e.g. the mask of the cards played), the version of the game
+ * after the event, a 16-bit value (e.g. the type of the hand played), the
+ * seat and, last, the type of the record, which is never 0. The text of a
+ * JOIN or CHAT record follows it in TEXT records holding 31 bytes each, and
+ * its 16-bit value is the length of the text in bytes. A journal is read
+ * with a Reader.
+ * <p>
+ * The writer may also save a snapshot of its own state from time to time,
+ * e.g. the state of all its tables, which stands for the records appended
+ * before it. The sync thread writes the snapshot to a file of its own next
+ * to the segments, replacing the previous one at once, so that the state of
+ * the writer can be rebuilt from the last snapshot and the records after it
+ * (see TableRecovery) without reading the whole journal.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class GameJournal {
+	/**
+	 * A table is opened, or moved to the writer of this journal; the value
+	 * is the time at which the table was opened, which tells it from tables
+	 * with the same id opened on other runs of the server.
+	 */
+	public static final int OPEN = 1;
+	/**
+	 * A player takes a seat; the value is the session token, and the name of
+	 * the player follows as text.
+	 */
+	public static final int JOIN = 2;
+	/** A player leaves the table; no value. */
+	public static final int QUIT = 3;
+	/** The cards dealt to a seat; the value is the mask of the cards. */
+	public static final int DEAL = 4;
+	/** A game starts; the seat is the player who makes the first move. */
+	public static final int START = 5;
+	/** A hand is played; the value is the mask, the 16-bit value the type. */
+	public static final int PLAY = 6;
+	/** A player passes; no value. */
+	public static final int PASS = 7;
+	/** A player chats; no value, and the message follows as text. */
+	public static final int CHAT = 8;
+	/** The continuation of the text of the record before it. */
+	public static final int TEXT = 9;
+	/** A table is closed, as all its players have left; no value. */
+	public static final int CLOSE = 10;
+	/** A table is handed over to another server; no value. */
+	public static final int EXPORT = 11;
+	/**
+	 * A table is taken over from another server, after the JOIN and DEAL
+	 * records of its seats; the seat is the player whose turn it is, the
+	 * value is the mask of the last hand played, and the 16-bit value holds
+	 * the type of that hand in its low byte and the seat of the player who
+	 * played it in its high byte (0xFF for none).
+	 */
+	public static final int RESTORE = 12;
+	/** A player is ready for a new game; no value. */
+	public static final int READY = 13;
+	/**
+	 * A table is moved to the writer of another journal, in which it arrives
+	 * with an OPEN record followed by its state as for RESTORE; no value.
+	 */
+	public static final int MOVE = 14;
+	/** The flag set in the 16-bit value of a move made for a late player. */
+	public static final int TIMED_OUT = 0x100;
+	/** The size of a record in bytes. */
+	public static final int RECORD_SIZE = 32;
+	/** The length in bytes beyond which the text of a record is cut off. */
+	public static final int MAX_TEXT_LENGTH = 8 * (RECORD_SIZE - 1);
+
+	// the magic number at the start of each segment, "B2JR"
+	private static final int MAGIC = 0x42324A52;
+	// the version of the file format
+	private static final short VERSION = 1;
+	// the number of bytes of text held by a TEXT record
+	private static final int TEXT_PER_RECORD = RECORD_SIZE - 1;
+	// the suffix of the names of the segment files
+	private static final String SUFFIX = ".journal";
+	// the longest time the sync thread sleeps without checking for commits
+	private static final long IDLE_PARK_NANOS = 100000000L;
+	// the magic number at the start of a snapshot file, "B2JS", the size of
+	// its header and the suffix of its name
+	private static final int SNAPSHOT_MAGIC = 0x42324A53;
+	private static final int SNAPSHOT_HEADER_SIZE = 32;
+	private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+	private final Path dir;
+	private final String name;
+	private final int segmentSize;
+	private final int recordsPerSegment;
+	private final long syncInterval; // in nanoseconds
+	// the segment being appended to, and the offset of the next record in
+	// it (writer only)
+	private volatile Segment current;
+	private int offset;
+	// the number of records appended, including unused slots at the ends of
+	// the segments (writer only)
+	private long position;
+	// the segments which have been filled but not synced yet
+	private final ArrayDeque<Segment> filled = new ArrayDeque<Segment>();
+	// the positions up to which records have been committed and synced
+	private volatile long committed;
+	private volatile long synced;
+	// the snapshot saved by the writer which has not been written yet
+	private final AtomicReference<Snapshot> pendingSnapshot = new AtomicReference<Snapshot>();
+	private final Thread syncer;
+	private volatile boolean sleeping = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates and returns an instance of the GameJournal class, appending to
+	 * the journal of the specified name in the specified directory after the
+	 * records already there, and starts its sync thread.
+	 *
+	 * @param dir
+	 *            the directory of the segment files, which is created if
+	 *            needed
+	 * @param name
+	 *            the name of the journal, which starts the names of its
+	 *            segment files
+	 * @param segmentSize
+	 *            the size of each segment file in bytes
+	 * @param syncInterval
+	 *            the shortest time between two syncs in milliseconds, i.e.
+	 *            how long commits are grouped together
+	 * @throws IOException
+	 *             if the journal cannot be opened
+	 */
+	public GameJournal(Path dir, String name, int segmentSize,
+			long syncInterval) throws IOException {
+		if (segmentSize < 2 * RECORD_SIZE + MAX_TEXT_LENGTH) {
+			throw new IllegalArgumentException("Segments of " + segmentSize
+					+ " bytes are too small");
+		}
+		this.dir = dir;
+		this.name = name;
+		this.segmentSize = segmentSize - segmentSize % RECORD_SIZE;
+		this.recordsPerSegment = this.segmentSize / RECORD_SIZE - 1;
+		this.syncInterval = syncInterval * 1000000L;
+		Files.createDirectories(dir);
+
+		long[] numbers = listSegments(dir, name);
+		long number = numbers.length == 0 ? 0 : numbers[numbers.length - 1];
+		current = map(number);
+		// continues after the last record of the last segment
+		int slot = 0;
+		while (slot < recordsPerSegment
+				&& current.buffer.get(offsetOf(slot) + RECORD_SIZE - 1) != 0) {
+			slot++;
+		}
+		offset = offsetOf(slot);
+		position = number * recordsPerSegment + slot;
+		committed = position;
+		synced = position;
+
+		syncer = new Thread(new Syncer(), "journal-sync-" + name);
+		syncer.setDaemon(true);
+		syncer.start();
+	}
+
+	/**
+	 * Returns the name of this journal.
+	 *
+	 * @return the name of this journal
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Appends a record to this journal. This may only be called from the
+	 * writer of the journal, and allocates nothing.
+	 *
+	 * @param tableId
+	 *            the id of the table
+	 * @param seq
+	 *            the number of the event at the table
+	 * @param type
+	 *            the type of the record, e.g. PLAY
+	 * @param seat
+	 *            the seat concerned, or -1 if none
+	 * @param aux
+	 *            the 16-bit value of the record
+	 * @param value
+	 *            the 64-bit value of the record
+	 * @param version
+	 *            the version of the game after the event
+	 */
+	public void append(int tableId, int seq, int type, int seat, int aux,
+			long value, long version) {
+		if (!reserve(1)) {
+			return;
+		}
+		put(System.currentTimeMillis(), tableId, seq, type, seat, aux, value,
+				version);
+	} // append
+
+	/**
+	 * Appends a record followed by the specified text to this journal. This
+	 * may only be called from the writer of the journal.
+	 *
+	 * @param tableId
+	 *            the id of the table
+	 * @param seq
+	 *            the number of the event at the table
+	 * @param type
+	 *            the type of the record, e.g. CHAT
+	 * @param seat
+	 *            the seat concerned, or -1 if none
+	 * @param value
+	 *            the 64-bit value of the record
+	 * @param version
+	 *            the version of the game after the event
+	 * @param text
+	 *            the text, which is cut off after MAX_TEXT_LENGTH bytes
+	 */
+	public void appendText(int tableId, int seq, int type, int seat,
+			long value, long version, String text) {
+		byte[] bytes = text == null ? new byte[0] : text
+				.getBytes(StandardCharsets.UTF_8);
+		int length = Math.min(bytes.length, MAX_TEXT_LENGTH);
+		int numOfTextRecords = (length + TEXT_PER_RECORD - 1) / TEXT_PER_RECORD;
+		if (!reserve(1 + numOfTextRecords)) {
+			return;
+		}
+		// the record and its text are written before any of them can be
+		// taken as complete by a reader, i.e. the type of the first record
+		// is written last
+		int first = offset;
+		put(System.currentTimeMillis(), tableId, seq, 0, seat, length, value,
+				version);
+		MappedByteBuffer buffer = current.buffer;
+		for (int i = 0; i < numOfTextRecords; i++) {
+			int start = i * TEXT_PER_RECORD;
+			int count = Math.min(TEXT_PER_RECORD, length - start);
+			for (int j = 0; j < TEXT_PER_RECORD; j++) {
+				buffer.put(offset + j, j < count ? bytes[start + j] : 0);
+			}
+			buffer.put(offset + RECORD_SIZE - 1, (byte) TEXT);
+			offset += RECORD_SIZE;
+			position++;
+		}
+		buffer.put(first + RECORD_SIZE - 1, (byte) type);
+	} // appendText
+
+	/**
+	 * Commits the records appended so far, to be synced by the sync thread.
+	 * This never waits, and may only be called from the writer of the
+	 * journal.
+	 */
+	public void commit() {
+		if (committed != position) {
+			committed = position;
+			if (sleeping) {
+				LockSupport.unpark(syncer);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of records appended so far, counted like the
+	 * synced position. This may only be called from the writer of the
+	 * journal.
+	 *
+	 * @return the position of the next record to be appended
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Saves a snapshot of the state of the writer as of the records appended
+	 * so far, to be written by the sync thread in place of the previous one.
+	 * This never waits, and may only be called from the writer of the
+	 * journal; a snapshot which has not been written by the time the next
+	 * one is saved is dropped.
+	 *
+	 * @param data
+	 *            the state of the writer, which must not be changed
+	 *            afterwards
+	 */
+	public void saveSnapshot(byte[] data) {
+		pendingSnapshot.set(new Snapshot(position, System.currentTimeMillis(),
+				data));
+		if (sleeping) {
+			LockSupport.unpark(syncer);
+		}
+	}
+
+	/**
+	 * Returns the number of records which have been synced to the disk,
+	 * counted from the start of the journal (including the unused slots at
+	 * the ends of its segments).
+	 *
+	 * @return the position up to which the journal has been synced
+	 */
+	public long getSyncedPosition() {
+		return synced;
+	}
+
+	/**
+	 * Stops taking records, and syncs all the records appended so far. This
+	 * may be called from any thread; records being appended meanwhile may be
+	 * lost.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(syncer);
+		try {
+			syncer.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	} // close
+
+	/**
+	 * Makes room for the specified number of records in the current segment,
+	 * moving on to a new segment if they do not fit.
+	 *
+	 * @return true if there is room; false if the journal has been closed or
+	 *         the new segment cannot be created
+	 */
+	private boolean reserve(int numOfRecords) {
+		if (closed) {
+			return false;
+		}
+		if (offset + numOfRecords * RECORD_SIZE <= segmentSize) {
+			return true;
+		}
+		try {
+			Segment next = map(current.number + 1);
+			synchronized (filled) {
+				filled.add(current);
+			}
+			// the unused slots at the end of the segment are skipped
+			position = next.number * recordsPerSegment;
+			offset = offsetOf(0);
+			current = next;
+			return true;
+		} catch (IOException ex) {
+			System.err.println("Error in creating a segment of the journal "
+					+ name);
+			ex.printStackTrace();
+			return false;
+		}
+	} // reserve
+
+	/**
+	 * Writes a record at the current offset, its type last.
+	 */
+	private void put(long time, int tableId, int seq, int type, int seat,
+			int aux, long value, long version) {
+		MappedByteBuffer buffer = current.buffer;
+		int at = offset;
+		buffer.putLong(at, time);
+		buffer.putInt(at + 8, tableId);
+		buffer.putInt(at + 12, seq);
+		buffer.putLong(at + 16, value);
+		buffer.putInt(at + 24, (int) version);
+		buffer.putShort(at + 28, (short) aux);
+		buffer.put(at + 30, (byte) seat);
+		buffer.put(at + 31, (byte) type);
+		offset += RECORD_SIZE;
+		position++;
+	} // put
+
+	/**
+	 * Maps the segment with the specified number, creating its file with a
+	 * header if it does not exist.
+	 */
+	private Segment map(long number) throws IOException {
+		Path path = dir.resolve(segmentName(name, number));
+		boolean created = !Files.exists(path);
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					segmentSize);
+		}
+		if (created) {
+			buffer.putInt(0, MAGIC);
+			buffer.putShort(4, VERSION);
+			buffer.putShort(6, (short) RECORD_SIZE);
+			buffer.putLong(8, number);
+			buffer.putLong(16, System.currentTimeMillis());
+		} else if (buffer.getInt(0) != MAGIC
+				|| buffer.getShort(6) != RECORD_SIZE) {
+			throw new IOException(path + " is not a segment of a journal");
+		}
+		return new Segment(number, buffer);
+	} // map
+
+	/**
+	 * Returns the offset of the specified slot of a segment.
+	 */
+	private static int offsetOf(int slot) {
+		return (slot + 1) * RECORD_SIZE;
+	}
+
+	/**
+	 * Returns the name of the file of the specified segment of a journal.
+	 */
+	private static String segmentName(String name, long number) {
+		return name + "-" + String.format("%010d", number) + SUFFIX;
+	}
+
+	/**
+	 * Returns the numbers of the segments of the specified journal, in
+	 * increasing order.
+	 */
+	private static long[] listSegments(Path dir, String name)
+			throws IOException {
+		ArrayList<Long> numbers = new ArrayList<Long>();
+		if (Files.isDirectory(dir)) {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir,
+					name + "-*" + SUFFIX)) {
+				for (Path file : files) {
+					String fileName = file.getFileName().toString();
+					String number = fileName.substring(name.length() + 1,
+							fileName.length() - SUFFIX.length());
+					if (number.length() == 10 && number.matches("[0-9]+")) {
+						numbers.add(Long.parseLong(number));
+					}
+				}
+			}
+		}
+		Collections.sort(numbers);
+		long[] result = new long[numbers.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = numbers.get(i);
+		}
+		return result;
+	} // listSegments
+
+	/**
+	 * Returns the names of the journals in the specified directory.
+	 *
+	 * @param dir
+	 *            the directory of the segment files
+	 * @return the names of the journals, in alphabetical order
+	 * @throws IOException
+	 *             if the directory cannot be read
+	 */
+	public static String[] listJournals(Path dir) throws IOException {
+		TreeSet<String> names = new TreeSet<String>();
+		if (Files.isDirectory(dir)) {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir,
+					"*-??????????" + SUFFIX)) {
+				for (Path file : files) {
+					String fileName = file.getFileName().toString();
+					names.add(fileName.substring(0, fileName.length()
+							- SUFFIX.length() - 11));
+				}
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	} // listJournals
+
+	/**
+	 * Reads the last snapshot written for the journal of the specified name.
+	 *
+	 * @param dir
+	 *            the directory of the journal
+	 * @param name
+	 *            the name of the journal
+	 * @return the snapshot, or null if none has been written
+	 * @throws IOException
+	 *             if the snapshot cannot be read, or is corrupt
+	 */
+	public static Snapshot readSnapshot(Path dir, String name)
+			throws IOException {
+		Path path = dir.resolve(name + SNAPSHOT_SUFFIX);
+		if (!Files.exists(path)) {
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+		if (buffer.remaining() < SNAPSHOT_HEADER_SIZE
+				|| buffer.getInt(0) != SNAPSHOT_MAGIC
+				|| buffer.getInt(24) != buffer.remaining()
+						- SNAPSHOT_HEADER_SIZE) {
+			throw new IOException(path + " is not a snapshot of a journal");
+		}
+		byte[] data = new byte[buffer.getInt(24)];
+		buffer.position(SNAPSHOT_HEADER_SIZE);
+		buffer.get(data);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		if ((int) crc.getValue() != buffer.getInt(28)) {
+			throw new IOException(path + " is corrupt");
+		}
+		return new Snapshot(buffer.getLong(8), buffer.getLong(16), data);
+	} // readSnapshot
+
+	/**
+	 * This inner class is used to model a snapshot of the state of the
+	 * writer of a journal, which stands for the records before its position
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	public static final class Snapshot {
+		private final long position;
+		private final long time;
+		private final byte[] data;
+
+		/**
+		 * Creates and returns an instance of the Snapshot class.
+		 */
+		Snapshot(long position, long time, byte[] data) {
+			this.position = position;
+			this.time = time;
+			this.data = data;
+		} // constructor
+
+		/**
+		 * Returns the position of the first record after this snapshot (see
+		 * Reader.seek).
+		 *
+		 * @return the position of the journal when the snapshot was saved
+		 */
+		public long getPosition() {
+			return position;
+		}
+
+		/**
+		 * Returns the time at which this snapshot was saved.
+		 *
+		 * @return the time in milliseconds since the epoch
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Returns the state of the writer held by this snapshot.
+		 *
+		 * @return the state of the writer
+		 */
+		public byte[] getData() {
+			return data;
+		}
+	} // Snapshot
+
+	/**
+	 * This inner class is used to model a segment of a journal mapped into
+	 * memory
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private static final class Segment {
+		private final long number;
+		private final MappedByteBuffer buffer;
+
+		/**
+		 * Creates and returns an instance of the Segment class.
+		 */
+		Segment(long number, MappedByteBuffer buffer) {
+			this.number = number;
+			this.buffer = buffer;
+		} // constructor
+	} // Segment
+
+	/**
+	 * This inner class is used for syncing the committed records to the disk
+	 * on the sync thread
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class Syncer implements Runnable {
+		// implementation of method from the Runnable interface
+		public void run() {
+			while (true) {
+				long target = committed;
+				if (target != synced) {
+					sync(target);
+					// groups the commits made until the next sync
+					LockSupport.parkNanos(this, syncInterval);
+					continue;
+				}
+				Snapshot snapshot = pendingSnapshot.getAndSet(null);
+				if (snapshot != null) {
+					writeSnapshot(snapshot);
+					continue;
+				}
+				if (closed) {
+					break;
+				}
+				sleeping = true;
+				if (committed == synced && pendingSnapshot.get() == null
+						&& !closed) {
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				}
+				sleeping = false;
+			}
+			// whatever has been appended without being committed
+			sync(synced);
+			Snapshot snapshot = pendingSnapshot.getAndSet(null);
+			if (snapshot != null) {
+				writeSnapshot(snapshot);
+			}
+		} // run
+
+		/**
+		 * Writes the specified snapshot to a new file and syncs it, then puts
+		 * it in place of the previous one.
+		 */
+		private void writeSnapshot(Snapshot snapshot) {
+			Path path = dir.resolve(name + SNAPSHOT_SUFFIX);
+			Path tmp = dir.resolve(name + SNAPSHOT_SUFFIX + ".tmp");
+			CRC32 crc = new CRC32();
+			crc.update(snapshot.data);
+			ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+			header.putInt(0, SNAPSHOT_MAGIC);
+			header.putShort(4, VERSION);
+			header.putLong(8, snapshot.position);
+			header.putLong(16, snapshot.time);
+			header.putInt(24, snapshot.data.length);
+			header.putInt(28, (int) crc.getValue());
+			try {
+				try (FileChannel channel = FileChannel.open(tmp,
+						StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING,
+						StandardOpenOption.WRITE)) {
+					ByteBuffer data = ByteBuffer.wrap(snapshot.data);
+					while (header.hasRemaining()) {
+						channel.write(header);
+					}
+					while (data.hasRemaining()) {
+						channel.write(data);
+					}
+					channel.force(true);
+				}
+				Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException ex) {
+				System.err.println("Error in writing a snapshot of the journal "
+						+ name);
+				ex.printStackTrace();
+			}
+		} // writeSnapshot
+
+		/**
+		 * Syncs the filled segments and the current one, which hold all the
+		 * records up to the specified position.
+		 */
+		private void sync(long target) {
+			// the current segment is read before the filled ones, so that a
+			// segment filled in the meantime is either of them
+			Segment segment = current;
+			try {
+				while (true) {
+					Segment full;
+					synchronized (filled) {
+						full = filled.poll();
+					}
+					if (full == null) {
+						break;
+					}
+					full.buffer.force();
+				}
+				segment.buffer.force();
+				synced = target;
+			} catch (UncheckedIOException ex) {
+				System.err.println("Error in syncing the journal " + name);
+				ex.printStackTrace();
+			}
+		} // sync
+	} // Syncer
+
+	/**
+	 * This inner class is used for reading the records of a journal in order,
+	 * one at a time. The fields of the current record are read in place from
+	 * the mapped segments, so that reading allocates nothing but the text of
+	 * the records which have some.
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	public static final class Reader {
+		private final Path dir;
+		private final String name;
+		private final long[] numbers; // the numbers of the segments
+		private int segmentIdx = -1; // the index of the segment read
+		private ByteBuffer buffer; // the segment read
+		private int recordsPerSegment = 0;
+		private int slot = -1; // the slot of the current record
+		private int nextSlot = 0; // the slot after the current record
+		private long position = 0; // the position of the current record
+		private final byte[] text = new byte[MAX_TEXT_LENGTH];
+
+		/**
+		 * Creates and returns an instance of the Reader class, positioned
+		 * before the first record of the specified journal.
+		 *
+		 * @param dir
+		 *            the directory of the segment files
+		 * @param name
+		 *            the name of the journal
+		 * @throws IOException
+		 *             if the journal cannot be read
+		 */
+		public Reader(Path dir, String name) throws IOException {
+			this.dir = dir;
+			this.name = name;
+			this.numbers = listSegments(dir, name);
+			if (numbers.length > 0) {
+				load(0);
+			}
+		} // constructor
+
+		/**
+		 * Moves to the next record, skipping the text of the current one.
+		 *
+		 * @return true if there is a next record; false at the end of the
+		 *         journal
+		 * @throws IOException
+		 *             if a segment cannot be read
+		 */
+		public boolean next() throws IOException {
+			if (buffer == null) {
+				return false;
+			}
+			while (true) {
+				if (nextSlot < recordsPerSegment) {
+					int type = buffer.get(offsetOf(nextSlot) + RECORD_SIZE - 1);
+					if (type == TEXT) {
+						// the text of a record not read from its start
+						nextSlot++;
+						continue;
+					}
+					if (type != 0) {
+						slot = nextSlot++;
+						position = numbers[segmentIdx] * recordsPerSegment
+								+ slot;
+						return true;
+					}
+				}
+				// the rest of this segment is unused
+				if (segmentIdx + 1 >= numbers.length) {
+					slot = -1;
+					return false;
+				}
+				load(segmentIdx + 1);
+			}
+		} // next
+
+		/**
+		 * Moves to just before the record at the specified position (see
+		 * getPosition), so that it is read next.
+		 *
+		 * @param position
+		 *            the position of the record
+		 * @throws IOException
+		 *             if a segment cannot be read
+		 */
+		public void seek(long position) throws IOException {
+			if (buffer == null) {
+				return;
+			}
+			long number = position / recordsPerSegment;
+			int idx = segmentIdx;
+			if (numbers[idx] != number) {
+				idx = 0;
+				while (idx + 1 < numbers.length && numbers[idx + 1] <= number) {
+					idx++;
+				}
+				load(idx);
+			}
+			nextSlot = (int) Math.max(0, position - numbers[idx]
+					* recordsPerSegment);
+			slot = -1;
+		} // seek
+
+		/**
+		 * Returns the position of the current record, which stays the same
+		 * while records are appended to the journal.
+		 *
+		 * @return the position of the current record
+		 */
+		public long getPosition() {
+			return position;
+		}
+
+		/**
+		 * Returns the wall-clock time of the current record.
+		 *
+		 * @return the time in milliseconds since the epoch
+		 */
+		public long getTime() {
+			return buffer.getLong(offsetOf(slot));
+		}
+
+		/**
+		 * Returns the id of the table of the current record.
+		 *
+		 * @return the id of the table
+		 */
+		public int getTableId() {
+			return buffer.getInt(offsetOf(slot) + 8);
+		}
+
+		/**
+		 * Returns the number of the event of the current record at its table.
+		 *
+		 * @return the number of the event at the table
+		 */
+		public int getSeq() {
+			return buffer.getInt(offsetOf(slot) + 12);
+		}
+
+		/**
+		 * Returns the 64-bit value of the current record.
+		 *
+		 * @return the 64-bit value, e.g. the mask of the cards played
+		 */
+		public long getValue() {
+			return buffer.getLong(offsetOf(slot) + 16);
+		}
+
+		/**
+		 * Returns the version of the game after the event of the current
+		 * record.
+		 *
+		 * @return the version of the game
+		 */
+		public int getVersion() {
+			return buffer.getInt(offsetOf(slot) + 24);
+		}
+
+		/**
+		 * Returns the 16-bit value of the current record.
+		 *
+		 * @return the 16-bit value, e.g. the type of the hand played
+		 */
+		public int getAux() {
+			return buffer.getShort(offsetOf(slot) + 28) & 0xFFFF;
+		}
+
+		/**
+		 * Returns the seat of the current record.
+		 *
+		 * @return the seat, or -1 if none
+		 */
+		public int getSeat() {
+			return buffer.get(offsetOf(slot) + 30);
+		}
+
+		/**
+		 * Returns the type of the current record.
+		 *
+		 * @return the type of the record, e.g. PLAY
+		 */
+		public int getType() {
+			return buffer.get(offsetOf(slot) + 31);
+		}
+
+		/**
+		 * Returns the text of the current record.
+		 *
+		 * @return the text of a JOIN or CHAT record, or null for other
+		 *         records
+		 */
+		public String getText() {
+			int type = getType();
+			if (type != JOIN && type != CHAT) {
+				return null;
+			}
+			int length = getAux();
+			for (int i = 0; i < length; i++) {
+				int at = offsetOf(slot + 1 + i / TEXT_PER_RECORD) + i
+						% TEXT_PER_RECORD;
+				text[i] = buffer.get(at);
+			}
+			return new String(text, 0, length, StandardCharsets.UTF_8);
+		} // getText
+
+		/**
+		 * Maps the segment at the specified index of the list.
+		 */
+		private void load(int idx) throws IOException {
+			Path path = dir.resolve(segmentName(name, numbers[idx]));
+			try (FileChannel channel = FileChannel.open(path,
+					StandardOpenOption.READ)) {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						channel.size());
+			}
+			if (buffer.getInt(0) != MAGIC || buffer.getShort(6) != RECORD_SIZE) {
+				throw new IOException(path + " is not a segment of a journal");
+			}
+			segmentIdx = idx;
+			recordsPerSegment = buffer.capacity() / RECORD_SIZE - 1;
+			nextSlot = 0;
+		} // load
+	} // Reader
+}
@@ -0,0 +1,663 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class is used to model a file of complete Big Two games in a compact
+ * binary format, for analysing the games in bulk or training programs to
+ * play them on corpora of millions of games. A game is the cards dealt to
+ * each player followed by each turn, the cards played and the type of the
+ * hand, or a pass; the seat of each turn follows from the seat of the first
+ * player, as the turns go round the table.
+ * <p>
+ * The file starts with a header of 16 bytes: the magic number, the version
+ * of the format and the number of games. Each game then takes 4 bytes, i.e.
+ * its number of turns (16 bits), its number of players and the seat of the
+ * first player, followed by the cards dealt to each player and then the
+ * turns, in 7 bytes each: the 52-bit mask of the cards (see CardMask) in the
+ * low bits, and the type code of the hand (see BigTwoGameState), or PASS for
+ * a pass, in the top 4 bits. A game of four players and 50 turns thus takes
+ * 382 bytes. All values are little-endian, so that 7 bytes are read as one
+ * long, and the file ends with a spare byte after the last game.
+ * <p>
+ * A file is written with a Writer and read with a Reader, both of which map
+ * the file into memory a window at a time and access the games in place, so
+ * that they allocate nothing per game.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public final class GameRecordFile {
+	/** The type code which marks a pass, in the top 4 bits of a turn. */
+	public static final int PASS = 0xF;
+	/** The largest number of players of a game. */
+	public static final int MAX_PLAYERS = 8;
+	/** The largest number of turns of a game. */
+	public static final int MAX_TURNS = 0xFFFF;
+
+	// the magic number at the start of the file, "B2GR"
+	private static final int MAGIC = 0x42324752;
+	// the version of the file format
+	private static final short VERSION = 1;
+	// the sizes of the header of the file and of a game, and of the cards
+	// dealt to a player or a turn
+	private static final int HEADER_SIZE = 16;
+	private static final int GAME_HEADER_SIZE = 4;
+	private static final int UNIT_SIZE = 7;
+	private static final long UNIT_MASK = (1L << (8 * UNIT_SIZE)) - 1;
+	// the position of the type code in a turn
+	private static final int TYPE_SHIFT = CardMask.NUM_CARDS;
+	// the largest size of a game
+	private static final int MAX_GAME_SIZE = GAME_HEADER_SIZE + UNIT_SIZE
+			* (MAX_PLAYERS + MAX_TURNS);
+	// the sizes of the windows mapped by a writer and by a reader
+	private static final int WRITE_WINDOW_SIZE = 64 * 1024 * 1024;
+	private static final int READ_WINDOW_SIZE = 1024 * 1024 * 1024;
+
+	private GameRecordFile() {
+	}
+
+	/**
+	 * main() method for exporting the complete games in the journals of a
+	 * server to a file, or for printing the statistics of the games in a
+	 * file, read in bulk.
+	 *
+	 * @param args
+	 *            "export", the directory of the journals and the file; or
+	 *            "stats" and the file
+	 */
+	public static void main(String[] args) {
+		if (args.length == 3 && args[0].equals("export")) {
+			export(Paths.get(args[1]), Paths.get(args[2]));
+		} else if (args.length == 2 && args[0].equals("stats")) {
+			printStats(Paths.get(args[1]));
+		} else {
+			System.err.println("Usage: java GameRecordFile export"
+					+ " <journal dir> <file>");
+			System.err.println("       java GameRecordFile stats <file>");
+		}
+	} // main
+
+	/**
+	 * Writes the complete games in the journals in the specified directory
+	 * to the specified file.
+	 */
+	private static void export(Path dir, Path file) {
+		try {
+			long start = System.nanoTime();
+			GameReplay[] replays = GameReplay.loadAll(dir);
+			Writer writer = new Writer(file);
+			for (GameReplay replay : replays) {
+				for (int i = 0; i < replay.getNumOfGames(); i++) {
+					if (replay.isComplete(i)) {
+						writer.writeGame(replay, i);
+					}
+				}
+			}
+			long size = writer.getSize();
+			writer.close();
+			long numOfGames = writer.getNumOfGames();
+			System.out.println("Exports " + numOfGames + " games of "
+					+ replays.length + " tables to " + file + " (" + size
+					+ " bytes, " + (numOfGames == 0 ? 0 : size / numOfGames)
+					+ " per game) in " + (System.nanoTime() - start) / 1000000
+					+ " ms");
+		} catch (IOException ex) {
+			System.err.println("Error in exporting the games in " + dir);
+			ex.printStackTrace();
+		}
+	} // export
+
+	/**
+	 * Reads all the games in the specified file and prints their statistics.
+	 */
+	private static void printStats(Path file) {
+		try {
+			long start = System.nanoTime();
+			Reader reader = new Reader(file);
+			long numOfTurns = 0;
+			long numOfPasses = 0;
+			long[] handTypes = new long[BigTwoGameState.HAND_TYPES.length];
+			long[] wins = new long[MAX_PLAYERS];
+			while (reader.next()) {
+				int turns = reader.getNumOfTurns();
+				numOfTurns += turns;
+				for (int i = 0; i < turns; i++) {
+					int handType = reader.getHandType(i);
+					if (handType < 0) {
+						numOfPasses++;
+					} else if (handType < handTypes.length) {
+						handTypes[handType]++;
+					}
+				}
+				int winner = reader.getWinner();
+				if (winner >= 0) {
+					wins[winner]++;
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+			long numOfGames = reader.getNumOfGames();
+			System.out.println("Reads " + numOfGames + " games with "
+					+ numOfTurns + " turns in " + elapsed / 1000000 + " ms ("
+					+ (elapsed == 0 ? 0 : numOfGames * 1000000000L / elapsed)
+					+ " games per second)");
+			if (numOfGames == 0) {
+				return;
+			}
+			System.out.println(String.format("Turns per game: %.1f, passes:"
+					+ " %.1f%%", (double) numOfTurns / numOfGames,
+					100.0 * numOfPasses / Math.max(1, numOfTurns)));
+			for (int i = 0; i < handTypes.length; i++) {
+				System.out.println(String.format("%-14s %d",
+						BigTwoGameState.HAND_TYPES[i], handTypes[i]));
+			}
+			for (int i = 0; i < MAX_PLAYERS; i++) {
+				if (wins[i] > 0) {
+					System.out.println(String.format("Wins of seat %d: %.1f%%",
+							i, 100.0 * wins[i] / numOfGames));
+				}
+			}
+		} catch (IOException ex) {
+			System.err.println("Error in reading " + file);
+			ex.printStackTrace();
+		}
+	} // printStats
+
+	/**
+	 * This inner class is used for writing games to a file, one at a time.
+	 * A game is begun with the cards dealt, its turns are added in order and
+	 * it is then ended; the games written are only complete once the writer
+	 * is closed, which writes the number of games into the header.
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	public static final class Writer {
+		private final FileChannel channel;
+		private MappedByteBuffer window; // the window being written
+		private long windowStart; // the offset of the window in the file
+		private int offset; // the offset of the next byte in the window
+		// the offset of the game being written in the window, or -1 if none
+		private int gameOffset = -1;
+		private int numOfTurns; // the number of turns of that game
+		private long numOfGames = 0;
+		// the cards dealt in a game written from a replay
+		private long[] hands = new long[0];
+
+		/**
+		 * Creates and returns an instance of the Writer class, writing to
+		 * the specified file, which is replaced if it exists.
+		 *
+		 * @param file
+		 *            the file
+		 * @throws IOException
+		 *             if the file cannot be created
+		 */
+		public Writer(Path file) throws IOException {
+			channel = FileChannel.open(file, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			map(0);
+			window.putInt(0, MAGIC);
+			window.putShort(4, VERSION);
+			window.putShort(6, (short) 0);
+			window.putLong(8, 0);
+			offset = HEADER_SIZE;
+		} // constructor
+
+		/**
+		 * Begins a game with the specified cards dealt.
+		 *
+		 * @param hands
+		 *            the masks of the cards dealt to each player, in the
+		 *            order of the seats
+		 * @param firstSeat
+		 *            the seat of the player who makes the first move
+		 */
+		public void beginGame(long[] hands, int firstSeat) {
+			if (gameOffset >= 0) {
+				throw new IllegalStateException("A game is being written");
+			}
+			if (hands.length == 0 || hands.length > MAX_PLAYERS) {
+				throw new IllegalArgumentException("A game cannot have "
+						+ hands.length + " players");
+			}
+			if (firstSeat < 0 || firstSeat >= hands.length) {
+				throw new IllegalArgumentException("Invalid first seat "
+						+ firstSeat);
+			}
+			// the game must fit in the window, with the spare byte after its
+			// last turn
+			if (offset + MAX_GAME_SIZE + 1 > window.capacity()) {
+				try {
+					map(windowStart + offset);
+				} catch (IOException ex) {
+					throw new IllegalStateException("Cannot map the file", ex);
+				}
+			}
+			gameOffset = offset;
+			window.put(offset + 2, (byte) hands.length);
+			window.put(offset + 3, (byte) firstSeat);
+			offset += GAME_HEADER_SIZE;
+			for (long hand : hands) {
+				putUnit(hand & CardMask.FULL_DECK);
+			}
+			numOfTurns = 0;
+		} // beginGame
+
+		/**
+		 * Adds a turn to the game being written.
+		 *
+		 * @param cards
+		 *            the mask of the cards played, or 0 for a pass
+		 * @param handType
+		 *            the type code of the hand played, or -1 for a pass
+		 */
+		public void addTurn(long cards, int handType) {
+			if (gameOffset < 0) {
+				throw new IllegalStateException("No game is being written");
+			}
+			if (numOfTurns == MAX_TURNS) {
+				throw new IllegalStateException("A game cannot have more than "
+						+ MAX_TURNS + " turns");
+			}
+			if (cards == 0 ? handType != -1 : handType < 0
+					|| handType >= PASS || (cards & ~CardMask.FULL_DECK) != 0) {
+				throw new IllegalArgumentException("Invalid turn "
+						+ Long.toHexString(cards) + " of type " + handType);
+			}
+			putUnit(cards | (long) (cards == 0 ? PASS : handType) << TYPE_SHIFT);
+			numOfTurns++;
+		} // addTurn
+
+		/**
+		 * Ends the game being written.
+		 */
+		public void endGame() {
+			if (gameOffset < 0) {
+				throw new IllegalStateException("No game is being written");
+			}
+			window.putShort(gameOffset, (short) numOfTurns);
+			gameOffset = -1;
+			numOfGames++;
+		}
+
+		/**
+		 * Writes the specified game of a replay, which must be complete (see
+		 * GameReplay.isComplete).
+		 *
+		 * @param replay
+		 *            the replay of the games of a table
+		 * @param game
+		 *            the index of the game
+		 */
+		public void writeGame(GameReplay replay, int game) {
+			if (!replay.isComplete(game)) {
+				throw new IllegalArgumentException("Game " + game
+						+ " of table " + replay.getTableId()
+						+ " is not complete");
+			}
+			int numOfPlayers = replay.getNumOfPlayers();
+			if (hands.length != numOfPlayers) {
+				hands = new long[numOfPlayers];
+			}
+			for (int i = 0; i < numOfPlayers; i++) {
+				hands[i] = replay.getStartHand(game, i);
+			}
+			int moves = replay.getNumOfMoves(game);
+			beginGame(hands, moves == 0 ? 0 : replay.getMoveSeat(game, 0));
+			for (int i = 0; i < moves; i++) {
+				addTurn(replay.getMoveCards(game, i), replay.getMoveType(game,
+						i));
+			}
+			endGame();
+		} // writeGame
+
+		/**
+		 * Returns the number of games written so far.
+		 *
+		 * @return the number of games
+		 */
+		public long getNumOfGames() {
+			return numOfGames;
+		}
+
+		/**
+		 * Returns the size of the file with the games written so far.
+		 *
+		 * @return the size in bytes
+		 */
+		public long getSize() {
+			return windowStart + (gameOffset >= 0 ? gameOffset : offset) + 1;
+		}
+
+		/**
+		 * Writes the number of games into the header and closes the file. A
+		 * game which has not been ended is left out.
+		 *
+		 * @throws IOException
+		 *             if the file cannot be written
+		 */
+		public void close() throws IOException {
+			long size = getSize();
+			window = null;
+			// the header may be outside the window
+			ByteBuffer count = ByteBuffer.allocate(8).order(
+					ByteOrder.LITTLE_ENDIAN);
+			count.putLong(0, numOfGames);
+			channel.write(count, 8);
+			// the rest of the last window is cut off, and the spare byte
+			// after the last game is zero
+			channel.truncate(size - 1);
+			channel.write(ByteBuffer.allocate(1), size - 1);
+			channel.close();
+		} // close
+
+		/**
+		 * Writes the specified 7-byte value at the current offset. The byte
+		 * after it is overwritten with 0, which is the spare byte or the
+		 * start of the next value.
+		 */
+		private void putUnit(long value) {
+			window.putLong(offset, value);
+			offset += UNIT_SIZE;
+		}
+
+		/**
+		 * Maps the window of the file starting at the specified offset.
+		 */
+		private void map(long start) throws IOException {
+			window = channel.map(FileChannel.MapMode.READ_WRITE, start,
+					WRITE_WINDOW_SIZE);
+			window.order(ByteOrder.LITTLE_ENDIAN);
+			windowStart = start;
+			offset = 0;
+		}
+	} // Writer
+
+	/**
+	 * This inner class is used for reading the games of a file in order, one
+	 * at a time. The cards and turns of the current game are read in place
+	 * from the mapped file.
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	public static final class Reader {
+		private final Path file;
+		private long size; // the size of the file
+		private final long numOfGames;
+		private MappedByteBuffer window; // the window being read
+		private long windowStart; // the offset of the window in the file
+		private int nextOffset; // the offset of the next game in the window
+		private long gameIdx = -1; // the index of the current game
+		// the offset of the current game in the window, its number of
+		// players, the seat of the first player and its number of turns
+		private int gameOffset = -1;
+		private int numOfPlayers;
+		private int firstSeat;
+		private int numOfTurns;
+
+		/**
+		 * Creates and returns an instance of the Reader class, positioned
+		 * before the first game of the specified file.
+		 *
+		 * @param file
+		 *            the file
+		 * @throws IOException
+		 *             if the file cannot be read, or is not a file of games
+		 */
+		public Reader(Path file) throws IOException {
+			this.file = file;
+			map(0);
+			if (size <= HEADER_SIZE || window.getInt(0) != MAGIC
+					|| window.getShort(4) != VERSION) {
+				throw new IOException(file + " is not a file of games");
+			}
+			numOfGames = window.getLong(8);
+			nextOffset = HEADER_SIZE;
+		} // constructor
+
+		/**
+		 * Returns the number of games in the file.
+		 *
+		 * @return the number of games
+		 */
+		public long getNumOfGames() {
+			return numOfGames;
+		}
+
+		/**
+		 * Moves to the next game.
+		 *
+		 * @return true if there is a next game; false at the end of the file
+		 * @throws IOException
+		 *             if the file cannot be read, or the game is corrupt
+		 */
+		public boolean next() throws IOException {
+			if (gameIdx + 1 >= numOfGames) {
+				gameOffset = -1;
+				return false;
+			}
+			if (nextOffset + GAME_HEADER_SIZE > window.limit()) {
+				map(windowStart + nextOffset);
+			}
+			int turns = window.getShort(nextOffset) & 0xFFFF;
+			int players = window.get(nextOffset + 2);
+			int first = window.get(nextOffset + 3);
+			if (players <= 0 || players > MAX_PLAYERS || first < 0
+					|| first >= players) {
+				throw new IOException("Corrupt game at offset "
+						+ (windowStart + nextOffset) + " of " + file);
+			}
+			int length = GAME_HEADER_SIZE + UNIT_SIZE * (players + turns);
+			// the whole game and the spare byte after it must be in the
+			// window
+			if (nextOffset + length + 1 > window.limit()) {
+				map(windowStart + nextOffset);
+				if (length + 1 > window.limit()) {
+					throw new IOException(file + " is cut off");
+				}
+			}
+			gameOffset = nextOffset;
+			nextOffset += length;
+			gameIdx++;
+			numOfPlayers = players;
+			firstSeat = first;
+			numOfTurns = turns;
+			return true;
+		} // next
+
+		/**
+		 * Moves back to before the first game, e.g. to read the games again.
+		 *
+		 * @throws IOException
+		 *             if the file cannot be read
+		 */
+		public void rewind() throws IOException {
+			if (windowStart != 0) {
+				map(0);
+			}
+			nextOffset = HEADER_SIZE;
+			gameIdx = -1;
+			gameOffset = -1;
+		}
+
+		/**
+		 * Returns the index of the current game in the file.
+		 *
+		 * @return the index of the current game
+		 */
+		public long getGameIndex() {
+			return gameIdx;
+		}
+
+		/**
+		 * Returns the number of players of the current game.
+		 *
+		 * @return the number of players
+		 */
+		public int getNumOfPlayers() {
+			checkGame();
+			return numOfPlayers;
+		}
+
+		/**
+		 * Returns the seat of the player who made the first move of the
+		 * current game.
+		 *
+		 * @return the seat of the first player
+		 */
+		public int getFirstSeat() {
+			checkGame();
+			return firstSeat;
+		}
+
+		/**
+		 * Returns the cards dealt to the specified player in the current
+		 * game.
+		 *
+		 * @param seat
+		 *            the seat of the player
+		 * @return the mask of the cards dealt
+		 */
+		public long getHand(int seat) {
+			checkGame();
+			if (seat < 0 || seat >= numOfPlayers) {
+				throw new IndexOutOfBoundsException("The game has "
+						+ numOfPlayers + " players");
+			}
+			return unit(seat) & CardMask.FULL_DECK;
+		}
+
+		/**
+		 * Returns the number of turns of the current game.
+		 *
+		 * @return the number of turns
+		 */
+		public int getNumOfTurns() {
+			checkGame();
+			return numOfTurns;
+		}
+
+		/**
+		 * Returns the cards played in the specified turn of the current game.
+		 *
+		 * @param turn
+		 *            the index of the turn
+		 * @return the mask of the cards played, or 0 for a pass
+		 */
+		public long getCards(int turn) {
+			return turnUnit(turn) & CardMask.FULL_DECK;
+		}
+
+		/**
+		 * Returns the type of the hand played in the specified turn of the
+		 * current game.
+		 *
+		 * @param turn
+		 *            the index of the turn
+		 * @return the type code of the hand (see BigTwoGameState), or -1 for
+		 *         a pass
+		 */
+		public int getHandType(int turn) {
+			int handType = (int) (turnUnit(turn) >>> TYPE_SHIFT);
+			return handType == PASS ? -1 : handType;
+		}
+
+		/**
+		 * Returns whether the specified turn of the current game is a pass.
+		 *
+		 * @param turn
+		 *            the index of the turn
+		 * @return true if the player passed; false otherwise
+		 */
+		public boolean isPass(int turn) {
+			return turnUnit(turn) >>> TYPE_SHIFT == PASS;
+		}
+
+		/**
+		 * Returns the seat of the player who made the specified turn of the
+		 * current game.
+		 *
+		 * @param turn
+		 *            the index of the turn
+		 * @return the seat of the player
+		 */
+		public int getSeat(int turn) {
+			checkTurn(turn);
+			return (firstSeat + turn) % numOfPlayers;
+		}
+
+		/**
+		 * Returns the winner of the current game, i.e. the player who made
+		 * its last turn.
+		 *
+		 * @return the seat of the winner, or -1 if the game has no turns
+		 */
+		public int getWinner() {
+			checkGame();
+			return numOfTurns == 0 ? -1 : getSeat(numOfTurns - 1);
+		}
+
+		/**
+		 * Returns the 7-byte value at the specified index of the current
+		 * game, counting the cards dealt first.
+		 */
+		private long unit(int idx) {
+			return window.getLong(gameOffset + GAME_HEADER_SIZE + idx
+					* UNIT_SIZE) & UNIT_MASK;
+		}
+
+		/**
+		 * Returns the 7-byte value of the specified turn of the current game.
+		 */
+		private long turnUnit(int turn) {
+			checkTurn(turn);
+			return unit(numOfPlayers + turn);
+		}
+
+		/**
+		 * Checks that there is a current game.
+		 */
+		private void checkGame() {
+			if (gameOffset < 0) {
+				throw new IllegalStateException("No game has been read");
+			}
+		}
+
+		/**
+		 * Checks that the current game has a turn with the specified index.
+		 */
+		private void checkTurn(int turn) {
+			checkGame();
+			if (turn < 0 || turn >= numOfTurns) {
+				throw new IndexOutOfBoundsException("The game has "
+						+ numOfTurns + " turns");
+			}
+		}
+
+		/**
+		 * Maps the window of the file starting at the specified offset.
+		 */
+		private void map(long start) throws IOException {
+			try (FileChannel channel = FileChannel.open(file,
+					StandardOpenOption.READ)) {
+				size = channel.size();
+				window = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(READ_WINDOW_SIZE, size - start));
+			}
+			window.order(ByteOrder.LITTLE_ENDIAN);
+			nextOffset -= (int) (start - windowStart);
+			if (gameOffset >= 0) {
+				gameOffset -= (int) (start - windowStart);
+			}
+			windowStart = start;
+		} // map
+	} // Reader
+}
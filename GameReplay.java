@@ -0,0 +1,693 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * This class is used to model the replay of the games played at a table, as
+ * recorded in the journals of the server (see GameJournal). The records of
+ * the table are read once, and every game is replayed through the rules of
+ * BigTwoGameState, which checks each move again; a checkpoint of the state of
+ * the game is kept every CHECKPOINT_INTERVAL moves. The state after any
+ * number of moves of a game is then found by restoring the nearest
+ * checkpoint at or before it and replaying at most CHECKPOINT_INTERVAL - 1
+ * moves from there, without reading the journals again. All the tables in
+ * the journals can also be replayed at once with loadAll, e.g. to export
+ * their games (see GameRecordFile).
+ * <p>
+ * The moves and checkpoints are kept in flat arrays rather than in objects.
+ * An instance may only be used by one thread at a time.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class GameReplay {
+	/** The number of moves between two checkpoints of a game. */
+	public static final int CHECKPOINT_INTERVAL = 8;
+
+	private final int tableId;
+	private final int numOfPlayers;
+	// the games: their first moves, numbers of moves, first checkpoints,
+	// the times at which they started and whether they were dealt and
+	// played to the end here
+	private int numOfGames = 0;
+	private int[] gameFirstMoves = new int[16];
+	private int[] gameNumOfMoves = new int[16];
+	private int[] gameFirstCheckpoints = new int[16];
+	private long[] gameStartTimes = new long[16];
+	private boolean[] gameComplete = new boolean[16];
+	// the moves: the seat of each player who moved, the cards played (0 for
+	// a pass) and the type of the hand played (-1 for a pass)
+	private int numOfMoves = 0;
+	private byte[] moveSeats = new byte[256];
+	private long[] moveCards = new long[256];
+	private byte[] moveTypes = new byte[256];
+	// the checkpoints: the hands of the players (numOfPlayers each), the
+	// last hand on the table, the type of the last hand, the player who
+	// played it and the player whose turn it is (a byte each), and the
+	// version of the game
+	private int numOfCheckpoints = 0;
+	private long[] checkpointHands;
+	private long[] checkpointLastHands = new long[64];
+	private int[] checkpointDetails = new int[64];
+	private long[] checkpointVersions = new long[64];
+	// the hands restored from a checkpoint
+	private final long[] scratch;
+
+	/**
+	 * Creates and returns an instance of the GameReplay class with no games.
+	 */
+	private GameReplay(int tableId, int numOfPlayers) {
+		this.tableId = tableId;
+		this.numOfPlayers = numOfPlayers;
+		this.checkpointHands = new long[64 * numOfPlayers];
+		this.scratch = new long[numOfPlayers];
+	}
+
+	/**
+	 * Reads the records of the specified table from all the journals in the
+	 * specified directory, and replays its games.
+	 *
+	 * @param dir
+	 *            the directory of the journals
+	 * @param tableId
+	 *            the id of the table
+	 * @return the replay of the games played at the table
+	 * @throws IOException
+	 *             if a journal cannot be read, or it holds an illegal move
+	 */
+	public static GameReplay load(Path dir, int tableId) throws IOException {
+		Records records = read(dir, tableId, false);
+		return replayTable(tableId, records, records.sort(), 0, records.size);
+	}
+
+	/**
+	 * Reads the records of all the tables from all the journals in the
+	 * specified directory in one pass, and replays their games.
+	 *
+	 * @param dir
+	 *            the directory of the journals
+	 * @return the replays of the tables, in increasing order of their ids
+	 * @throws IOException
+	 *             if a journal cannot be read, or it holds an illegal move
+	 */
+	public static GameReplay[] loadAll(Path dir) throws IOException {
+		Records records = read(dir, 0, true);
+		Integer[] order = records.sort();
+		ArrayList<GameReplay> replays = new ArrayList<GameReplay>();
+		int from = 0;
+		while (from < order.length) {
+			int tableId = records.tableIds[order[from]];
+			int to = from + 1;
+			while (to < order.length && records.tableIds[order[to]] == tableId) {
+				to++;
+			}
+			replays.add(replayTable(tableId, records, order, from, to));
+			from = to;
+		}
+		return replays.toArray(new GameReplay[replays.size()]);
+	} // loadAll
+
+	/**
+	 * Reads the records of the specified table, or of all the tables, from
+	 * all the journals in the specified directory.
+	 */
+	private static Records read(Path dir, int tableId, boolean allTables)
+			throws IOException {
+		Records records = new Records();
+		for (String name : GameJournal.listJournals(dir)) {
+			GameJournal.Reader reader = new GameJournal.Reader(dir, name);
+			// the times at which the tables of this journal were opened
+			HashMap<Integer, Long> openedAt = new HashMap<Integer, Long>();
+			while (reader.next()) {
+				int id = reader.getTableId();
+				if (!allTables && id != tableId) {
+					continue;
+				}
+				if (reader.getType() == GameJournal.OPEN) {
+					openedAt.put(id, reader.getValue());
+				}
+				Long opened = openedAt.get(id);
+				records.add(opened == null ? 0 : opened, reader);
+			}
+		}
+		return records;
+	} // read
+
+	/**
+	 * Replays the records of a table at the specified range of the order of
+	 * the records.
+	 */
+	private static GameReplay replayTable(int tableId, Records records,
+			Integer[] order, int from, int to) throws IOException {
+		int numOfPlayers = 0;
+		for (int i = from; i < to; i++) {
+			if (records.types[order[i]] == GameJournal.DEAL) {
+				numOfPlayers = Math.max(numOfPlayers,
+						records.seats[order[i]] + 1);
+			}
+		}
+		GameReplay replay = new GameReplay(tableId, numOfPlayers);
+		if (numOfPlayers > 0) {
+			replay.replay(records, order, from, to);
+		}
+		return replay;
+	} // replayTable
+
+	/**
+	 * Returns the id of the table.
+	 *
+	 * @return the id of the table
+	 */
+	public int getTableId() {
+		return tableId;
+	}
+
+	/**
+	 * Returns the number of players at the table.
+	 *
+	 * @return the number of players at the table, or 0 if no game has been
+	 *         dealt
+	 */
+	public int getNumOfPlayers() {
+		return numOfPlayers;
+	}
+
+	/**
+	 * Returns the number of games played at the table, including a game
+	 * taken over from another server and any game cut short.
+	 *
+	 * @return the number of games
+	 */
+	public int getNumOfGames() {
+		return numOfGames;
+	}
+
+	/**
+	 * Returns the number of moves of the specified game.
+	 *
+	 * @param game
+	 *            the index of the game
+	 * @return the number of moves of the game
+	 */
+	public int getNumOfMoves(int game) {
+		checkGame(game);
+		return gameNumOfMoves[game];
+	}
+
+	/**
+	 * Returns the time at which the specified game started.
+	 *
+	 * @param game
+	 *            the index of the game
+	 * @return the time in milliseconds since the epoch
+	 */
+	public long getStartTime(int game) {
+		checkGame(game);
+		return gameStartTimes[game];
+	}
+
+	/**
+	 * Returns whether the specified game was dealt at this table and played
+	 * to the end, rather than taken over from another server or cut short.
+	 *
+	 * @param game
+	 *            the index of the game
+	 * @return true if the game is complete; false otherwise
+	 */
+	public boolean isComplete(int game) {
+		checkGame(game);
+		return gameComplete[game];
+	}
+
+	/**
+	 * Returns the cards held by the specified player at the start of the
+	 * specified game, i.e. the cards dealt to the player unless the game was
+	 * taken over from another server.
+	 *
+	 * @param game
+	 *            the index of the game
+	 * @param seat
+	 *            the seat of the player
+	 * @return the mask of the cards held by the player
+	 */
+	public long getStartHand(int game, int seat) {
+		checkGame(game);
+		if (seat < 0 || seat >= numOfPlayers) {
+			throw new IndexOutOfBoundsException("Table " + tableId + " has "
+					+ numOfPlayers + " players");
+		}
+		return checkpointHands[gameFirstCheckpoints[game] * numOfPlayers
+				+ seat];
+	}
+
+	/**
+	 * Returns the seat of the player who made the specified move.
+	 *
+	 * @param game
+	 *            the index of the game
+	 * @param move
+	 *            the index of the move in the game
+	 * @return the seat of the player
+	 */
+	public int getMoveSeat(int game, int move) {
+		return moveSeats[moveIndex(game, move)];
+	}
+
+	/**
+	 * Returns the cards played in the specified move.
+	 *
+	 * @param game
+	 *            the index of the game
+	 * @param move
+	 *            the index of the move in the game
+	 * @return the mask of the cards played, or 0 for a pass
+	 */
+	public long getMoveCards(int game, int move) {
+		return moveCards[moveIndex(game, move)];
+	}
+
+	/**
+	 * Returns the type of the hand played in the specified move.
+	 *
+	 * @param game
+	 *            the index of the game
+	 * @param move
+	 *            the index of the move in the game
+	 * @return the type code of the hand (see BigTwoGameState), or -1 for a
+	 *         pass
+	 */
+	public int getMoveType(int game, int move) {
+		return moveTypes[moveIndex(game, move)];
+	}
+
+	/**
+	 * Returns the state of the specified game after the specified number of
+	 * moves.
+	 *
+	 * @param game
+	 *            the index of the game
+	 * @param numOfMovesMade
+	 *            the number of moves made, from 0 (the deal) to the number of
+	 *            moves of the game
+	 * @return the state of the game
+	 */
+	public BigTwoGameState getState(int game, int numOfMovesMade) {
+		BigTwoGameState state = new BigTwoGameState(numOfPlayers);
+		seek(game, numOfMovesMade, state);
+		return state;
+	}
+
+	/**
+	 * Puts the specified state in the state of the specified game after the
+	 * specified number of moves, by restoring the nearest checkpoint and
+	 * replaying the moves after it.
+	 *
+	 * @param game
+	 *            the index of the game
+	 * @param numOfMovesMade
+	 *            the number of moves made, from 0 (the deal) to the number of
+	 *            moves of the game
+	 * @param state
+	 *            the state, for as many players as the table
+	 */
+	public void seek(int game, int numOfMovesMade, BigTwoGameState state) {
+		checkGame(game);
+		if (numOfMovesMade < 0 || numOfMovesMade > gameNumOfMoves[game]) {
+			throw new IndexOutOfBoundsException("Game " + game + " has "
+					+ gameNumOfMoves[game] + " moves");
+		}
+		if (state.getNumOfPlayers() != numOfPlayers) {
+			throw new IllegalArgumentException("The table has " + numOfPlayers
+					+ " players");
+		}
+		int checkpoint = gameFirstCheckpoints[game] + numOfMovesMade
+				/ CHECKPOINT_INTERVAL;
+		System.arraycopy(checkpointHands, checkpoint * numOfPlayers, scratch,
+				0, numOfPlayers);
+		int details = checkpointDetails[checkpoint];
+		state.restore(scratch, checkpointLastHands[checkpoint],
+				(byte) (details >> 16), (byte) (details >> 8), (byte) details,
+				checkpointVersions[checkpoint]);
+		int first = gameFirstMoves[game];
+		int move = numOfMovesMade - numOfMovesMade % CHECKPOINT_INTERVAL;
+		for (; move < numOfMovesMade; move++) {
+			int seat = moveSeats[first + move];
+			state.makeMove(seat, CardMask.toIndices(state.getHand(seat),
+					moveCards[first + move]));
+		}
+	} // seek
+
+	/**
+	 * Replays the records of the table at the specified range of the order of
+	 * the records, keeping the moves of each game and its checkpoints.
+	 */
+	private void replay(Records records, Integer[] order, int from, int to)
+			throws IOException {
+		BigTwoGameState state = new BigTwoGameState(numOfPlayers);
+		long[] hands = new long[numOfPlayers];
+		long openedAt = -1;
+		boolean playing = false;
+		boolean dealt = false; // whether the game was dealt at this table
+		for (int k = from; k < to; k++) {
+			int i = order[k];
+			if (records.openedAt[i] != openedAt) {
+				// the table with this id on another run of the server
+				openedAt = records.openedAt[i];
+				Arrays.fill(hands, 0);
+				playing = false;
+			}
+			int seat = records.seats[i];
+			switch (records.types[i]) {
+			case GameJournal.DEAL:
+				hands[seat] = records.values[i];
+				break;
+			case GameJournal.START:
+				state.start(hands);
+				startGame(state, records.times[i]);
+				playing = true;
+				dealt = true;
+				break;
+			case GameJournal.RESTORE:
+				if (playing && isCurrent(state, hands, seat)) {
+					// the game being played, after the table has been moved
+					// to another worker or recovered after a restart
+					break;
+				}
+				int aux = records.auxes[i];
+				int lastHandType = aux & 0xFF;
+				int lastHandIdx = (aux >> 8) & 0xFF;
+				state.restore(hands, records.values[i],
+						lastHandType == 0xFF ? -1 : lastHandType,
+						lastHandIdx == 0xFF ? -1 : lastHandIdx, seat,
+						records.versions[i]);
+				playing = state.isInProgress();
+				if (playing) {
+					startGame(state, records.times[i]);
+				}
+				dealt = false;
+				break;
+			case GameJournal.PLAY:
+			case GameJournal.PASS:
+				if (!playing) {
+					throw new IOException("Move without a game at table "
+							+ tableId + ": " + records.describe(i));
+				}
+				long cards = records.types[i] == GameJournal.PLAY
+						? records.values[i] : 0;
+				MoveResult result = state.makeMove(seat, CardMask.toIndices(
+						state.getHand(seat), cards));
+				if (!result.isLegal() || result.getCards() != cards) {
+					throw new IOException("Illegal move at table " + tableId
+							+ ": " + records.describe(i));
+				}
+				addMove(state, seat, cards, result.getHandType());
+				playing = !state.endOfGame();
+				gameComplete[numOfGames - 1] = dealt && !playing;
+				break;
+			case GameJournal.QUIT:
+			case GameJournal.CLOSE:
+			case GameJournal.EXPORT:
+				playing = false;
+				break;
+			default:
+				break;
+			}
+		}
+	} // replay
+
+	/**
+	 * Returns whether the specified state has the specified hands and the
+	 * turn of the specified player.
+	 */
+	private boolean isCurrent(BigTwoGameState state, long[] hands,
+			int currentIdx) {
+		if (state.getCurrentIdx() != currentIdx) {
+			return false;
+		}
+		for (int i = 0; i < numOfPlayers; i++) {
+			if (state.getHand(i) != hands[i]) {
+				return false;
+			}
+		}
+		return true;
+	} // isCurrent
+
+	/**
+	 * Starts a new game in the specified state, with a checkpoint.
+	 */
+	private void startGame(BigTwoGameState state, long time) {
+		if (numOfGames == gameFirstMoves.length) {
+			int length = numOfGames * 2;
+			gameFirstMoves = Arrays.copyOf(gameFirstMoves, length);
+			gameNumOfMoves = Arrays.copyOf(gameNumOfMoves, length);
+			gameFirstCheckpoints = Arrays.copyOf(gameFirstCheckpoints, length);
+			gameStartTimes = Arrays.copyOf(gameStartTimes, length);
+			gameComplete = Arrays.copyOf(gameComplete, length);
+		}
+		gameFirstMoves[numOfGames] = numOfMoves;
+		gameNumOfMoves[numOfGames] = 0;
+		gameFirstCheckpoints[numOfGames] = numOfCheckpoints;
+		gameStartTimes[numOfGames] = time;
+		gameComplete[numOfGames] = false;
+		numOfGames++;
+		addCheckpoint(state);
+	} // startGame
+
+	/**
+	 * Adds a move to the current game, and a checkpoint after it if one is
+	 * due.
+	 */
+	private void addMove(BigTwoGameState state, int seat, long cards,
+			int handType) {
+		if (numOfMoves == moveSeats.length) {
+			moveSeats = Arrays.copyOf(moveSeats, numOfMoves * 2);
+			moveCards = Arrays.copyOf(moveCards, numOfMoves * 2);
+			moveTypes = Arrays.copyOf(moveTypes, numOfMoves * 2);
+		}
+		moveSeats[numOfMoves] = (byte) seat;
+		moveCards[numOfMoves] = cards;
+		moveTypes[numOfMoves] = (byte) handType;
+		numOfMoves++;
+		if (++gameNumOfMoves[numOfGames - 1] % CHECKPOINT_INTERVAL == 0) {
+			addCheckpoint(state);
+		}
+	} // addMove
+
+	/**
+	 * Adds a checkpoint of the specified state.
+	 */
+	private void addCheckpoint(BigTwoGameState state) {
+		if (numOfCheckpoints == checkpointVersions.length) {
+			int length = numOfCheckpoints * 2;
+			checkpointHands = Arrays.copyOf(checkpointHands, length
+					* numOfPlayers);
+			checkpointLastHands = Arrays.copyOf(checkpointLastHands, length);
+			checkpointDetails = Arrays.copyOf(checkpointDetails, length);
+			checkpointVersions = Arrays.copyOf(checkpointVersions, length);
+		}
+		for (int i = 0; i < numOfPlayers; i++) {
+			checkpointHands[numOfCheckpoints * numOfPlayers + i] = state
+					.getHand(i);
+		}
+		Hand lastHand = state.getLastHand();
+		int lastHandType = lastHand == null ? -1 : BigTwoGameState
+				.getTypeCode(lastHand);
+		checkpointLastHands[numOfCheckpoints] = lastHand == null ? 0
+				: CardMask.of(lastHand);
+		checkpointDetails[numOfCheckpoints] = (lastHandType & 0xFF) << 16
+				| (state.getLastHandIdx() & 0xFF) << 8
+				| (state.getCurrentIdx() & 0xFF);
+		checkpointVersions[numOfCheckpoints] = state.getVersion();
+		numOfCheckpoints++;
+	} // addCheckpoint
+
+	/**
+	 * Returns the index in the arrays of moves of the specified move.
+	 */
+	private int moveIndex(int game, int move) {
+		checkGame(game);
+		if (move < 0 || move >= gameNumOfMoves[game]) {
+			throw new IndexOutOfBoundsException("Game " + game + " has "
+					+ gameNumOfMoves[game] + " moves");
+		}
+		return gameFirstMoves[game] + move;
+	}
+
+	/**
+	 * Checks that there is a game with the specified index.
+	 */
+	private void checkGame(int game) {
+		if (game < 0 || game >= numOfGames) {
+			throw new IndexOutOfBoundsException("Table " + tableId + " has "
+					+ numOfGames + " games");
+		}
+	}
+
+	/**
+	 * main() method for replaying the games of a table from the journals of
+	 * a server. Without a game, the games of the table are listed; with a
+	 * game and a number of moves, the state of the game after that many
+	 * moves is printed.
+	 *
+	 * @param args
+	 *            the directory of the journals and the id of the table,
+	 *            optionally followed by the index of a game and the number of
+	 *            moves made (all of them by default)
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: java GameReplay <journal dir>"
+					+ " <table id> [<game> [<moves>]]");
+			return;
+		}
+		try {
+			long start = System.nanoTime();
+			GameReplay replay = load(Paths.get(args[0]),
+					Integer.parseInt(args[1]));
+			System.out.println("Replays " + replay.getNumOfGames()
+					+ " games of table " + replay.getTableId() + " in "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+			if (args.length == 2) {
+				for (int i = 0; i < replay.getNumOfGames(); i++) {
+					System.out.println("Game " + i + ": started at "
+							+ Instant.ofEpochMilli(replay
+									.getStartTime(i)) + ", "
+							+ replay.getNumOfMoves(i) + " moves");
+				}
+				return;
+			}
+			int game = Integer.parseInt(args[2]);
+			int moves = args.length > 3 ? Integer.parseInt(args[3]) : replay
+					.getNumOfMoves(game);
+			BigTwoGameState state = new BigTwoGameState(replay
+					.getNumOfPlayers());
+			start = System.nanoTime();
+			replay.seek(game, moves, state);
+			long elapsed = System.nanoTime() - start;
+			System.out.println("Game " + game + " after " + moves
+					+ " moves (found in " + elapsed / 1000 + " us):");
+			for (int i = 0; i < state.getNumOfPlayers(); i++) {
+				System.out.println("Player " + i
+						+ (i == state.getCurrentIdx() ? " (to move)" : "")
+						+ ": " + CardMask.toCardList(state.getHand(i)));
+			}
+			Hand lastHand = state.getLastHand();
+			System.out.println("Last hand: "
+					+ (lastHand == null ? "none" : lastHand.getType() + " "
+							+ lastHand + " by Player "
+							+ state.getLastHandIdx()));
+		} catch (IOException ex) {
+			System.err.println("Error in replaying the journals in " + args[0]);
+			ex.printStackTrace();
+		} catch (IndexOutOfBoundsException ex) {
+			System.err.println(ex.getMessage());
+		}
+	} // main
+
+	/**
+	 * This inner class is used to model the records of a table read from the
+	 * journals, in flat arrays
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private static final class Records {
+		private int size = 0;
+		private int[] tableIds = new int[256];
+		private long[] openedAt = new long[256];
+		private int[] seqs = new int[256];
+		private long[] times = new long[256];
+		private byte[] types = new byte[256];
+		private byte[] seats = new byte[256];
+		private int[] auxes = new int[256];
+		private long[] values = new long[256];
+		private int[] versions = new int[256];
+
+		/**
+		 * Adds the current record of the specified reader.
+		 */
+		void add(long opened, GameJournal.Reader reader) {
+			if (size == seqs.length) {
+				int length = size * 2;
+				tableIds = Arrays.copyOf(tableIds, length);
+				openedAt = Arrays.copyOf(openedAt, length);
+				seqs = Arrays.copyOf(seqs, length);
+				times = Arrays.copyOf(times, length);
+				types = Arrays.copyOf(types, length);
+				seats = Arrays.copyOf(seats, length);
+				auxes = Arrays.copyOf(auxes, length);
+				values = Arrays.copyOf(values, length);
+				versions = Arrays.copyOf(versions, length);
+			}
+			tableIds[size] = reader.getTableId();
+			openedAt[size] = opened;
+			seqs[size] = reader.getSeq();
+			times[size] = reader.getTime();
+			types[size] = (byte) reader.getType();
+			seats[size] = (byte) reader.getSeat();
+			auxes[size] = reader.getAux();
+			values[size] = reader.getValue();
+			versions[size] = reader.getVersion();
+			size++;
+		} // add
+
+		/**
+		 * Returns the indices of the records in the order of the events:
+		 * by the table they belong to (its id, then the time it was opened),
+		 * then by their number at the table.
+		 */
+		Integer[] sort() {
+			Integer[] order = new Integer[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new EventOrder(this));
+			return order;
+		}
+
+		/**
+		 * Returns a description of the specified record for an error
+		 * message.
+		 */
+		String describe(int i) {
+			return "event " + seqs[i] + " (type " + types[i] + ", seat "
+					+ seats[i] + ", value " + Long.toHexString(values[i])
+					+ ")";
+		}
+	} // Records
+
+	/**
+	 * This inner class is used for ordering the records of the tables by the
+	 * table they belong to, then by their number at the table
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private static final class EventOrder implements Comparator<Integer> {
+		private final Records records;
+
+		/**
+		 * Creates and returns an instance of the EventOrder class.
+		 */
+		EventOrder(Records records) {
+			this.records = records;
+		} // constructor
+
+		// implementation of method from the Comparator interface
+		public int compare(Integer a, Integer b) {
+			int order = Integer.compare(records.tableIds[a],
+					records.tableIds[b]);
+			if (order != 0) {
+				return order;
+			}
+			order = Long.compare(records.openedAt[a], records.openedAt[b]);
+			return order != 0 ? order : Integer.compare(records.seqs[a],
+					records.seqs[b]);
+		}
+	} // EventOrder
+}
@@ -0,0 +1,125 @@
+/**
+ * This class is used to model what a player needs to know to pick up a game
+ * where it stands, e.g. when a new game starts or after reconnecting to the
+ * server: the player's own cards, the last hand on the table, whose turn it is,
+ * how many cards each player holds and the version of the game.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public final class GameSnapshot {
+	private final long hand;
+	private final long lastHand;
+	private final int lastHandType;
+	private final int lastHandIdx;
+	private final int currentIdx;
+	private final int[] numOfCards;
+	private final long version;
+
+	/**
+	 * Creates and returns an instance of the GameSnapshot class.
+	 *
+	 * @param hand
+	 *            the mask of the cards held by the player
+	 * @param lastHand
+	 *            the mask of the last hand on the table, or 0 if none
+	 * @param lastHandType
+	 *            the type of the last hand on the table, or -1 if none
+	 * @param lastHandIdx
+	 *            the index of the player who played the last hand on the
+	 *            table, or -1 if none
+	 * @param currentIdx
+	 *            the index of the player whose turn it is, or -1 if no game is
+	 *            being played
+	 * @param numOfCards
+	 *            the number of cards held by each player
+	 * @param version
+	 *            the version of the game
+	 */
+	public GameSnapshot(long hand, long lastHand, int lastHandType,
+			int lastHandIdx, int currentIdx, int[] numOfCards, long version) {
+		this.hand = hand;
+		this.lastHand = lastHand;
+		this.lastHandType = lastHandType;
+		this.lastHandIdx = lastHandIdx;
+		this.currentIdx = currentIdx;
+		this.numOfCards = numOfCards.clone();
+		this.version = version;
+	}
+
+	/**
+	 * Returns the cards held by the player.
+	 *
+	 * @return the mask of the cards held by the player
+	 */
+	public long getHand() {
+		return hand;
+	}
+
+	/**
+	 * Returns the last hand on the table.
+	 *
+	 * @return the mask of the last hand on the table, or 0 if none
+	 */
+	public long getLastHand() {
+		return lastHand;
+	}
+
+	/**
+	 * Returns the type of the last hand on the table.
+	 *
+	 * @return the type of the last hand on the table, or -1 if none
+	 */
+	public int getLastHandType() {
+		return lastHandType;
+	}
+
+	/**
+	 * Returns the index of the player who played the last hand on the table.
+	 *
+	 * @return the index of the player who played the last hand on the table,
+	 *         or -1 if none
+	 */
+	public int getLastHandIdx() {
+		return lastHandIdx;
+	}
+
+	/**
+	 * Returns the index of the player whose turn it is.
+	 *
+	 * @return the index of the player whose turn it is, or -1 if no game is
+	 *         being played
+	 */
+	public int getCurrentIdx() {
+		return currentIdx;
+	}
+
+	/**
+	 * Returns the number of players in the game.
+	 *
+	 * @return the number of players in the game
+	 */
+	public int getNumOfPlayers() {
+		return numOfCards.length;
+	}
+
+	/**
+	 * Returns the number of cards held by the specified player.
+	 *
+	 * @param playerID
+	 *            the playerID of the player
+	 * @return the number of cards held by the player
+	 */
+	public int getNumOfCards(int playerID) {
+		return numOfCards[playerID];
+	}
+
+	/**
+	 * Returns the version of the game.
+	 *
+	 * @return the version of the game
+	 */
+	public long getVersion() {
+		return version;
+	}
+}
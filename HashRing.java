@@ -0,0 +1,131 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is used to model a consistent hash ring mapping table ids to the
+ * nodes of a cluster. Each node is placed at a number of points on the ring,
+ * and a table belongs to the first node at or after the hash of its id, so
+ * adding or removing a node only moves the tables next to its points.
+ * <p>
+ * The ring depends on nothing but the names of its nodes, so the gateway and
+ * every node compute the same owner for each table. A ring is immutable; a
+ * change of membership makes a new ring.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public final class HashRing {
+	/**
+	 * The number of points of each node on the ring, which evens out the
+	 * share of the tables each node gets.
+	 */
+	public static final int POINTS_PER_NODE = 128;
+
+	private final List<String> nodes;
+	private final int[] points; // hashes in ascending order
+	private final String[] owners; // node of each point
+
+	/**
+	 * Creates and returns an instance of the HashRing class.
+	 *
+	 * @param nodes
+	 *            the names of the nodes, e.g. "127.0.0.1:2397"
+	 */
+	public HashRing(List<String> nodes) {
+		ArrayList<String> sorted = new ArrayList<String>(nodes);
+		Collections.sort(sorted);
+		this.nodes = Collections.unmodifiableList(sorted);
+		long[] entries = new long[sorted.size() * POINTS_PER_NODE];
+		for (int n = 0; n < sorted.size(); n++) {
+			for (int i = 0; i < POINTS_PER_NODE; i++) {
+				int hash = hash(sorted.get(n) + "#" + i);
+				// sorts by hash, then by node, so that ties break the same
+				// way everywhere
+				entries[n * POINTS_PER_NODE + i] = ((long) (hash ^ Integer.MIN_VALUE) << 32)
+						| n;
+			}
+		}
+		Arrays.sort(entries);
+		points = new int[entries.length];
+		owners = new String[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			points[i] = (int) (entries[i] >> 32) ^ Integer.MIN_VALUE;
+			owners[i] = sorted.get((int) entries[i]);
+		}
+	}
+
+	/**
+	 * Returns the names of the nodes on this ring, in ascending order.
+	 *
+	 * @return the names of the nodes
+	 */
+	public List<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Returns whether the specified node is on this ring.
+	 *
+	 * @param node
+	 *            the name of the node
+	 * @return true if the node is on this ring; false otherwise
+	 */
+	public boolean contains(String node) {
+		return nodes.contains(node);
+	}
+
+	/**
+	 * Returns the node owning the table with the specified id.
+	 *
+	 * @param tableId
+	 *            the id of the table
+	 * @return the name of the node, or null if the ring is empty
+	 */
+	public String getOwner(int tableId) {
+		if (points.length == 0) {
+			return null;
+		}
+		int hash = mix(tableId);
+		// the first point at or after the hash, wrapping around
+		int low = 0;
+		int high = points.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (Integer.compareUnsigned(points[mid], hash) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return owners[low == points.length ? 0 : low];
+	} // getOwner
+
+	/**
+	 * Returns the 32-bit FNV-1a hash of the UTF-8 bytes of a string, spread
+	 * over all bits.
+	 */
+	private static int hash(String key) {
+		int hash = 0x811C9DC5;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xFF;
+			hash *= 0x01000193;
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * Spreads the bits of an integer (the finalizer of MurmurHash3), so that
+	 * consecutive table ids land far apart on the ring.
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,209 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is used to model a histogram of latencies with a bounded
+ * relative error. Values below 2^PRECISION_BITS have a bucket of their own;
+ * above that, each power of two is split into 2^(PRECISION_BITS - 1) buckets,
+ * so that a value is reported at most about 3% above its true value whatever
+ * its magnitude. Values are recorded without locking from any number of
+ * threads, and the histogram can be read at any time while it is being
+ * recorded into.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class LatencyHistogram {
+	// the number of significant bits kept of each value
+	private static final int PRECISION_BITS = 6;
+	// the number of buckets per power of two above 2^PRECISION_BITS
+	private static final int HALF = 1 << (PRECISION_BITS - 1);
+	// the number of buckets covering all non-negative long values
+	private static final int NUM_BUCKETS = (64 - PRECISION_BITS + 1) * HALF
+			+ HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records the specified value. Negative values are recorded as 0.
+	 *
+	 * @param value
+	 *            the value, e.g. a latency in nanoseconds
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get())
+				&& !max.compareAndSet(current, value)) {
+			// another thread has raised the maximum in the meantime
+		}
+	} // record
+
+	/**
+	 * Records the specified value, and also the values which would have been
+	 * recorded had the measured operations not been held up by this one: a
+	 * value of one expected interval less, of two intervals less, and so on.
+	 * This corrects for coordinated omission when the operations are meant to
+	 * start at a fixed interval but a new one only starts once the previous
+	 * one is over.
+	 *
+	 * @param value
+	 *            the value, e.g. a latency in nanoseconds
+	 * @param expectedInterval
+	 *            the interval at which the operations are meant to start, or 0
+	 *            if there is none
+	 */
+	public void record(long value, long expectedInterval) {
+		record(value);
+		if (expectedInterval <= 0) {
+			return;
+		}
+		long missed = value - expectedInterval;
+		while (missed >= expectedInterval) {
+			record(missed);
+			missed -= expectedInterval;
+		}
+	} // record
+
+	/**
+	 * Forgets all the values recorded so far. Values recorded while this runs
+	 * may be partly forgotten.
+	 */
+	public void reset() {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * Returns the number of values recorded.
+	 *
+	 * @return the number of values recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the sum of the values recorded.
+	 *
+	 * @return the sum of the values recorded
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * Returns the largest value recorded.
+	 *
+	 * @return the largest value recorded, or 0 if none
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean of the values recorded.
+	 *
+	 * @return the mean of the values recorded, or 0 if none
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Returns the value below which the specified share of the values recorded
+	 * fall, i.e. the highest value of the bucket holding that share.
+	 *
+	 * @param percentile
+	 *            the share of the values in percent, e.g. 99.9
+	 * @return the value at the percentile, or 0 if no value is recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = 0;
+		long[] snapshot = new long[NUM_BUCKETS];
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total
+				* Math.min(percentile, 100.0) / 100.0));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestValueOf(i), max.get());
+			}
+		}
+		return max.get();
+	} // getValueAtPercentile
+
+	/**
+	 * Returns the number of values recorded which are not larger than each of
+	 * the specified bounds, counting a bucket only if all its values are, as
+	 * needed for the cumulative buckets of an exported histogram. The counts
+	 * are taken from a single pass, so they never decrease from one bound to
+	 * the next.
+	 *
+	 * @param bounds
+	 *            the upper bounds, in increasing order
+	 * @return the count for each bound, followed by the number of all the
+	 *         values counted
+	 */
+	public long[] getCountsAtOrBelow(long[] bounds) {
+		long[] result = new long[bounds.length + 1];
+		long seen = 0;
+		int next = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			// the bounds below the highest value of this bucket are done
+			while (next < bounds.length && highestValueOf(i) > bounds[next]) {
+				result[next++] = seen;
+			}
+			seen += counts.get(i);
+		}
+		while (next < bounds.length) {
+			result[next++] = seen;
+		}
+		result[bounds.length] = seen;
+		return result;
+	} // getCountsAtOrBelow
+
+	/**
+	 * Returns the bucket of the specified non-negative value.
+	 */
+	private static int bucketOf(long value) {
+		if (value < 2 * HALF) {
+			return (int) value;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(value) - PRECISION_BITS;
+		return (shift << (PRECISION_BITS - 1)) + (int) (value >>> shift);
+	}
+
+	/**
+	 * Returns the highest value falling into the specified bucket.
+	 */
+	private static long highestValueOf(int bucket) {
+		if (bucket < 2 * HALF) {
+			return bucket;
+		}
+		int shift = (bucket >> (PRECISION_BITS - 1)) - 1;
+		long mantissa = bucket - ((long) shift << (PRECISION_BITS - 1));
+		long highest = ((mantissa + 1) << shift) - 1;
+		return highest < 0 ? Long.MAX_VALUE : highest;
+	}
+}
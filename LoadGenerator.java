@@ -0,0 +1,848 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is used to model a load generator for a card game server. It
+ * opens thousands of connections to the server at a set rate, each of them a
+ * bot which joins a table, gets ready, plays legal moves after a set think
+ * time and chats at a set rate, like a player using BigTwoClient would, and
+ * reports once a second and at the end the connection rate, the number of
+ * messages sent and received per second, and the percentiles of the move
+ * latency, i.e. the time from a move being made until the server has
+ * broadcast it.
+ * <p>
+ * The bots are spread over a few event loops, each serving its connections
+ * without blocking. A bot only makes a move once it is told it is its turn,
+ * so a server which stalls is also sent fewer moves, and the latencies
+ * measured from the moves actually sent would hide the stall (coordinated
+ * omission). The corrected latency is therefore measured from the time at
+ * which each move was meant to be sent, and a move taking longer than the
+ * think time is also counted once for each think time it held up its table,
+ * as if the table had gone on playing meanwhile. The uncorrected latency is
+ * reported alongside.
+ * <p>
+ * Connections are opened with blocking connects, on one thread per loop,
+ * which are quick since the server is meant to be on the same host or a local
+ * network.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class LoadGenerator {
+	// The duration (in milliseconds) of a tick of the timing wheels, which is
+	// the precision of the think time, and the number of their slots
+	private static final long TICK_DURATION = 1;
+	private static final int WHEEL_SLOTS = 1024;
+	// The interval (in milliseconds) between two reports
+	private static final long REPORT_INTERVAL = 1000;
+	// The interval (in milliseconds) at which idle bots send a HEARTBEAT
+	// message, as BigTwoClient does
+	private static final long HEARTBEAT_INTERVAL = 15000;
+	// The percentiles of the latencies reported at the end
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+	private final InetSocketAddress address; // the address of the server
+	private final int numOfBots; // the number of bots
+	private final double connectRate; // the connections opened per second
+	private final long thinkTime; // the think time of the bots, in ms
+	private final double chatRate; // the chat messages per bot per minute
+	private final BotLoop[] loops; // the event loops serving the bots
+
+	private final AtomicLong connected = new AtomicLong();
+	private final AtomicLong failedConnections = new AtomicLong();
+	private final AtomicLong closedConnections = new AtomicLong();
+	private final AtomicLong fullRejections = new AtomicLong();
+	private final AtomicLong messagesSent = new AtomicLong();
+	private final AtomicLong messagesReceived = new AtomicLong();
+	private final AtomicLong movesPlayed = new AtomicLong();
+	private final AtomicLong illegalMoves = new AtomicLong();
+	private final AtomicLong gamesPlayed = new AtomicLong();
+	private final AtomicLong chatsSent = new AtomicLong();
+	// the reason why a connection could not be opened, if any
+	private volatile String connectError = null;
+
+	// the time from the moment a connection was meant to be opened until it
+	// is open, in nanoseconds
+	private final LatencyHistogram connectLatency = new LatencyHistogram();
+	// the move latency corrected for coordinated omission, in nanoseconds
+	private final LatencyHistogram moveLatency = new LatencyHistogram();
+	// the move latency as measured from the moves actually sent
+	private final LatencyHistogram rawMoveLatency = new LatencyHistogram();
+	// the corrected move latency since the last report
+	private final LatencyHistogram intervalLatency = new LatencyHistogram();
+
+	/**
+	 * Creates and returns an instance of the LoadGenerator class.
+	 *
+	 * @param address
+	 *            the address of the server
+	 * @param numOfBots
+	 *            the number of bots
+	 * @param connectRate
+	 *            the number of connections opened per second
+	 * @param thinkTime
+	 *            the time (in milliseconds) a bot takes to make a move
+	 * @param chatRate
+	 *            the number of chat messages a seated bot sends per minute, or
+	 *            0 for none
+	 * @param numOfLoops
+	 *            the number of event loops serving the bots
+	 * @throws IOException
+	 *             if an event loop cannot be created
+	 */
+	public LoadGenerator(InetSocketAddress address, int numOfBots,
+			double connectRate, long thinkTime, double chatRate,
+			int numOfLoops) throws IOException {
+		this.address = address;
+		this.numOfBots = numOfBots;
+		this.connectRate = connectRate;
+		this.thinkTime = thinkTime;
+		this.chatRate = chatRate;
+		this.loops = new BotLoop[numOfLoops];
+		for (int i = 0; i < numOfLoops; i++) {
+			loops[i] = new BotLoop("bots-" + i);
+		}
+	}
+
+	/**
+	 * Runs the load for the specified duration, printing a report once a
+	 * second and a summary at the end.
+	 *
+	 * @param duration
+	 *            the duration of the run in seconds
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted
+	 */
+	public void run(long duration) throws InterruptedException {
+		Thread[] threads = new Thread[loops.length];
+		for (int i = 0; i < loops.length; i++) {
+			threads[i] = new Thread(loops[i], loops[i].getName());
+			threads[i].start();
+		}
+		// each loop has a connector of its own, so that a connect which
+		// takes long does not hold up those of the other loops
+		Thread[] connectors = new Thread[loops.length];
+		for (int i = 0; i < loops.length; i++) {
+			connectors[i] = new Thread(new ConnectTask(i), "connector-" + i);
+			connectors[i].setDaemon(true);
+			connectors[i].start();
+		}
+
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(duration);
+		long nextReport = start;
+		long lastConnected = 0;
+		long lastSent = 0;
+		long lastReceived = 0;
+		long lastMoves = 0;
+		while (true) {
+			nextReport += TimeUnit.MILLISECONDS.toNanos(REPORT_INTERVAL);
+			long now = System.nanoTime();
+			if (nextReport > end) {
+				if (end > now) {
+					TimeUnit.NANOSECONDS.sleep(end - now);
+				}
+				break;
+			}
+			TimeUnit.NANOSECONDS.sleep(nextReport - now);
+
+			long numConnected = connected.get();
+			long numSent = messagesSent.get();
+			long numReceived = messagesReceived.get();
+			long numMoves = movesPlayed.get();
+			System.out.printf("[%4ds] %d connected (+%d), %d sent/s,"
+					+ " %d received/s, %d moves/s, move latency p50 %s"
+					+ " p99 %s max %s%n",
+					TimeUnit.NANOSECONDS.toSeconds(nextReport - start),
+					numConnected - closedConnections.get(),
+					numConnected - lastConnected, numSent - lastSent,
+					numReceived - lastReceived, numMoves - lastMoves,
+					format(intervalLatency.getValueAtPercentile(50)),
+					format(intervalLatency.getValueAtPercentile(99)),
+					format(intervalLatency.getMax()));
+			intervalLatency.reset();
+			lastConnected = numConnected;
+			lastSent = numSent;
+			lastReceived = numReceived;
+			lastMoves = numMoves;
+		} // while
+
+		for (int i = 0; i < loops.length; i++) {
+			connectors[i].interrupt();
+			loops[i].shutdown();
+			threads[i].join();
+		}
+		printSummary(System.nanoTime() - start);
+	} // run
+
+	/**
+	 * Prints the totals and the latency percentiles of the run.
+	 *
+	 * @param elapsed
+	 *            the duration of the run in nanoseconds
+	 */
+	private void printSummary(long elapsed) {
+		double seconds = elapsed / 1e9;
+		System.out.println();
+		System.out.printf("Connections: %d opened, %d failed, %d closed"
+				+ " by the server, %d rejected as full%n", connected.get(),
+				failedConnections.get(), closedConnections.get(),
+				fullRejections.get());
+		if (connectError != null) {
+			System.out.println("Last connection failure: " + connectError);
+		}
+		System.out.printf("Messages:    %d sent (%.0f/s), %d received"
+				+ " (%.0f/s), %d chat messages sent%n", messagesSent.get(),
+				messagesSent.get() / seconds, messagesReceived.get(),
+				messagesReceived.get() / seconds, chatsSent.get());
+		System.out.printf("Moves:       %d played (%.0f/s), %d rejected,"
+				+ " %d games finished%n", movesPlayed.get(), movesPlayed.get()
+				/ seconds, illegalMoves.get(), gamesPlayed.get());
+		printPercentiles("Connect latency", connectLatency);
+		printPercentiles("Move latency (corrected)", moveLatency);
+		printPercentiles("Move latency (uncorrected)", rawMoveLatency);
+	} // printSummary
+
+	/**
+	 * Prints the percentiles of the specified histogram of latencies.
+	 */
+	private static void printPercentiles(String title,
+			LatencyHistogram histogram) {
+		StringBuilder line = new StringBuilder(title).append(':');
+		if (histogram.getCount() == 0) {
+			line.append(" no samples");
+		}
+		for (int i = 0; histogram.getCount() > 0 && i < PERCENTILES.length; i++) {
+			double percentile = PERCENTILES[i];
+			line.append(" p")
+					.append(percentile == (long) percentile ? String
+							.valueOf((long) percentile) : String
+							.valueOf(percentile)).append(' ')
+					.append(format(histogram.getValueAtPercentile(PERCENTILES[i])));
+		}
+		if (histogram.getCount() > 0) {
+			line.append(" max ").append(format(histogram.getMax()))
+					.append(" (").append(histogram.getCount())
+					.append(" samples)");
+		}
+		System.out.println(line);
+	} // printPercentiles
+
+	/**
+	 * Returns the specified duration in milliseconds, for printing.
+	 */
+	private static String format(long nanos) {
+		return String.format("%.2f ms", nanos / 1e6);
+	}
+
+	/**
+	 * Returns the cards a bot plays with the specified hand: the lowest card
+	 * if it leads, otherwise the lowest single, pair or triple which beats
+	 * the last hand on the table, or none (a pass) if there is no such hand.
+	 *
+	 * @param hand
+	 *            the cards of the bot (see CardMask)
+	 * @param lastHand
+	 *            the last hand on the table, or 0 if the bot leads
+	 * @param lastHandType
+	 *            the type code of the last hand (see BigTwoGameState)
+	 * @return the cards to be played, or 0 for a pass
+	 */
+	private static long chooseCards(long hand, long lastHand, int lastHandType) {
+		if (lastHand == 0) {
+			// the lowest card, which is the three of diamonds on the first
+			// turn
+			return Long.lowestOneBit(hand);
+		}
+		int size = lastHandType + 1;
+		if (lastHandType < 0 || lastHandType > 2
+				|| CardMask.size(lastHand) != size) {
+			// five-card hands are always passed
+			return 0;
+		}
+		int top = 63 - Long.numberOfLeadingZeros(lastHand);
+		for (int rank = top / 4; rank < 13; rank++) {
+			long group = hand & (0xFL << (rank * 4));
+			// the top card of the hand must beat that of the last hand
+			long above = group & -(1L << (top + 1));
+			if (above == 0) {
+				continue;
+			}
+			long cards = Long.lowestOneBit(above);
+			long rest = group & ~cards;
+			if (CardMask.size(rest) < size - 1) {
+				continue;
+			}
+			for (int i = 1; i < size; i++) {
+				cards |= Long.lowestOneBit(rest);
+				rest &= rest - 1;
+			}
+			return cards;
+		}
+		return 0;
+	} // chooseCards
+
+	/**
+	 * main() method for starting the load generator.
+	 *
+	 * @param args
+	 *            optionally the host and port of the server ("127.0.0.1" and
+	 *            2396 by default), "--bots" with the number of bots (1000 by
+	 *            default), "--connect-rate" with the number of connections
+	 *            opened per second (200 by default), "--think-ms" with the
+	 *            think time of the bots (100 ms by default), "--chat-rate"
+	 *            with the chat messages per bot per minute (none by
+	 *            default), "--loops" with the number of event loops (the
+	 *            number of processors by default) and "--duration" with the
+	 *            duration of the run in seconds (60 by default)
+	 */
+	public static void main(String[] args) {
+		String host = "127.0.0.1";
+		int port = 2396;
+		int bots = 1000;
+		double connectRate = 200;
+		long thinkTime = 100;
+		double chatRate = 0;
+		int numOfLoops = Runtime.getRuntime().availableProcessors();
+		long duration = 60;
+		boolean hostGiven = false;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("--bots") && i + 1 < args.length) {
+					bots = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--connect-rate")
+						&& i + 1 < args.length) {
+					connectRate = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("--think-ms") && i + 1 < args.length) {
+					thinkTime = Long.parseLong(args[++i]);
+				} else if (args[i].equals("--chat-rate")
+						&& i + 1 < args.length) {
+					chatRate = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("--loops") && i + 1 < args.length) {
+					numOfLoops = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--duration")
+						&& i + 1 < args.length) {
+					duration = Long.parseLong(args[++i]);
+				} else if (!hostGiven && !args[i].matches("\\d+")) {
+					host = args[i];
+					hostGiven = true;
+				} else {
+					port = Integer.parseInt(args[i]);
+				}
+			}
+		} catch (NumberFormatException ex) {
+			System.err.println("Usage: LoadGenerator [host] [port] [--bots N]"
+					+ " [--connect-rate N] [--think-ms N] [--chat-rate N]"
+					+ " [--loops N] [--duration SECONDS]");
+			return;
+		}
+		if (bots <= 0 || connectRate <= 0 || thinkTime < 0 || chatRate < 0
+				|| numOfLoops <= 0 || duration <= 0) {
+			System.err.println("The numbers of bots, connections per second,"
+					+ " loops and seconds must be positive.");
+			return;
+		}
+
+		try {
+			System.out.println("Runs " + bots + " bots against " + host + ":"
+					+ port + " for " + duration + " seconds");
+			new LoadGenerator(new InetSocketAddress(host, port), bots,
+					connectRate, thinkTime, chatRate, numOfLoops)
+					.run(duration);
+		} catch (Exception ex) {
+			System.err.println("Error in running the load generator");
+			ex.printStackTrace();
+		}
+	} // main
+
+	/**
+	 * This inner class is used to model an event loop serving bots
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class BotLoop extends EventLoop {
+		/**
+		 * Creates and returns an instance of the BotLoop class.
+		 *
+		 * @param name
+		 *            the name of the loop
+		 * @throws IOException
+		 *             if the selector cannot be opened
+		 */
+		public BotLoop(String name) throws IOException {
+			super(name, TICK_DURATION, WHEEL_SLOTS);
+		} // constructor
+
+		protected void read(ClientConnection connection) {
+			Bot bot = (Bot) connection.attachment();
+			try {
+				int count = connection.read();
+				CardGameMessage message;
+				while (connection.isOpen()
+						&& (message = connection.nextMessage()) != null) {
+					messagesReceived.incrementAndGet();
+					bot.parseMessage(message);
+				}
+				if (count < 0) {
+					throw new EOFException();
+				}
+			} catch (Exception ex) {
+				connection.close();
+				bot.disconnected();
+			}
+		}
+
+		protected void closed(ClientConnection connection) {
+			((Bot) connection.attachment()).disconnected();
+		}
+	} // BotLoop
+
+	/**
+	 * This inner class is used to model a bot playing at the server
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class Bot {
+		private final String name; // the name of the bot
+		private final ClientConnection connection; // connection to the server
+		private final BotLoop loop; // the event loop serving the bot
+		private int seat = -1; // the playerID of the bot, or -1
+		private long hand = 0; // the cards of the bot
+		private long lastHand = 0; // the last hand on the table, or 0
+		private int lastHandType = -1; // the type code of the last hand
+		private int lastHandIdx = -1; // who played the last hand, or -1
+		private int[] numOfCards = new int[0]; // the cards of each player
+		private boolean inGame = false; // whether a game is being played
+		// the time at which the pending move was meant to be sent and was
+		// sent, in nanoseconds, or 0 if no move is pending
+		private long intendedTime = 0;
+		private long sentTime = 0;
+		private TimingWheel.Timeout moveTimeout = null; // the pending move
+		private long nextChat = 0; // when the next chat message is due, in ms
+		private long lastSent = 0; // when a message was last sent, in ms
+		private boolean open = true;
+
+		/**
+		 * Creates and returns an instance of the Bot class.
+		 *
+		 * @param name
+		 *            the name of the bot
+		 * @param connection
+		 *            the connection to the server
+		 * @param loop
+		 *            the event loop serving the bot
+		 */
+		public Bot(String name, ClientConnection connection, BotLoop loop) {
+			this.name = name;
+			this.connection = connection;
+			this.loop = loop;
+		} // constructor
+
+		/**
+		 * Starts playing: joins a table, and starts chatting and sending
+		 * heartbeats.
+		 */
+		public void start() {
+			send(new CardGameMessage(CardGameMessage.JOIN, -1, name));
+			long now = EventLoop.currentTime();
+			if (chatRate > 0) {
+				long interval = (long) (60000 / chatRate);
+				// spreads the chat messages of the bots over the interval
+				nextChat = now + (long) (interval * Math.random());
+				loop.schedule(new ChatTask(this), nextChat - now);
+			}
+			loop.schedule(new HeartbeatTask(this), HEARTBEAT_INTERVAL);
+		} // start
+
+		/**
+		 * Updates the state of the bot with the specified message from the
+		 * server, and answers it the way BigTwoClient does.
+		 *
+		 * @param message
+		 *            the message received
+		 */
+		public void parseMessage(CardGameMessage message) {
+			switch (message.getType()) {
+			case CardGameMessage.PLAYER_LIST:
+				seat = message.getPlayerID();
+				break;
+			case CardGameMessage.JOIN:
+				if (message.getPlayerID() == seat) {
+					send(new CardGameMessage(CardGameMessage.READY, -1, null));
+				}
+				break;
+			case CardGameMessage.FULL:
+				fullRejections.incrementAndGet();
+				connection.close();
+				disconnected();
+				break;
+			case CardGameMessage.QUIT:
+				// a game in progress is stopped
+				if (inGame) {
+					endGame();
+					send(new CardGameMessage(CardGameMessage.READY, -1, null));
+				}
+				break;
+			case CardGameMessage.START:
+			case CardGameMessage.SNAPSHOT:
+				GameSnapshot snapshot = (GameSnapshot) message.getData();
+				restore(snapshot);
+				if (snapshot.getCurrentIdx() < 0) {
+					send(new CardGameMessage(CardGameMessage.READY, -1, null));
+				} else if (snapshot.getCurrentIdx() == seat) {
+					startTurn();
+				}
+				break;
+			case CardGameMessage.PLAY:
+				applyMove((MoveResult) message.getData());
+				break;
+			case CardGameMessage.ILLEGAL:
+				moveRejected();
+				break;
+			default:
+				// chat messages, READY messages and the like need no answer
+				break;
+			}
+		} // parseMessage
+
+		/**
+		 * Takes over the state of the game from the specified snapshot.
+		 */
+		private void restore(GameSnapshot snapshot) {
+			cancelMove();
+			hand = snapshot.getHand();
+			lastHand = snapshot.getLastHand();
+			lastHandType = snapshot.getLastHandType();
+			lastHandIdx = snapshot.getLastHandIdx();
+			numOfCards = new int[snapshot.getNumOfPlayers()];
+			for (int i = 0; i < numOfCards.length; i++) {
+				numOfCards[i] = snapshot.getNumOfCards(i);
+			}
+			inGame = snapshot.getCurrentIdx() >= 0;
+		} // restore
+
+		/**
+		 * Applies a move accepted by the server, and makes the next move if it
+		 * is the bot's turn, or gets ready for the next game if the game is
+		 * over.
+		 */
+		private void applyMove(MoveResult result) {
+			int playerID = result.getPlayerID();
+			if (playerID == seat && intendedTime != 0) {
+				long now = System.nanoTime();
+				moveLatency.record(now - intendedTime,
+						TimeUnit.MILLISECONDS.toNanos(thinkTime));
+				intervalLatency.record(now - intendedTime);
+				rawMoveLatency.record(now - sentTime);
+				movesPlayed.incrementAndGet();
+				intendedTime = 0;
+			}
+			if (!result.isPass()) {
+				if (playerID == seat) {
+					hand &= ~result.getCards();
+				}
+				lastHand = result.getCards();
+				lastHandType = result.getHandType();
+				lastHandIdx = playerID;
+				if (playerID < numOfCards.length) {
+					numOfCards[playerID] -= CardMask.size(result.getCards());
+					if (numOfCards[playerID] <= 0) {
+						if (playerID == seat) {
+							gamesPlayed.incrementAndGet();
+						}
+						endGame();
+						send(new CardGameMessage(CardGameMessage.READY, -1,
+								null));
+						return;
+					}
+				}
+			}
+			if (result.getNextIdx() == seat) {
+				startTurn();
+			}
+		} // applyMove
+
+		/**
+		 * Schedules the next move of the bot after the think time.
+		 */
+		private void startTurn() {
+			cancelMove();
+			intendedTime = System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(thinkTime);
+			moveTimeout = loop.schedule(new MoveTask(this), thinkTime);
+		}
+
+		/**
+		 * Sends the move of the bot.
+		 */
+		public void makeMove() {
+			moveTimeout = null;
+			boolean leading = lastHandIdx < 0 || lastHandIdx == seat;
+			long cards = chooseCards(hand, leading ? 0 : lastHand,
+					lastHandType);
+			sentTime = System.nanoTime();
+			send(new CardGameMessage(CardGameMessage.MOVE, -1, CardMask
+					.toIndices(hand, cards)));
+		} // makeMove
+
+		/**
+		 * Handles a move rejected by the server by passing instead, or by
+		 * playing the lowest card if the bot may not pass.
+		 */
+		private void moveRejected() {
+			illegalMoves.incrementAndGet();
+			if (intendedTime == 0) {
+				return;
+			}
+			boolean leading = lastHandIdx < 0 || lastHandIdx == seat;
+			long cards = leading ? Long.lowestOneBit(hand) : 0;
+			sentTime = System.nanoTime();
+			send(new CardGameMessage(CardGameMessage.MOVE, -1, CardMask
+					.toIndices(hand, cards)));
+		} // moveRejected
+
+		/**
+		 * Forgets the game which has ended or been stopped.
+		 */
+		private void endGame() {
+			cancelMove();
+			inGame = false;
+			lastHand = 0;
+			lastHandIdx = -1;
+		}
+
+		/**
+		 * Cancels the pending move, if any.
+		 */
+		private void cancelMove() {
+			if (moveTimeout != null) {
+				moveTimeout.cancel();
+				moveTimeout = null;
+			}
+			intendedTime = 0;
+		}
+
+		/**
+		 * Sends a chat message if the bot is seated, and schedules the next
+		 * one at the chat rate.
+		 */
+		public void chat() {
+			if (!open) {
+				return;
+			}
+			if (seat >= 0) {
+				chatsSent.incrementAndGet();
+				send(new CardGameMessage(CardGameMessage.MSG, -1, "Hello from "
+						+ name));
+			}
+			// the messages are due at fixed times, however late this one is
+			nextChat += (long) (60000 / chatRate);
+			loop.schedule(new ChatTask(this),
+					Math.max(0, nextChat - EventLoop.currentTime()));
+		} // chat
+
+		/**
+		 * Sends a HEARTBEAT message if the bot has not sent anything for a
+		 * while, and checks again later.
+		 */
+		public void heartbeat() {
+			if (!open) {
+				return;
+			}
+			long now = EventLoop.currentTime();
+			if (now - lastSent >= HEARTBEAT_INTERVAL) {
+				send(new CardGameMessage(CardGameMessage.HEARTBEAT, -1, null));
+			}
+			loop.schedule(new HeartbeatTask(this), HEARTBEAT_INTERVAL);
+		} // heartbeat
+
+		/**
+		 * Sends the specified message to the server.
+		 */
+		private void send(CardGameMessage message) {
+			if (open && connection.queue(CardGameMessageCodec.encode(message))) {
+				messagesSent.incrementAndGet();
+				lastSent = EventLoop.currentTime();
+				loop.scheduleFlush(connection);
+			}
+		}
+
+		/**
+		 * Stops the bot once its connection is closed.
+		 */
+		public void disconnected() {
+			if (open) {
+				open = false;
+				cancelMove();
+				closedConnections.incrementAndGet();
+			}
+		}
+	} // Bot
+
+	/**
+	 * This inner class is used for opening the connections of the bots served
+	 * by an event loop at that loop's share of the connection rate
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class ConnectTask implements Runnable {
+		private int loopIdx; // the index of the event loop
+
+		/**
+		 * Creates and returns an instance of the ConnectTask class.
+		 *
+		 * @param loopIdx
+		 *            the index of the event loop serving the bots
+		 */
+		public ConnectTask(int loopIdx) {
+			this.loopIdx = loopIdx;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			long start = System.nanoTime();
+			double interval = 1e9 / connectRate;
+			BotLoop loop = loops[loopIdx];
+			for (int i = loopIdx; i < numOfBots; i += loops.length) {
+				// the connections are due at fixed times, so that a slow
+				// connect delays the next ones, which counts against them
+				long due = start + (long) (i * interval);
+				long delay = due - System.nanoTime();
+				try {
+					if (delay > 0) {
+						TimeUnit.NANOSECONDS.sleep(delay);
+					}
+				} catch (InterruptedException ex) {
+					return;
+				}
+				try {
+					ClientConnection connection = new ClientConnection(
+							SocketChannel.open(address));
+					connectLatency.record(System.nanoTime() - due);
+					connected.incrementAndGet();
+					Bot bot = new Bot("bot" + i, connection, loop);
+					connection.attach(bot);
+					loop.execute(new RegisterTask(bot));
+				} catch (IOException ex) {
+					failedConnections.incrementAndGet();
+					connectError = ex.toString();
+				}
+			}
+		} // run
+	} // ConnectTask
+
+	/**
+	 * This inner class is used for registering a newly connected bot with its
+	 * event loop
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class RegisterTask implements Runnable {
+		private Bot bot; // the bot
+
+		/**
+		 * Creates and returns an instance of the RegisterTask class.
+		 *
+		 * @param bot
+		 *            the bot
+		 */
+		public RegisterTask(Bot bot) {
+			this.bot = bot;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			try {
+				bot.loop.register(bot.connection);
+				bot.start();
+			} catch (IOException ex) {
+				bot.connection.close();
+				bot.disconnected();
+			}
+		} // run
+	} // RegisterTask
+
+	/**
+	 * This inner class is used for making the move of a bot after its think
+	 * time
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class MoveTask implements Runnable {
+		private Bot bot; // the bot
+
+		/**
+		 * Creates and returns an instance of the MoveTask class.
+		 *
+		 * @param bot
+		 *            the bot
+		 */
+		public MoveTask(Bot bot) {
+			this.bot = bot;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			bot.makeMove();
+		} // run
+	} // MoveTask
+
+	/**
+	 * This inner class is used for sending the chat messages of a bot
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class ChatTask implements Runnable {
+		private Bot bot; // the bot
+
+		/**
+		 * Creates and returns an instance of the ChatTask class.
+		 *
+		 * @param bot
+		 *            the bot
+		 */
+		public ChatTask(Bot bot) {
+			this.bot = bot;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			bot.chat();
+		} // run
+	} // ChatTask
+
+	/**
+	 * This inner class is used for keeping the connection of a bot alive
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class HeartbeatTask implements Runnable {
+		private Bot bot; // the bot
+
+		/**
+		 * Creates and returns an instance of the HeartbeatTask class.
+		 *
+		 * @param bot
+		 *            the bot
+		 */
+		public HeartbeatTask(Bot bot) {
+			this.bot = bot;
+		} // constructor
+
+		// implementation of method from the Runnable interface
+		public void run() {
+			bot.heartbeat();
+		} // run
+	} // HeartbeatTask
+}
@@ -0,0 +1,147 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is used to model the queue of players waiting to be seated at a
+ * table. Players may be added from any thread, while tables are formed by the
+ * thread which owns the tables, taking the players in the order in which they
+ * arrived. The time each player spends in the queue is recorded.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class Matchmaker {
+	private final ConcurrentLinkedQueue<WaitingPlayer> queue = new ConcurrentLinkedQueue<WaitingPlayer>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong numOfMatched = new AtomicLong();
+	private final AtomicLong totalWaitTime = new AtomicLong();
+	private final AtomicLong maxWaitTime = new AtomicLong();
+
+	/**
+	 * Adds a player to the end of the queue.
+	 *
+	 * @param connection
+	 *            the connection to the player
+	 * @param name
+	 *            the name of the player
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	public void enqueue(ClientConnection connection, String name, long now) {
+		queue.add(new WaitingPlayer(connection, name, now));
+		size.incrementAndGet();
+	}
+
+	/**
+	 * Takes the player who has waited longest out of the queue. Players who
+	 * have lost the connection in the meantime are dropped.
+	 *
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the player who has waited longest, or null if the queue is empty
+	 */
+	public WaitingPlayer poll(long now) {
+		WaitingPlayer player;
+		while ((player = queue.poll()) != null) {
+			size.decrementAndGet();
+			if (player.getConnection().isOpen()) {
+				long waitTime = now - player.getEnqueueTime();
+				numOfMatched.incrementAndGet();
+				totalWaitTime.addAndGet(waitTime);
+				long max;
+				while (waitTime > (max = maxWaitTime.get())
+						&& !maxWaitTime.compareAndSet(max, waitTime)) {
+					// retries until the maximum is up to date
+				}
+				return player;
+			}
+		}
+		return null;
+	} // poll
+
+	/**
+	 * Returns the number of players in the queue, including those who may have
+	 * lost the connection since they were added.
+	 *
+	 * @return the number of players in the queue
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Returns the number of players taken out of the queue so far.
+	 *
+	 * @return the number of players taken out of the queue
+	 */
+	public long getNumOfMatched() {
+		return numOfMatched.get();
+	}
+
+	/**
+	 * Returns the total time spent in the queue by the players taken out of
+	 * it so far.
+	 *
+	 * @return the total time in milliseconds
+	 */
+	public long getTotalWaitTime() {
+		return totalWaitTime.get();
+	}
+
+	/**
+	 * Returns the longest time spent in the queue by a player taken out of it
+	 * so far.
+	 *
+	 * @return the longest time in milliseconds
+	 */
+	public long getMaxWaitTime() {
+		return maxWaitTime.get();
+	}
+
+	/**
+	 * This inner class is used to model a player waiting in the queue
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	public static final class WaitingPlayer {
+		private final ClientConnection connection;
+		private final String name;
+		private final long enqueueTime;
+
+		private WaitingPlayer(ClientConnection connection, String name,
+				long enqueueTime) {
+			this.connection = connection;
+			this.name = name;
+			this.enqueueTime = enqueueTime;
+		} // constructor
+
+		/**
+		 * Returns the connection to the player.
+		 *
+		 * @return the connection to the player
+		 */
+		public ClientConnection getConnection() {
+			return connection;
+		}
+
+		/**
+		 * Returns the name of the player.
+		 *
+		 * @return the name of the player
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the time at which the player was added to the queue.
+		 *
+		 * @return the time in milliseconds
+		 */
+		public long getEnqueueTime() {
+			return enqueueTime;
+		}
+	} // WaitingPlayer
+}
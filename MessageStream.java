@@ -0,0 +1,170 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * This class is used to send and receive message frames over a socket
+ * connection. It is the only state kept per connection for (de)serializing
+ * messages, and that state is bounded: frames longer than
+ * CardGameMessageCodec.MAX_FRAME_LENGTH are rejected, and the buffer reused
+ * for reading frames never grows beyond RETAINED_BUFFER_SIZE, no matter how
+ * many messages go through the connection.
+ * <p>
+ * Frames may be queued and flushed later, so that several messages produced
+ * together (e.g. while handling one incoming message) are sent with a single
+ * write instead of one small TCP segment each.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class MessageStream {
+	/**
+	 * The largest read buffer kept between frames. Longer frames are read into
+	 * a temporary buffer which is discarded afterwards.
+	 */
+	public static final int RETAINED_BUFFER_SIZE = 4096;
+
+	private final Socket socket; // the underlying socket connection
+	private final DataInputStream distream; // for reading frames
+	private final OutputStream ostream; // for writing frames
+	private final byte[] readBuffer = new byte[RETAINED_BUFFER_SIZE];
+
+	/**
+	 * Creates and returns an instance of the MessageStream class. Nagle's
+	 * algorithm is turned off for the socket, since frames are already
+	 * coalesced before being written.
+	 *
+	 * @param socket
+	 *            the socket connection over which frames are sent and received
+	 * @throws IOException
+	 *             if the streams of the socket cannot be obtained
+	 */
+	public MessageStream(Socket socket) throws IOException {
+		this.socket = socket;
+		socket.setTcpNoDelay(true);
+		this.distream = new DataInputStream(new BufferedInputStream(
+				socket.getInputStream()));
+		this.ostream = new BufferedOutputStream(socket.getOutputStream(),
+				RETAINED_BUFFER_SIZE);
+	}
+
+	/**
+	 * Returns the underlying socket connection.
+	 *
+	 * @return the underlying socket connection
+	 */
+	public Socket getSocket() {
+		return socket;
+	}
+
+	/**
+	 * Reads the next frame from the connection and decodes the message it
+	 * carries. This method blocks until a whole frame has been received, and
+	 * must only be called from one thread at a time.
+	 *
+	 * @return the message carried by the frame
+	 * @throws IOException
+	 *             if the connection is closed or the frame is malformed
+	 */
+	public CardGameMessage readMessage() throws IOException {
+		int length = distream.readInt();
+		if (length <= 0 || length > CardGameMessageCodec.MAX_FRAME_LENGTH) {
+			throw new ProtocolException("Invalid frame length: " + length);
+		}
+		byte[] body = length <= readBuffer.length ? readBuffer
+				: new byte[length];
+		distream.readFully(body, 0, length);
+		return CardGameMessageCodec.decode(ByteBuffer.wrap(body, 0, length));
+	}
+
+	/**
+	 * Returns whether the next frame can be read (at least partly) without
+	 * waiting for the connection, i.e. whether more messages are on their way
+	 * before the queued frames need to be flushed.
+	 *
+	 * @return true if there are bytes to be read; false otherwise
+	 * @throws IOException
+	 *             if the connection is closed
+	 */
+	public boolean hasBufferedInput() throws IOException {
+		return distream.available() > 0;
+	}
+
+	/**
+	 * Queues the specified (already encoded) frame to be written at the next
+	 * flush.
+	 *
+	 * @param frame
+	 *            the frame to be written, including its length prefix
+	 * @throws IOException
+	 *             if the frame cannot be written
+	 */
+	public synchronized void queue(byte[] frame) throws IOException {
+		ostream.write(frame);
+	}
+
+	/**
+	 * Writes all queued frames to the connection.
+	 *
+	 * @throws IOException
+	 *             if the frames cannot be written
+	 */
+	public synchronized void flush() throws IOException {
+		ostream.flush();
+	}
+
+	/**
+	 * Writes the specified (already encoded) frame to the connection, together
+	 * with any frames queued before it.
+	 *
+	 * @param frame
+	 *            the frame to be written, including its length prefix
+	 * @throws IOException
+	 *             if the frame cannot be written
+	 */
+	public synchronized void write(byte[] frame) throws IOException {
+		ostream.write(frame);
+		ostream.flush();
+	}
+
+	/**
+	 * Encodes the specified message and queues it to be written at the next
+	 * flush.
+	 *
+	 * @param message
+	 *            the message to be sent
+	 * @throws IOException
+	 *             if the message cannot be written
+	 */
+	public void queueMessage(GameMessage message) throws IOException {
+		queue(CardGameMessageCodec.encode(message));
+	}
+
+	/**
+	 * Encodes the specified message and writes it to the connection.
+	 *
+	 * @param message
+	 *            the message to be sent
+	 * @throws IOException
+	 *             if the message cannot be written
+	 */
+	public void writeMessage(GameMessage message) throws IOException {
+		write(CardGameMessageCodec.encode(message));
+	}
+
+	/**
+	 * Closes the connection.
+	 */
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException ex) {
+			// the connection is going away anyway
+		}
+	}
+}
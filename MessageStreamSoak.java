@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * This class is used to check that the state kept per connection by a
+ * MessageStream is bounded. It plays thousands of games of Big Two over one
+ * loopback connection, a dealer at one end sending the state of the game,
+ * the moves and a chat message per game, and a player at the other end
+ * making the moves of all the seats, and measures the heap used after a
+ * garbage collection at regular intervals. The heap used at the end must not
+ * have grown by more than MAX_HEAP_GROWTH since the first measurement, which
+ * is taken once the classes involved have been loaded and warmed up.
+ * <p>
+ * The check exits with status 1 if the heap has grown, so that it can be run
+ * by a build script.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class MessageStreamSoak {
+	// The default number of games played and number of games between two
+	// measurements of the heap
+	private static final int DEFAULT_GAMES = 5000;
+	private static final int DEFAULT_INTERVAL = 500;
+	// The most the heap used may grow (in bytes) between the first and the
+	// last measurement
+	private static final long MAX_HEAP_GROWTH = 1024 * 1024;
+
+	private final MessageStream dealer; // the dealer's end of the connection
+	private final MessageStream player; // the player's end of the connection
+	private final BigTwoGameState game = new BigTwoGameState(4);
+	private final Deck deck = new BigTwoDeck();
+	private long numOfMessages = 0; // the number of messages sent
+
+	/**
+	 * Creates and returns an instance of the MessageStreamSoak class over the
+	 * specified ends of a connection.
+	 *
+	 * @param dealer
+	 *            the dealer's end of the connection
+	 * @param player
+	 *            the player's end of the connection
+	 */
+	public MessageStreamSoak(MessageStream dealer, MessageStream player) {
+		this.dealer = dealer;
+		this.player = player;
+	}
+
+	/**
+	 * Plays a whole game over the connection. The player leads with its
+	 * lowest card, which is always the three of diamonds on the first turn,
+	 * and passes otherwise, the way the bots of LoadGenerator fall back to
+	 * when a move is rejected.
+	 *
+	 * @param number
+	 *            the number of the game
+	 * @throws IOException
+	 *             if the connection fails or a move is rejected
+	 */
+	public void playGame(int number) throws IOException {
+		deck.shuffle();
+		game.start(deck);
+		send(new CardGameMessage(CardGameMessage.MSG, -1, "Game " + number
+				+ " starts"));
+		while (!game.endOfGame()) {
+			int currentIdx = game.getCurrentIdx();
+			send(new CardGameMessage(CardGameMessage.SNAPSHOT, currentIdx, game
+					.getSnapshot(currentIdx)));
+			CardGameMessage move = receive();
+			MoveResult result = game.makeMove(currentIdx, (int[]) move
+					.getData());
+			if (!result.isLegal()) {
+				throw new IOException("Move rejected in game " + number);
+			}
+			send(new CardGameMessage(CardGameMessage.PLAY, currentIdx, result));
+		}
+	} // playGame
+
+	/**
+	 * Sends the specified message from the dealer, and lets the player read
+	 * it and answer it.
+	 */
+	private void send(CardGameMessage message) throws IOException {
+		dealer.writeMessage(message);
+		numOfMessages++;
+		CardGameMessage received = player.readMessage();
+		if (received.getType() == CardGameMessage.SNAPSHOT) {
+			GameSnapshot snapshot = (GameSnapshot) received.getData();
+			int lastHandIdx = snapshot.getLastHandIdx();
+			boolean leading = lastHandIdx < 0
+					|| lastHandIdx == received.getPlayerID();
+			player.writeMessage(new CardGameMessage(CardGameMessage.MOVE, -1,
+					leading ? new int[] { 0 } : new int[0]));
+			numOfMessages++;
+		}
+	}
+
+	/**
+	 * Receives the answer of the player at the dealer.
+	 */
+	private CardGameMessage receive() throws IOException {
+		return dealer.readMessage();
+	}
+
+	/**
+	 * Returns the number of messages sent over the connection so far.
+	 *
+	 * @return the number of messages sent
+	 */
+	public long getNumOfMessages() {
+		return numOfMessages;
+	}
+
+	/**
+	 * Returns the heap used after a garbage collection.
+	 */
+	private static long measureHeap(MemoryMXBean memory) {
+		memory.gc();
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * Runs the check.
+	 *
+	 * @param args
+	 *            the number of games played (5000 by default) and the number
+	 *            of games between two measurements of the heap (500 by
+	 *            default)
+	 */
+	public static void main(String[] args) {
+		int numOfGames = DEFAULT_GAMES;
+		int interval = DEFAULT_INTERVAL;
+		try {
+			if (args.length > 0) {
+				numOfGames = Integer.parseInt(args[0]);
+			}
+			if (args.length > 1) {
+				interval = Integer.parseInt(args[1]);
+			}
+		} catch (NumberFormatException ex) {
+			System.err.println("Usage: MessageStreamSoak [games] [interval]");
+			return;
+		}
+		if (interval <= 0 || numOfGames < 2 * interval) {
+			System.err.println("At least two intervals of games must be"
+					+ " played.");
+			return;
+		}
+
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long baseline = 0;
+		long used = 0;
+		try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress
+				.getLoopbackAddress());
+				Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+						serverSocket.getLocalPort());
+				Socket accepted = serverSocket.accept()) {
+			MessageStreamSoak soak = new MessageStreamSoak(new MessageStream(
+					accepted), new MessageStream(socket));
+			for (int i = 1; i <= numOfGames; i++) {
+				soak.playGame(i);
+				if (i % interval == 0) {
+					used = measureHeap(memory);
+					if (i == interval) {
+						baseline = used;
+					}
+					System.out.printf("%7d games, %9d messages: %,d KB heap"
+							+ " used%n", i, soak.getNumOfMessages(),
+							used / 1024);
+				}
+			}
+		} catch (IOException ex) {
+			System.err.println("Error in playing over the connection");
+			ex.printStackTrace();
+			System.exit(1);
+		}
+
+		long growth = used - baseline;
+		System.out.printf("The heap used has grown by %,d KB (at most %,d KB"
+				+ " allowed)%n", growth / 1024, MAX_HEAP_GROWTH / 1024);
+		if (growth > MAX_HEAP_GROWTH) {
+			System.err.println("The heap used grows with the games played.");
+			System.exit(1);
+		}
+	} // main
+}
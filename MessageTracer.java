@@ -0,0 +1,463 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is used to model a sampling tracer of the messages handled by
+ * the server. A sampled message is given a trace id, and a record is written
+ * at each stage of its handling: when it is received, decoded and (for a
+ * move) validated, and when each message sent in reply is encoded, queued
+ * for a client and written to that client. The records of a trace carry the
+ * id of the table, so that the tail latency of a table can be looked into
+ * after the fact.
+ * <p>
+ * Like the EventLog, the tracer never blocks the thread recording: records
+ * are put in a bounded ring buffer, dropped and counted when it is full, and
+ * written by a background thread to a binary file of fixed-size records. The
+ * file starts with a header of the same size: the magic number, the version
+ * of the format and the size of a record, the wall-clock time at which the
+ * tracer started (in nanoseconds since the epoch) and the sampling rate. Each
+ * record then holds the trace id, the time since the tracer started (in
+ * nanoseconds), the table id, and one byte each for the stage, the message
+ * type and the seat (-1 for none). Running this class reads such a file.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class MessageTracer {
+	/** The stage at which the bytes of a message are read from the socket. */
+	public static final int RECEIVE = 0;
+	/** The stage at which a message has been decoded. */
+	public static final int DECODE = 1;
+	/** The stage at which a move has been checked against the rules. */
+	public static final int VALIDATE = 2;
+	/** The stage at which a message sent in reply has been encoded. */
+	public static final int ENCODE = 3;
+	/** The stage at which a frame has been queued for a client. */
+	public static final int QUEUE = 4;
+	/** The stage at which a frame has been written to a client. */
+	public static final int WRITE = 5;
+	// the names of the stages
+	private static final String[] STAGE_NAMES = { "receive", "decode",
+			"validate", "encode", "queue", "write" };
+
+	// the magic number at the start of a trace file, "B2TR"
+	private static final int MAGIC = 0x42325452;
+	// the version of the file format
+	private static final short VERSION = 1;
+	// the size of the header and of each record in bytes
+	private static final int RECORD_SIZE = 24;
+	// the longest time the writer sleeps without checking for records
+	private static final long IDLE_PARK_NANOS = 100000000L;
+	// the largest number of records written at once
+	private static final int MAX_BATCH = 1024;
+
+	private final double rate;
+	private final long startTime; // System.nanoTime() at the start
+	private final AtomicLong nextTraceId = new AtomicLong(1);
+	private final int mask;
+	private final long[] traceIds;
+	private final long[] times;
+	private final int[] tableIds;
+	private final int[] details; // the stage, type and seat of each record
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong(); // next slot to claim
+	private long head = 0; // next slot to write, used by the writer only
+	private final AtomicLong droppedRecords = new AtomicLong();
+	private final FileChannel channel;
+	private final ByteBuffer batch = ByteBuffer
+			.allocateDirect(MAX_BATCH * RECORD_SIZE);
+	private final Thread writer;
+	private volatile boolean sleeping = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates and returns an instance of the MessageTracer class, writing to
+	 * the specified file, and starts its writer thread.
+	 *
+	 * @param path
+	 *            the file to which the records are written; it is replaced if
+	 *            it exists
+	 * @param rate
+	 *            the share of the messages traced, between 0 and 1
+	 * @param capacity
+	 *            the number of records the buffer holds, which is rounded up
+	 *            to a power of two
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public MessageTracer(Path path, double rate, int capacity)
+			throws IOException {
+		if (!(rate >= 0 && rate <= 1)) {
+			throw new IllegalArgumentException("Invalid sampling rate: " + rate);
+		}
+		this.rate = rate;
+		int size = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1);
+		this.mask = size - 1;
+		this.traceIds = new long[size];
+		this.times = new long[size];
+		this.tableIds = new int[size];
+		this.details = new int[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		this.startTime = System.nanoTime();
+		ByteBuffer header = ByteBuffer.allocate(RECORD_SIZE);
+		header.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE)
+				.putLong(System.currentTimeMillis() * 1000000L).putDouble(rate);
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+		writer = new Thread(new Writer(), "message-tracer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Decides whether a message is traced, and gives it a trace id if it is.
+	 *
+	 * @return the trace id of the message, or 0 if it is not traced
+	 */
+	public long sample() {
+		if (closed || rate < 1
+				&& ThreadLocalRandom.current().nextDouble() >= rate) {
+			return 0;
+		}
+		return nextTraceId.getAndIncrement();
+	}
+
+	/**
+	 * Records a stage of the handling of a traced message. This never
+	 * blocks.
+	 *
+	 * @param traceId
+	 *            the trace id of the message (see sample)
+	 * @param time
+	 *            the time of the stage (see System.nanoTime)
+	 * @param tableId
+	 *            the id of the table, or -1 if none
+	 * @param stage
+	 *            the stage, e.g. DECODE
+	 * @param type
+	 *            the type of the message received or sent at this stage
+	 * @param seat
+	 *            the seat of the player who sent or is sent the message, or
+	 *            -1 if none
+	 * @return true if the record has been buffered; false if it has been
+	 *         dropped because the buffer is full or the tracer is closed
+	 */
+	public boolean record(long traceId, long time, int tableId, int stage,
+			int type, int seat) {
+		if (closed) {
+			return false;
+		}
+		long pos = tail.get();
+		int slot;
+		while (true) {
+			slot = (int) (pos & mask);
+			long seq = sequences.get(slot);
+			if (seq == pos) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = tail.get();
+			} else if (seq < pos) {
+				// the writer has not taken the record a lap ago yet
+				droppedRecords.incrementAndGet();
+				return false;
+			} else {
+				// another producer has claimed the slot
+				pos = tail.get();
+			}
+		}
+		traceIds[slot] = traceId;
+		times[slot] = time - startTime;
+		tableIds[slot] = tableId;
+		details[slot] = (stage & 0xFF) << 16 | (type & 0xFF) << 8
+				| (seat & 0xFF);
+		sequences.set(slot, pos + 1);
+		if (sleeping) {
+			LockSupport.unpark(writer);
+		}
+		return true;
+	} // record
+
+	/**
+	 * Returns the number of records dropped so far because the buffer was
+	 * full.
+	 *
+	 * @return the number of records dropped
+	 */
+	public long getDroppedRecords() {
+		return droppedRecords.get();
+	}
+
+	/**
+	 * Stops taking records, writes the records still in the buffer and
+	 * closes the file.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	} // close
+
+	/**
+	 * Writes the records in the buffer to the file, at most MAX_BATCH of
+	 * them.
+	 *
+	 * @return the number of records written
+	 */
+	private int drain() throws IOException {
+		batch.clear();
+		int count = 0;
+		while (count < MAX_BATCH) {
+			int slot = (int) (head & mask);
+			if (sequences.get(slot) != head + 1) {
+				break;
+			}
+			int detail = details[slot];
+			batch.putLong(traceIds[slot]).putLong(times[slot])
+					.putInt(tableIds[slot]).put((byte) (detail >>> 16))
+					.put((byte) (detail >>> 8)).put((byte) detail)
+					.put((byte) 0);
+			// hands the slot back to the producers for the next lap
+			sequences.set(slot, head + mask + 1);
+			head++;
+			count++;
+		}
+		batch.flip();
+		while (batch.hasRemaining()) {
+			channel.write(batch);
+		}
+		return count;
+	} // drain
+
+	/**
+	 * main() method for reading a trace file. Each trace is printed on a
+	 * line of its own, with the time of each stage after the message was
+	 * received, starting with the slowest traces.
+	 *
+	 * @param args
+	 *            the name of the trace file, optionally followed by "--table"
+	 *            with the id of the only table whose traces are printed, and
+	 *            "--top" with the number of traces printed
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println("Usage: java MessageTracer <trace file>"
+					+ " [--table <id>] [--top <n>]");
+			return;
+		}
+		int table = Integer.MIN_VALUE;
+		int top = Integer.MAX_VALUE;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("--table") && i + 1 < args.length) {
+				table = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--top") && i + 1 < args.length) {
+				top = Integer.parseInt(args[++i]);
+			}
+		}
+		LinkedHashMap<Long, Trace> traces = new LinkedHashMap<Long, Trace>();
+		long numOfRecords = 0;
+		try (FileChannel in = FileChannel.open(Paths.get(args[0]),
+				StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(MAX_BATCH * RECORD_SIZE);
+			while (buffer.position() < RECORD_SIZE && in.read(buffer) >= 0) {
+				// reads the whole header
+			}
+			buffer.flip();
+			if (buffer.remaining() < RECORD_SIZE || buffer.getInt() != MAGIC
+					|| buffer.getShort() != VERSION
+					|| buffer.getShort() != RECORD_SIZE) {
+				System.err.println(args[0] + " is not a trace file");
+				return;
+			}
+			long epochNanos = buffer.getLong();
+			double rate = buffer.getDouble();
+			System.out.println("Trace started at "
+					+ Instant.ofEpochSecond(0, epochNanos)
+					+ ", sampling " + (rate * 100) + "% of the messages");
+			while (true) {
+				while (buffer.remaining() >= RECORD_SIZE) {
+					long traceId = buffer.getLong();
+					long time = buffer.getLong();
+					int tableId = buffer.getInt();
+					int stage = buffer.get();
+					int type = buffer.get() & 0xFF;
+					int seat = buffer.get();
+					buffer.get();
+					numOfRecords++;
+					Trace trace = traces.get(traceId);
+					if (trace == null) {
+						trace = new Trace(traceId);
+						traces.put(traceId, trace);
+					}
+					trace.add(time, tableId, stage, type, seat);
+				}
+				buffer.compact();
+				if (in.read(buffer) < 0) {
+					break;
+				}
+				buffer.flip();
+			}
+		} catch (IOException ex) {
+			System.err.println("Error in reading " + args[0]);
+			ex.printStackTrace();
+			return;
+		}
+
+		ArrayList<Trace> selected = new ArrayList<Trace>();
+		for (Trace trace : traces.values()) {
+			if (table == Integer.MIN_VALUE || trace.tableId == table) {
+				selected.add(trace);
+			}
+		}
+		Collections.sort(selected, new SlowestFirst());
+		System.out.println(numOfRecords + " records, " + traces.size()
+				+ " traces, " + selected.size() + " selected");
+		for (int i = 0; i < selected.size() && i < top; i++) {
+			System.out.println(selected.get(i));
+		}
+	} // main
+
+	/**
+	 * This inner class is used for taking records out of the buffer on the
+	 * writer thread
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class Writer implements Runnable {
+		// implementation of method from the Runnable interface
+		public void run() {
+			try {
+				while (true) {
+					if (drain() > 0) {
+						continue;
+					}
+					if (closed) {
+						// a producer may have filled a slot it claimed
+						// before the tracer was closed
+						if (tail.get() == head) {
+							break;
+						}
+						Thread.yield();
+						continue;
+					}
+					sleeping = true;
+					if (sequences.get((int) (head & mask)) != head + 1) {
+						LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+					}
+					sleeping = false;
+				}
+			} catch (IOException ex) {
+				closed = true;
+				System.err.println("Error in writing the message trace");
+				ex.printStackTrace();
+			}
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				System.err.println("Error in closing the message trace");
+			}
+		} // run
+	} // Writer
+
+	/**
+	 * This inner class is used to model the records of a trace read from a
+	 * file
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private static class Trace {
+		private final long traceId;
+		private int tableId = -1;
+		private int type = -1; // the type of the message received
+		private int seat = -1; // the seat of the player who sent it
+		private long start = -1; // the time at which it was received
+		private long end = -1; // the time of the last stage
+		private final StringBuilder stages = new StringBuilder();
+
+		/**
+		 * Creates and returns an instance of the Trace class.
+		 */
+		Trace(long traceId) {
+			this.traceId = traceId;
+		} // constructor
+
+		/**
+		 * Adds a record to this trace. The records of a trace are written in
+		 * the order of their stages.
+		 */
+		void add(long time, int tableId, int stage, int type, int seat) {
+			if (stage == RECEIVE) {
+				this.tableId = tableId;
+				this.type = type;
+				this.seat = seat;
+				start = time;
+			}
+			end = Math.max(end, time);
+			if (stage != RECEIVE && start >= 0) {
+				stages.append(' ').append(stage < STAGE_NAMES.length
+						? STAGE_NAMES[stage] : "stage" + stage);
+				if (stage >= ENCODE) {
+					stages.append('(').append(CardGameMessage.getTypeName(type));
+					if (seat >= 0) {
+						stages.append(" to ").append(seat);
+					}
+					stages.append(')');
+				}
+				stages.append(" +").append(formatMicros(time - start));
+			}
+		} // add
+
+		long getDuration() {
+			return start < 0 ? -1 : end - start;
+		}
+
+		public String toString() {
+			return "#" + traceId + " table " + tableId + " seat " + seat + " "
+					+ CardGameMessage.getTypeName(type) + " "
+					+ formatMicros(getDuration()) + ":" + stages;
+		}
+
+		private static String formatMicros(long nanos) {
+			return String.format("%.1f us", nanos / 1000.0);
+		}
+	} // Trace
+
+	/**
+	 * This inner class is used for ordering the traces from the slowest one
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private static class SlowestFirst implements Comparator<Trace> {
+		// implementation of method from the Comparator interface
+		public int compare(Trace a, Trace b) {
+			return Long.compare(b.getDuration(), a.getDuration());
+		}
+	} // SlowestFirst
+}
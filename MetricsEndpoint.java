@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class is used to model a local HTTP endpoint from which the metrics of
+ * a MetricsRegistry are scraped, e.g. by Prometheus, at the path /metrics.
+ * The endpoint only listens on the loopback interface, and is served by a
+ * thread of its own so that a scrape never runs on an event loop.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class MetricsEndpoint {
+	// the content type of the Prometheus text format
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final MetricsRegistry registry; // the metrics served
+	private final HttpServer server; // the underlying HTTP server
+
+	/**
+	 * Creates and returns an instance of the MetricsEndpoint class, bound to
+	 * the specified port of the loopback interface.
+	 *
+	 * @param registry
+	 *            the metrics to be served
+	 * @param port
+	 *            the port, or 0 for any free port
+	 * @throws IOException
+	 *             if the port cannot be bound
+	 */
+	public MetricsEndpoint(MetricsRegistry registry, int port)
+			throws IOException {
+		this.registry = registry;
+		this.server = HttpServer.create(new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", new ScrapeHandler());
+		server.setExecutor(Executors
+				.newSingleThreadExecutor(new DaemonThreadFactory()));
+	}
+
+	/**
+	 * Returns the port at which the metrics are served.
+	 *
+	 * @return the port at which the metrics are served
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Starts serving the metrics.
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops serving the metrics.
+	 */
+	public void stop() {
+		server.stop(0);
+	}
+
+	/**
+	 * This inner class is used for answering a scrape with the metrics
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private class ScrapeHandler implements HttpHandler {
+		// implementation of method from the HttpHandler interface
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				String method = exchange.getRequestMethod();
+				if (!method.equals("GET") && !method.equals("HEAD")) {
+					exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+					exchange.sendResponseHeaders(405, -1);
+					return;
+				}
+				byte[] body = registry.scrape().getBytes(
+						StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+				if (method.equals("HEAD")) {
+					exchange.sendResponseHeaders(200, -1);
+					return;
+				}
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			} finally {
+				exchange.close();
+			}
+		} // handle
+	} // ScrapeHandler
+
+	/**
+	 * This inner class is used for creating the thread of the endpoint, which
+	 * does not keep the process alive
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		// implementation of method from the ThreadFactory interface
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "metrics");
+			thread.setDaemon(true);
+			return thread;
+		}
+	} // DaemonThreadFactory
+}
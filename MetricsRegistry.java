@@ -0,0 +1,374 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is used to model a registry of metrics: counters, gauges and
+ * latency histograms, each with an optional label, which are written out in
+ * the Prometheus text format (version 0.0.4) when they are scraped.
+ * <p>
+ * Counters and histograms are updated from the event loops without locking,
+ * and counters are striped so that loops counting the same event do not
+ * contend. Gauges hold values which are costly to keep up to date on every
+ * event, and are set by collectors which run just before each scrape.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class MetricsRegistry {
+	// the families of metrics by name, in the order in which they are written
+	private final LinkedHashMap<String, Family> families = new LinkedHashMap<String, Family>();
+	// the tasks which set the gauges before a scrape
+	private final ArrayList<Runnable> collectors = new ArrayList<Runnable>();
+
+	/**
+	 * Returns the counter with the specified name, creating it if needed.
+	 *
+	 * @param name
+	 *            the name of the counter, ending with "_total"
+	 * @param help
+	 *            a description of the counter
+	 * @return the counter
+	 */
+	public Counter counter(String name, String help) {
+		return counter(name, help, null, null);
+	}
+
+	/**
+	 * Returns the counter with the specified name and label, creating it if
+	 * needed.
+	 *
+	 * @param name
+	 *            the name of the counter, ending with "_total"
+	 * @param help
+	 *            a description of the counter
+	 * @param labelName
+	 *            the name of the label, or null if none
+	 * @param labelValue
+	 *            the value of the label, or null if none
+	 * @return the counter
+	 */
+	public Counter counter(String name, String help, String labelName,
+			String labelValue) {
+		return (Counter) register(name, help, "counter", labelName,
+				labelValue, new Counter());
+	}
+
+	/**
+	 * Returns the gauge with the specified name and label, creating it if
+	 * needed.
+	 *
+	 * @param name
+	 *            the name of the gauge
+	 * @param help
+	 *            a description of the gauge
+	 * @param labelName
+	 *            the name of the label, or null if none
+	 * @param labelValue
+	 *            the value of the label, or null if none
+	 * @return the gauge
+	 */
+	public Gauge gauge(String name, String help, String labelName,
+			String labelValue) {
+		return (Gauge) register(name, help, "gauge", labelName, labelValue,
+				new Gauge());
+	}
+
+	/**
+	 * Returns the histogram with the specified name, creating it if needed.
+	 * Values are recorded in nanoseconds and written out in seconds.
+	 *
+	 * @param name
+	 *            the name of the histogram, ending with "_seconds"
+	 * @param help
+	 *            a description of the histogram
+	 * @param buckets
+	 *            the upper bounds of the buckets written out, in seconds and
+	 *            in increasing order
+	 * @return the histogram
+	 */
+	public Histogram histogram(String name, String help, double[] buckets) {
+		return (Histogram) register(name, help, "histogram", null, null,
+				new Histogram(buckets));
+	}
+
+	/**
+	 * Adds a task which sets some of the gauges, and is run before each
+	 * scrape on the scraping thread.
+	 *
+	 * @param collector
+	 *            the task setting the gauges
+	 */
+	public synchronized void addCollector(Runnable collector) {
+		collectors.add(collector);
+	}
+
+	/**
+	 * Runs the collectors and writes out all the metrics in the Prometheus
+	 * text format.
+	 *
+	 * @return the metrics in the Prometheus text format
+	 */
+	public String scrape() {
+		Runnable[] tasks;
+		synchronized (this) {
+			tasks = collectors.toArray(new Runnable[collectors.size()]);
+		}
+		for (Runnable task : tasks) {
+			task.run();
+		}
+		StringBuilder out = new StringBuilder();
+		synchronized (this) {
+			for (Family family : families.values()) {
+				out.append("# HELP ").append(family.name).append(' ')
+						.append(escape(family.help, false)).append('\n');
+				out.append("# TYPE ").append(family.name).append(' ')
+						.append(family.type).append('\n');
+				for (int i = 0; i < family.metrics.size(); i++) {
+					family.metrics.get(i).write(out, family.name,
+							family.labels.get(i));
+				}
+			}
+		}
+		return out.toString();
+	} // scrape
+
+	/**
+	 * Adds the specified metric to its family, or returns the metric with the
+	 * same name and label if there is one.
+	 */
+	private synchronized Metric register(String name, String help,
+			String type, String labelName, String labelValue, Metric metric) {
+		Family family = families.get(name);
+		if (family == null) {
+			family = new Family(name, help, type);
+			families.put(name, family);
+		} else if (!family.type.equals(type)) {
+			throw new IllegalArgumentException(name + " is a " + family.type);
+		}
+		String labels = labelName == null ? "" : labelName + "=\""
+				+ escape(labelValue, true) + "\"";
+		int index = family.labels.indexOf(labels);
+		if (index >= 0) {
+			return family.metrics.get(index);
+		}
+		family.labels.add(labels);
+		family.metrics.add(metric);
+		return metric;
+	} // register
+
+	/**
+	 * Escapes the specified text for a help line or a label value.
+	 */
+	private static String escape(String text, boolean quoted) {
+		String escaped = text.replace("\\", "\\\\").replace("\n", "\\n");
+		return quoted ? escaped.replace("\"", "\\\"") : escaped;
+	}
+
+	/**
+	 * Writes out one sample.
+	 */
+	private static void writeSample(StringBuilder out, String name,
+			String labels, String value) {
+		out.append(name);
+		if (labels.length() > 0) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Returns the specified number in the Prometheus text format.
+	 */
+	private static String format(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+
+	/**
+	 * This inner class is used to model a metric of the registry
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private abstract static class Metric {
+		/**
+		 * Writes out the samples of this metric.
+		 *
+		 * @param out
+		 *            the builder to which the samples are appended
+		 * @param name
+		 *            the name of the metric
+		 * @param labels
+		 *            the labels of the metric, e.g. type="MOVE", or an empty
+		 *            string if none
+		 */
+		abstract void write(StringBuilder out, String name, String labels);
+	} // Metric
+
+	/**
+	 * This inner class is used to model a counter, i.e. a number which only
+	 * goes up
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	public static final class Counter extends Metric {
+		private final LongAdder value = new LongAdder();
+
+		/**
+		 * Adds one to this counter. This may be called from any thread.
+		 */
+		public void increment() {
+			value.increment();
+		}
+
+		/**
+		 * Adds the specified amount to this counter. This may be called from
+		 * any thread.
+		 *
+		 * @param amount
+		 *            the amount, which must not be negative
+		 */
+		public void add(long amount) {
+			value.add(amount);
+		}
+
+		/**
+		 * Returns the value of this counter.
+		 *
+		 * @return the value of this counter
+		 */
+		public long get() {
+			return value.sum();
+		}
+
+		void write(StringBuilder out, String name, String labels) {
+			writeSample(out, name, labels, Long.toString(value.sum()));
+		}
+	} // Counter
+
+	/**
+	 * This inner class is used to model a gauge, i.e. a number which may go up
+	 * and down
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	public static final class Gauge extends Metric {
+		private volatile double value = 0;
+
+		/**
+		 * Sets the value of this gauge. This may be called from any thread.
+		 *
+		 * @param value
+		 *            the new value
+		 */
+		public void set(double value) {
+			this.value = value;
+		}
+
+		/**
+		 * Returns the value of this gauge.
+		 *
+		 * @return the value of this gauge
+		 */
+		public double get() {
+			return value;
+		}
+
+		void write(StringBuilder out, String name, String labels) {
+			writeSample(out, name, labels, format(value));
+		}
+	} // Gauge
+
+	/**
+	 * This inner class is used to model a histogram of latencies, which are
+	 * recorded in nanoseconds and written out in seconds
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	public static final class Histogram extends Metric {
+		private final LatencyHistogram histogram = new LatencyHistogram();
+		private final double[] buckets; // in seconds
+		private final long[] bounds; // in nanoseconds
+
+		/**
+		 * Creates and returns an instance of the Histogram class.
+		 *
+		 * @param buckets
+		 *            the upper bounds of the buckets, in seconds
+		 */
+		Histogram(double[] buckets) {
+			this.buckets = buckets.clone();
+			this.bounds = new long[buckets.length];
+			for (int i = 0; i < buckets.length; i++) {
+				bounds[i] = (long) (buckets[i] * 1e9);
+			}
+		} // constructor
+
+		/**
+		 * Records the specified latency. This may be called from any thread.
+		 *
+		 * @param nanos
+		 *            the latency in nanoseconds
+		 */
+		public void record(long nanos) {
+			histogram.record(nanos);
+		}
+
+		/**
+		 * Returns the histogram of the values recorded, e.g. for reading its
+		 * percentiles.
+		 *
+		 * @return the histogram of the values recorded in nanoseconds
+		 */
+		public LatencyHistogram getHistogram() {
+			return histogram;
+		}
+
+		void write(StringBuilder out, String name, String labels) {
+			long[] counts = histogram.getCountsAtOrBelow(bounds);
+			String prefix = labels.length() > 0 ? labels + "," : "";
+			for (int i = 0; i < bounds.length; i++) {
+				writeSample(out, name + "_bucket", prefix + "le=\""
+						+ Double.toString(buckets[i]) + "\"",
+						Long.toString(counts[i]));
+			}
+			long count = counts[bounds.length];
+			writeSample(out, name + "_bucket", prefix + "le=\"+Inf\"",
+					Long.toString(count));
+			writeSample(out, name + "_sum", labels,
+					Double.toString(histogram.getSum() / 1e9));
+			writeSample(out, name + "_count", labels, Long.toString(count));
+		}
+	} // Histogram
+
+	/**
+	 * This inner class is used to model the metrics sharing a name, which
+	 * differ in their labels
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private static final class Family {
+		private final String name; // the name of the metrics
+		private final String help; // a description of the metrics
+		private final String type; // "counter", "gauge" or "histogram"
+		// the labels of each metric, and the metrics
+		private final ArrayList<String> labels = new ArrayList<String>();
+		private final ArrayList<Metric> metrics = new ArrayList<Metric>();
+
+		/**
+		 * Creates and returns an instance of the Family class.
+		 */
+		Family(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		} // constructor
+	} // Family
+}
@@ -0,0 +1,109 @@
+/**
+ * This class is used to model the outcome of a move checked by the server. An
+ * accepted move is broadcast to all clients, while a rejected move is only
+ * reported back to the player who made it.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public final class MoveResult {
+	private final int playerID;
+	private final boolean legal;
+	private final long cards;
+	private final int handType;
+	private final int nextIdx;
+	private final long version;
+
+	/**
+	 * Creates and returns an instance of the MoveResult class.
+	 *
+	 * @param playerID
+	 *            the playerID of the player who made the move
+	 * @param legal
+	 *            whether the move is legal
+	 * @param cards
+	 *            the mask of the cards played (see CardMask), or 0 for a pass
+	 * @param handType
+	 *            the type of the hand played (see BigTwoGameState.HAND_TYPES),
+	 *            or -1 for a pass or cards that do not form a hand
+	 * @param nextIdx
+	 *            the index of the player whose turn it is after the move
+	 * @param version
+	 *            the version of the game after the move
+	 */
+	public MoveResult(int playerID, boolean legal, long cards, int handType,
+			int nextIdx, long version) {
+		this.playerID = playerID;
+		this.legal = legal;
+		this.cards = cards;
+		this.handType = handType;
+		this.nextIdx = nextIdx;
+		this.version = version;
+	}
+
+	/**
+	 * Returns the playerID of the player who made the move.
+	 *
+	 * @return the playerID of the player who made the move
+	 */
+	public int getPlayerID() {
+		return playerID;
+	}
+
+	/**
+	 * Returns whether the move is legal.
+	 *
+	 * @return true if the move is legal; false otherwise
+	 */
+	public boolean isLegal() {
+		return legal;
+	}
+
+	/**
+	 * Returns whether the move is a pass.
+	 *
+	 * @return true if no cards were played; false otherwise
+	 */
+	public boolean isPass() {
+		return cards == 0;
+	}
+
+	/**
+	 * Returns the mask of the cards played.
+	 *
+	 * @return the mask of the cards played (see CardMask), or 0 for a pass
+	 */
+	public long getCards() {
+		return cards;
+	}
+
+	/**
+	 * Returns the type of the hand played.
+	 *
+	 * @return the type of the hand played, or -1 for a pass or cards that do
+	 *         not form a hand
+	 */
+	public int getHandType() {
+		return handType;
+	}
+
+	/**
+	 * Returns the index of the player whose turn it is after the move.
+	 *
+	 * @return the index of the player whose turn it is after the move
+	 */
+	public int getNextIdx() {
+		return nextIdx;
+	}
+
+	/**
+	 * Returns the version of the game after the move. An accepted move always
+	 * increases the version by one, so a client can tell whether it has missed
+	 * any moves.
+	 *
+	 * @return the version of the game after the move
+	 */
+	public long getVersion() {
+		return version;
+	}
+}
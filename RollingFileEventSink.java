@@ -0,0 +1,104 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class is used to model an event sink which writes each event as a line
+ * of text (see EventLog.format) to a file. Once the file has grown past a
+ * given size, it is renamed by appending ".1" to its name (the older files
+ * being shifted to ".2", ".3" and so on) and a new file is started. Only a
+ * given number of older files are kept.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class RollingFileEventSink implements EventSink {
+	private final File file;
+	private final long maxFileSize; // in bytes
+	private final int maxBackups;
+	private Writer out;
+	private long size; // approximate size of the current file in bytes
+
+	/**
+	 * Creates and returns an instance of the RollingFileEventSink class. New
+	 * events are appended to the file if it exists.
+	 *
+	 * @param file
+	 *            the file to which events are written
+	 * @param maxFileSize
+	 *            the size in bytes after which the file is rolled over
+	 * @param maxBackups
+	 *            the number of older files kept
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	public RollingFileEventSink(File file, long maxFileSize, int maxBackups)
+			throws IOException {
+		this.file = file;
+		this.maxFileSize = maxFileSize;
+		this.maxBackups = maxBackups;
+		open();
+	}
+
+	public void write(long time, String thread, String message)
+			throws IOException {
+		String line = EventLog.format(time, thread, message);
+		out.write(line);
+		out.write('\n');
+		// counts characters rather than encoded bytes, which is exact for
+		// ASCII and close enough otherwise
+		size += line.length() + 1;
+		if (size >= maxFileSize) {
+			roll();
+		}
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * Opens the file for appending.
+	 */
+	private void open() throws IOException {
+		size = file.length();
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+				file, true), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Closes the file, shifts it and the older files along, and starts a new
+	 * file.
+	 */
+	private void roll() throws IOException {
+		out.close();
+		if (maxBackups > 0) {
+			File oldest = backup(maxBackups);
+			if (oldest.exists() && !oldest.delete()) {
+				throw new IOException("Cannot delete " + oldest);
+			}
+			for (int i = maxBackups - 1; i >= 1; i--) {
+				File backup = backup(i);
+				if (backup.exists()) {
+					backup.renameTo(backup(i + 1));
+				}
+			}
+			file.renameTo(backup(1));
+		} else {
+			file.delete();
+		}
+		open();
+	} // roll
+
+	private File backup(int index) {
+		return new File(file.getPath() + "." + index);
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ * This class is used to model the public event stream of a table as watched
+ * by spectators. Each event is encoded into a frame once and kept in a ring
+ * buffer; every spectator holds a cursor into the stream, and is sent the
+ * frames after its cursor by queueing the very same byte arrays. A spectator
+ * which falls so far behind that the frames it needs have been overwritten
+ * has to be sent a snapshot of the game instead.
+ * <p>
+ * The feed is not thread-safe: it is meant to be owned by the event loop
+ * which serves the table.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class SpectatorFeed {
+	private final byte[][] frames;
+	private final int mask;
+	private long head = 0; // the sequence number of the next frame
+
+	/**
+	 * Creates and returns an instance of the SpectatorFeed class.
+	 *
+	 * @param capacity
+	 *            the number of frames kept, which is rounded up to a power of
+	 *            two
+	 */
+	public SpectatorFeed(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1);
+		this.frames = new byte[size][];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Appends the specified frame to the stream, overwriting the oldest frame
+	 * if the buffer is full.
+	 *
+	 * @param frame
+	 *            the encoded frame, which must not be modified afterwards
+	 * @return the sequence number of the frame
+	 */
+	public long publish(byte[] frame) {
+		frames[(int) (head & mask)] = frame;
+		return head++;
+	}
+
+	/**
+	 * Returns the sequence number which the next frame will be given, i.e. the
+	 * cursor of a spectator which has been sent every frame so far.
+	 *
+	 * @return the sequence number of the next frame
+	 */
+	public long getHead() {
+		return head;
+	}
+
+	/**
+	 * Returns the frame with the specified sequence number.
+	 *
+	 * @param seq
+	 *            the sequence number of the frame
+	 * @return the frame, or null if it has been overwritten or not been
+	 *         published yet
+	 */
+	public byte[] get(long seq) {
+		if (seq >= head || seq < head - frames.length || seq < 0) {
+			return null;
+		}
+		return frames[(int) (seq & mask)];
+	}
+
+	/**
+	 * Forgets all frames, e.g. when the table is closed.
+	 */
+	public void clear() {
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = null;
+		}
+	}
+}
@@ -0,0 +1,534 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * This class is used to model the recovery of the tables which were open on
+ * a server when it died, from the journals of its table workers (see
+ * GameJournal), which serve as its write-ahead log. Each worker saves a
+ * snapshot of the state of all its tables with its journal at regular
+ * intervals, and the tables of a journal are rebuilt from its last snapshot
+ * and only the records after it, so that the time taken is bounded by the
+ * number of tables and the records of one interval rather than by the length
+ * of the journals.
+ * <p>
+ * A table moved from one worker to another leaves the journal of the first
+ * with a MOVE record, and arrives in that of the second with its whole
+ * state, so that each journal is recovered on its own. A table found in
+ * several journals is taken from the one which recorded its latest event,
+ * and is still open unless that event closed it or handed it over to
+ * another server; a table which was being moved is recovered from the
+ * journal it left. The recovered tables are returned as TableStates, with
+ * which the server opens them again and holds their seats for the players
+ * to resume their games.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public final class TableRecovery {
+	// the states of a table found in a journal
+	private static final int OPEN = 0;
+	private static final int MOVED = 1;
+	private static final int CLOSED = 2;
+
+	private final int numOfSeats;
+	// the tables still open, in increasing order of their ids
+	private final ArrayList<Table> tables = new ArrayList<Table>();
+	private int numOfJournals = 0;
+	private int numOfSnapshots = 0;
+	private long numOfRecords = 0; // the records read after the snapshots
+	private long duration = 0; // in nanoseconds
+
+	/**
+	 * Creates and returns an instance of the TableRecovery class with no
+	 * tables.
+	 */
+	private TableRecovery(int numOfSeats) {
+		this.numOfSeats = numOfSeats;
+	}
+
+	/**
+	 * Recovers the tables which are still open from all the journals in the
+	 * specified directory and their snapshots. A journal with a snapshot
+	 * which cannot be read is recovered from its first record.
+	 *
+	 * @param dir
+	 *            the directory of the journals
+	 * @param numOfSeats
+	 *            the number of seats at a table
+	 * @return the recovered tables
+	 * @throws IOException
+	 *             if a journal cannot be read
+	 */
+	public static TableRecovery recover(Path dir, int numOfSeats)
+			throws IOException {
+		long start = System.nanoTime();
+		TableRecovery recovery = new TableRecovery(numOfSeats);
+		TreeMap<Integer, Table> latest = new TreeMap<Integer, Table>();
+		for (String name : GameJournal.listJournals(dir)) {
+			for (Table table : recovery.recoverJournal(dir, name).values()) {
+				Table other = latest.get(table.id);
+				if (other == null || table.isLaterThan(other)) {
+					latest.put(table.id, table);
+				}
+			}
+		}
+		for (Table table : latest.values()) {
+			if (table.status != CLOSED && table.hasPlayers()) {
+				recovery.tables.add(table);
+			}
+		}
+		recovery.duration = System.nanoTime() - start;
+		return recovery;
+	} // recover
+
+	/**
+	 * Returns the number of tables which are still open.
+	 *
+	 * @return the number of tables
+	 */
+	public int getNumOfTables() {
+		return tables.size();
+	}
+
+	/**
+	 * Returns the state of the specified table.
+	 *
+	 * @param i
+	 *            the index of the table
+	 * @return the state of the table, which is moved to no server
+	 */
+	public TableState getState(int i) {
+		return tables.get(i).toState();
+	}
+
+	/**
+	 * Returns the time at which the specified table was opened (see
+	 * GameJournal.OPEN).
+	 *
+	 * @param i
+	 *            the index of the table
+	 * @return the time in milliseconds since the epoch
+	 */
+	public long getOpenedAt(int i) {
+		return tables.get(i).openedAt;
+	}
+
+	/**
+	 * Returns the number of events of the specified table recorded in the
+	 * journals, i.e. the number of the next one.
+	 *
+	 * @param i
+	 *            the index of the table
+	 * @return the number of events recorded
+	 */
+	public int getNumOfEvents(int i) {
+		return tables.get(i).seq;
+	}
+
+	/**
+	 * Returns the number of journals read.
+	 *
+	 * @return the number of journals
+	 */
+	public int getNumOfJournals() {
+		return numOfJournals;
+	}
+
+	/**
+	 * Returns the number of snapshots from which tables have been rebuilt.
+	 *
+	 * @return the number of snapshots
+	 */
+	public int getNumOfSnapshots() {
+		return numOfSnapshots;
+	}
+
+	/**
+	 * Returns the number of records read after the snapshots.
+	 *
+	 * @return the number of records
+	 */
+	public long getNumOfRecords() {
+		return numOfRecords;
+	}
+
+	/**
+	 * Returns the time taken by the recovery.
+	 *
+	 * @return the time in nanoseconds
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * Rebuilds the tables of the journal of the specified name from its last
+	 * snapshot and the records after it.
+	 */
+	private HashMap<Integer, Table> recoverJournal(Path dir, String name)
+			throws IOException {
+		HashMap<Integer, Table> journalTables = new HashMap<Integer, Table>();
+		long position = 0;
+		try {
+			GameJournal.Snapshot snapshot = GameJournal.readSnapshot(dir, name);
+			if (snapshot != null) {
+				decode(snapshot.getData(), journalTables);
+				position = snapshot.getPosition();
+				numOfSnapshots++;
+			}
+		} catch (IOException ex) {
+			System.err.println("Error in reading the snapshot of the journal "
+					+ name + ", which is read from the start");
+			ex.printStackTrace();
+			journalTables.clear();
+		}
+		GameJournal.Reader reader = new GameJournal.Reader(dir, name);
+		reader.seek(position);
+		while (reader.next()) {
+			numOfRecords++;
+			int id = reader.getTableId();
+			Table table = journalTables.get(id);
+			if (reader.getType() == GameJournal.OPEN
+					&& (table == null || table.openedAt != reader.getValue())) {
+				// a new table, or one opened with the same id on a later run
+				table = new Table(id, reader.getValue(), numOfSeats);
+				journalTables.put(id, table);
+			}
+			if (table != null && reader.getSeq() >= table.seq) {
+				table.apply(reader);
+			}
+		}
+		numOfJournals++;
+		return journalTables;
+	} // recoverJournal
+
+	/**
+	 * Decodes the tables of a snapshot written by a SnapshotWriter.
+	 */
+	private void decode(byte[] data, HashMap<Integer, Table> journalTables)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		try {
+			if (buffer.getInt() != numOfSeats) {
+				throw new IOException("The snapshot is of tables with "
+						+ buffer.getInt(0) + " seats");
+			}
+			int numOfTables = buffer.getInt();
+			for (int i = 0; i < numOfTables; i++) {
+				Table table = new Table(buffer.getInt(), buffer.getLong(),
+						numOfSeats);
+				table.seq = buffer.getInt();
+				table.version = buffer.getLong();
+				table.lastHand = buffer.getLong();
+				table.lastHandType = buffer.get();
+				table.lastHandIdx = buffer.get();
+				table.currentIdx = buffer.get();
+				for (int j = 0; j < numOfSeats; j++) {
+					table.tokens[j] = buffer.getLong();
+					table.hands[j] = buffer.getLong();
+					table.readyStates[j] = buffer.get() != 0;
+					int length = buffer.getShort();
+					if (length >= 0) {
+						byte[] name = new byte[length];
+						buffer.get(name);
+						table.names[j] = new String(name,
+								StandardCharsets.UTF_8);
+					}
+				}
+				journalTables.put(table.id, table);
+			}
+		} catch (BufferUnderflowException ex) {
+			throw new IOException("The snapshot is cut off", ex);
+		}
+	} // decode
+
+	/**
+	 * main() method for recovering the tables from the journals of a server
+	 * without starting it, e.g. to measure the time taken.
+	 *
+	 * @param args
+	 *            the directory of the journals, optionally followed by the
+	 *            number of seats at a table (4 by default)
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: java TableRecovery <journal dir>"
+					+ " [<seats>]");
+			return;
+		}
+		try {
+			TableRecovery recovery = recover(Paths.get(args[0]),
+					args.length > 1 ? Integer.parseInt(args[1]) : 4);
+			System.out.println(recovery);
+		} catch (IOException ex) {
+			System.err.println("Error in recovering the tables in " + args[0]);
+			ex.printStackTrace();
+		}
+	} // main
+
+	/**
+	 * Returns a description of this recovery.
+	 *
+	 * @return a description of this recovery
+	 */
+	public String toString() {
+		return "Recovers " + tables.size() + " tables from " + numOfJournals
+				+ " journals (" + numOfSnapshots + " snapshots and "
+				+ numOfRecords + " records after them) in " + duration
+				/ 1000000 + " ms";
+	}
+
+	/**
+	 * This inner class is used to model the state of a table as it is
+	 * rebuilt from a journal
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	private static final class Table {
+		private final int id;
+		private final long openedAt;
+		private int status = OPEN;
+		private int seq = 0; // the number of the next event
+		private long version = 0;
+		private final String[] names;
+		private final long[] tokens;
+		private final boolean[] readyStates;
+		private final long[] hands;
+		// the cards dealt for the next game or the state to be restored
+		private final long[] dealt;
+		private long lastHand = 0;
+		private int lastHandType = -1;
+		private int lastHandIdx = -1;
+		private int currentIdx = -1;
+
+		/**
+		 * Creates and returns an instance of the Table class with no players.
+		 */
+		Table(int id, long openedAt, int numOfSeats) {
+			this.id = id;
+			this.openedAt = openedAt;
+			names = new String[numOfSeats];
+			tokens = new long[numOfSeats];
+			readyStates = new boolean[numOfSeats];
+			hands = new long[numOfSeats];
+			dealt = new long[numOfSeats];
+		} // constructor
+
+		/**
+		 * Applies the current record of the specified reader, which is one
+		 * of this table, to the state of this table.
+		 */
+		void apply(GameJournal.Reader reader) throws IOException {
+			int seat = reader.getSeat();
+			int n = names.length;
+			if (seat >= n) {
+				throw new IOException("Seat " + seat + " of table " + id
+						+ " at position " + reader.getPosition());
+			}
+			switch (reader.getType()) {
+			case GameJournal.OPEN:
+				status = OPEN;
+				break;
+			case GameJournal.JOIN:
+				names[seat] = reader.getText();
+				tokens[seat] = reader.getValue();
+				readyStates[seat] = false;
+				break;
+			case GameJournal.READY:
+				readyStates[seat] = true;
+				break;
+			case GameJournal.QUIT:
+				names[seat] = null;
+				tokens[seat] = 0;
+				readyStates[seat] = false;
+				// the game cannot go on without the player
+				for (int i = 0; i < n; i++) {
+					hands[i] = 0;
+				}
+				setLastHand(0, -1, -1);
+				currentIdx = -1;
+				break;
+			case GameJournal.DEAL:
+				dealt[seat] = reader.getValue();
+				break;
+			case GameJournal.START:
+				System.arraycopy(dealt, 0, hands, 0, n);
+				for (int i = 0; i < n; i++) {
+					readyStates[i] = false;
+				}
+				setLastHand(0, -1, -1);
+				currentIdx = seat;
+				break;
+			case GameJournal.RESTORE:
+				System.arraycopy(dealt, 0, hands, 0, n);
+				int aux = reader.getAux();
+				int type = aux & 0xFF;
+				int idx = (aux >> 8) & 0xFF;
+				setLastHand(reader.getValue(), type == 0xFF ? -1 : type,
+						idx == 0xFF ? -1 : idx);
+				currentIdx = seat;
+				break;
+			case GameJournal.PLAY:
+				hands[seat] &= ~reader.getValue();
+				setLastHand(reader.getValue(), reader.getAux() & 0xFF, seat);
+				currentIdx = (seat + 1) % n;
+				break;
+			case GameJournal.PASS:
+				currentIdx = (seat + 1) % n;
+				break;
+			case GameJournal.MOVE:
+				status = MOVED;
+				break;
+			case GameJournal.CLOSE:
+			case GameJournal.EXPORT:
+				status = CLOSED;
+				break;
+			default:
+				break;
+			}
+			seq = reader.getSeq() + 1;
+			version = reader.getVersion();
+		} // apply
+
+		/**
+		 * Sets the last hand on the table.
+		 */
+		private void setLastHand(long cards, int type, int idx) {
+			lastHand = cards;
+			lastHandType = type;
+			lastHandIdx = idx;
+		}
+
+		/**
+		 * Returns whether the latest event of this table is later than that
+		 * of the specified one, which has the same id.
+		 */
+		boolean isLaterThan(Table other) {
+			return openedAt != other.openedAt ? openedAt > other.openedAt
+					: seq > other.seq;
+		}
+
+		/**
+		 * Returns whether any seat of this table is taken.
+		 */
+		boolean hasPlayers() {
+			for (String name : names) {
+				if (name != null) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Returns the state of this table.
+		 */
+		TableState toState() {
+			return new TableState(id, null, names, tokens, readyStates, hands,
+					lastHand, lastHandType, lastHandIdx, currentIdx, version);
+		}
+	} // Table
+
+	/**
+	 * This inner class is used for writing a snapshot of the state of the
+	 * tables of a worker, to be saved with its journal
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	public static final class SnapshotWriter {
+		private ByteBuffer buffer = ByteBuffer.allocate(4096);
+		private int numOfTables = 0;
+
+		/**
+		 * Creates and returns an instance of the SnapshotWriter class with no
+		 * tables.
+		 *
+		 * @param numOfSeats
+		 *            the number of seats at a table
+		 */
+		public SnapshotWriter(int numOfSeats) {
+			buffer.putInt(numOfSeats);
+			buffer.putInt(0);
+		} // constructor
+
+		/**
+		 * Adds the state of a table to the snapshot.
+		 *
+		 * @param state
+		 *            the state of the table
+		 * @param openedAt
+		 *            the time at which the table was opened
+		 * @param numOfEvents
+		 *            the number of events of the table recorded in the
+		 *            journals
+		 */
+		public void add(TableState state, long openedAt, int numOfEvents) {
+			int seats = state.getNumOfSeats();
+			byte[][] names = new byte[seats][];
+			int size = 40 + 19 * seats;
+			for (int i = 0; i < seats; i++) {
+				if (state.getName(i) != null) {
+					names[i] = state.getName(i).getBytes(StandardCharsets.UTF_8);
+					size += names[i].length;
+				}
+			}
+			ensureCapacity(size);
+			buffer.putInt(state.getTableId());
+			buffer.putLong(openedAt);
+			buffer.putInt(numOfEvents);
+			buffer.putLong(state.getVersion());
+			buffer.putLong(state.getLastHand());
+			buffer.put((byte) state.getLastHandType());
+			buffer.put((byte) state.getLastHandIdx());
+			buffer.put((byte) state.getCurrentIdx());
+			for (int i = 0; i < seats; i++) {
+				buffer.putLong(state.getSessionToken(i));
+				buffer.putLong(state.getHand(i));
+				buffer.put((byte) (state.isReady(i) ? 1 : 0));
+				buffer.putShort((short) (names[i] == null ? -1
+						: names[i].length));
+				if (names[i] != null) {
+					buffer.put(names[i]);
+				}
+			}
+			numOfTables++;
+		} // add
+
+		/**
+		 * Returns the snapshot of the tables added so far.
+		 *
+		 * @return the snapshot
+		 */
+		public byte[] toByteArray() {
+			buffer.putInt(4, numOfTables);
+			byte[] data = new byte[buffer.position()];
+			buffer.flip();
+			buffer.get(data);
+			buffer.clear();
+			buffer.position(data.length);
+			return data;
+		}
+
+		/**
+		 * Makes room for the specified number of bytes.
+		 */
+		private void ensureCapacity(int size) {
+			if (buffer.remaining() < size) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(
+						buffer.capacity() * 2, buffer.position() + size));
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+		}
+	} // SnapshotWriter
+}
@@ -0,0 +1,195 @@
+/**
+ * This class is used to model the whole state of a table as it is moved from
+ * one server of a cluster to another: who holds each seat, with the session
+ * tokens with which the players resume the game on the new server, and the
+ * complete state of the game, including the cards of every player.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public final class TableState {
+	private final int tableId;
+	private final String node;
+	private final String[] names;
+	private final long[] sessionTokens;
+	private final boolean[] readyStates;
+	private final long[] hands;
+	private final long lastHand;
+	private final int lastHandType;
+	private final int lastHandIdx;
+	private final int currentIdx;
+	private final long version;
+
+	/**
+	 * Creates and returns an instance of the TableState class.
+	 *
+	 * @param tableId
+	 *            the id of the table
+	 * @param node
+	 *            the name of the server to which the table is moved
+	 * @param names
+	 *            the name of the player at each seat, or null for a free seat
+	 * @param sessionTokens
+	 *            the session token of the player at each seat, or 0 for a
+	 *            free seat
+	 * @param readyStates
+	 *            whether the player at each seat is ready for a new game
+	 * @param hands
+	 *            the mask of the cards held by each player
+	 * @param lastHand
+	 *            the mask of the last hand on the table, or 0 if none
+	 * @param lastHandType
+	 *            the type of the last hand on the table, or -1 if none
+	 * @param lastHandIdx
+	 *            the index of the player who played the last hand on the
+	 *            table, or -1 if none
+	 * @param currentIdx
+	 *            the index of the player whose turn it is, or -1 if no game
+	 *            has been started
+	 * @param version
+	 *            the version of the game
+	 */
+	public TableState(int tableId, String node, String[] names,
+			long[] sessionTokens, boolean[] readyStates, long[] hands,
+			long lastHand, int lastHandType, int lastHandIdx, int currentIdx,
+			long version) {
+		this.tableId = tableId;
+		this.node = node;
+		this.names = names.clone();
+		this.sessionTokens = sessionTokens.clone();
+		this.readyStates = readyStates.clone();
+		this.hands = hands.clone();
+		this.lastHand = lastHand;
+		this.lastHandType = lastHandType;
+		this.lastHandIdx = lastHandIdx;
+		this.currentIdx = currentIdx;
+		this.version = version;
+	}
+
+	/**
+	 * Returns the id of the table.
+	 *
+	 * @return the id of the table
+	 */
+	public int getTableId() {
+		return tableId;
+	}
+
+	/**
+	 * Returns the name of the server to which the table is moved.
+	 *
+	 * @return the name of the server, e.g. "127.0.0.1:2397"
+	 */
+	public String getNode() {
+		return node;
+	}
+
+	/**
+	 * Returns the number of seats at the table.
+	 *
+	 * @return the number of seats at the table
+	 */
+	public int getNumOfSeats() {
+		return names.length;
+	}
+
+	/**
+	 * Returns the name of the player at the specified seat.
+	 *
+	 * @param seat
+	 *            the seat
+	 * @return the name of the player, or null if the seat is free
+	 */
+	public String getName(int seat) {
+		return names[seat];
+	}
+
+	/**
+	 * Returns the session token of the player at the specified seat.
+	 *
+	 * @param seat
+	 *            the seat
+	 * @return the session token of the player, or 0 if the seat is free
+	 */
+	public long getSessionToken(int seat) {
+		return sessionTokens[seat];
+	}
+
+	/**
+	 * Returns whether the player at the specified seat is ready for a new
+	 * game.
+	 *
+	 * @param seat
+	 *            the seat
+	 * @return true if the player is ready; false otherwise
+	 */
+	public boolean isReady(int seat) {
+		return readyStates[seat];
+	}
+
+	/**
+	 * Returns the cards held by the player at the specified seat.
+	 *
+	 * @param seat
+	 *            the seat
+	 * @return the mask of the cards held by the player
+	 */
+	public long getHand(int seat) {
+		return hands[seat];
+	}
+
+	/**
+	 * Returns the cards held by all the players.
+	 *
+	 * @return the mask of the cards held by each player
+	 */
+	public long[] getHands() {
+		return hands.clone();
+	}
+
+	/**
+	 * Returns the last hand on the table.
+	 *
+	 * @return the mask of the last hand on the table, or 0 if none
+	 */
+	public long getLastHand() {
+		return lastHand;
+	}
+
+	/**
+	 * Returns the type of the last hand on the table.
+	 *
+	 * @return the type code of the last hand (see BigTwoGameState.HAND_TYPES),
+	 *         or -1 if none
+	 */
+	public int getLastHandType() {
+		return lastHandType;
+	}
+
+	/**
+	 * Returns the index of the player who played the last hand on the table.
+	 *
+	 * @return the index of the player, or -1 if none
+	 */
+	public int getLastHandIdx() {
+		return lastHandIdx;
+	}
+
+	/**
+	 * Returns the index of the player whose turn it is.
+	 *
+	 * @return the index of the player, or -1 if no game has been started
+	 */
+	public int getCurrentIdx() {
+		return currentIdx;
+	}
+
+	/**
+	 * Returns the version of the game.
+	 *
+	 * @return the version of the game
+	 */
+	public long getVersion() {
+		return version;
+	}
+}
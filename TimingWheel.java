@@ -0,0 +1,205 @@
+/**
+ * This class is used to model a hashed timing wheel, which holds any number
+ * of timeouts with O(1) scheduling and cancellation. Time is divided into
+ * ticks of a fixed duration, and a timeout is kept in the slot of the tick in
+ * which it expires (modulo the number of slots); each tick only the timeouts
+ * in one slot are looked at. Timeouts therefore never fire early, and fire at
+ * most one tick late.
+ * <p>
+ * The wheel is not thread-safe: it is meant to be owned and advanced by a
+ * single event loop, which also runs the expired tasks.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class TimingWheel {
+	private final long tickDuration; // in milliseconds
+	private final long startTime; // in milliseconds
+	private final Timeout[] heads; // first timeout in each slot
+	private final Timeout[] tails; // last timeout in each slot
+	private final int mask;
+	private long nextTick = 1; // the next tick to be processed
+	private int size = 0; // the number of pending timeouts
+
+	/**
+	 * Creates and returns an instance of the TimingWheel class.
+	 *
+	 * @param tickDuration
+	 *            the duration of a tick in milliseconds
+	 * @param numOfSlots
+	 *            the number of slots, which is rounded up to a power of two
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	public TimingWheel(long tickDuration, int numOfSlots, long now) {
+		int slots = Integer.highestOneBit(Math.max(numOfSlots, 1) * 2 - 1);
+		this.tickDuration = tickDuration;
+		this.startTime = now;
+		this.heads = new Timeout[slots];
+		this.tails = new Timeout[slots];
+		this.mask = slots - 1;
+	}
+
+	/**
+	 * Schedules the specified task to be run at the specified time.
+	 *
+	 * @param task
+	 *            the task to be run
+	 * @param deadline
+	 *            the time in milliseconds at which the task is due
+	 * @return a handle with which the timeout can be cancelled
+	 */
+	public Timeout schedule(Runnable task, long deadline) {
+		// the first tick ending at or after the deadline
+		long tick = (deadline - startTime + tickDuration - 1) / tickDuration;
+		Timeout timeout = new Timeout(this, task, Math.max(tick, nextTick));
+		int slot = (int) (timeout.tick & mask);
+		timeout.prev = tails[slot];
+		if (tails[slot] == null) {
+			heads[slot] = timeout;
+		} else {
+			tails[slot].next = timeout;
+		}
+		tails[slot] = timeout;
+		size++;
+		return timeout;
+	} // schedule
+
+	/**
+	 * Runs the tasks of all timeouts which have expired by the specified time.
+	 * A task throwing an exception does not keep the other tasks expiring in
+	 * the same tick from running; the first exception is thrown once they
+	 * have run, and the later ticks are left for the next call.
+	 *
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	public void advance(long now) {
+		while (startTime + nextTick * tickDuration <= now) {
+			long tick = nextTick++;
+			int slot = (int) (tick & mask);
+
+			// takes the expired timeouts out of the slot first, since running
+			// a task may schedule or cancel other timeouts
+			Timeout expired = null;
+			Timeout timeout = heads[slot];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.tick <= tick) {
+					unlink(timeout);
+					timeout.state = Timeout.EXPIRED;
+					timeout.next = expired;
+					expired = timeout;
+				}
+				timeout = next;
+			}
+
+			RuntimeException failure = null;
+			while (expired != null) {
+				Timeout next = expired.next;
+				expired.next = null;
+				if (expired.state == Timeout.EXPIRED) {
+					expired.state = Timeout.DONE;
+					try {
+						expired.task.run();
+					} catch (RuntimeException ex) {
+						if (failure == null) {
+							failure = ex;
+						}
+					}
+				}
+				expired = next;
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	} // advance
+
+	/**
+	 * Returns the time until the next tick, for use as the timeout of a
+	 * blocking wait on the event loop.
+	 *
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the time in milliseconds until the next tick (at least 1), or 0
+	 *         if there are no pending timeouts
+	 */
+	public long timeToNextTick(long now) {
+		if (size == 0) {
+			return 0;
+		}
+		return Math.max(1, startTime + nextTick * tickDuration - now);
+	} // timeToNextTick
+
+	/**
+	 * Returns the number of pending timeouts.
+	 *
+	 * @return the number of pending timeouts
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes the specified pending timeout from its slot.
+	 */
+	private void unlink(Timeout timeout) {
+		int slot = (int) (timeout.tick & mask);
+		if (timeout.prev == null) {
+			heads[slot] = timeout.next;
+		} else {
+			timeout.prev.next = timeout.next;
+		}
+		if (timeout.next == null) {
+			tails[slot] = timeout.prev;
+		} else {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		size--;
+	} // unlink
+
+	/**
+	 * This inner class is used to model a task scheduled on a timing wheel
+	 *
+	 * @author Anchit Mishra
+	 *
+	 */
+	public static final class Timeout {
+		private static final int PENDING = 0; // in its slot
+		private static final int EXPIRED = 1; // about to be run
+		private static final int DONE = 2; // run
+		private static final int CANCELLED = 3;
+
+		private final TimingWheel wheel;
+		private final Runnable task;
+		private final long tick; // the tick in which the timeout expires
+		private int state = PENDING;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(TimingWheel wheel, Runnable task, long tick) {
+			this.wheel = wheel;
+			this.task = task;
+			this.tick = tick;
+		} // constructor
+
+		/**
+		 * Cancels this timeout, so that its task is not run.
+		 *
+		 * @return true if the timeout has been cancelled; false if its task
+		 *         has already been run or it was cancelled before
+		 */
+		public boolean cancel() {
+			if (state == PENDING) {
+				wheel.unlink(this);
+			} else if (state != EXPIRED) {
+				return false;
+			}
+			state = CANCELLED;
+			return true;
+		} // cancel
+	} // Timeout
+}
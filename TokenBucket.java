@@ -0,0 +1,63 @@
+/**
+ * This class is used to model a token bucket for limiting the rate of events,
+ * e.g. the messages received from a client. The bucket holds up to a given
+ * number of tokens and is refilled at a constant rate; each event takes one
+ * token, and events arriving while the bucket is empty are rejected. Bursts
+ * up to the size of the bucket are therefore allowed, while the long-term
+ * rate cannot exceed the refill rate.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class TokenBucket {
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private final long capacity; // in nano-tokens
+	private final long refillRate; // in nano-tokens per second
+	private long tokens; // in nano-tokens, so that refilling needs no division
+	private long lastRefill; // time of the last refill in nanoseconds
+
+	/**
+	 * Creates and returns an instance of the TokenBucket class. The bucket
+	 * starts full.
+	 *
+	 * @param capacity
+	 *            the maximum number of tokens, i.e. the largest burst allowed
+	 * @param ratePerSecond
+	 *            the number of tokens added per second
+	 * @param now
+	 *            the current time in nanoseconds (see System.nanoTime)
+	 */
+	public TokenBucket(int capacity, int ratePerSecond, long now) {
+		this.capacity = capacity * NANOS_PER_SECOND;
+		this.refillRate = ratePerSecond;
+		this.tokens = this.capacity;
+		this.lastRefill = now;
+	}
+
+	/**
+	 * Takes a token from the bucket if there is one.
+	 *
+	 * @param now
+	 *            the current time in nanoseconds (see System.nanoTime)
+	 * @return true if a token has been taken; false if the bucket is empty
+	 */
+	public boolean tryAcquire(long now) {
+		long elapsed = now - lastRefill;
+		if (elapsed > 0) {
+			// a full refill needs no more than capacity / rate seconds, so a
+			// longer gap is capped to keep the product from overflowing
+			if (elapsed >= capacity / Math.max(refillRate, 1)) {
+				tokens = capacity;
+			} else {
+				tokens = Math.min(capacity, tokens + elapsed * refillRate);
+			}
+			lastRefill = now;
+		}
+		if (tokens < NANOS_PER_SECOND) {
+			return false;
+		}
+		tokens -= NANOS_PER_SECOND;
+		return true;
+	}
+}
@@ -0,0 +1,480 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+
+/**
+ * This class is used to model a connection to a client which speaks the game
+ * protocol over WebSocket (RFC 6455), e.g. a web browser. After the opening
+ * handshake, each binary WebSocket message carries exactly one frame of the
+ * game protocol without its length prefix, in either direction.
+ * <p>
+ * The messages received are unwrapped into the read buffer, so the server
+ * handles them like the frames of any other client. The frames queued for
+ * the client are written behind a WebSocket header without being copied, so
+ * a frame shared by the spectators of a table stays shared. Pings are
+ * answered, text messages are refused, and a close message is answered and
+ * ends the connection once the reply has been written.
+ *
+ * @author Anchit Mishra
+ *
+ */
+public class WebSocketConnection extends ClientConnection {
+	// the GUID which the server appends to the key of the client (RFC 6455,
+	// section 1.3)
+	private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	// the longest handshake request accepted
+	private static final int MAX_HANDSHAKE_LENGTH = 8192;
+	// the opcodes of the WebSocket frames
+	private static final int CONTINUATION = 0x0;
+	private static final int TEXT = 0x1;
+	private static final int BINARY = 0x2;
+	private static final int CLOSE = 0x8;
+	private static final int PING = 0x9;
+	private static final int PONG = 0xA;
+	// the status codes sent when closing the connection
+	private static final int PROTOCOL_ERROR = 1002;
+	private static final int UNSUPPORTED_DATA = 1003;
+	private static final int MESSAGE_TOO_BIG = 1009;
+
+	// bytes received from the client which have not been unwrapped yet
+	private ByteBuffer rawBuffer = ByteBuffer.allocate(RETAINED_BUFFER_SIZE);
+	private boolean upgraded = false; // true once the handshake is complete
+	private boolean closing = false; // true once a close has been queued
+	// the fragments received so far of a binary message, or null if none
+	private ByteBuffer fragments = null;
+	// frames queued before the handshake was complete
+	private ArrayList<byte[]> earlyFrames = new ArrayList<byte[]>();
+
+	/**
+	 * Creates and returns an instance of the WebSocketConnection class.
+	 *
+	 * @param channel
+	 *            the socket channel connected to the client
+	 * @throws IOException
+	 *             if the channel cannot be configured
+	 */
+	public WebSocketConnection(SocketChannel channel) throws IOException {
+		super(channel);
+	}
+
+	/**
+	 * Reads whatever bytes are available from the client without blocking,
+	 * and unwraps the complete WebSocket messages received into frames of
+	 * the game protocol.
+	 *
+	 * @return the number of bytes read, or -1 if the client has closed the
+	 *         connection
+	 * @throws IOException
+	 *             if the bytes cannot be read
+	 */
+	public int read() throws IOException {
+		int count = getChannel().read(rawBuffer);
+		if (closing) {
+			// nothing more is taken from the client
+			rawBuffer.clear();
+			return count;
+		}
+		if (upgraded || handshake()) {
+			unwrap();
+		}
+		return count;
+	} // read
+
+	/**
+	 * Queues the specified frame to be written at the next flush as a binary
+	 * WebSocket message. Frames queued before the handshake is complete are
+	 * written once it is.
+	 *
+	 * @param frame
+	 *            the frame to be sent, including its length prefix
+	 * @return true if the frame has been queued; false if the connection has
+	 *         been closed or is being closed
+	 */
+	public boolean queue(byte[] frame) {
+		if (!getChannel().isOpen() || closing) {
+			return false;
+		}
+		if (!upgraded) {
+			earlyFrames.add(frame);
+			return true;
+		}
+		int length = frame.length - CardGameMessageCodec.HEADER_LENGTH;
+		return queueBuffers(header(BINARY, length), ByteBuffer.wrap(frame,
+				CardGameMessageCodec.HEADER_LENGTH, length));
+	} // queue
+
+	/**
+	 * Writes as many of the queued bytes as the socket accepts, and closes
+	 * the connection once a close message has been written.
+	 *
+	 * @return true if all queued bytes have been written; false otherwise
+	 * @throws IOException
+	 *             if the bytes cannot be written
+	 */
+	public boolean flush() throws IOException {
+		boolean done = super.flush();
+		if (done && closing) {
+			close();
+		}
+		return done;
+	} // flush
+
+	/**
+	 * Answers the opening handshake once the whole request has been received.
+	 *
+	 * @return true if the connection has been upgraded; false if the request
+	 *         is incomplete or has been refused
+	 */
+	private boolean handshake() {
+		byte[] bytes = rawBuffer.array();
+		int end = -1;
+		for (int i = 3; i < rawBuffer.position(); i++) {
+			if (bytes[i - 3] == '\r' && bytes[i - 2] == '\n'
+					&& bytes[i - 1] == '\r' && bytes[i] == '\n') {
+				end = i + 1;
+				break;
+			}
+		}
+		if (end < 0) {
+			if (rawBuffer.position() >= MAX_HANDSHAKE_LENGTH) {
+				refuse("431 Request Header Fields Too Large", "");
+			} else if (!rawBuffer.hasRemaining()) {
+				rawBuffer = grow(rawBuffer, MAX_HANDSHAKE_LENGTH);
+			}
+			return false;
+		}
+
+		String[] lines = new String(bytes, 0, end, StandardCharsets.ISO_8859_1)
+				.split("\r\n");
+		boolean upgrade = false;
+		boolean connectionUpgrade = false;
+		String key = null;
+		String version = null;
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			String name = lines[i].substring(0, colon).trim();
+			String value = lines[i].substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Upgrade")) {
+				upgrade = value.equalsIgnoreCase("websocket");
+			} else if (name.equalsIgnoreCase("Connection")) {
+				for (String token : value.split(",")) {
+					connectionUpgrade |= token.trim().equalsIgnoreCase("Upgrade");
+				}
+			} else if (name.equalsIgnoreCase("Sec-WebSocket-Key")) {
+				key = value;
+			} else if (name.equalsIgnoreCase("Sec-WebSocket-Version")) {
+				version = value;
+			}
+		}
+		if (!lines[0].startsWith("GET ") || !upgrade || !connectionUpgrade
+				|| key == null) {
+			refuse("400 Bad Request", "");
+			return false;
+		}
+		if (!"13".equals(version)) {
+			refuse("426 Upgrade Required", "Sec-WebSocket-Version: 13\r\n");
+			return false;
+		}
+
+		queueText("HTTP/1.1 101 Switching Protocols\r\n"
+				+ "Upgrade: websocket\r\n" + "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n");
+		upgraded = true;
+		rawBuffer.flip();
+		rawBuffer.position(end);
+		rawBuffer.compact();
+		for (byte[] frame : earlyFrames) {
+			queue(frame);
+		}
+		earlyFrames.clear();
+		return true;
+	} // handshake
+
+	/**
+	 * Unwraps the complete WebSocket frames received so far. The payload of a
+	 * binary message goes to the read buffer, and control frames are
+	 * answered.
+	 */
+	private void unwrap() {
+		rawBuffer.flip();
+		int needed = 0; // the length of the incomplete frame left, if known
+		while (!closing && rawBuffer.remaining() >= 2) {
+			int start = rawBuffer.position();
+			int b0 = rawBuffer.get(start) & 0xFF;
+			int b1 = rawBuffer.get(start + 1) & 0xFF;
+			boolean fin = (b0 & 0x80) != 0;
+			int opcode = b0 & 0x0F;
+			if ((b0 & 0x70) != 0 || (b1 & 0x80) == 0) {
+				// no extensions are agreed on, and clients must mask
+				fail(PROTOCOL_ERROR);
+				break;
+			}
+			long length = b1 & 0x7F;
+			int headerLength = 2;
+			if (length == 126) {
+				if (rawBuffer.remaining() < 4) {
+					break;
+				}
+				length = rawBuffer.getShort(start + 2) & 0xFFFF;
+				headerLength = 4;
+			} else if (length == 127) {
+				if (rawBuffer.remaining() < 10) {
+					break;
+				}
+				length = rawBuffer.getLong(start + 2);
+				headerLength = 10;
+			}
+			headerLength += 4; // the masking key
+			if (opcode >= CLOSE && (length > 125 || !fin)) {
+				fail(PROTOCOL_ERROR);
+				break;
+			}
+			if (length < 0 || length > CardGameMessageCodec.MAX_FRAME_LENGTH) {
+				fail(MESSAGE_TOO_BIG);
+				break;
+			}
+			if (rawBuffer.remaining() < headerLength + length) {
+				needed = headerLength + (int) length;
+				break;
+			}
+
+			// unmasks the payload in place
+			byte[] bytes = rawBuffer.array();
+			int mask = start + headerLength - 4;
+			int payload = start + headerLength;
+			for (int i = 0; i < length; i++) {
+				bytes[payload + i] ^= bytes[mask + (i & 3)];
+			}
+			rawBuffer.position(payload + (int) length);
+			handleFrame(fin, opcode, ByteBuffer.wrap(bytes, payload,
+					(int) length));
+		}
+		rawBuffer.compact();
+		if (rawBuffer.capacity() < needed) {
+			rawBuffer = grow(rawBuffer, needed);
+		} else if (rawBuffer.capacity() > RETAINED_BUFFER_SIZE
+				&& rawBuffer.position() <= RETAINED_BUFFER_SIZE && needed == 0) {
+			rawBuffer = grow(rawBuffer, RETAINED_BUFFER_SIZE);
+		}
+	} // unwrap
+
+	/**
+	 * Handles a complete WebSocket frame received from the client.
+	 *
+	 * @param fin
+	 *            true if the frame is the last of its message
+	 * @param opcode
+	 *            the opcode of the frame
+	 * @param payload
+	 *            the unmasked payload of the frame
+	 */
+	private void handleFrame(boolean fin, int opcode, ByteBuffer payload) {
+		switch (opcode) {
+		case BINARY:
+			if (fragments != null) {
+				fail(PROTOCOL_ERROR);
+			} else if (fin) {
+				receiveMessage(payload);
+			} else {
+				fragments = ByteBuffer
+						.allocate(CardGameMessageCodec.MAX_FRAME_LENGTH);
+				fragments.put(payload);
+			}
+			break;
+		case CONTINUATION:
+			if (fragments == null) {
+				fail(PROTOCOL_ERROR);
+			} else if (fragments.remaining() < payload.remaining()) {
+				fail(MESSAGE_TOO_BIG);
+			} else {
+				fragments.put(payload);
+				if (fin) {
+					fragments.flip();
+					receiveMessage(fragments);
+					fragments = null;
+				}
+			}
+			break;
+		case TEXT:
+			fail(UNSUPPORTED_DATA);
+			break;
+		case CLOSE:
+			if (payload.remaining() == 1) {
+				// a status code takes two bytes
+				fail(PROTOCOL_ERROR);
+				break;
+			}
+			// echoes the status code of the client, if any
+			ByteBuffer reply = ByteBuffer.allocate(Math.min(2,
+					payload.remaining()));
+			while (reply.hasRemaining()) {
+				reply.put(payload.get());
+			}
+			reply.flip();
+			sendClose(reply);
+			break;
+		case PING:
+			ByteBuffer pong = ByteBuffer.allocate(payload.remaining());
+			pong.put(payload);
+			pong.flip();
+			queueBuffers(header(PONG, pong.remaining()), pong);
+			requestFlush();
+			break;
+		case PONG:
+			// nothing to do, the connection is alive
+			break;
+		default:
+			fail(PROTOCOL_ERROR);
+			break;
+		}
+	} // handleFrame
+
+	/**
+	 * Passes a complete binary message on as a frame of the protocol. An empty
+	 * message cannot hold a frame, so the connection is closed instead.
+	 *
+	 * @param message
+	 *            the payload of the message
+	 */
+	private void receiveMessage(ByteBuffer message) {
+		if (!message.hasRemaining()) {
+			fail(PROTOCOL_ERROR);
+		} else {
+			receiveFrame(message);
+		}
+	} // receiveMessage
+
+	/**
+	 * Closes the connection with the specified status code because the client
+	 * has broken the protocol.
+	 *
+	 * @param status
+	 *            the status code
+	 */
+	private void fail(int status) {
+		ByteBuffer payload = ByteBuffer.allocate(2);
+		payload.putShort((short) status);
+		payload.flip();
+		sendClose(payload);
+	} // fail
+
+	/**
+	 * Queues a close message, after which the connection is closed once the
+	 * queued bytes have been written.
+	 *
+	 * @param payload
+	 *            the payload of the close message
+	 */
+	private void sendClose(ByteBuffer payload) {
+		queueBuffers(header(CLOSE, payload.remaining()), payload);
+		closing = true;
+		stopReading();
+		requestFlush();
+	} // sendClose
+
+	/**
+	 * Refuses the opening handshake with the specified HTTP status, after
+	 * which the connection is closed.
+	 *
+	 * @param status
+	 *            the status code and reason phrase
+	 * @param headers
+	 *            further header lines, each ending with CRLF
+	 */
+	private void refuse(String status, String headers) {
+		queueText("HTTP/1.1 " + status + "\r\n" + headers
+				+ "Connection: close\r\n" + "Content-Length: 0\r\n\r\n");
+		closing = true;
+		stopReading();
+	} // refuse
+
+	/**
+	 * Queues the specified text to be written as it is, and has the
+	 * connection flushed at the end of the current pass.
+	 *
+	 * @param text
+	 *            the text, e.g. an HTTP response
+	 */
+	private void queueText(String text) {
+		queueBuffers(ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1)));
+		requestFlush();
+	} // queueText
+
+	/**
+	 * Has the connection flushed at the end of the current pass of the event
+	 * loop serving it.
+	 */
+	private void requestFlush() {
+		getOwner().scheduleFlush(this);
+	}
+
+	/**
+	 * Returns the header of a WebSocket frame sent to the client, which is
+	 * never fragmented nor masked.
+	 *
+	 * @param opcode
+	 *            the opcode of the frame
+	 * @param length
+	 *            the length of the payload
+	 * @return the buffer holding the header
+	 */
+	private static ByteBuffer header(int opcode, int length) {
+		ByteBuffer header;
+		if (length < 126) {
+			header = ByteBuffer.allocate(2);
+			header.put((byte) (0x80 | opcode));
+			header.put((byte) length);
+		} else if (length < 65536) {
+			header = ByteBuffer.allocate(4);
+			header.put((byte) (0x80 | opcode));
+			header.put((byte) 126);
+			header.putShort((short) length);
+		} else {
+			header = ByteBuffer.allocate(10);
+			header.put((byte) (0x80 | opcode));
+			header.put((byte) 127);
+			header.putLong(length);
+		}
+		header.flip();
+		return header;
+	} // header
+
+	/**
+	 * Returns the value of the Sec-WebSocket-Accept header answering the
+	 * specified key.
+	 *
+	 * @param key
+	 *            the value of the Sec-WebSocket-Key header of the client
+	 * @return the Base64 encoding of the SHA-1 hash of the key and the GUID
+	 */
+	private static String acceptKey(String key) {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return Base64.getEncoder().encodeToString(
+					sha1.digest((key + ACCEPT_GUID)
+							.getBytes(StandardCharsets.ISO_8859_1)));
+		} catch (NoSuchAlgorithmException ex) {
+			// every Java platform supports SHA-1
+			throw new IllegalStateException(ex);
+		}
+	} // acceptKey
+
+	/**
+	 * Moves the bytes in the specified buffer (in write mode) into a new
+	 * buffer of the specified capacity.
+	 */
+	private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+		ByteBuffer grown = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		grown.put(buffer);
+		return grown;
+	} // grow
+}